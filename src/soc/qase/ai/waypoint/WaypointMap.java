@@ -11,7 +11,12 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import soc.qase.file.bsp.BSPMap;
+import soc.qase.file.bsp.BSPParser;
+import soc.qase.file.bsp.TraceContext;
 import soc.qase.state.Entity;
 import soc.qase.state.Origin;
 import soc.qase.tools.vecmath.Vector3f;
@@ -24,12 +29,20 @@ import soc.qase.tools.vecmath.Vector3f;
  *	DM2 recording. The class also provides methods to save the WaypointMap
  *	object to file and reload it at a later time, thereby allowing maps
  *	to be reused without having to be regenerated each time. /*	
+ *
+ *	A map may also hold a precomputed line-of-sight matrix, recording
+ *	which pairs of waypoints can see one another; this is built from
+ *	the BSP geometry by generateVisibilityMatrix, saved along with the
+ *	rest of the map, and supports tactical queries such as finding the
+ *	nearest node which is hidden from an opponent.
  *	@see Waypoint
  *	@see WaypointItem
  *	@see WaypointMapGenerator */
 /*-------------------------------------------------------------------*/
 public class WaypointMap implements Serializable
 {
+	private static final long serialVersionUID = -7417813346683298112L;	// matches maps saved by earlier versions
+
 	private Vector nodes = null;
 	private Vector itemNodes = null;
 
@@ -45,6 +58,12 @@ public class WaypointMap implements Serializable
 	private int[][] predMatrix = null;
 	private float[][] costMatrix = null;
 
+	private long[] visibilityMatrix = null;	// one bit per pair of nodes, row by row
+	private int visibilityRowWords = 0;
+	private float visibilityEyeHeight = 0.0f;
+
+	private static final int VISIBILITY_TASK_ROWS = 8;	// rows traced by each parallel task
+
 /*-------------------------------------------------------------------*/
 /**	Default constructor. */
 /*-------------------------------------------------------------------*/
@@ -421,7 +440,8 @@ public class WaypointMap implements Serializable
  *	is performed which alters the structure of the graph. The various
  *	traversal methods are thereby notified that they must recalculate
  *	the costs from each node to every other, and recompute the shortest
- *	paths between them.
+ *	paths between them. The visibility matrix, which must be rebuilt
+ *	from the BSP geometry, is discarded.
  *	@see #generateWaypointMatrix
  *	@see #getWaypointMatrix
  *	@see #generateEdgeMatrix
@@ -438,6 +458,8 @@ public class WaypointMap implements Serializable
 
 		costMatrix = null;
 		predMatrix = null;
+
+		visibilityMatrix = null;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1187,4 +1209,274 @@ public class WaypointMap implements Serializable
 			}
 		}
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Build the line-of-sight matrix, recording which pairs of waypoints
+ *	can see one another. Each pair is checked once, by a line trace
+ *	between points at the given height above the two waypoints, and
+ *	the result is taken to hold in both directions. Pairs which the
+ *	map's PVS shows cannot see one another are rejected without a
+ *	trace. The traces are spread across the common fork-join pool;
+ *	for large maps, the matrix is best built offline and saved along
+ *	with the rest of the map. Doors are treated as open, since their
+ *	state at any later moment cannot be known.
+ *	@param bsp a BSPParser in which the map's geometry is loaded
+ *	@param eyeHeight the height above each waypoint from which to look;
+ *	22 is the height of a standing player's viewpoint
+ *	@return true if the matrix was built, false if no map is loaded */
+/*-------------------------------------------------------------------*/
+	public boolean generateVisibilityMatrix(BSPParser bsp, float eyeHeight)
+	{
+		BSPMap map = (bsp == null ? null : bsp.getMap());
+
+		if(map == null)
+			return false;
+
+		Vector3f[] eyes = new Vector3f[nodes.size()];
+
+		for(int i = 0; i < eyes.length; i++)
+		{
+			eyes[i] = new Vector3f(getNode(i).getPosition());
+			eyes[i].z += eyeHeight;
+		}
+
+		int rowWords = (eyes.length + 63) >> 6;
+		long[] matrix = new long[eyes.length * rowWords];
+
+		ForkJoinPool.commonPool().invoke(new VisibilityTask(map, eyes, matrix, rowWords, 0, eyes.length));
+
+		// the tasks fill the upper triangle only; mirror it to the lower
+		for(int i = 0; i < eyes.length; i++)
+		{
+			matrix[i * rowWords + (i >> 6)] |= (1L << i);
+
+			for(int j = i + 1; j < eyes.length; j++)
+			{
+				if((matrix[i * rowWords + (j >> 6)] & (1L << j)) != 0)
+					matrix[j * rowWords + (i >> 6)] |= (1L << i);
+			}
+		}
+
+		visibilityRowWords = rowWords;
+		visibilityEyeHeight = eyeHeight;
+		visibilityMatrix = matrix;
+
+		return true;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Traces the pairs of nodes belonging to a range of rows of the
+ *	visibility matrix, splitting the range in two if it is large. Each
+ *	row i holds the pairs (i, j) for j greater than i, so that no two
+ *	tasks ever write to the same element of the matrix. */
+/*-------------------------------------------------------------------*/
+	private static class VisibilityTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private BSPMap map = null;
+		private Vector3f[] eyes = null;
+		private long[] matrix = null;
+		private int rowWords = 0, first = 0, last = 0;
+
+		private VisibilityTask(BSPMap map, Vector3f[] eyes, long[] matrix, int rowWords, int first, int last)
+		{
+			this.map = map;
+			this.eyes = eyes;
+			this.matrix = matrix;
+			this.rowWords = rowWords;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute()
+		{
+			if(last - first > VISIBILITY_TASK_ROWS)
+			{
+				int middle = (first + last) >>> 1;
+				invokeAll(new VisibilityTask(map, eyes, matrix, rowWords, first, middle), new VisibilityTask(map, eyes, matrix, rowWords, middle, last));
+				return;
+			}
+
+			TraceContext context = new TraceContext();
+
+			for(int i = first; i < last; i++)
+			{
+				for(int j = i + 1; j < eyes.length; j++)
+				{
+					if(eyes[i].equals(eyes[j]) || map.isVisible(context, eyes[i], eyes[j]))
+						matrix[i * rowWords + (j >> 6)] |= (1L << j);
+				}
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the WaypointMap holds a line-of-sight matrix.
+ *	@return true if the matrix has been built, false otherwise
+ *	@see #generateVisibilityMatrix */
+/*-------------------------------------------------------------------*/
+	public boolean hasVisibilityMatrix()
+	{
+		return visibilityMatrix != null;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the height above each waypoint from which the line-of-sight
+ *	matrix was computed.
+ *	@return the eye height used to build the matrix */
+/*-------------------------------------------------------------------*/
+	public float getVisibilityEyeHeight()
+	{
+		return visibilityEyeHeight;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether two nodes can see one another, according to the
+ *	line-of-sight matrix.
+ *	@param fromIndex the index of the first node
+ *	@param toIndex the index of the second node
+ *	@return true if the nodes can see one another; false if they
+ *	cannot, if either index lies outside the matrix, or if the matrix
+ *	has not been built */
+/*-------------------------------------------------------------------*/
+	public boolean isVisible(int fromIndex, int toIndex)
+	{
+		if(visibilityMatrix == null || fromIndex < 0 || toIndex < 0)
+			return false;
+
+		int numRows = (visibilityRowWords == 0 ? 0 : visibilityMatrix.length / visibilityRowWords);
+
+		if(fromIndex >= numRows || toIndex >= numRows)
+			return false;
+
+		return (visibilityMatrix[fromIndex * visibilityRowWords + (toIndex >> 6)] & (1L << toIndex)) != 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether two nodes can see one another, according to the
+ *	line-of-sight matrix. Compares Waypoint objects by reference.
+ *	@param from the first node
+ *	@param to the second node
+ *	@return true if the nodes can see one another; false if they
+ *	cannot, or if the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public boolean isVisible(Waypoint from, Waypoint to)
+	{
+		return isVisible(indexOf(from), indexOf(to));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get every node which can be seen from the given node, including
+ *	the node itself.
+ *	@param index the index of the node from which to look
+ *	@return the visible nodes, or null if the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public Waypoint[] findVisibleNodes(int index)
+	{
+		return findNodesByVisibility(index, true);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get every node which can be seen from the node closest to the given
+ *	position, including that node itself.
+ *	@param location the position from which to look
+ *	@return the visible nodes, or null if the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public Waypoint[] findVisibleNodes(Vector3f location)
+	{
+		return findVisibleNodes(indexOf(findClosestWaypoint(location)));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get every node which is hidden from the given node - that is, every
+ *	node at which an agent would be in cover from a threat there.
+ *	@param threatIndex the index of the node at which the threat lies
+ *	@return the hidden nodes, or null if the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public Waypoint[] findCoveredNodes(int threatIndex)
+	{
+		return findNodesByVisibility(threatIndex, false);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get every node which is hidden from the node closest to the given
+ *	position - that is, every node at which an agent would be in cover
+ *	from a threat there.
+ *	@param threatLocation the position of the threat
+ *	@return the hidden nodes, or null if the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public Waypoint[] findCoveredNodes(Vector3f threatLocation)
+	{
+		return findCoveredNodes(indexOf(findClosestWaypoint(threatLocation)));
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Collect the nodes whose visibility from a node matches the flag. */
+/*-------------------------------------------------------------------*/
+	private Waypoint[] findNodesByVisibility(int index, boolean visible)
+	{
+		if(visibilityMatrix == null || index < 0)
+			return null;
+
+		Vector matches = new Vector();
+
+		for(int i = 0; i < nodes.size(); i++)
+		{
+			if(isVisible(index, i) == visible)
+				matches.add(nodes.elementAt(i));
+		}
+
+		Waypoint[] matchArray = new Waypoint[matches.size()];
+		matches.toArray(matchArray);
+
+		return matchArray;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the node hidden from a threat which can be reached from the
+ *	given node by the shortest path.
+ *	@param fromIndex the index of the node from which to search
+ *	@param threatIndex the index of the node at which the threat lies
+ *	@return the nearest hidden node, or null if there is none reachable
+ *	or the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public Waypoint findNearestCover(int fromIndex, int threatIndex)
+	{
+		int toIndex = -1;
+		float minDist = Float.MAX_VALUE;
+
+		if(visibilityMatrix == null || fromIndex < 0 || threatIndex < 0)
+			return null;
+
+		if(costMatrix == null)
+			generateCostAndPathMatrices();
+
+		for(int i = 0; i < nodes.size(); i++)
+		{
+			float curDist = (i == fromIndex ? 0.0f : costMatrix[fromIndex][i]);
+
+			if(curDist < minDist && !isVisible(threatIndex, i))
+			{
+				minDist = curDist;
+				toIndex = i;
+			}
+		}
+
+		return (toIndex < 0 ? null : (Waypoint)nodes.elementAt(toIndex));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the node hidden from a threat which can be reached by the
+ *	shortest path from the node closest to the given position.
+ *	@param currentPos the position from which to search (generally the
+ *	agent's current location)
+ *	@param threatLocation the position of the threat
+ *	@return the nearest hidden node, or null if there is none reachable
+ *	or the matrix has not been built */
+/*-------------------------------------------------------------------*/
+	public Waypoint findNearestCover(Vector3f currentPos, Vector3f threatLocation)
+	{
+		return findNearestCover(indexOf(findClosestWaypoint(currentPos)), indexOf(findClosestWaypoint(threatLocation)));
+	}
 }
@@ -11,11 +11,13 @@ import java.util.Vector;
 import soc.qase.ai.waypoint.Waypoint;
 import soc.qase.ai.waypoint.WaypointMap;
 import soc.qase.ai.waypoint.WaypointMapGenerator;
+import soc.qase.com.NetworkEngine;
 import soc.qase.com.Proxy;
 import soc.qase.file.bsp.BSPBrush;
 import soc.qase.file.bsp.BSPEntity;
 import soc.qase.file.bsp.BSPLeaf;
 import soc.qase.file.bsp.BSPParser;
+import soc.qase.file.bsp.RayBatch;
 import soc.qase.file.pak.PAKParser;
 import soc.qase.info.Server;
 import soc.qase.info.User;
@@ -245,6 +247,27 @@ public abstract class BasicBot extends Thread implements Bot
 		return threadSafe;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Get the World from which the agent's gamestate queries are answered.
+ *	In high thread safety mode this is the most recent snapshot published
+ *	by the Proxy, which may be read without locking; otherwise, or until
+ *	the first snapshot has been published, it is the Proxy's live World.
+ *	@return the World to query, or null if the agent has no Proxy
+ *	@see soc.qase.com.Proxy#getWorldSnapshot() */
+/*-------------------------------------------------------------------*/
+	protected World getWorld()
+	{
+		World world = null;
+
+		if(proxy == null)
+			return null;
+
+		if(threadSafe && (world = proxy.getWorldSnapshot()) != null)
+			return world;
+
+		return proxy.getWorld();
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Specifies whether the agent should automatically request a full
  *	listing of its inventory on each frame. This can be used in place
@@ -259,6 +282,19 @@ public abstract class BasicBot extends Thread implements Bot
 		proxy.setAutoInventoryRefresh(refresh);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Specify a NetworkEngine which should service the agent's network
+ *	connection, rather than having its Proxy spawn a dedicated receive
+ *	thread. Agents run in large numbers should share a single engine.
+ *	Must be called before connecting to the server.
+ *	@param engine the engine to use, or null for a dedicated thread
+ *	@see soc.qase.com.NetworkEngine */
+/*-------------------------------------------------------------------*/
+	public void setNetworkEngine(NetworkEngine engine)
+	{
+		proxy.setNetworkEngine(engine);
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Returns the User object associated with this bot, which contains
  *	information regarding the agent's in-game name, skin, FoV, etc.
@@ -278,7 +314,8 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Player getPlayerState()
 	{
-		return ((proxy == null || proxy.getWorld() == null) ? null : proxy.getWorld().getPlayer());
+		World world = getWorld();
+		return (world == null ? null : world.getPlayer());
 	}
 
 /*-------------------------------------------------------------------*/
@@ -298,7 +335,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected boolean isBotAlive()
 	{
-		return proxy != null && proxy.inGame() && proxy.getWorld().getPlayer().isAlive();
+		return proxy != null && proxy.inGame() && getWorld().getPlayer().isAlive();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -308,7 +345,8 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Origin getPosition()
 	{
-		return ((proxy == null || proxy.getWorld() == null) ? null : proxy.getWorld().getPlayer().getPosition());
+		World world = getWorld();
+		return (world == null ? null : world.getPlayer().getPosition());
 	}
 
 /*-------------------------------------------------------------------*/
@@ -318,7 +356,8 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Angles getOrientation()
 	{
-		return ((proxy == null || proxy.getWorld() == null) ? null : proxy.getWorld().getPlayer().getOrientation());
+		World world = getWorld();
+		return (world == null ? null : world.getPlayer().getOrientation());
 	}
 
 /*-------------------------------------------------------------------*/
@@ -328,7 +367,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected int getHealth()
 	{
-		return ((proxy != null && proxy.inGame()) ? proxy.getWorld().getPlayer().getHealth() : Integer.MIN_VALUE);
+		return ((proxy != null && proxy.inGame()) ? getWorld().getPlayer().getHealth() : Integer.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -338,7 +377,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected int getArmor()
 	{
-		return ((proxy != null && proxy.inGame()) ? proxy.getWorld().getPlayer().getArmor() : Integer.MIN_VALUE);
+		return ((proxy != null && proxy.inGame()) ? getWorld().getPlayer().getArmor() : Integer.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -349,7 +388,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected int getWeaponIndex()
 	{
-		return ((proxy != null && proxy.inGame()) ? proxy.getWorld().getPlayer().getWeaponIndex() : Integer.MIN_VALUE);
+		return ((proxy != null && proxy.inGame()) ? getWorld().getPlayer().getWeaponIndex() : Integer.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -359,7 +398,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected int getAmmo()
 	{
-		return ((proxy != null && proxy.inGame()) ? proxy.getWorld().getPlayer().getAmmo() : Integer.MIN_VALUE);
+		return ((proxy != null && proxy.inGame()) ? getWorld().getPlayer().getAmmo() : Integer.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -368,7 +407,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	public boolean isFiring()
 	{
-		return proxy != null && proxy.inGame() && proxy.getWorld().getPlayer().isFiring();
+		return proxy != null && proxy.inGame() && getWorld().getPlayer().isFiring();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -590,7 +629,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected boolean isJumping()
 	{
-		return proxy != null && proxy.inGame() && proxy.getWorld().getPlayer().isJumping();
+		return proxy != null && proxy.inGame() && getWorld().getPlayer().isJumping();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -599,7 +638,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected boolean isCrouching()
 	{
-		return proxy != null && proxy.inGame() && proxy.getWorld().getPlayer().isCrouching();
+		return proxy != null && proxy.inGame() && getWorld().getPlayer().isCrouching();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -610,7 +649,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected int getPosture()
 	{
-		return  (proxy != null && proxy.inGame() ? proxy.getWorld().getPlayer().getPosture() : Integer.MIN_VALUE);
+		return  (proxy != null && proxy.inGame() ? getWorld().getPlayer().getPosture() : Integer.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -619,7 +658,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected boolean isUnderWater()
 	{
-		return proxy != null && proxy.inGame() && proxy.getWorld().getPlayer().isUnderWater();
+		return proxy != null && proxy.inGame() && getWorld().getPlayer().isUnderWater();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -634,7 +673,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected long timeUntilDrowning()
 	{
-		return (proxy != null && proxy.inGame() ? proxy.getWorld().getPlayer().timeUntilDrowning() : Long.MIN_VALUE);
+		return (proxy != null && proxy.inGame() ? getWorld().getPlayer().timeUntilDrowning() : Long.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -643,7 +682,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected boolean isDrowning()
 	{
-		return proxy != null && proxy.inGame() && proxy.getWorld().getPlayer().isDrowning();
+		return proxy != null && proxy.inGame() && getWorld().getPlayer().isDrowning();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -771,7 +810,7 @@ public abstract class BasicBot extends Thread implements Bot
 
 		if(walkState == 0 || walkState > 2)
 			vel = (float)walkState;
-		else if(proxy.getWorld().getPlayer().isUnderWater()) // in water
+		else if(getWorld().getPlayer().isUnderWater()) // in water
 			vel = (walkState == 1 ? 110f : 300f);
 		else // moving, on land
 			vel = (walkState == 1 ? 200f : 300f);
@@ -889,7 +928,7 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected int checkTimedBuff(String buffIcon)
 	{
-		return (proxy != null && proxy.inGame() ? proxy.getWorld().getPlayer().getPlayerStatus().checkTimedBuff(buffIcon) : Integer.MIN_VALUE);
+		return (proxy != null && proxy.inGame() ? getWorld().getPlayer().getPlayerStatus().checkTimedBuff(buffIcon) : Integer.MIN_VALUE);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -912,7 +951,7 @@ public abstract class BasicBot extends Thread implements Bot
 		World world;
 		Inventory inv;
 
-		if(proxy == null || (world = proxy.getWorld()) == null || (inv = world.getInventory()) == null)
+		if((world = getWorld()) == null || (inv = world.getInventory()) == null)
 			return -1;
 
 		return inv.getCount(itemIndex);
@@ -932,7 +971,7 @@ public abstract class BasicBot extends Thread implements Bot
 		World world;
 		Inventory inv;
 
-		if(proxy == null || (world = proxy.getWorld()) == null || (inv = world.getInventory()) == null)
+		if((world = getWorld()) == null || (inv = world.getInventory()) == null)
 			return null;
 
 		return inv.getCount(startItemIndex, endItemIndex);
@@ -950,7 +989,7 @@ public abstract class BasicBot extends Thread implements Bot
 		World world;
 		Inventory inv;
 
-		if(proxy == null || (world = proxy.getWorld()) == null || (inv = world.getInventory()) == null)
+		if((world = getWorld()) == null || (inv = world.getInventory()) == null)
 			return -1;
 
 		return inv.getCount(item);
@@ -999,10 +1038,12 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Entity getNearestEntity()
 	{
-		if(proxy == null || proxy.getWorld() == null)
+		World world = getWorld();
+
+		if(world == null)
 			return null;
 
-		return getNearestEntity(proxy.getWorld().getEntities());
+		return world.findNearestEntity(world.getPlayer().getPosition(), null, null, null, true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1021,10 +1062,12 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Entity getNearestEntity(String cat, String type, String subType)
 	{
-		if(proxy == null || proxy.getWorld() == null)
+		World world = getWorld();
+
+		if(world == null)
 			return null;
 
-		return getNearestEntity(proxy.getWorld().getEntities(cat, type, subType, true));
+		return world.findNearestEntity(world.getPlayer().getPosition(), cat, type, subType, true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1066,10 +1109,12 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Entity getNearestOpponent()
 	{
-		if(proxy == null || proxy.getWorld() == null)
+		World world = getWorld();
+
+		if(world == null)
 			return null;
 
-		return getNearestEntity(proxy.getWorld().getOpponents());
+		return world.findNearestOpponent(world.getPlayer().getPosition(), true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1085,10 +1130,12 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Entity getNearestItem(String type, String subType)
 	{
-		if(proxy == null || proxy.getWorld() == null)
+		World world = getWorld();
+
+		if(world == null)
 			return null;
 
-		return getNearestEntity(proxy.getWorld().getEntities(Entity.CAT_ITEMS, type, subType, true));
+		return world.findNearestEntity(world.getPlayer().getPosition(), Entity.CAT_ITEMS, type, subType, true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1101,10 +1148,12 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Entity getNearestWeapon(String type)
 	{
-		if(proxy == null || proxy.getWorld() == null)
+		World world = getWorld();
+
+		if(world == null)
 			return null;
 
-		return getNearestEntity(proxy.getWorld().getEntities(Entity.CAT_WEAPONS, type, null, true));
+		return world.findNearestEntity(world.getPlayer().getPosition(), Entity.CAT_WEAPONS, type, null, true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1120,10 +1169,12 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected Entity getNearestObject(String type, String subType)
 	{
-		if(proxy == null || proxy.getWorld() == null)
+		World world = getWorld();
+
+		if(world == null)
 			return null;
 
-		return getNearestEntity(proxy.getWorld().getEntities(Entity.CAT_OBJECTS, type, subType, true));
+		return world.findNearestEntity(world.getPlayer().getPosition(), Entity.CAT_OBJECTS, type, subType, true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1218,6 +1269,30 @@ public abstract class BasicBot extends Thread implements Bot
 		return wpMap.findClosestWaypoint(nearestOpponent.getOrigin());
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Get the Waypoint hidden from the closest enemy player which can be
+ *	reached from the agent's current position by the shortest path.
+ *	Requires the waypoint map's line-of-sight matrix to have been built.
+ *	@return the nearest Waypoint in cover from the nearest enemy player,
+ *	or null if there is none
+ *	@see soc.qase.ai.waypoint.WaypointMap#generateVisibilityMatrix */
+/*-------------------------------------------------------------------*/
+	protected Waypoint findCoverFromOpponent()
+	{
+		World world = getWorld();
+
+		if(wpMap == null || world == null || !wpMap.hasVisibilityMatrix())
+			return null;
+
+		Origin position = world.getPlayer().getPosition();
+		Entity nearestOpponent = world.findNearestOpponent(position, true);
+
+		if(nearestOpponent == null)
+			return null;
+
+		return wpMap.findNearestCover(new Vector3f(position), new Vector3f(nearestOpponent.getOrigin()));
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Get the closest Waypoint to the agent's current position at which
  *	an item of the the given type resides. The item type is specified
@@ -1592,16 +1667,44 @@ public abstract class BasicBot extends Thread implements Bot
 		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
 			return null;
 
-		Vector envFeatureLeaves = new Vector();
-		BSPLeaf[] bspLeaves = bsp.leafLump.leaves;
+		return bsp.getContentsLeaves(brushBits);
+	}
 
-		for(int i = 0; i < bspLeaves.length; i++)
-		{
-			if((bspLeaves[i].brushOr & brushBits) != 0)
-				envFeatureLeaves.add(bspLeaves[i]);
-		}
+/*-------------------------------------------------------------------*/
+/** Returns the BSPLeaf representing the environmental feature - water,
+ *	lava, etc - matching the specified criteria which lies nearest to
+ *	the agent, within a given distance. The argument should be a bitwise
+ *	OR of one or more of the CONTENTS constants found in the BSPBrush
+ *	class.
+ *	@param brushBits a bitwise OR of the features to search for
+ *	@param maxDist the maximum distance at which to search
+ *	@return the nearest matching BSPLeaf, or null if none was found
+ *	within maxDist of the agent */
+/*-------------------------------------------------------------------*/
+	protected BSPLeaf getNearestEnvironmentFeature(int brushBits, float maxDist)
+	{
+		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
+			return null;
+
+		World world = getWorld();
 
-		return (BSPLeaf[])envFeatureLeaves.toArray(new BSPLeaf[0]);
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		return bsp.findNearestContents(brushBits, pos, maxDist);
+	}
+
+/*-------------------------------------------------------------------*/
+/** Check whether a straight-line move between two points would pass
+ *	through an environmental feature - water, lava, etc - matching the
+ *	specified criteria. The argument should be a bitwise OR of one or
+ *	more of the CONTENTS constants found in the BSPBrush class.
+ *	@param start the start of the move
+ *	@param end the end of the move
+ *	@param brushBits a bitwise OR of the features to check for
+ *	@return true if the move crosses a matching feature, false otherwise */
+/*-------------------------------------------------------------------*/
+	protected boolean crossesEnvironmentFeature(Vector3f start, Vector3f end, int brushBits)
+	{
+		return !isBotAlive() || (!bsp.isMapLoaded() && !readMap()) ? false : bsp.crossesContents(brushBits, start, end);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1659,6 +1762,33 @@ public abstract class BasicBot extends Thread implements Bot
 		return getEnvironmentFeatureLocations(BSPBrush.CONTENTS_WINDOW);
 	}
 
+/*-------------------------------------------------------------------*/
+/** Determine the contents of the space at a given point in the game
+ *	environment, as a bitwise OR of the CONTENTS constants found in the
+ *	BSPBrush class. Repeated queries at the same point - such as the
+ *	agent's own position while it stands still - are answered without
+ *	descending the BSP tree again. Finds and loads the current game map
+ *	transparently when called, using BSPParser.
+ *	@param v the point to check
+ *	@return the contents at the point, or 0 if the map is unavailable
+ *	@see soc.qase.file.bsp.BSPBrush */
+/*-------------------------------------------------------------------*/
+	protected int getPointContents(Vector3f v)
+	{
+		return !isBotAlive() || (!bsp.isMapLoaded() && !readMap()) ? 0 : bsp.pointContents(v.x, v.y, v.z);
+	}
+
+/*-------------------------------------------------------------------*/
+/** Check whether a given point lies in lava or slime. Cheap enough to
+ *	be applied to every candidate movement before it is taken.
+ *	@param v the point to check
+ *	@return true if the point is in a hazardous liquid, false otherwise */
+/*-------------------------------------------------------------------*/
+	protected boolean isHazardous(Vector3f v)
+	{
+		return (getPointContents(v) & (BSPBrush.CONTENTS_LAVA | BSPBrush.CONTENTS_SLIME)) != 0;
+	}
+
 /*-------------------------------------------------------------------*/
 /** Returns all entities of the specified type. The supplied entity ID
  *	should match one of the integer constants found in BSPEntity.
@@ -1670,9 +1800,6 @@ public abstract class BasicBot extends Thread implements Bot
 	protected Vector getEntityType(Vector vect, int entID)
 	{	return !isBotAlive() || (!bsp.isMapLoaded() && !readMap()) ? null : bsp.getEntityType(vect, entID);	}
 
-	private Origin o = null;
-	private Vector3f bbmin = null, bbmax = null;
-
 /*-------------------------------------------------------------------*/
 /** Determines whether the agent is currently riding one of the lift
  *	entities specified in the BSP file of the map.
@@ -1684,21 +1811,31 @@ public abstract class BasicBot extends Thread implements Bot
 		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
 			return null;
 
-		o = proxy.getWorld().getPlayer().getPlayerMove().getOrigin();
+		World world = getWorld();
 
-		for(int i = 0; i < bsp.entitiesLump.entities.length; i++)
-		{
-			if(bsp.entitiesLump.entities[i].isLift)
-			{
-				bbmin = bsp.entitiesLump.entities[i].model.bboxMin;
-				bbmax = bsp.entitiesLump.entities[i].model.bboxMax;
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		return bsp.findEntityAt(BSPEntity.BSP_LIFT, pos, 50);
+	}
 
-				if(o.getX() >= bbmin.x && o.getX() <= bbmax.x && o.getY() >= bbmin.y && o.getY() <= bbmax.y && o.getZ() >= bbmin.z && o.getZ() <= bbmax.z + 50)
-					return bsp.entitiesLump.entities[i];
-			}
-		}
+/*-------------------------------------------------------------------*/
+/** Returns the entity of the specified type nearest to the agent, as
+ *	specified in the BSP file of the map - the nearest door, teleporter
+ *	or button, for instance. The supplied entity ID should match one of
+ *	the integer constants found in BSPEntity.
+ *	@param entID the type of entity to find
+ *	@param maxDist the maximum distance at which to search
+ *	@return the nearest such entity, or null if there is none within
+ *	maxDist of the agent */
+/*-------------------------------------------------------------------*/
+	protected BSPEntity getNearestBSPEntity(int entID, float maxDist)
+	{
+		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
+			return null;
 
-		return null;
+		World world = getWorld();
+
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		return bsp.findNearestEntity(entID, pos, maxDist);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1717,6 +1854,7 @@ public abstract class BasicBot extends Thread implements Bot
 	private Vector3f dir = new Vector3f(0, 0, 0);
 	private Vector3f pos = new Vector3f(0, 0, 0);
 	private Vector3f oppPos = new Vector3f(0, 0, 0);
+	private RayBatch sensorRays = null;
 
 /*-------------------------------------------------------------------*/
 /**	Check whether a particular entity is visible from the player's
@@ -1748,12 +1886,41 @@ public abstract class BasicBot extends Thread implements Bot
 /*-------------------------------------------------------------------*/
 	protected boolean isVisible(Vector3f v)
 	{
-		if(v == null || proxy == null || proxy.getWorld() == null) return false;
+		World world = getWorld();
+
+		if(v == null || world == null) return false;
 
-		pos.set(proxy.getWorld().getPlayer().getPlayerMove().getOrigin());
-		if(traceFromView) pos.add(proxy.getWorld().getPlayer().getPlayerView().getViewOffset());
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		if(traceFromView) pos.add(world.getPlayer().getPlayerView().getViewOffset());
 
-		return !isBotAlive() || (!bsp.isMapLoaded() && !readMap()) ? false : bsp.isVisible(pos, v);
+		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
+			return false;
+
+		bsp.updateAreaPortals(world);
+		return bsp.isVisible(pos, v);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether a particular point in the environment lies in an area
+ *	of the map which is currently connected to the player's own, that
+ *	is, not sealed off by closed doors. This is a constant-time test,
+ *	useful for discarding unreachable goals before planning a path.
+ *	@param v the point to check
+ *	@return false if the point is definitely sealed off from the
+ *	player, true otherwise
+ *	@see soc.qase.file.bsp.BSPAreaGraph */
+/*-------------------------------------------------------------------*/
+	protected boolean isConnected(Vector3f v)
+	{
+		if(v == null || !isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
+			return false;
+
+		World world = getWorld();
+
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+
+		bsp.updateAreaPortals(world);
+		return bsp.isConnected(pos, v);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -1776,15 +1943,19 @@ public abstract class BasicBot extends Thread implements Bot
 		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
 			return false;
 
-		Entity nearestOpponent = getNearestOpponent();
+		World world = getWorld();
+		Entity nearestOpponent = world.findNearestOpponent(world.getPlayer().getPosition(), true);
 
 		if(nearestOpponent != null)
 		{
+			pos.set(world.getPlayer().getPlayerMove().getOrigin());
 			oppPos.set(nearestOpponent.getOrigin());
 			dir.sub(oppPos, pos);
 
-			if(traceFromView) pos.add(proxy.getWorld().getPlayer().getPlayerView().getViewOffset());
-			return (withinFOV ? Utils.calcAngles(dir)[0] <= proxy.getWorld().getPlayer().getPlayerView().getFOV() / 2.0 && bsp.isVisible(pos, oppPos) : bsp.isVisible(pos, oppPos));
+			if(traceFromView) pos.add(world.getPlayer().getPlayerView().getViewOffset());
+
+			bsp.updateAreaPortals(world);
+			return (withinFOV ? Utils.calcAngles(dir)[0] <= world.getPlayer().getPlayerView().getFOV() / 2.0 && bsp.isVisible(pos, oppPos) : bsp.isVisible(pos, oppPos));
 		}
 		else
 			return false;
@@ -1848,8 +2019,10 @@ public abstract class BasicBot extends Thread implements Bot
 		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
 			return null;
 
-		pos.set(proxy.getWorld().getPlayer().getPlayerMove().getOrigin());
-		if(traceFromView) pos.add(proxy.getWorld().getPlayer().getPlayerView().getViewOffset());
+		World world = getWorld();
+
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		if(traceFromView) pos.add(world.getPlayer().getPlayerView().getViewOffset());
 
 		bsp.setBrushType(brushType);
 
@@ -1900,8 +2073,10 @@ public abstract class BasicBot extends Thread implements Bot
 		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
 			return Float.NaN;
 
-		pos.set(proxy.getWorld().getPlayer().getPlayerMove().getOrigin());
-		if(traceFromView) pos.add(proxy.getWorld().getPlayer().getPlayerView().getViewOffset());
+		World world = getWorld();
+
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		if(traceFromView) pos.add(world.getPlayer().getPlayerView().getViewOffset());
 
 		bsp.setBrushType(brushType);
 
@@ -1915,6 +2090,66 @@ public abstract class BasicBot extends Thread implements Bot
 			return Float.NaN;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Projects a bounding-box, sphere or line through the game world in
+ *	each of a set of directions from the agent's current position, and
+ *	returns the distance to the nearest geometry of the given type in
+ *	each direction. The traces are performed as a single batch, making
+ *	it practical to build a full range-finder sweep every frame. Finds
+ *	and loads the current game map transparently when called, using
+ *	BSPParser.
+ *	@param dirs the directions in which to trace
+ *	@param traceType the type of trace, specified using the constants
+ *	found in BSPParser
+ *	@param brushType the type of brush to check against, specified by
+ *	the constants found in BSPBrush
+ *	@param maxDist maximum distance across which to sweep
+ *	@param distances an array of at least dirs.length elements into
+ *	which the distances are written; if null, a new array is created
+ *	@return the array of distances, or null if the map is unavailable
+ *	@see soc.qase.file.bsp.RayBatch
+ *	@see soc.qase.file.bsp.BSPBrush*/
+/*-------------------------------------------------------------------*/
+	protected float[] getObstacleDistances(Vector3f[] dirs, int traceType, int brushType, float maxDist, float[] distances)
+	{
+		if(!isBotAlive() || (!bsp.isMapLoaded() && !readMap()))
+			return null;
+
+		if(traceType != BSPParser.TRACE_LINE && traceType != BSPParser.TRACE_SPHERE && traceType != BSPParser.TRACE_BOX)
+			return null;
+
+		World world = getWorld();
+
+		pos.set(world.getPlayer().getPlayerMove().getOrigin());
+		if(traceFromView) pos.add(world.getPlayer().getPlayerView().getViewOffset());
+
+		if(sensorRays == null || sensorRays.getCapacity() < dirs.length)
+			sensorRays = new RayBatch(dirs.length);
+
+		if(distances == null)
+			distances = new float[dirs.length];
+
+		sensorRays.clear();
+		sensorRays.setBrushType(brushType);
+
+		if(traceType == BSPParser.TRACE_LINE)
+			sensorRays.setLineTrace();
+		else if(traceType == BSPParser.TRACE_SPHERE)
+			sensorRays.setSphereTrace(sphereRadius);
+		else
+			sensorRays.setBoxTrace(BOUNDING_MIN, BOUNDING_MAX);
+
+		for(int i = 0; i < dirs.length; i++)
+			sensorRays.addRay(pos, dirs[i], maxDist);
+
+		bsp.traceRays(sensorRays);
+
+		for(int i = 0; i < dirs.length; i++)
+			distances[i] = sensorRays.getDistance(i);
+
+		return distances;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Set the Quake 2 home directory. Used when locating the local BSP files
  *	containing the game geometry. Two alternatives to calling this method
@@ -2088,7 +2323,7 @@ public abstract class BasicBot extends Thread implements Bot
 	{
 		if(globalAngles)
 		{
-			delta_Angles = proxy.getWorld().getPlayer().getPlayerMove().getDeltaAngles();
+			delta_Angles = getWorld().getPlayer().getPlayerMove().getDeltaAngles();
 			angles.setYaw(angles.getYaw() - delta_Angles.getYaw());
 			angles.setPitch(angles.getPitch() - delta_Angles.getPitch());
 			angles.setRoll(-delta_Angles.getRoll());
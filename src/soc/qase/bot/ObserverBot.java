@@ -174,6 +174,7 @@ public abstract class ObserverBot extends BasicBot implements Observer
 		proxy.deleteObserver(this);
 		setConnected(false);
 		proxy.disconnect();
+		bsp.reset();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -196,7 +197,8 @@ public abstract class ObserverBot extends BasicBot implements Observer
  *	@param o the object which generated this Observable event - in our
  *	case, the Proxy
  *	@param a an argument object passed by the Observable; here, this is
- *	the World gamestate object */
+ *	the World gamestate object, or a snapshot of it if the agent is in
+ *	high thread safety mode */
 /*-------------------------------------------------------------------*/
 	public void update(Observable o, Object a)
 	{
@@ -220,13 +222,7 @@ public abstract class ObserverBot extends BasicBot implements Observer
 			if(!ctfTeamAssigned && proxy.isCTFServer())
 				setCTFTeam(Server.CTF_RANDOM);
 
-			if(getHighThreadSafety())
-			{
-				synchronized(a)
-				{	runAI((World)a);	}
-			}
-			else
-				runAI((World)a);
+			runAI((World)a);
 
 			sendMovement();
 		}
@@ -191,7 +191,9 @@ public abstract class PollingBot extends BasicBot
 /**	A thread which acts as the agent's main control loop. Continually
  *	polls the Proxy to see if a new update has arrived. Checks whether
  *	the agent is alive or needs to be respawned, and then calls the
- *	runAI method. */
+ *	runAI method. In high thread safety mode, runAI is passed the
+ *	Proxy's latest snapshot of the gamestate rather than the live
+ *	World, so that neither thread need wait for the other. */
 /*-------------------------------------------------------------------*/
 	public void run()
 	{
@@ -200,7 +202,7 @@ public abstract class PollingBot extends BasicBot
 
 		while(isConnected())
 		{
-			world = proxy.getWorld();
+			world = (getHighThreadSafety() ? proxy.getWorldSnapshot() : proxy.getWorld());
 
 			if(world != null && world.getFrame() != curFrameNum)
 			{
@@ -226,13 +228,7 @@ public abstract class PollingBot extends BasicBot
 					if(!ctfTeamAssigned && proxy.isCTFServer())
 						setCTFTeam(Server.CTF_RANDOM);
 
-					if(getHighThreadSafety())
-					{
-						synchronized(world)
-						{	runAI(world);	}
-					}
-					else
-						runAI(world);
+					runAI(world);
 
 					sendMovement();
 				}
@@ -242,5 +238,6 @@ public abstract class PollingBot extends BasicBot
 		}
 
 		proxy.disconnect();
+		bsp.reset();
 	}
 }
@@ -0,0 +1,149 @@
+//---------------------------------------------------------------------
+// Name:			BufferPool.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.com;
+
+import java.nio.ByteBuffer;
+
+/*-------------------------------------------------------------------*/
+/**	A pool of reusable, fixed-size ByteBuffers into which incoming
+ *	datagrams are received. Buffers are explicitly leased and released;
+ *	once the pool has grown to cover the number of buffers in use at
+ *	any one time, receiving and processing data allocates no further
+ *	memory. Buffers may be allocated on the heap or directly; heap
+ *	buffers are decoded in place, whereas direct buffers are copied
+ *	into a reusable array by the Proxy before decoding.
+ *	@see CommunicationHandler#receiveBuffer()
+ *	@see NetworkEngine */
+/*-------------------------------------------------------------------*/
+public class BufferPool
+{
+	private int bufferSize = 0;
+	private boolean direct = false;
+
+	private int pooled = 0;
+	private int allocated = 0;
+	private ByteBuffer[] buffers = null;
+
+	private static BufferPool defaultPool = null;
+
+	public static final int DEFAULT_BUFFER_SIZE = 2048;
+	public static final int DEFAULT_MAX_POOLED = 256;
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. Creates a pool of heap buffers using the
+ *	default buffer size and pool capacity. */
+/*-------------------------------------------------------------------*/
+	public BufferPool()
+	{
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED, false);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Creates a pool of buffers of the specified size.
+ *	@param bufferSize the capacity of each buffer in bytes; must be
+ *	at least the size of the largest datagram expected
+ *	@param maxPooled the maximum number of idle buffers retained by
+ *	the pool; buffers released beyond this are left for collection
+ *	@param direct true if the pool should allocate direct buffers,
+ *	false for heap buffers */
+/*-------------------------------------------------------------------*/
+	public BufferPool(int bufferSize, int maxPooled, boolean direct)
+	{
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+
+		buffers = new ByteBuffer[Math.max(1, maxPooled)];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Obtain the process-wide pool used by all CommunicationHandlers
+ *	which have not been assigned a specific pool.
+ *	@return the default BufferPool */
+/*-------------------------------------------------------------------*/
+	public static synchronized BufferPool getDefaultPool()
+	{
+		if(defaultPool == null)
+			defaultPool = new BufferPool();
+
+		return defaultPool;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Lease a buffer from the pool. A new buffer is allocated only if
+ *	no idle buffer is available. The buffer is cleared and ready to
+ *	be filled; it must be returned to the pool via release once the
+ *	caller has finished with it.
+ *	@return a cleared ByteBuffer */
+/*-------------------------------------------------------------------*/
+	public synchronized ByteBuffer lease()
+	{
+		if(pooled > 0)
+		{
+			ByteBuffer buffer = buffers[--pooled];
+			buffers[pooled] = null;
+
+			buffer.clear();
+			return buffer;
+		}
+
+		allocated++;
+		return (direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Return a previously leased buffer to the pool. The caller must
+ *	not access the buffer, or any array obtained from it, after
+ *	releasing it. Null buffers and buffers of the wrong size are
+ *	ignored.
+ *	@param buffer the buffer to release */
+/*-------------------------------------------------------------------*/
+	public synchronized void release(ByteBuffer buffer)
+	{
+		if(buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+			return;
+
+		if(pooled < buffers.length)
+			buffers[pooled++] = buffer;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the capacity of the buffers managed by this pool.
+ *	@return the buffer size in bytes */
+/*-------------------------------------------------------------------*/
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether this pool allocates direct buffers.
+ *	@return true if the buffers are direct, false if heap */
+/*-------------------------------------------------------------------*/
+	public boolean isDirect()
+	{
+		return direct;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the total number of buffers this pool has allocated since it
+ *	was created. Once the pool has warmed up, this should remain
+ *	constant.
+ *	@return the number of buffers allocated */
+/*-------------------------------------------------------------------*/
+	public synchronized int getAllocatedCount()
+	{
+		return allocated;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of idle buffers currently held by the pool.
+ *	@return the number of idle buffers */
+/*-------------------------------------------------------------------*/
+	public synchronized int getPooledCount()
+	{
+		return pooled;
+	}
+}
@@ -6,9 +6,19 @@
 
 package soc.qase.com;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import soc.qase.com.message.Connectionless;
 import soc.qase.com.packet.ClientPacket;
@@ -21,12 +31,17 @@ import soc.qase.com.packet.Sequence;
  *	communication between a Quake2 client and a Quake2 server. The
  *	class takes care of the physical connection, but it also
  *	implements message sending methods and current ping 
- *	information. */
+ *	information. Connections may either be read by a dedicated thread
+ *	using the blocking receiveData method, or handed to a NetworkEngine
+ *	which services many connections from a small pool of threads.
+ *	Reliable packets are retransmitted by a single timer thread shared
+ *	by all connections, until the host acknowledges them.
+ *	@see NetworkEngine */
 /*-------------------------------------------------------------------*/
 public class CommunicationHandler
 {
 	// connection information
-	private DatagramSocket socket = null;
+	private DatagramChannel channel = null;
 	private boolean connected = false;
 	private String host = null;
 	private int clientID = 0;
@@ -36,16 +51,31 @@ public class CommunicationHandler
 	private boolean reliableReceived = false;
 	private boolean serverBit = false;
 	private boolean clientBit = false;
-	private byte[] currentData = null;
+	private ByteBuffer currentData = null;
+
+	// reliable packets awaiting acknowledgement
+	private Vector pendingReliables = new Vector();
+	private ScheduledFuture retransmitTask = null;
+
+	// retransmission policy for reliable packets
+	private int retransmitInterval = 500;
+	private float retransmitBackoff = 1.5f;
+	private int maxRetransmitInterval = 4000;
+	private int maxRetransmits = 0;
+
+	private static ScheduledThreadPoolExecutor timer = null;
 
 	// game information
 	private long currentTime = 0;
 	private int ping = 0;
 
 	// sequence information
-	private Sequence lastReliableSequence = null;
+	private int lastReliableSequence = 0;
 	private Sequence clientSequence = null;
-	private Sequence serverSequence = null;
+	private int serverSequence = 0;
+
+	// source of buffers for incoming data
+	private BufferPool bufferPool = null;
 
 /*-------------------------------------------------------------------*/
 /**	Constructor. Sets the client ID of the current agent.
@@ -55,6 +85,20 @@ public class CommunicationHandler
 	public CommunicationHandler(int clientID)
 	{
 		this.clientID = clientID;
+		bufferPool = BufferPool.getDefaultPool();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Sets the client ID of the current agent and the pool
+ *	from which buffers for incoming data are leased.
+ *	@param clientID Client identifier used throughout a complete
+ *	client-server connection (included in all messages sent).
+ *	@param pool the BufferPool used by receiveBuffer */
+/*-------------------------------------------------------------------*/
+	public CommunicationHandler(int clientID, BufferPool pool)
+	{
+		this.clientID = clientID;
+		bufferPool = (pool == null ? BufferPool.getDefaultPool() : pool);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -64,8 +108,9 @@ public class CommunicationHandler
 		ping = 0;
 		currentTime = 0;
 		clientSequence = new Sequence(0);
-		serverSequence = new Sequence(0);
-		lastReliableSequence = new Sequence(0);
+		serverSequence = 0;
+		lastReliableSequence = 0;
+		failPendingReliables();
 	}
 
 /*-------------------------------------------------------------------*/
@@ -86,13 +131,35 @@ public class CommunicationHandler
  *	or not. */
 /*-------------------------------------------------------------------*/
 	public boolean connect(String host, int port)
+	{
+		try
+		{
+			return connect(InetAddress.getByName(host), port);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+
+		return false;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Connect to specified address and port, whose host name has already
+ *	been resolved.
+ *	@param address address of the host.
+ *	@param port portnumber.
+ *	@return a boolean denoting if the connect call was successful
+ *	or not. */
+/*-------------------------------------------------------------------*/
+	public boolean connect(InetAddress address, int port)
 	{
 		boolean result = false;
 
 		try
 		{
-			socket = new DatagramSocket();
-			socket.connect(InetAddress.getByName(host), port);
+			channel = DatagramChannel.open();
+			channel.connect(new InetSocketAddress(address, port));
 
 			connected = true;
 			init();
@@ -115,17 +182,82 @@ public class CommunicationHandler
 		if(isConnected())
 		{
 			connected = false;
-			socket.close();
+			failPendingReliables();
+
+			try
+			{	channel.close();	}
+			catch(Exception e)
+			{	}
 		}
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Get the underlying channel of the current connection. Used by the
+ *	NetworkEngine to register the connection with its selector.
+ *	@return the DatagramChannel of the current connection, or null if
+ *	not connected */
+/*-------------------------------------------------------------------*/
+	public DatagramChannel getChannel()
+	{
+		return channel;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Switch the connection between blocking and non-blocking mode. In
+ *	non-blocking mode, receiveData returns null immediately if no data
+ *	is waiting, and sendReliable returns as soon as the packet has been
+ *	queued. Called by the NetworkEngine when the connection is
+ *	registered with it.
+ *	@param blocking true for blocking mode, false for non-blocking */
+/*-------------------------------------------------------------------*/
+	public void setBlocking(boolean blocking)
+	{
+		try
+		{	channel.configureBlocking(blocking);	}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the connection is in blocking mode.
+ *	@return true if the connection is blocking, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isBlocking()
+	{
+		return channel != null && channel.isBlocking();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Set the policy used to retransmit reliable packets which have not
+ *	been acknowledged. The first retransmission occurs after the initial
+ *	interval; each subsequent interval is multiplied by the backoff
+ *	factor, up to the maximum interval.
+ *	@param initialInterval time in milliseconds before the first
+ *	retransmission (default 500)
+ *	@param backoff factor by which the interval grows after each
+ *	retransmission (default 1.5)
+ *	@param maxInterval upper limit on the interval in milliseconds
+ *	(default 4000)
+ *	@param maxRetransmits number of retransmissions after which the
+ *	packet is abandoned and its future completed exceptionally, or 0
+ *	to retransmit indefinitely (default 0) */
+/*-------------------------------------------------------------------*/
+	public void setRetransmitPolicy(int initialInterval, float backoff, int maxInterval, int maxRetransmits)
+	{
+		retransmitInterval = Math.max(1, initialInterval);
+		retransmitBackoff = Math.max(1.0f, backoff);
+		maxRetransmitInterval = Math.max(retransmitInterval, maxInterval);
+		this.maxRetransmits = Math.max(0, maxRetransmits);
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Send a connectionless message.
  *	@param command message to send to host. */
 /*-------------------------------------------------------------------*/
 	public void sendConnectionless(String command)
 	{
-		DatagramPacket outgoingPacket = null;
 		ConnectionlessPacket packet = null;
 		Connectionless message = null;
 		
@@ -134,10 +266,7 @@ public class CommunicationHandler
 			message = new Connectionless(command);
 			packet = new ConnectionlessPacket(message);
 
-			byte[] outData = packet.getBytes();
-			outgoingPacket = new DatagramPacket(outData, outData.length);
-
-			socket.send(outgoingPacket);
+			channel.write(ByteBuffer.wrap(packet.getBytes()));
 		}
 		catch(Exception e)
 		{
@@ -156,141 +285,338 @@ public class CommunicationHandler
 	}
 
 /*-------------------------------------------------------------------*/
-/**	Send a reliable ClientPacket message. This method call will not
- *	return until a reliable reply has been received by this object
- *	(blocking).
- *	@param packet message to send to host. */
+/**	Send a reliable ClientPacket message. In blocking mode, this
+ *	method call will not return until the host has acknowledged the
+ *	packet, receiving data on the calling thread while it waits; it
+ *	should therefore only be used where no other thread is reading
+ *	from this connection. In non-blocking mode, it returns as soon as
+ *	the packet has been queued.
+ *	@param packet message to send to host.
+ *	@see #sendReliableAsync(ClientPacket) */
 /*-------------------------------------------------------------------*/
 	public void sendReliable(ClientPacket packet)
 	{
-		sendData(packet, true);
+		CompletableFuture<Void> ack = sendReliableAsync(packet);
+
+		if(!isBlocking())
+			return;
+
+		// discard any datagram left over from an earlier call, so that
+		// receiveBuffer reads afresh and the buffer is released only once
+		ByteBuffer data = null;
+
+		releaseBuffer(currentData);
+		reliableReceived = false;
+		currentData = null;
+
+		while(connected && !ack.isDone())
+		{
+			releaseBuffer(data);
+			data = receiveBuffer();
+		}
+
+		// keep the datagram carrying the acknowledgement for the caller
+		currentData = data;
+		reliableReceived = (data != null);
 	}
 
-	private byte[] incomingBuffer = new byte[2048];
-	private DatagramPacket incomingPacket = new DatagramPacket(incomingBuffer, incomingBuffer.length);
+/*-------------------------------------------------------------------*/
+/**	Send a reliable ClientPacket message without waiting for it to be
+ *	acknowledged. Reliable packets are delivered one at a time in the
+ *	order in which they were sent; each is retransmitted according to
+ *	the retransmit policy until the host acknowledges it. The host's
+ *	acknowledgement is detected by whichever thread is receiving data
+ *	on this connection.
+ *	@param packet message to send to host.
+ *	@return a future which completes when the host acknowledges the
+ *	packet, or completes exceptionally if the connection is closed or
+ *	the maximum number of retransmissions is exceeded
+ *	@see #setRetransmitPolicy(int, float, int, int) */
+/*-------------------------------------------------------------------*/
+	public CompletableFuture<Void> sendReliableAsync(ClientPacket packet)
+	{
+		PendingReliable pending = new PendingReliable(packet);
+
+		synchronized(pendingReliables)
+		{
+			if(!connected)
+				pending.future.completeExceptionally(new IOException("Not connected"));
+			else
+			{
+				pendingReliables.add(pending);
+
+				if(pendingReliables.size() == 1)
+					transmitReliable(pending);
+			}
+		}
+
+		return pending.future;
+	}
 
 /*-------------------------------------------------------------------*/
-/**	Receive data from connected server. This method call will not
- *	return until a reply has been received by this object (blocking).
- *	@return data received from host. */
+/**	Receive data from connected server. In blocking mode, this method
+ *	call will not return until a reply has been received by this object.
+ *	In non-blocking mode, it returns null if no data is waiting. The
+ *	data is copied out of a pooled buffer into a new array; callers
+ *	which process data at a high rate should use receiveBuffer instead.
+ *	@return data received from host.
+ *	@see #receiveBuffer() */
 /*-------------------------------------------------------------------*/
 	public byte[] receiveData()
+	{
+		ByteBuffer buffer = receiveBuffer();
+
+		if(buffer == null)
+			return null;
+
+		byte[] incomingData = new byte[buffer.remaining()];
+		buffer.get(incomingData);
+
+		releaseBuffer(buffer);
+		return incomingData;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Receive data from connected server into a buffer leased from this
+ *	object's BufferPool, without copying. The returned buffer's
+ *	position and limit delimit the datagram; it must be passed to
+ *	releaseBuffer once the data has been processed. In blocking mode,
+ *	this method call will not return until a reply has been received.
+ *	In non-blocking mode, it returns null if no data is waiting.
+ *	@return a buffer containing the data received from host, or null
+ *	@see #releaseBuffer(ByteBuffer) */
+/*-------------------------------------------------------------------*/
+	public ByteBuffer receiveBuffer()
 	{
 		long previousTime = 0;
-		byte[] incomingData = null;
-		
+		ByteBuffer buffer = null;
+
 		try
 		{
 			if(reliableReceived)
 			{
 				reliableReceived = false;
-				return currentData;
+
+				buffer = currentData;
+				currentData = null;
+
+				if(buffer != null)
+					return buffer;
 			}
 
-			socket.receive(incomingPacket);
+			buffer = bufferPool.lease();
+
+			if(channel.read(buffer) <= 0)
+			{
+				bufferPool.release(buffer);
+				return null;
+			}
+
+			buffer.flip();
 
 			previousTime = currentTime;
 			currentTime = System.currentTimeMillis();
 
 			ping = (int)(currentTime - previousTime);
-			incomingData = new byte[incomingPacket.getLength()];
-
-			for(int i = 0; i < incomingPacket.getLength(); i++)
-				incomingData[i] = incomingPacket.getData()[i];
-
-			incomingData = processIncomingPacket(incomingData);
+			processIncomingPacket(buffer);
 		}
 		catch(Exception e)
-		{	}
+		{
+			bufferPool.release(buffer);
+			buffer = null;
+		}
 
-		return incomingData;
+		return buffer;
 	}
 
 /*-------------------------------------------------------------------*/
+/**	Return a buffer obtained from receiveBuffer to the pool.
+ *	@param buffer the buffer to release
+ *	@see #receiveBuffer() */
 /*-------------------------------------------------------------------*/
-	private void sendData(Packet packet, boolean reliable)
+	public void releaseBuffer(ByteBuffer buffer)
+	{
+		bufferPool.release(buffer);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the BufferPool from which this object leases receive buffers.
+ *	@return the BufferPool in use */
+/*-------------------------------------------------------------------*/
+	public BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private void sendData(ClientPacket packet, boolean reliable)
 	{
-		DatagramPacket outgoingPacket = null;
-		
 		try
 		{
-			if(reliable)
-			{
-				clientSequence = clientSequence.getNext();
-				clientSequence.setReliable(true);
-				serverSequence.setReliable(serverBit);
+			transmit(packet, reliable);
+		}
+		catch(Exception e)
+		{
+			// e.printStackTrace(); // always "Socket closed" - ignore
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private synchronized void transmit(ClientPacket packet, boolean reliable) throws Exception
+	{
+		clientSequence = clientSequence.getNext();
+		clientSequence.setReliable(reliable);
+		packet.setFirstSequence(clientSequence);
+		packet.setSecondSequence(new Sequence(serverSequence, serverBit));
 
-				((ClientPacket)packet).setFirstSequence(clientSequence);
-				((ClientPacket)packet).setSecondSequence(serverSequence);
+		channel.write(ByteBuffer.wrap(packet.getBytes()));
+	}
 
-				byte[] outData = packet.getBytes();
-				outgoingPacket = new DatagramPacket(outData, outData.length);
+/*-------------------------------------------------------------------*/
+/**	Send the reliable packet at the head of the queue and schedule its
+ *	retransmission. Called with pendingReliables locked. */
+/*-------------------------------------------------------------------*/
+	private void transmitReliable(final PendingReliable pending)
+	{
+		sendData(pending.packet, true);
 
-				for(int i = 0; reliableReceived != true; i++)
-				{
-					if((i % 10) == 0)
-						socket.send(outgoingPacket);
+		long delay = (long)Math.min(maxRetransmitInterval, retransmitInterval * Math.pow(retransmitBackoff, pending.attempts));
+		pending.attempts++;
 
-					Thread.sleep(50);
-					currentData = receiveData();
-				}
-			}
-			else
+		retransmitTask = getTimer().schedule(new Runnable()
 			{
-				clientSequence = clientSequence.getNext();
-				clientSequence.setReliable(false);
-				serverSequence.setReliable(serverBit);
+				public void run()
+				{
+					retransmit(pending);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+	}
 
-				((ClientPacket)packet).setFirstSequence(clientSequence);
-				((ClientPacket)packet).setSecondSequence(serverSequence);
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private void retransmit(PendingReliable pending)
+	{
+		synchronized(pendingReliables)
+		{
+			if(!connected || pendingReliables.size() == 0 || pendingReliables.firstElement() != pending)
+				return;
 
-				byte[] outData = packet.getBytes();
-				outgoingPacket = new DatagramPacket(outData, outData.length);
+			if(maxRetransmits > 0 && pending.attempts > maxRetransmits)
+			{
+				pendingReliables.removeElementAt(0);
+				pending.future.completeExceptionally(new TimeoutException("Reliable packet not acknowledged after " + maxRetransmits + " retransmissions"));
 
-				socket.send(outgoingPacket);
+				if(pendingReliables.size() > 0)
+					transmitReliable((PendingReliable)pendingReliables.firstElement());
 			}
+			else
+				transmitReliable(pending);
 		}
-		catch(Exception e)
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private void reliableAcknowledged()
+	{
+		PendingReliable acked = null;
+
+		synchronized(pendingReliables)
 		{
-			// e.printStackTrace(); // always "Socket closed" - ignore
+			if(pendingReliables.size() == 0)
+				return;
+
+			if(retransmitTask != null)
+				retransmitTask.cancel(false);
+
+			acked = (PendingReliable)pendingReliables.remove(0);
+
+			if(pendingReliables.size() > 0)
+				transmitReliable((PendingReliable)pendingReliables.firstElement());
 		}
+
+		acked.future.complete(null);
 	}
 
 /*-------------------------------------------------------------------*/
 /*-------------------------------------------------------------------*/
-	private byte[] processIncomingPacket(byte[] data)
+	private void failPendingReliables()
 	{
-		ClientPacket currentPacket;
-		Sequence sequenceOne = null;
-		Sequence sequenceTwo = null;
-		int length = 0;
+		synchronized(pendingReliables)
+		{
+			if(retransmitTask != null)
+				retransmitTask.cancel(false);
 
-		sequenceOne = new Sequence(data);
+			for(int i = 0; i < pendingReliables.size(); i++)
+				((PendingReliable)pendingReliables.elementAt(i)).future.completeExceptionally(new IOException("Connection closed"));
 
-		if(sequenceOne.intValue() == 0x7fffffff && sequenceOne.isReliable())
-			return data;
-		else
-		{
-			serverSequence = sequenceOne;
-			sequenceTwo = new Sequence(data, 4);
+			pendingReliables.clear();
+		}
+	}
 
-			if(serverSequence.isReliable())
-			{
-				if(serverSequence.intValue() > lastReliableSequence.intValue())
+/*-------------------------------------------------------------------*/
+/**	Schedule a task on the timer thread shared by all connections.
+ *	Tasks must be short, since they delay retransmissions.
+ *	@param task the task to run
+ *	@param delay delay in milliseconds before the task is run
+ *	@return a ScheduledFuture which may be used to cancel the task */
+/*-------------------------------------------------------------------*/
+	static ScheduledFuture schedule(Runnable task, long delay)
+	{
+		return getTimer().schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private static synchronized ScheduledThreadPoolExecutor getTimer()
+	{
+		if(timer == null)
+		{
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
 				{
-					lastReliableSequence = new Sequence(serverSequence.intValue());
-					serverBit = serverBit ^ true;
-				}
-			}
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "QASE-RetransmitTimer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+			timer.setRemoveOnCancelPolicy(true);
+		}
+
+		return timer;
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private void processIncomingPacket(ByteBuffer data)
+	{
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		int sequenceOne = data.getInt(data.position());
+
+		if(sequenceOne == 0xffffffff)	// connectionless
+			return;
+
+		int sequenceTwo = data.getInt(data.position() + 4);
+		serverSequence = sequenceOne & 0x7fffffff;
 
-			if(sequenceTwo.isReliable() != clientBit)
+		if(sequenceOne < 0)	// reliable
+		{
+			if(serverSequence > lastReliableSequence)
 			{
-				clientBit = sequenceTwo.isReliable();
-				reliableReceived = true;				
+				lastReliableSequence = serverSequence;
+				serverBit = serverBit ^ true;
 			}
 		}
 
-		return data;
+		if((sequenceTwo < 0) != clientBit)
+		{
+			clientBit = (sequenceTwo < 0);
+			reliableAcknowledged();
+		}
 	}
 
 /*-------------------------------------------------------------------*/
@@ -311,4 +637,20 @@ public class CommunicationHandler
 	{
 		return clientSequence.getNext();
 	}
+
+/*-------------------------------------------------------------------*/
+/**	A reliable packet awaiting acknowledgement, together with the
+ *	future to be completed when it is acknowledged. */
+/*-------------------------------------------------------------------*/
+	private static class PendingReliable
+	{
+		ClientPacket packet = null;
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		int attempts = 0;
+
+		PendingReliable(ClientPacket packet)
+		{
+			this.packet = packet;
+		}
+	}
 }
@@ -0,0 +1,293 @@
+//---------------------------------------------------------------------
+// Name:			NetworkEngine.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.com;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*-------------------------------------------------------------------*/
+/**	The NetworkEngine services the connections of many agents from a
+ *	small, fixed pool of event-loop threads, rather than dedicating a
+ *	blocking receive thread to each Proxy. Each event loop multiplexes
+ *	its connections over a single Selector; a connection is bound to
+ *	one event loop for its lifetime, so that the processing of its
+ *	incoming packets and the sending of its moves remain strictly
+ *	ordered. Connections to any number of different servers may share
+ *	the same engine. Since observers of each Proxy are notified from
+ *	the event-loop thread, agents whose AI cycle is lengthy should
+ *	perform it in a separate thread (as PollingBot does).
+ *	@see Proxy#setNetworkEngine(NetworkEngine)
+ *	@see CommunicationHandler */
+/*-------------------------------------------------------------------*/
+public class NetworkEngine
+{
+	private EventLoop[] eventLoops = null;
+	private volatile boolean running = false;
+
+	private static NetworkEngine defaultEngine = null;
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. Creates an engine with one event-loop thread
+ *	per available processor. */
+/*-------------------------------------------------------------------*/
+	public NetworkEngine()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Creates an engine with the specified number of
+ *	event-loop threads.
+ *	@param numThreads the number of event-loop threads */
+/*-------------------------------------------------------------------*/
+	public NetworkEngine(int numThreads)
+	{
+		eventLoops = new EventLoop[Math.max(1, numThreads)];
+
+		try
+		{
+			for(int i = 0; i < eventLoops.length; i++)
+				eventLoops[i] = new EventLoop(i);
+		}
+		catch(Exception e)
+		{
+			throw new RuntimeException("Unable to open selector: " + e.getMessage());
+		}
+
+		running = true;
+
+		for(int i = 0; i < eventLoops.length; i++)
+			eventLoops[i].start();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Obtain a process-wide engine shared by all Proxies which do not
+ *	require a dedicated one. The engine is created on first use.
+ *	@return the default NetworkEngine */
+/*-------------------------------------------------------------------*/
+	public static synchronized NetworkEngine getDefaultEngine()
+	{
+		if(defaultEngine == null || !defaultEngine.isRunning())
+			defaultEngine = new NetworkEngine();
+
+		return defaultEngine;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Register a connected CommunicationHandler with the engine. The
+ *	connection is switched to non-blocking mode and assigned to the
+ *	least-loaded event loop; the listener is thereafter notified of
+ *	each datagram received on it, until the connection is closed.
+ *	@param handler the connection to be serviced
+ *	@param listener the object to which incoming data is passed */
+/*-------------------------------------------------------------------*/
+	public synchronized void register(CommunicationHandler handler, NetworkListener listener)
+	{
+		if(!running)
+			throw new IllegalStateException("NetworkEngine has been shut down");
+
+		EventLoop target = eventLoops[0];
+
+		for(int i = 1; i < eventLoops.length; i++)
+		{
+			if(eventLoops[i].getConnectionCount() < target.getConnectionCount())
+				target = eventLoops[i];
+		}
+
+		handler.setBlocking(false);
+		target.register(new Registration(handler, listener));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the calling thread is an event-loop thread of any
+ *	NetworkEngine. Used to avoid blocking calls which would stall the
+ *	connections serviced by that thread.
+ *	@return true if called from an event-loop thread, false otherwise */
+/*-------------------------------------------------------------------*/
+	public static boolean isEventLoopThread()
+	{
+		return Thread.currentThread() instanceof EventLoop;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of event-loop threads used by the engine.
+ *	@return the number of event-loop threads */
+/*-------------------------------------------------------------------*/
+	public int getThreadCount()
+	{
+		return eventLoops.length;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the total number of connections currently serviced by the
+ *	engine.
+ *	@return the number of open connections */
+/*-------------------------------------------------------------------*/
+	public int getConnectionCount()
+	{
+		int count = 0;
+
+		for(int i = 0; i < eventLoops.length; i++)
+			count += eventLoops[i].getConnectionCount();
+
+		return count;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the engine is still running.
+ *	@return true if the engine is running, false if it has been
+ *	shut down */
+/*-------------------------------------------------------------------*/
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Stop all event-loop threads. Connections still registered with
+ *	the engine are no longer serviced, but are not closed. */
+/*-------------------------------------------------------------------*/
+	public synchronized void shutdown()
+	{
+		running = false;
+
+		for(int i = 0; i < eventLoops.length; i++)
+			eventLoops[i].wakeup();
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private static class Registration
+	{
+		CommunicationHandler handler = null;
+		NetworkListener listener = null;
+
+		Registration(CommunicationHandler handler, NetworkListener listener)
+		{
+			this.handler = handler;
+			this.listener = listener;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	A single event-loop thread, servicing a subset of the engine's
+ *	connections via its own Selector. */
+/*-------------------------------------------------------------------*/
+	private class EventLoop extends Thread
+	{
+		private Selector selector = null;
+		private Vector newRegistrations = new Vector();
+		private AtomicInteger connectionCount = new AtomicInteger(0);
+		private int registeredKeys = 0;	// accessed by this thread only
+
+		EventLoop(int index) throws Exception
+		{
+			super("QASE-NetworkEngine-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void register(Registration reg)
+		{
+			connectionCount.incrementAndGet();
+			newRegistrations.add(reg);
+			selector.wakeup();
+		}
+
+		void wakeup()
+		{
+			selector.wakeup();
+		}
+
+		int getConnectionCount()
+		{
+			return connectionCount.get();
+		}
+
+		public void run()
+		{
+			while(running)
+			{
+				try
+				{
+					selector.select();
+
+					// closed connections drop out of the key set on each
+					// select; only this thread adds keys, so any shortfall
+					// is the number of connections closed since the last
+					int dropped = registeredKeys - selector.keys().size();
+
+					if(dropped > 0)
+					{
+						registeredKeys -= dropped;
+						connectionCount.addAndGet(-dropped);
+					}
+
+					acceptRegistrations();
+
+					Iterator keys = selector.selectedKeys().iterator();
+
+					while(keys.hasNext())
+					{
+						SelectionKey key = (SelectionKey)keys.next();
+						keys.remove();
+
+						if(key.isValid() && key.isReadable())
+							readAll((Registration)key.attachment());
+					}
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+
+			try
+			{	selector.close();	}
+			catch(Exception e)
+			{	}
+		}
+
+		private void acceptRegistrations()
+		{
+			while(newRegistrations.size() > 0)
+			{
+				Registration reg = (Registration)newRegistrations.remove(0);
+
+				try
+				{
+					reg.handler.getChannel().register(selector, SelectionKey.OP_READ, reg);
+					registeredKeys++;
+				}
+				catch(Exception e)
+				{
+					connectionCount.decrementAndGet();	// connection already closed
+				}
+			}
+		}
+
+		private void readAll(Registration reg)
+		{
+			ByteBuffer data = null;
+
+			while(reg.handler.isConnected() && (data = reg.handler.receiveBuffer()) != null)
+			{
+				try
+				{	reg.listener.dataReceived(reg.handler, data);	}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+
+				reg.handler.releaseBuffer(data);
+			}
+		}
+	}
+}
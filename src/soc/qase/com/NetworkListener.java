@@ -0,0 +1,32 @@
+//---------------------------------------------------------------------
+// Name:			NetworkListener.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.com;
+
+import java.nio.ByteBuffer;
+
+/*-------------------------------------------------------------------*/
+/**	An interface which specifies the callback through which the
+ *	NetworkEngine passes incoming datagrams to the object that owns
+ *	a given connection (normally a Proxy). All callbacks for a
+ *	particular CommunicationHandler are made from the same event-loop
+ *	thread, in the order in which the datagrams were received.
+ *	@see NetworkEngine
+ *	@see Proxy */
+/*-------------------------------------------------------------------*/
+public interface NetworkListener
+{
+/*-------------------------------------------------------------------*/
+/**	Called by the NetworkEngine whenever a datagram arrives on the
+ *	specified connection. Implementations should not block, since
+ *	the calling thread services many connections. The buffer is
+ *	returned to its pool when this method returns, and so must not
+ *	be retained.
+ *	@param handler the connection on which the data was received
+ *	@param data a buffer whose remaining bytes hold the data received
+ *	from the host */
+/*-------------------------------------------------------------------*/
+	public void dataReceived(CommunicationHandler handler, ByteBuffer data);
+}
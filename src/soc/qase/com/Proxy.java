@@ -6,10 +6,17 @@
 
 package soc.qase.com;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
 import soc.qase.com.message.ClientCommand;
 import soc.qase.com.message.ClientMove;
@@ -23,8 +30,6 @@ import soc.qase.com.message.ServerStuffText;
 import soc.qase.com.packet.ClientPacket;
 import soc.qase.com.packet.ConnectionlessPacket;
 import soc.qase.com.packet.Packet;
-import soc.qase.com.packet.Sequence;
-import soc.qase.com.packet.ServerPacket;
 import soc.qase.file.dm2.DM2Recorder;
 import soc.qase.info.Config;
 import soc.qase.info.Server;
@@ -34,6 +39,7 @@ import soc.qase.state.Angles;
 import soc.qase.state.Move;
 import soc.qase.state.Velocity;
 import soc.qase.state.World;
+import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
 /**	The Proxy class is a wrapper class for high-level communication
@@ -42,9 +48,13 @@ import soc.qase.state.World;
  *	It is used by an agent to connect to the simulator environment, i.e.
  *	it corresponds to a QASE agent interface implementation. Furthermore,
  *	it is used to receive information concerning itself and visual entities,
- *	and to perform actions in the environment. */
+ *	and to perform actions in the environment. By default, each Proxy
+ *	receives data on its own thread; alternatively, it may be attached
+ *	to a NetworkEngine, which services the connections of many agents
+ *	from a small pool of shared threads.
+ *	@see NetworkEngine */
 /*-------------------------------------------------------------------*/
-public class Proxy extends ServerMessageHandler implements Runnable
+public class Proxy extends ServerMessageHandler implements Runnable, NetworkListener
 {
 	private int port = 0;
 	private String host = null;
@@ -54,7 +64,10 @@ public class Proxy extends ServerMessageHandler implements Runnable
 
 	private Thread recvThread = null;
 	private boolean threadSafe = false;
+	private volatile World worldSnapshot = null;
+	private NetworkEngine engine = null;
 	private CommunicationHandler communicator = null;
+	private byte[] directData = null;
 
 	// information wrapper
 	private User user = null;
@@ -77,8 +90,16 @@ public class Proxy extends ServerMessageHandler implements Runnable
 	private boolean reconnect = false;
 	private boolean sentChallenge = false;
 	private boolean sentConnect = false;
-	private boolean recvThreadTerminated = true;
 	private boolean autoInventoryRefresh = false;
+	private CompletableFuture<Boolean> spawnFuture = null;
+
+	// retransmission policy for reliable commands
+	private int retransmitInterval = 500;
+	private float retransmitBackoff = 1.5f;
+	private int maxRetransmitInterval = 4000;
+	private int maxRetransmits = 0;
+
+	private static ExecutorService reconnector = null;
 
 	private static Vector allocatedCIDs = new Vector();
 	private static Random numGen = new Random(System.currentTimeMillis());
@@ -100,7 +121,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
  *	@param highThreadSafety specifies whether the proxy should operate
  *	in high thread safety mode. If true, the proxy will lock itself from
  *	accessor and mutator calls during the processing of each block of
- *	incoming data. */
+ *	incoming data, and will publish a snapshot of each new frame. */
 /*-------------------------------------------------------------------*/
 	public Proxy(User user, boolean highThreadSafety)
 	{
@@ -118,7 +139,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
  *	@param highThreadSafety specifies whether the proxy should operate
  *	in high thread safety mode. If true, the proxy will lock itself from
  *	accessor and mutator calls during the processing of each block of
- *	incoming data.
+ *	incoming data, and will publish a snapshot of each new frame.
  *	@param trackInv specifies whether the Proxy should manually track
  *	the player's inventory as he collects and uses items.*/
 /*-------------------------------------------------------------------*/
@@ -159,45 +180,97 @@ public class Proxy extends ServerMessageHandler implements Runnable
 	}
 
 /*-------------------------------------------------------------------*/
-/**	Connect to specified host.
+/**	Connect to specified host. This call blocks until the agent has
+ *	been spawned into the game environment.
  *	@param host hostname of server
  *	@param port portnumber of server; -1 for default (27920)
  *	@return true if the connect call was successful, otherwise
- *	false. */
+ *	false.
+ *	@see #connectAsync(String, int) */
 /*-------------------------------------------------------------------*/
-	public synchronized boolean connect(String host, int port)
+	public boolean connect(String host, int port)
 	{
-		boolean result = false;
-
 		try
+		{
+			return connectAsync(host, port).get().booleanValue();
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Connect to specified host without blocking. The connection handshake
+ *	is carried out by the Proxy's receive thread or NetworkEngine, so
+ *	that many agents may be brought into the game concurrently. The
+ *	host name is resolved on the calling thread.
+ *	@param host hostname of server
+ *	@param port portnumber of server; -1 for default (27920)
+ *	@return a future which completes with true once the agent has been
+ *	spawned into the game environment, or with false if the connection
+ *	could not be established */
+/*-------------------------------------------------------------------*/
+	public CompletableFuture<Boolean> connectAsync(String host, int port)
+	{
+		Thread previousThread = null;
+		InetAddress address = null;
+
+		synchronized(this)
 		{
 			if(connected)
 				disconnect();
 
-			if(recvThread != null)
-			{
-				while(!recvThreadTerminated)
-					Thread.sleep(10);
-			}
+			previousThread = recvThread;
+		}
 
+		// wait for the previous receive thread to finish and resolve the
+		// host without holding the lock, since both may take some time
+		try
+		{
+			if(previousThread != null && previousThread != Thread.currentThread())
+				previousThread.join();
+
+			address = InetAddress.getByName(host);
+		}
+		catch(Exception e)
+		{
+			address = null;
+		}
+
+		return connectAsync(address, host, port);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Open the connection to a resolved address and begin the handshake.
+ *	A null address signifies that the host could not be resolved. */
+/*-------------------------------------------------------------------*/
+	private synchronized CompletableFuture<Boolean> connectAsync(InetAddress address, String host, int port)
+	{
+		try
+		{
 			communicator = new CommunicationHandler(clientID);
+			communicator.setRetransmitPolicy(retransmitInterval, retransmitBackoff, maxRetransmitInterval, maxRetransmits);
 
 			this.host = host;
 			this.port = port;
 
-			if(communicator.connect(host, port))
+			spawnFuture = new CompletableFuture<Boolean>();
+
+			if(address != null && communicator.connect(address, port))
 			{
 				connected = true;
 				init();
-				result = connected;
 			}
+			else
+				spawnFuture.complete(Boolean.FALSE);
 		}
 		catch(Exception e)
-		{	}
-
-		waitForSpawn();
+		{
+			spawnFuture.complete(Boolean.FALSE);
+		}
 
-		return result;
+		return spawnFuture;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -209,7 +282,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
  *	@return true if the connect call was successful, otherwise
  *	false. */
 /*-------------------------------------------------------------------*/
-	public synchronized boolean connect(String host, int port, String recordDM2File)
+	public boolean connect(String host, int port, String recordDM2File)
 	{
 		if(recordDM2File != null) dm2Recorder.startRecording(recordDM2File);
 		return connect(host, port);
@@ -240,6 +313,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
 		if(connected)
 		{
 			inGame = false;
+			worldSnapshot = null;
 			message = new ClientCommand(clientID, "disconnect");
 			packet = new ClientPacket(message);
 			communicator.sendUnreliable(packet);
@@ -250,12 +324,37 @@ public class Proxy extends ServerMessageHandler implements Runnable
 
 /*-------------------------------------------------------------------*/
 /**	Suspends the thread until such time as the agent is spawned into the
- *	game environment. */
+ *	game environment following the most recent connect. */
 /*-------------------------------------------------------------------*/
 	protected void waitForSpawn()
 	{
-		while(!(inGame() && getWorld().getPlayer().isAlive()))
-			Thread.yield();
+		try
+		{
+			if(spawnFuture != null)
+				spawnFuture.get();
+		}
+		catch(Exception e)
+		{	}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Set the policy used to retransmit reliable commands which the server
+ *	has not acknowledged. Takes effect on the next call to connect.
+ *	@param initialInterval time in milliseconds before the first
+ *	retransmission
+ *	@param backoff factor by which the interval grows after each
+ *	retransmission
+ *	@param maxInterval upper limit on the interval in milliseconds
+ *	@param maxRetransmits number of retransmissions after which the
+ *	command is abandoned, or 0 to retransmit indefinitely
+ *	@see CommunicationHandler#setRetransmitPolicy(int, float, int, int) */
+/*-------------------------------------------------------------------*/
+	public synchronized void setRetransmitPolicy(int initialInterval, float backoff, int maxInterval, int maxRetransmits)
+	{
+		retransmitInterval = initialInterval;
+		retransmitBackoff = backoff;
+		maxRetransmitInterval = maxInterval;
+		this.maxRetransmits = maxRetransmits;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -299,6 +398,32 @@ public class Proxy extends ServerMessageHandler implements Runnable
 	public synchronized void setHighThreadSafety(boolean highThreadSafety)
 	{
 		threadSafe = highThreadSafety;
+
+		if(!threadSafe)
+			worldSnapshot = null;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Specify a NetworkEngine which should service this Proxy's connection,
+ *	in place of a dedicated receive thread. Takes effect on the next
+ *	call to connect.
+ *	@param networkEngine the engine to use, or null to revert to a
+ *	dedicated receive thread
+ *	@see NetworkEngine#getDefaultEngine() */
+/*-------------------------------------------------------------------*/
+	public synchronized void setNetworkEngine(NetworkEngine networkEngine)
+	{
+		engine = networkEngine;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the NetworkEngine servicing this Proxy's connection.
+ *	@return the NetworkEngine in use, or null if the Proxy uses a
+ *	dedicated receive thread */
+/*-------------------------------------------------------------------*/
+	public synchronized NetworkEngine getNetworkEngine()
+	{
+		return engine;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -342,6 +467,21 @@ public class Proxy extends ServerMessageHandler implements Runnable
 		return world;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Get the most recent snapshot of the gamestate. In high thread
+ *	safety mode, the Proxy publishes an immutable snapshot of the World
+ *	at the end of each new frame; an agent's AI thread can read it
+ *	without locking, while the receive thread goes on to process the
+ *	following frames. This method does not lock the Proxy.
+ *	@return the latest gamestate snapshot, or null if the Proxy is not
+ *	in high thread safety mode or no frame has yet been received
+ *	@see soc.qase.state.World#createSnapshot() */
+/*-------------------------------------------------------------------*/
+	public World getWorldSnapshot()
+	{
+		return worldSnapshot;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Obtain the current Server object, containing information about the
  *	server and game session.
@@ -390,6 +530,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
 
 		// game information
 		world = null;
+		worldSnapshot = null;
 		server = null;
 		inGame = false;
 
@@ -399,8 +540,14 @@ public class Proxy extends ServerMessageHandler implements Runnable
 		reconnect = false;
 
 		// start proxy
-		recvThread = new Thread(this);
-		recvThread.start();
+		if(engine != null)
+			engine.register(communicator, this);
+		else
+		{
+			recvThread = new Thread(this);
+			recvThread.start();
+		}
+
 		sentChallenge = true;
 		communicator.sendConnectionless("getchallenge");
 	}
@@ -444,12 +591,33 @@ public class Proxy extends ServerMessageHandler implements Runnable
 /*-------------------------------------------------------------------*/
 /**	Send console message to connected host. This is a blocking call
  *	and it will not return until the proxy receives a reliable
- *	answer from the connected host.
+ *	answer from the connected host. If called from the thread which
+ *	receives data for this Proxy, it returns immediately.
  *	@param command message to send */
 /*-------------------------------------------------------------------*/
 	public void sendCommand(String command)
 	{
-		communicator.sendReliable(buildCommandPacket(command));
+		CompletableFuture<Void> ack = sendCommandAsync(command);
+
+		if(Thread.currentThread() == recvThread || NetworkEngine.isEventLoopThread())
+			return;
+
+		try
+		{	ack.get();	}
+		catch(Exception e)
+		{	}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Send console message to connected host reliably, without waiting
+ *	for the host to acknowledge it.
+ *	@param command message to send
+ *	@return a future which completes when the host acknowledges the
+ *	command */
+/*-------------------------------------------------------------------*/
+	public CompletableFuture<Void> sendCommandAsync(String command)
+	{
+		return communicator.sendReliableAsync(buildCommandPacket(command));
 	}
 
 /*-------------------------------------------------------------------*/
@@ -483,7 +651,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
 
 		message = new ClientCommand(clientID, "begin " + server.getLevelKey());
 		packet = new ClientPacket(message);
-		communicator.sendReliable(packet);
+		communicator.sendReliableAsync(packet);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -526,8 +694,8 @@ public class Proxy extends ServerMessageHandler implements Runnable
 
 			if(connectResult.equals("client_connect"))
 			{
-				world = new World(trackInventory);
-				sendCommand("new");
+				world = createWorld(trackInventory);
+				sendCommandAsync("new");
 			}
 		}
 	}
@@ -579,7 +747,7 @@ public class Proxy extends ServerMessageHandler implements Runnable
 		currentToken = st.nextToken();
 
 		if(currentToken.equals("cmd"))
-			sendCommand(message.getStuffString().substring(4));
+			sendCommandAsync(message.getStuffString().substring(4));
 		else if(currentToken.equals("precache"))
 		{
 			sendBegin();
@@ -602,6 +770,24 @@ public class Proxy extends ServerMessageHandler implements Runnable
 		inGame = true;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Decodes the ServerPacketEntities message directly into the pooled
+ *	entities of the gamestate, and marks the agent as being active in
+ *	the game world. Used when entity pooling is enabled.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@param end offset of the end of the valid data in the array
+ *	@return the length of the message body in bytes
+ *	@see soc.qase.com.message.ServerMessageHandler#setEntityPooling(boolean) */
+/*-------------------------------------------------------------------*/
+	protected int processServerPacketEntities(byte[] data, int off, int end)
+	{
+		int length = super.processServerPacketEntities(data, off, end);
+		inGame = true;
+
+		return length;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Processes the ServerInventory message by extracting and storing
  *	the inventory data.
@@ -639,124 +825,224 @@ public class Proxy extends ServerMessageHandler implements Runnable
 
 /*-------------------------------------------------------------------*/
 /**	The main loop of the Proxy thread. Controls server synchronisation,
- *	data processing, map changes, etc. */
+ *	data processing, map changes, etc. Not used when the Proxy is
+ *	serviced by a NetworkEngine.
+ *	@see #dataReceived(CommunicationHandler, ByteBuffer) */
 /*-------------------------------------------------------------------*/
 	public void run()
 	{
-		int lastFrameNum = 0;
+		ByteBuffer incomingData = null;
 
 		try
 		{
-			byte[] incomingData = null;
-			recvThreadTerminated = false;
-		
 			while(connected)
 			{
-				if(world != null)
-					lastFrameNum = world.getFrame();
-
-				incomingData = communicator.receiveData();
-
-				if(threadSafe && inGame)
-				{
-					synchronized(world)
-					{
-						processIncomingDataPacket(incomingData);
-					}
-				}
-				else
-					processIncomingDataPacket(incomingData);
-
-				if(connected && world != null && lastFrameNum != world.getFrame() && countObservers() > 0)
-				{
-					setChanged();
-					notifyObservers(world);
-				}
+				if((incomingData = communicator.receiveBuffer()) == null)
+					break;
 
-				if(inGame)
-					sendMove();
+				try
+				{	processIncomingData(incomingData);	}
+				finally
+				{	communicator.releaseBuffer(incomingData);	}
 
 				Thread.yield();
 			}
 
 			if(communicator.isConnected())
 				communicator.disconnect();
-
-			recvThreadTerminated = true;
 		}
 		catch(Exception e)
 		{	}
 
 		if(reconnect)
+			reconnect();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Called by the NetworkEngine when a datagram arrives on this Proxy's
+ *	connection. Performs the same processing as a single iteration of
+ *	the Proxy thread's main loop.
+ *	@param handler the connection on which the data was received
+ *	@param data the data received from the host
+ *	@see #run() */
+/*-------------------------------------------------------------------*/
+	public void dataReceived(CommunicationHandler handler, ByteBuffer data)
+	{
+		if(handler != communicator)
+			return;
+
+		processIncomingData(data);
+
+		if(!connected)
 		{
-			try
-			{	Thread.sleep(8000 + (int)(Math.round(Math.random() * 10000)));	}	// pause to allow server to restart
-			catch(InterruptedException ie)
-			{	}
+			if(communicator.isConnected())
+				communicator.disconnect();
 
-			reconnect = false;
-			dm2Recorder.newMap();
+			if(reconnect)
+				reconnect();
+		}
+	}
 
-			final boolean ctf = isCTFServer();
+/*-------------------------------------------------------------------*/
+/**	Process a single block of incoming data, notify observers if a new
+ *	frame has arrived, and send the agent's current move to the server.
+ *	Data in heap buffers is decoded in place; data in direct buffers is
+ *	first copied into a reusable array.
+ *	@param incomingData a buffer holding the data received from the host */
+/*-------------------------------------------------------------------*/
+	private void processIncomingData(ByteBuffer incomingData)
+	{
+		byte[] data = null;
+		int offset = 0;
+		int length = incomingData.remaining();
 
-			server = null;
-			world = new World(trackInventory);
+		int lastFrameNum = (world == null ? 0 : world.getFrame());
 
-			(new Thread()
-				{
-					public void run()
-					{
-						connect(host, port);
+		if(incomingData.hasArray())
+		{
+			data = incomingData.array();
+			offset = incomingData.arrayOffset() + incomingData.position();
+		}
+		else
+		{
+			if(directData == null || directData.length < length)
+				directData = new byte[incomingData.capacity()];
 
-						if(ctf)
+			incomingData.mark();
+			incomingData.get(directData, 0, length);
+			incomingData.reset();
+
+			data = directData;
+		}
+
+		if(threadSafe && inGame)
+		{
+			synchronized(world)
+			{
+				processIncomingDataPacket(data, offset, length);
+			}
+		}
+		else
+			processIncomingDataPacket(data, offset, length);
+
+		if(connected && world != null && lastFrameNum != world.getFrame())
+		{
+			World snapshot = null;
+
+			if(threadSafe && inGame)
+				worldSnapshot = snapshot = world.createSnapshot();
+
+			if(countObservers() > 0)
+			{
+				setChanged();
+				notifyObservers(snapshot == null ? world : snapshot);
+			}
+		}
+
+		if(inGame)
+		{
+			sendMove();
+
+			if(!spawnFuture.isDone() && world.getPlayer().isAlive())
+				spawnFuture.complete(Boolean.TRUE);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Reconnect to the current server following a map change, after
+ *	pausing to allow the server to restart. */
+/*-------------------------------------------------------------------*/
+	private void reconnect()
+	{
+		reconnect = false;
+		dm2Recorder.newMap();
+
+		final boolean ctf = isCTFServer();
+
+		server = null;
+		world = createWorld(trackInventory);
+		worldSnapshot = null;
+
+		final Runnable connectTask = new Runnable()
+			{
+				public void run()
+				{
+					connectAsync(host, port).thenAccept(new Consumer<Boolean>()
 						{
-							waitForSpawn();
-							sendConsoleCommand("team " + Server.CTF_STRINGS[(currentCTFTeam >= 0 ? currentCTFTeam : (int)Math.round(Math.random()))]);
-						}
-					}
+							public void accept(Boolean spawned)
+							{
+								if(ctf && spawned.booleanValue())
+									sendConsoleCommand("team " + Server.CTF_STRINGS[(currentCTFTeam >= 0 ? currentCTFTeam : (int)Math.round(Math.random()))]);
+							}
+						});
+				}
+			};
+
+		// pause to allow server to restart, then hand the connection off
+		// the shared timer thread, which must not be held up by it
+		CommunicationHandler.schedule(new Runnable()
+			{
+				public void run()
+				{
+					getReconnector().execute(connectTask);
 				}
-			).start();
+			}, 8000 + (int)(Math.round(Math.random() * 10000)));
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Get the pool of threads on which reconnections are carried out,
+ *	creating it if necessary. */
+/*-------------------------------------------------------------------*/
+	private static synchronized ExecutorService getReconnector()
+	{
+		if(reconnector == null)
+		{
+			reconnector = Executors.newCachedThreadPool(new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "QASE-Reconnect");
+						t.setDaemon(true);
+						return t;
+					}
+				});
 		}
+
+		return reconnector;
 	}
 
 /*-------------------------------------------------------------------*/
 /**	Process incoming data. Abstracted from the core thread loop so that
  *	the Proxy object may be optionally locked before this method is called.
  *	This thread also passes the network stream to the DM2Recorder, if
- *	active, for saving to file.
+ *	active, for saving to file. The data is read in place from the
+ *	receive buffer, without being copied.
+ *	@param incomingData array containing the received datagram
+ *	@param offset position of the datagram within the array
+ *	@param length length of the datagram
  *	@see #setHighThreadSafety(boolean)
  *	@see soc.qase.file.dm2.DM2Recorder */
 /*-------------------------------------------------------------------*/
-	private void processIncomingDataPacket(byte[] incomingData)
+	private void processIncomingDataPacket(byte[] incomingData, int offset, int length)
 	{
 		Packet packet = null;
-		Sequence sequenceOne = new Sequence(incomingData);
 
-		if(sequenceOne.intValue() == 0x7fffffff && sequenceOne.isReliable())
+		if(Utils.intValue(incomingData, offset) == 0xffffffff)	// connectionless
 		{
-			packet = new ConnectionlessPacket(incomingData);
+			packet = new ConnectionlessPacket(Utils.extractBytes(incomingData, offset, length));
 			processConnectionlessPacket((ConnectionlessPacket)packet);
 		}
 		else
 		{
 			if(inGame && dm2Recorder.isRecording())
-				dm2Recorder.addData(incomingData);
+				dm2Recorder.addData(incomingData, offset, length);
 			else if(!inGame && dm2Recorder.isRecording())
-				dm2Recorder.addHeader(incomingData);
-
-			if(incomingData != null)
-			{
-				int dataIndex = 8;
+				dm2Recorder.addHeader(incomingData, offset, length);
 
-				while(dataIndex != incomingData.length)
-				{
-					packet = new ServerPacket(incomingData, dataIndex);
-					processServerPacket((ServerPacket)packet);
+			int dataIndex = offset + 8;
 
-					dataIndex += packet.getLength();
-				}
-			}
+			while(dataIndex < offset + length)
+				dataIndex += processServerMessage(incomingData, dataIndex, offset + length);
 		}
 	}
 }
-
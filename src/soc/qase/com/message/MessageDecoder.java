@@ -0,0 +1,40 @@
+//---------------------------------------------------------------------
+// Name:			MessageDecoder.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.com.message;
+
+/*-------------------------------------------------------------------*/
+/**	Decodes one type of server message from the raw network stream.
+ *	One decoder is registered per message type in the
+ *	ServerMessageRegistry. As well as building the Message object,
+ *	a decoder can determine the length of a message without decoding
+ *	it, so that messages in which nobody is interested can be skipped
+ *	cheaply; the default implementation simply decodes the message.
+ *	@see ServerMessageRegistry */
+/*-------------------------------------------------------------------*/
+public abstract class MessageDecoder
+{
+/*-------------------------------------------------------------------*/
+/**	Decode the message whose body starts at the given offset.
+ *	@param data message source
+ *	@param off offset of the message body, after the type byte
+ *	@return the decoded message */
+/*-------------------------------------------------------------------*/
+	public abstract Message decode(byte[] data, int off);
+
+/*-------------------------------------------------------------------*/
+/**	Determine the length of the message body starting at the given
+ *	offset, excluding the type byte. Subclasses should override this
+ *	to avoid constructing the message wherever possible.
+ *	@param data message source
+ *	@param off offset of the message body, after the type byte
+ *	@param end offset of the end of the valid data in the array
+ *	@return the length of the message body in bytes */
+/*-------------------------------------------------------------------*/
+	public int getLength(byte[] data, int off, int end)
+	{
+		return decode(data, off).getLength();
+	}
+}
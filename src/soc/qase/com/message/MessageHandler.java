@@ -0,0 +1,23 @@
+//---------------------------------------------------------------------
+// Name:			MessageHandler.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.com.message;
+
+/*-------------------------------------------------------------------*/
+/**	An interface which allows objects to subscribe to a particular
+ *	type of server message received by a ServerMessageHandler (i.e.
+ *	a Proxy or DM2Parser). Handlers are invoked after the handler's
+ *	own default processing of the message, in the order in which
+ *	they were subscribed.
+ *	@see ServerMessageHandler#subscribe(Class, MessageHandler) */
+/*-------------------------------------------------------------------*/
+public interface MessageHandler<T extends Message>
+{
+/*-------------------------------------------------------------------*/
+/**	Called when a message of the subscribed type is received.
+ *	@param message the decoded message */
+/*-------------------------------------------------------------------*/
+	public void handleMessage(T message);
+}
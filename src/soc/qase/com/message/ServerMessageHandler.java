@@ -26,49 +26,258 @@ public abstract class ServerMessageHandler extends Observable
 
 	protected boolean verbose = false;
 	protected boolean trackInventory = false;
+	protected boolean entityPooling = false;
+	protected boolean compactEntities = false;
+
+	private volatile boolean[] defaultProcessing = new boolean[ServerMessageRegistry.NUM_MESSAGE_TYPES];
+	private volatile MessageHandler[][] subscribers = new MessageHandler[ServerMessageRegistry.NUM_MESSAGE_TYPES][];
+
+	// types whose default processing does more than log to stdout
+	private static final boolean[] PROCESSED_TYPES = new boolean[ServerMessageRegistry.NUM_MESSAGE_TYPES];
+
+	static
+	{
+		for(int i = 1; i <= ServerMessageRegistry.SERVER_FRAME; i++)
+			PROCESSED_TYPES[i] = true;
+
+		PROCESSED_TYPES[ServerMessageRegistry.SERVER_NOP] = false;
+		PROCESSED_TYPES[ServerMessageRegistry.SERVER_CENTER_PRINT] = false;
+		PROCESSED_TYPES[ServerMessageRegistry.SERVER_DOWNLOAD] = false;
+		PROCESSED_TYPES[ServerMessageRegistry.SERVER_DELTA_PACKET_ENTITIES] = false;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. Enables the default processing of all
+ *	message types. */
+/*-------------------------------------------------------------------*/
+	public ServerMessageHandler()
+	{
+		setDefaultProcessing(true);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Process the server message beginning at the given offset. The
+ *	message type is read from the first byte and used to index the
+ *	ServerMessageRegistry directly. If neither the default processing
+ *	nor any subscriber requires the message, it is skipped without
+ *	being decoded; otherwise it is decoded once, processed by the
+ *	appropriate processServerX method, and passed to each subscriber.
+ *	@param data the buffer holding the message
+ *	@param off offset of the message's type byte
+ *	@param end offset of the end of the valid data in the buffer
+ *	@return the number of bytes consumed by the message */
+/*-------------------------------------------------------------------*/
+	protected int processServerMessage(byte[] data, int off, int end)
+	{
+		int type = ServerMessageRegistry.getType(data, off);
+
+		MessageHandler[] handlers = subscribers[type];
+		boolean process = defaultProcessing[type] && (verbose || PROCESSED_TYPES[type]);
+
+		if(!process && handlers == null)
+			return ServerMessageRegistry.getMessageLength(data, off, end);
+
+		if(type == ServerMessageRegistry.SERVER_PACKET_ENTITIES && entityPooling && handlers == null && world != null)
+			return 1 + processServerPacketEntities(data, off + 1, end);
+
+		Message message = ServerMessageRegistry.getDecoder(type).decode(data, off + 1);
+		dispatchMessage(type, message, process, handlers);
+
+		return 1 + message.getLength();
+	}
 
 /*-------------------------------------------------------------------*/
 /**	Process an incoming ServerPacket, identifying the type of message
  *	it contains and reacting accordingly. See the following methods
- *	for a list of all valid message types. */
+ *	for a list of all valid message types. Retained for compatibility;
+ *	the network and demo readers now use processServerMessage, which
+ *	avoids decoding messages that nothing requires. */
 /*-------------------------------------------------------------------*/
 	protected void processServerPacket(ServerPacket packet)
 	{
-		ClientPacket clientPacket = null;
-		Message message = null;
+		int type = packet.getMessageType();
+		dispatchMessage(type, packet.getMessage(), defaultProcessing[type], subscribers[type]);
+	}
 
-		message = packet.getMessage();
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private void dispatchMessage(int type, Message message, boolean process, MessageHandler[] handlers)
+	{
+		if(process)
+		{
+			try
+			{
+				switch(type)
+				{
+					case ServerMessageRegistry.SERVER_BAD: if(verbose) System.out.println("Received: ServerBad"); break;
+					case ServerMessageRegistry.SERVER_PLAYER_MUZZLE_FLASH: processServerPlayerMuzzleFlash((ServerPlayerMuzzleFlash)message); break;
+					case ServerMessageRegistry.SERVER_MONSTER_MUZZLE_FLASH: processServerMonsterMuzzleFlash((ServerMonsterMuzzleFlash)message); break;
+					case ServerMessageRegistry.SERVER_TEMPORARY_ENTITY: processServerTemporaryEntity((ServerTemporaryEntity)message); break;
+					case ServerMessageRegistry.SERVER_LAYOUT: processServerLayout((ServerLayout)message); break;
+					case ServerMessageRegistry.SERVER_INVENTORY: processServerInventory((ServerInventory)message); break;
+					case ServerMessageRegistry.SERVER_NOP: if(verbose) System.out.println("Received: ServerNop"); break;
+					case ServerMessageRegistry.SERVER_DISCONNECT: processServerDisconnect((ServerDisconnect)message); break;
+					case ServerMessageRegistry.SERVER_RECONNECT: processServerReconnect((ServerReconnect)message); break;
+					case ServerMessageRegistry.SERVER_SOUND: processServerSound((ServerSound)message); break;
+					case ServerMessageRegistry.SERVER_PRINT: processServerPrint((ServerPrint)message); break;
+					case ServerMessageRegistry.SERVER_STUFF_TEXT: processServerStuffText((ServerStuffText)message); break;
+					case ServerMessageRegistry.SERVER_DATA: processServerData((ServerData)message); break;
+					case ServerMessageRegistry.SERVER_CONFIG_STRING: processServerConfigString((ServerConfigString)message); break;
+					case ServerMessageRegistry.SERVER_SPAWN_BASELINE: processServerSpawnBaseline((ServerSpawnBaseline)message); break;
+					case ServerMessageRegistry.SERVER_CENTER_PRINT: if(verbose) System.out.println("Received: ServerCenterPrint"); break;
+					case ServerMessageRegistry.SERVER_DOWNLOAD: if(verbose) System.out.println("Received: ServerDownload"); break;
+					case ServerMessageRegistry.SERVER_PLAYER_INFO: processServerPlayerInfo((ServerPlayerInfo)message); break;
+					case ServerMessageRegistry.SERVER_PACKET_ENTITIES: processServerPacketEntities((ServerPacketEntities)message); break;
+					case ServerMessageRegistry.SERVER_DELTA_PACKET_ENTITIES: if(verbose) System.out.println("Received: ServerDeltaPacketEntities"); break;
+					case ServerMessageRegistry.SERVER_FRAME: processServerFrame((ServerFrame)message); break;
+				}
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
 
-		try
+		if(handlers == null)
+			return;
+
+		for(int i = 0; i < handlers.length; i++)
 		{
-			if(message instanceof ServerBad && verbose) System.out.println("Received: ServerBad");
-			else if(message instanceof ServerPlayerMuzzleFlash) processServerPlayerMuzzleFlash((ServerPlayerMuzzleFlash)message);
-			else if(message instanceof ServerMonsterMuzzleFlash) processServerMonsterMuzzleFlash((ServerMonsterMuzzleFlash)message);
-			else if(message instanceof ServerTemporaryEntity) processServerTemporaryEntity((ServerTemporaryEntity)message);
-			else if(message instanceof ServerLayout) processServerLayout((ServerLayout)message);
-			else if(message instanceof ServerInventory) processServerInventory((ServerInventory)message);
-			else if(message instanceof ServerNop && verbose) System.out.println("Received: ServerNop");
-			else if(message instanceof ServerDisconnect) processServerDisconnect((ServerDisconnect)message);
-			else if(message instanceof ServerReconnect) processServerReconnect((ServerReconnect)message);
-			else if(message instanceof ServerSound) processServerSound((ServerSound)message);
-			else if(message instanceof ServerPrint) processServerPrint((ServerPrint)message);
-			else if(message instanceof ServerStuffText) processServerStuffText((ServerStuffText)message);
-			else if(message instanceof ServerData) processServerData((ServerData)message);
-			else if(message instanceof ServerConfigString) processServerConfigString((ServerConfigString)message);
-			else if(message instanceof ServerSpawnBaseline) processServerSpawnBaseline((ServerSpawnBaseline)message);
-			else if(message instanceof ServerCenterPrint && verbose) System.out.println("Received: ServerCenterPrint");
-			else if(message instanceof ServerDownload && verbose) System.out.println("Received: ServerDownload");
-			else if(message instanceof ServerPlayerInfo) processServerPlayerInfo((ServerPlayerInfo)message);
-			else if(message instanceof ServerPacketEntities) processServerPacketEntities((ServerPacketEntities)message);
-			else if(message instanceof ServerDeltaPacketEntities && verbose) System.out.println("Received: ServerDeltaPacketEntities");
-			else if(message instanceof ServerFrame) processServerFrame((ServerFrame)message);
+			try
+			{
+				handlers[i].handleMessage(message);
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
 		}
-		catch(Exception e)
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Subscribe a handler to all incoming messages of a given type. Each
+ *	matching message is decoded once and passed to every subscriber,
+ *	after the default processing for that type (if enabled) has been
+ *	performed. Handlers are called from the thread which reads the
+ *	incoming data, and so should not block.
+ *	@param messageClass the class of message to receive, for instance
+ *	ServerSound.class
+ *	@param handler the handler to be notified of each such message */
+/*-------------------------------------------------------------------*/
+	public synchronized <T extends Message> void subscribe(Class<T> messageClass, MessageHandler<? super T> handler)
+	{
+		int type = resolveType(messageClass);
+		MessageHandler[] current = subscribers[type];
+		MessageHandler[] updated = new MessageHandler[current == null ? 1 : current.length + 1];
+
+		if(current != null)
+			System.arraycopy(current, 0, updated, 0, current.length);
+
+		updated[updated.length - 1] = handler;
+		setSubscribers(type, updated);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Remove a handler previously subscribed to a given message type.
+ *	@param messageClass the class of message to which the handler
+ *	was subscribed
+ *	@param handler the handler to remove */
+/*-------------------------------------------------------------------*/
+	public synchronized void unsubscribe(Class messageClass, MessageHandler handler)
+	{
+		int type = resolveType(messageClass);
+		MessageHandler[] current = subscribers[type];
+
+		if(current == null)
+			return;
+
+		for(int i = 0; i < current.length; i++)
 		{
-			e.printStackTrace();
+			if(current[i] == handler)
+			{
+				if(current.length == 1)
+					setSubscribers(type, null);
+				else
+				{
+					MessageHandler[] updated = new MessageHandler[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+					setSubscribers(type, updated);
+				}
+
+				return;
+			}
 		}
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Enable or disable the default processing of a given message type;
+ *	that is, whether the handler applies such messages to the gamestate
+ *	via the corresponding processServerX method. Messages whose default
+ *	processing is disabled and which have no subscribers are skipped
+ *	without being decoded. Agents which do not use sounds, prints or
+ *	temporary entities, for instance, may disable them to reduce the
+ *	cost of each frame. ServerData, ServerConfigString, ServerFrame,
+ *	ServerPlayerInfo and ServerPacketEntities maintain the gamestate
+ *	itself, and should normally be left enabled.
+ *	@param messageClass the class of message
+ *	@param enabled true to enable default processing, false to disable */
+/*-------------------------------------------------------------------*/
+	public synchronized void setDefaultProcessing(Class messageClass, boolean enabled)
+	{
+		boolean[] updated = defaultProcessing.clone();
+		updated[resolveType(messageClass)] = enabled;
+		defaultProcessing = updated;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Enable or disable the default processing of all message types.
+ *	@param enabled true to enable default processing, false to disable
+ *	@see #setDefaultProcessing(Class, boolean) */
+/*-------------------------------------------------------------------*/
+	public synchronized void setDefaultProcessing(boolean enabled)
+	{
+		boolean[] updated = new boolean[ServerMessageRegistry.NUM_MESSAGE_TYPES];
+
+		for(int i = 0; i < updated.length; i++)
+			updated[i] = enabled;
+
+		defaultProcessing = updated;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether default processing is enabled for a message type.
+ *	@param messageClass the class of message
+ *	@return true if default processing is enabled, false otherwise */
+/*-------------------------------------------------------------------*/
+	public synchronized boolean getDefaultProcessing(Class messageClass)
+	{
+		return defaultProcessing[resolveType(messageClass)];
+	}
+
+/*-------------------------------------------------------------------*/
+/*	The subscriber and processing tables are copied on write and then
+ *	republished, so that the reading thread never needs to lock them. */
+/*-------------------------------------------------------------------*/
+	private void setSubscribers(int type, MessageHandler[] handlers)
+	{
+		MessageHandler[][] updated = subscribers.clone();
+		updated[type] = handlers;
+		subscribers = updated;
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private int resolveType(Class messageClass)
+	{
+		int type = ServerMessageRegistry.getType(messageClass);
+
+		if(type < 0)
+			throw new IllegalArgumentException("Not a registered server message: " + messageClass);
+
+		return type;
+	}
+
 /*-------------------------------------------------------------------*/
 /*-------------------------------------------------------------------*/
 	protected void processServerPlayerMuzzleFlash(ServerPlayerMuzzleFlash message)
@@ -212,6 +421,25 @@ public abstract class ServerMessageHandler extends Observable
 		world.setEntities(message.getEntities());		
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Decode a ServerPacketEntities message directly into the World's
+ *	pooled entities. Called in place of processServerPacketEntities
+ *	when entity pooling is enabled and no handler is subscribed to
+ *	ServerPacketEntities messages.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@param end offset of the end of the valid data in the array
+ *	@return the length of the message body in bytes
+ *	@see #setEntityPooling(boolean) */
+/*-------------------------------------------------------------------*/
+	protected int processServerPacketEntities(byte[] data, int off, int end)
+	{
+		if(verbose)
+			System.out.println("Processing: ServerPacketEntities (pooled)");
+
+		return ServerPacketEntities.decode(data, off, end, world);
+	}
+
 /*-------------------------------------------------------------------*/
 /*-------------------------------------------------------------------*/
 	protected void processServerFrame(ServerFrame message)
@@ -222,6 +450,73 @@ public abstract class ServerMessageHandler extends Observable
 		world.setFrame(message);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Specify whether entity updates should be decoded directly into
+ *	pooled Entity objects held by the World, rather than creating new
+ *	Entity objects for every entity on every frame. This eliminates
+ *	the largest source of garbage when processing the gamestate, which
+ *	is significant when replaying demos or running many agents. Since
+ *	pooled entities are overwritten as the gamestate advances, agents
+ *	which hold on to Entity objects across frames should deepCopy them.
+ *	@param pooling true to decode entities in place, false otherwise
+ *	@see soc.qase.state.World#beginEntityUpdate(int) */
+/*-------------------------------------------------------------------*/
+	public synchronized void setEntityPooling(boolean pooling)
+	{
+		entityPooling = pooling;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether entity updates are decoded into pooled entities.
+ *	@return true if entity pooling is enabled, false otherwise */
+/*-------------------------------------------------------------------*/
+	public synchronized boolean getEntityPooling()
+	{
+		return entityPooling;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Specify whether the gamestate should hold its entities in a compact
+ *	primitive-array store rather than as Entity objects. Recommended
+ *	where many World objects are held at once, for instance when
+ *	parsing a batch of demos. The setting is applied to the current
+ *	World at once, and to each new World as it is created; it should
+ *	therefore be chosen before a connection or demo is begun.
+ *	@param compact true to use the compact store, false otherwise
+ *	@see soc.qase.state.World#setCompactEntityStore(boolean) */
+/*-------------------------------------------------------------------*/
+	public synchronized void setCompactEntityStore(boolean compact)
+	{
+		compactEntities = compact;
+
+		if(world != null)
+			world.setCompactEntityStore(compact);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Create a new gamestate, configured according to the handler's
+ *	current settings.
+ *	@param trackInventory whether the World should track the agent's
+ *	inventory
+ *	@return the new World */
+/*-------------------------------------------------------------------*/
+	protected synchronized World createWorld(boolean trackInventory)
+	{
+		World newWorld = new World(trackInventory);
+		newWorld.setCompactEntityStore(compactEntities);
+
+		return newWorld;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the gamestate holds its entities in a compact store.
+ *	@return true if the compact store is used, false otherwise */
+/*-------------------------------------------------------------------*/
+	public synchronized boolean getCompactEntityStore()
+	{
+		return compactEntities;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Specify whether the ServerMessageHandler should print notification
  *	of its operations to the standard output. Useful for debugging.
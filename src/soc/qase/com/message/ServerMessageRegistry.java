@@ -0,0 +1,251 @@
+//---------------------------------------------------------------------
+// Name:			ServerMessageRegistry.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.com.message;
+
+import java.util.HashMap;
+
+import soc.qase.tools.Utils;
+
+/*-------------------------------------------------------------------*/
+/**	Table of the decoders for each server message type, indexed by the
+ *	type byte which precedes each message in the network stream. Used
+ *	by ServerPacket to construct messages and by ServerMessageHandler
+ *	to skip messages to which nothing is subscribed. Unknown message
+ *	types are decoded as ServerBad, which consumes the remainder of
+ *	the packet.
+ *	@see soc.qase.com.packet.ServerPacket
+ *	@see ServerMessageHandler */
+/*-------------------------------------------------------------------*/
+public class ServerMessageRegistry
+{
+	public static final int SERVER_BAD = 0, SERVER_PLAYER_MUZZLE_FLASH = 1, SERVER_MONSTER_MUZZLE_FLASH = 2,
+		SERVER_TEMPORARY_ENTITY = 3, SERVER_LAYOUT = 4, SERVER_INVENTORY = 5, SERVER_NOP = 6,
+		SERVER_DISCONNECT = 7, SERVER_RECONNECT = 8, SERVER_SOUND = 9, SERVER_PRINT = 10,
+		SERVER_STUFF_TEXT = 11, SERVER_DATA = 12, SERVER_CONFIG_STRING = 13, SERVER_SPAWN_BASELINE = 14,
+		SERVER_CENTER_PRINT = 15, SERVER_DOWNLOAD = 16, SERVER_PLAYER_INFO = 17, SERVER_PACKET_ENTITIES = 18,
+		SERVER_DELTA_PACKET_ENTITIES = 19, SERVER_FRAME = 20;
+
+	public static final int NUM_MESSAGE_TYPES = 256;
+
+	private static MessageDecoder[] decoders = new MessageDecoder[NUM_MESSAGE_TYPES];
+	private static Class[] messageClasses = new Class[NUM_MESSAGE_TYPES];
+	private static HashMap messageTypes = new HashMap();
+
+	static
+	{
+		register(SERVER_BAD, ServerBad.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerBad(data, off); }
+				public int getLength(byte[] data, int off, int end) { return end - off; }
+			});
+
+		register(SERVER_PLAYER_MUZZLE_FLASH, ServerPlayerMuzzleFlash.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerPlayerMuzzleFlash(data, off); }
+				public int getLength(byte[] data, int off, int end) { return 3; }
+			});
+
+		register(SERVER_MONSTER_MUZZLE_FLASH, ServerMonsterMuzzleFlash.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerMonsterMuzzleFlash(data, off); }
+				public int getLength(byte[] data, int off, int end) { return 3; }
+			});
+
+		register(SERVER_TEMPORARY_ENTITY, ServerTemporaryEntity.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerTemporaryEntity(data, off); }
+				public int getLength(byte[] data, int off, int end) { return ServerTemporaryEntity.getLength(data, off); }
+			});
+
+		register(SERVER_LAYOUT, ServerLayout.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerLayout(data, off); }
+				public int getLength(byte[] data, int off, int end) { return Utils.stringLength(data, off) + 1; }
+			});
+
+		register(SERVER_INVENTORY, ServerInventory.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerInventory(data, off); }
+				public int getLength(byte[] data, int off, int end) { return 512; }
+			});
+
+		register(SERVER_NOP, ServerNop.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerNop(); }
+				public int getLength(byte[] data, int off, int end) { return 0; }
+			});
+
+		register(SERVER_DISCONNECT, ServerDisconnect.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerDisconnect(); }
+				public int getLength(byte[] data, int off, int end) { return 0; }
+			});
+
+		register(SERVER_RECONNECT, ServerReconnect.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerReconnect(); }
+				public int getLength(byte[] data, int off, int end) { return 0; }
+			});
+
+		register(SERVER_SOUND, ServerSound.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerSound(data, off); }
+				public int getLength(byte[] data, int off, int end)
+				{
+					int bitmask = data[off];
+					return 2 + ((bitmask & 0x01) != 0 ? 1 : 0) + ((bitmask & 0x02) != 0 ? 1 : 0) + ((bitmask & 0x10) != 0 ? 1 : 0) + ((bitmask & 0x08) != 0 ? 2 : 0) + ((bitmask & 0x04) != 0 ? 6 : 0);
+				}
+			});
+
+		register(SERVER_PRINT, ServerPrint.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerPrint(data, off); }
+				public int getLength(byte[] data, int off, int end) { return Utils.stringLength(data, off + 1) + 2; }
+			});
+
+		register(SERVER_STUFF_TEXT, ServerStuffText.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerStuffText(data, off); }
+				public int getLength(byte[] data, int off, int end) { return Utils.stringLength(data, off) + 1; }
+			});
+
+		register(SERVER_DATA, ServerData.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerData(data, off); }
+				public int getLength(byte[] data, int off, int end)
+				{
+					int str1Length = Utils.stringLength(data, off + 9);
+					return 13 + str1Length + Utils.stringLength(data, off + 12 + str1Length);
+				}
+			});
+
+		register(SERVER_CONFIG_STRING, ServerConfigString.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerConfigString(data, off); }
+				public int getLength(byte[] data, int off, int end) { return Utils.stringLength(data, off + 2) + 3; }
+			});
+
+		register(SERVER_SPAWN_BASELINE, ServerSpawnBaseline.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerSpawnBaseline(data, off); }
+				public int getLength(byte[] data, int off, int end) { return ServerSpawnBaseline.getLength(data, off); }
+			});
+
+		register(SERVER_CENTER_PRINT, ServerCenterPrint.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerCenterPrint(data, off); }
+				public int getLength(byte[] data, int off, int end) { return Utils.stringLength(data, off) + 1; }
+			});
+
+		register(SERVER_DOWNLOAD, ServerDownload.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerDownload(data, off); }
+				public int getLength(byte[] data, int off, int end)
+				{
+					int size = Utils.shortValue(data, off);
+					return (size < 0 ? 0 : size + 3);
+				}
+			});
+
+		register(SERVER_PLAYER_INFO, ServerPlayerInfo.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerPlayerInfo(data, off); }
+				public int getLength(byte[] data, int off, int end) { return ServerPlayerInfo.getLength(data, off); }
+			});
+
+		register(SERVER_PACKET_ENTITIES, ServerPacketEntities.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerPacketEntities(data, off); }
+				public int getLength(byte[] data, int off, int end) { return ServerPacketEntities.getLength(data, off, end); }
+			});
+
+		register(SERVER_DELTA_PACKET_ENTITIES, ServerDeltaPacketEntities.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerDeltaPacketEntities(data, off); }
+				public int getLength(byte[] data, int off, int end) { return end - off; }
+			});
+
+		register(SERVER_FRAME, ServerFrame.class, new MessageDecoder()
+			{
+				public Message decode(byte[] data, int off) { return new ServerFrame(data, off); }
+				public int getLength(byte[] data, int off, int end) { return (data[off + 9] & 0xFF) + 10; }
+			});
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Register the decoder for a given message type, replacing any
+ *	existing decoder for that type.
+ *	@param type the message type byte
+ *	@param messageClass the class of message produced by the decoder
+ *	@param decoder the decoder */
+/*-------------------------------------------------------------------*/
+	public static synchronized void register(int type, Class messageClass, MessageDecoder decoder)
+	{
+		decoders[type] = decoder;
+		messageClasses[type] = messageClass;
+		messageTypes.put(messageClass, Integer.valueOf(type));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the decoder for a given message type. Unknown types are
+ *	mapped to the ServerBad decoder.
+ *	@param type the message type byte, in the range 0-255
+ *	@return the decoder for the given type */
+/*-------------------------------------------------------------------*/
+	public static MessageDecoder getDecoder(int type)
+	{
+		MessageDecoder decoder = decoders[type];
+		return (decoder == null ? decoders[SERVER_BAD] : decoder);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Resolve the message type of a given message class.
+ *	@param messageClass the class of the message
+ *	@return the message type byte, or -1 if no decoder for the class
+ *	has been registered */
+/*-------------------------------------------------------------------*/
+	public static synchronized int getType(Class messageClass)
+	{
+		Integer type = (Integer)messageTypes.get(messageClass);
+		return (type == null ? -1 : type.intValue());
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Resolve the message type of the message at the given offset,
+ *	mapping unknown types to SERVER_BAD.
+ *	@param data message source
+ *	@param off offset of the message's type byte
+ *	@return the message type */
+/*-------------------------------------------------------------------*/
+	public static int getType(byte[] data, int off)
+	{
+		int type = data[off] & 0xFF;
+		return (decoders[type] == null ? SERVER_BAD : type);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the class of message produced for a given type.
+ *	@param type the message type byte
+ *	@return the message class, or null if the type is unknown */
+/*-------------------------------------------------------------------*/
+	public static Class getMessageClass(int type)
+	{
+		return messageClasses[type];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the total length of the message at the given offset,
+ *	including its type byte, without decoding it where possible.
+ *	@param data message source
+ *	@param off offset of the message's type byte
+ *	@param end offset of the end of the valid data in the array
+ *	@return the length of the message in bytes */
+/*-------------------------------------------------------------------*/
+	public static int getMessageLength(byte[] data, int off, int end)
+	{
+		return 1 + getDecoder(getType(data, off)).getLength(data, off + 1, end);
+	}
+}
@@ -16,6 +16,7 @@ import soc.qase.state.Model;
 import soc.qase.state.Origin;
 import soc.qase.state.Solid;
 import soc.qase.state.Sound;
+import soc.qase.state.World;
 import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
@@ -31,6 +32,7 @@ public class ServerPacketEntities extends Message
 	private byte[] data = null;
 
 	private static float PI = (float)3.1415926535;
+	private static final long[] MODEL_INDEX_BITS = { 0x00000800, 0x00100000, 0x00200000, 0x00400000 };
 
 /*-------------------------------------------------------------------*/
 /**	Constructor. Parses the data and extracts message details.
@@ -77,6 +79,252 @@ public class ServerPacketEntities extends Message
 		setLength(offset - off);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Determine the length of a packet entities message without decoding
+ *	the entities it contains, by walking the bitmask of each entity.
+ *	Used to skip the message when nothing is subscribed to it.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@param end offset of the end of the valid data in the array
+ *	@return the length of the message in bytes */
+/*-------------------------------------------------------------------*/
+	public static int getLength(byte[] data, int off, int end)
+	{
+		int offset = off;
+		long mask = 0;
+		int number = 0;
+
+		try
+		{
+			while(offset < end)
+			{
+				mask = (0xFF & data[offset++]);
+				if((mask & 0x00000080) != 0) mask |= ((0xFF & data[offset++]) << 8);
+				if((mask & 0x00008000) != 0) mask |= ((0xFF & data[offset++]) << 16);
+				if((mask & 0x00800000) != 0) mask |= ((0xFF & data[offset++]) << 24);
+				mask &= 0xFFFFFFFFL;
+
+				if((mask & 0x00000100) != 0)
+				{
+					number = Utils.shortValue(data, offset);
+					offset += 2;
+				}
+				else
+					number = (0xFF & data[offset++]);
+
+				if(number == 0)
+					return offset - off;
+
+				offset = skipFields(data, offset, mask);
+			}
+		}
+		catch(Exception e)
+		{	}
+
+		return end - off;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Skip the fields of a single entity update, as indicated by its
+ *	bitmask, without decoding them. Shared with ServerSpawnBaseline,
+ *	whose entity is encoded in the same manner.
+ *	@param data message source
+ *	@param offset offset of the first field, after the entity number
+ *	@param mask the entity's bitmask
+ *	@return the offset following the last field */
+/*-------------------------------------------------------------------*/
+	static int skipFields(byte[] data, int offset, long mask)
+	{
+		if((mask & 0x00000800) != 0) offset++;
+		if((mask & 0x00100000) != 0) offset++;
+		if((mask & 0x00200000) != 0) offset++;
+		if((mask & 0x00400000) != 0) offset++;
+		if((mask & 0x00000010) != 0) offset++;
+		if((mask & 0x00020000) != 0) offset += 2;
+
+		if((mask & 0x00010000) != 0) offset += ((mask & 0x02000000) != 0 ? 4 : 1);
+		else if((mask & 0x02000000) != 0) offset += 2;
+
+		if((mask & 0x00004000) != 0) offset += ((mask & 0x00080000) != 0 ? 4 : 1);
+		else if((mask & 0x00080000) != 0) offset += 2;
+
+		if((mask & 0x00001000) != 0) offset += ((mask & 0x00040000) != 0 ? 4 : 1);
+		else if((mask & 0x00040000) != 0) offset += 2;
+
+		if((mask & 0x00000001) != 0) offset += 2;
+		if((mask & 0x00000002) != 0) offset += 2;
+		if((mask & 0x00000200) != 0) offset += 2;
+		if((mask & 0x00000004) != 0) offset++;
+		if((mask & 0x00000400) != 0) offset++;
+		if((mask & 0x00000008) != 0) offset++;
+		if((mask & 0x01000000) != 0) offset += 6;
+		if((mask & 0x04000000) != 0) offset++;
+		if((mask & 0x00000020) != 0) offset++;
+		if((mask & 0x08000000) != 0) offset += 2;
+
+		return offset;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Decode a packet entities message directly into the World's pooled
+ *	entity state, without constructing a ServerPacketEntities message
+ *	or any intermediate Entity, Model, Origin etc. objects. The result
+ *	is equivalent to decoding the message and passing its entities to
+ *	World.setEntities; each field present in the update overwrites the
+ *	corresponding field of the entity's previous state.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@param end offset of the end of the valid data in the array
+ *	@param world the World into which the entities should be decoded
+ *	@return the length of the message in bytes
+ *	@see soc.qase.state.World#beginEntityUpdate(int) */
+/*-------------------------------------------------------------------*/
+	public static int decode(byte[] data, int off, int end, World world)
+	{
+		int offset = off;
+		long mask = 0;
+		int number = 0;
+		int value = 0;
+
+		Entity entity = null;
+
+		synchronized(world)
+		{
+			try
+			{
+				while(true)
+				{
+					mask = (0xFF & data[offset++]);
+					if((mask & 0x00000080) != 0) mask |= ((0xFF & data[offset++]) << 8);
+					if((mask & 0x00008000) != 0) mask |= ((0xFF & data[offset++]) << 16);
+					if((mask & 0x00800000) != 0) mask |= ((0xFF & data[offset++]) << 24);
+					mask &= 0xFFFFFFFFL;
+
+					if((mask & 0x00000100) != 0)
+					{
+						number = Utils.shortValue(data, offset);
+						offset += 2;
+					}
+					else
+						number = (0xFF & data[offset++]);
+
+					if(number == 0)
+						break;
+
+					entity = (number > 0 && number < 1024 ? world.beginEntityUpdate(number) : null);
+
+					if(entity != null)
+						entity.setActive((mask & 0x00000040) == 0);
+
+					Model model = (entity == null ? null : entity.getModel());
+
+					for(int i = 0; i < 4; i++)
+					{
+						if((mask & MODEL_INDEX_BITS[i]) != 0)
+						{
+							value = (0xFF & data[offset++]);
+
+							if(entity != null)
+								entity.updateModelIndex(i, value);
+						}
+					}
+
+					value = -1;
+					if((mask & 0x00000010) != 0) value = (0xFF & data[offset++]);
+					if((mask & 0x00020000) != 0) { value = Utils.shortValue(data, offset); offset += 2; }
+					if(model != null && value != -1) model.setFrame(value);
+
+					long skin = -1;
+
+					if((mask & 0x00010000) != 0)
+					{
+						if((mask & 0x02000000) != 0) { skin = Utils.unsignedIntValue(data, offset); offset += 4; }
+						else skin = (0xFF & data[offset++]);
+					}
+					else if((mask & 0x02000000) != 0) { skin = Utils.shortValue(data, offset); offset += 2; }
+
+					if(model != null && skin != -1) model.setSkin(skin);
+
+					Effects effects = (entity == null ? null : entity.getEffects());
+
+					value = -1;
+					if((mask & 0x00004000) != 0)
+					{
+						if((mask & 0x00080000) != 0) { value = Utils.intValue(data, offset); offset += 4; }
+						else value = (0xFF & data[offset++]);
+					}
+					else if((mask & 0x00080000) != 0) { value = Utils.shortValue(data, offset); offset += 2; }
+
+					if(effects != null && value != -1) effects.setEffects(value);
+
+					value = -1;
+					if((mask & 0x00001000) != 0)
+					{
+						if((mask & 0x00040000) != 0) { value = Utils.intValue(data, offset); offset += 4; }
+						else value = (0xFF & data[offset++]);
+					}
+					else if((mask & 0x00040000) != 0) { value = Utils.shortValue(data, offset); offset += 2; }
+
+					if(effects != null && value != -1) effects.setRenderEffects(value);
+
+					Origin origin = (entity == null ? null : entity.getOrigin());
+
+					if((mask & 0x00000001) != 0) { value = (int)(0.125 * Utils.shortValue(data, offset)); offset += 2; if(origin != null && value != -1) origin.setX(value); }
+					if((mask & 0x00000002) != 0) { value = (int)(0.125 * Utils.shortValue(data, offset)); offset += 2; if(origin != null && value != -1) origin.setY(value); }
+					if((mask & 0x00000200) != 0) { value = (int)(0.125 * Utils.shortValue(data, offset)); offset += 2; if(origin != null && value != -1) origin.setZ(value); }
+
+					Angles angles = (entity == null ? null : entity.getAngles());
+
+					if((mask & 0x00000004) != 0) { value = (int)(PI / 128.0 * (float)(0xFF & data[offset++])); if(angles != null && value != -1) angles.setPitch(value); }
+					if((mask & 0x00000400) != 0) { value = (int)(PI / 128.0 * (float)(0xFF & data[offset++])); if(angles != null && value != -1) angles.setYaw(value); }
+					if((mask & 0x00000008) != 0) { value = (int)(PI / 128.0 * (float)(0xFF & data[offset++])); if(angles != null && value != -1) angles.setRoll(value); }
+
+					// old origin is not retained from updates (see Entity.setOldOrigin)
+					if((mask & 0x01000000) != 0) offset += 6;
+
+					if((mask & 0x04000000) != 0)
+					{
+						value = (0xFF & data[offset++]);
+
+						if(entity != null)
+							entity.getSound().setLoop(value);
+					}
+
+					boolean respawned = false;
+
+					if((mask & 0x00000020) != 0)
+					{
+						value = (0xFF & data[offset++]);
+						respawned = (value == Events.ITEM_RESPAWN);
+
+						if(entity != null && value != 0)
+							entity.getEvents().setEvents(value);
+					}
+
+					if((mask & 0x08000000) != 0)
+					{
+						value = Utils.shortValue(data, offset);
+						offset += 2;
+
+						if(entity != null && value != -1)
+							entity.getSolid().setSolid(value);
+					}
+
+					if(entity != null)
+						world.endEntityUpdate(entity, respawned);
+				}
+			}
+			catch(Exception e)
+			{
+				offset = end;
+			}
+
+			world.endEntityUpdates();
+		}
+
+		return offset - off;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Get entities information.
  *	@return entities. */
@@ -45,6 +45,39 @@ public class ServerPlayerInfo extends Message
 		setLength(offset - off);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Determine the length of a player info message without decoding
+ *	it, by walking the field bitmask and the status bitmask. Used to
+ *	skip the message when nothing is subscribed to it.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@return the length of the message in bytes */
+/*-------------------------------------------------------------------*/
+	public static int getLength(byte[] data, int off)
+	{
+		int bitmask = Utils.shortValue(data, off);
+		int offset = off + 2;
+
+		if((bitmask & 0x0001) != 0) offset += 1;
+		if((bitmask & 0x0002) != 0) offset += 6;
+		if((bitmask & 0x0004) != 0) offset += 6;
+		if((bitmask & 0x0008) != 0) offset += 1;
+		if((bitmask & 0x0010) != 0) offset += 1;
+		if((bitmask & 0x0020) != 0) offset += 2;
+		if((bitmask & 0x0040) != 0) offset += 6;
+		if((bitmask & 0x0080) != 0) offset += 3;
+		if((bitmask & 0x0100) != 0) offset += 6;
+		if((bitmask & 0x0200) != 0) offset += 3;
+		if((bitmask & 0x1000) != 0) offset += 1;
+		if((bitmask & 0x2000) != 0) offset += 7;
+		if((bitmask & 0x0400) != 0) offset += 4;
+		if((bitmask & 0x0800) != 0) offset += 1;
+		if((bitmask & 0x4000) != 0) offset += 1;
+
+		offset += 4 + 2 * Integer.bitCount(Utils.intValue(data, offset));
+		return offset - off;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Get player information.
  *	@return player. */
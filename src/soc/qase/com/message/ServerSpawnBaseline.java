@@ -64,6 +64,21 @@ public class ServerSpawnBaseline extends Message
 		return entity;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Determine the length of a spawn baseline message without decoding
+ *	its entity. Used to skip the message when it is not needed.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@return the length of the message in bytes */
+/*-------------------------------------------------------------------*/
+	public static int getLength(byte[] data, int off)
+	{
+		int mask = Utils.intValue(data, off);
+		int offset = off + 4 + ((mask & 0x00000100) != 0 ? 2 : 1);
+
+		return ServerPacketEntities.skipFields(data, offset, mask) - off;
+	}
+
 /*-------------------------------------------------------------------*/
 /*-------------------------------------------------------------------*/
 	private int processBitmask()
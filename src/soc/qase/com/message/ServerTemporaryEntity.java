@@ -65,6 +65,49 @@ public class ServerTemporaryEntity extends Message
 		return tempEnt;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Determine the length of a temporary entity message without decoding
+ *	it. Used to skip the message when nothing is subscribed to it.
+ *	@param data message source
+ *	@param off offset of the start of the message body
+ *	@return the length of the message in bytes */
+/*-------------------------------------------------------------------*/
+	public static int getLength(byte[] data, int off)
+	{
+		int type = data[off];
+		int category = getEntityCategory(type, 34);
+
+		if(category == TemporaryEntity.POINT_ENTITY)
+			return 1 + 6;
+		else if(category == TemporaryEntity.IMPACT_ENTITY)
+			return 1 + 6 + 1;
+		else if(category == TemporaryEntity.LINE_ENTITY)
+			return 1 + 12;
+		else if(category != TemporaryEntity.SPECIAL_ENTITY)
+			return 1;
+
+		if(type == TemporaryEntity.TE_SPLASH || type == TemporaryEntity.TE_LASER_SPARKS || type == TemporaryEntity.TE_WELDING_SPARKS || type == TemporaryEntity.TE_TUNNEL_SPARKS)
+			return 1 + 1 + 6 + 1 + 1;
+		else if(type == TemporaryEntity.TE_PARASITE_ATTACK || type == TemporaryEntity.TE_MEDIC_CABLE_ATTACK || type == TemporaryEntity.TE_HEATBEAM || type == TemporaryEntity.TE_MONSTER_HEATBEAM)
+			return 1 + 2 + 12;
+		else if(type == TemporaryEntity.TE_GRAPPLE_CABLE)
+			return 1 + 2 + 18;
+		else if(type == TemporaryEntity.TE_FLAME)
+			return 1 + 4 + 36;
+		else if(type == TemporaryEntity.TE_LIGHTNING)
+			return 1 + 4 + 12;
+		else if(type == TemporaryEntity.TE_FLASHLIGHT)
+			return 1 + 6 + 2;
+		else if(type == TemporaryEntity.TE_FORCEWALL)
+			return 1 + 12 + 2;
+		else if(type == TemporaryEntity.TE_STEAM)
+			return 1 + 13 + (Utils.shortValue(data, off + 1) != -1 ? 8 : 0);
+		else if(type == TemporaryEntity.TE_WIDOWBEAMOUT)
+			return 1 + 2 + 6;
+
+		return 1;
+	}
+
 /*-------------------------------------------------------------------*/
 /*-------------------------------------------------------------------*/
 	private int processEntityType()
@@ -75,6 +118,13 @@ public class ServerTemporaryEntity extends Message
 /*-------------------------------------------------------------------*/
 /*-------------------------------------------------------------------*/
 	private int getEntityCategory()
+	{
+		return getEntityCategory(entityType, serverVersion);
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private static int getEntityCategory(int entityType, int serverVersion)
 	{
 		if(entityType == TemporaryEntity.TE_GREENBLOOD_NEW)
 		{
@@ -0,0 +1,461 @@
+//---------------------------------------------------------------------
+// Name:			AABBTree.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*-------------------------------------------------------------------*/
+/**	A static bounding-volume hierarchy over a set of axis-aligned boxes,
+ *	used to find the boxes which contain a point, overlap a region, are
+ *	crossed by a line segment, or lie nearest to a point, without
+ *	testing every box in turn. Each box is identified by its index in
+ *	the array from which the tree was built. The tree is built once and
+ *	never modified, and so may be queried by any number of threads.<p>
+ *
+ *	The hierarchy is stored as flat arrays. Nodes are laid out in
+ *	depth-first order, so that the first child of an interior node
+ *	immediately follows it; each node records either the index of its
+ *	second child, or the range of boxes it holds if it is a leaf. Boxes
+ *	are partitioned at the median of their centres along the longest
+ *	axis of each node.
+ *	@see BSPContentsIndex
+ *	@see BSPEntityIndex */
+/*-------------------------------------------------------------------*/
+public class AABBTree
+{
+	private static final int MAX_LEAF_ITEMS = 4;
+	private static final int MAX_DEPTH = 64;
+
+	// node layout: second child or first item, number of items (0 if interior)
+	private static final int NODE_INDEX = 0, NODE_COUNT = 1, NODE_STRIDE = 2;
+
+	// the traversal stack of each querying thread, shared by every tree
+	private static final ThreadLocal stacks = new ThreadLocal()
+	{
+		protected Object initialValue()
+		{
+			return new int[MAX_DEPTH];
+		}
+	};
+
+	private float[] boxes = null;		// 6 per item: min x, y, z, max x, y, z
+	private float[] nodeBoxes = null;	// 6 per node
+	private int[] nodes = null;
+	private int[] items = null;
+	private int numNodes = 0;
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds the tree over the given boxes.
+ *	@param boxes the boxes, six values to each - the minimum x, y and z
+ *	followed by the maximum x, y and z. The array is retained, and must
+ *	not be modified thereafter */
+/*-------------------------------------------------------------------*/
+	public AABBTree(float[] boxes)
+	{
+		int numItems = boxes.length / 6;
+
+		this.boxes = boxes;
+
+		items = new int[numItems];
+		nodes = new int[Math.max(1, 2 * numItems - 1) * NODE_STRIDE];
+		nodeBoxes = new float[Math.max(1, 2 * numItems - 1) * 6];
+
+		for(int i = 0; i < numItems; i++)
+			items[i] = i;
+
+		if(numItems > 0)
+			build(0, numItems, 0);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Reads a tree previously written by the write method.
+ *	@param in a buffer positioned at the start of the tree's data
+ *	@see BSPCacheFile */
+/*-------------------------------------------------------------------*/
+	AABBTree(ByteBuffer in)
+	{
+		boxes = BSPCacheFile.readFloats(in);
+		nodeBoxes = BSPCacheFile.readFloats(in);
+		nodes = BSPCacheFile.readInts(in);
+		items = BSPCacheFile.readInts(in);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write the tree, such that it can be read back by the ByteBuffer
+ *	constructor.
+ *	@param out the stream to which the tree is written */
+/*-------------------------------------------------------------------*/
+	void write(DataOutputStream out) throws IOException
+	{
+		BSPCacheFile.writeFloats(out, boxes);
+		BSPCacheFile.writeFloats(out, nodeBoxes);
+		BSPCacheFile.writeInts(out, nodes);
+		BSPCacheFile.writeInts(out, items);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Build the subtree over a range of items, returning its node index. */
+/*-------------------------------------------------------------------*/
+	private int build(int first, int last, int depth)
+	{
+		int node = numNodes++;
+		int count = last - first;
+
+		for(int k = 0; k < 3; k++)
+		{
+			nodeBoxes[node * 6 + k] = Float.POSITIVE_INFINITY;
+			nodeBoxes[node * 6 + k + 3] = Float.NEGATIVE_INFINITY;
+		}
+
+		for(int i = first; i < last; i++)
+		{
+			for(int k = 0; k < 3; k++)
+			{
+				nodeBoxes[node * 6 + k] = Math.min(nodeBoxes[node * 6 + k], boxes[items[i] * 6 + k]);
+				nodeBoxes[node * 6 + k + 3] = Math.max(nodeBoxes[node * 6 + k + 3], boxes[items[i] * 6 + k + 3]);
+			}
+		}
+
+		if(count <= MAX_LEAF_ITEMS || depth >= MAX_DEPTH - 2)
+		{
+			nodes[node * NODE_STRIDE + NODE_INDEX] = first;
+			nodes[node * NODE_STRIDE + NODE_COUNT] = count;
+			return node;
+		}
+
+		int axis = 0;
+
+		for(int k = 1; k < 3; k++)
+		{
+			if(nodeBoxes[node * 6 + k + 3] - nodeBoxes[node * 6 + k] > nodeBoxes[node * 6 + axis + 3] - nodeBoxes[node * 6 + axis])
+				axis = k;
+		}
+
+		int middle = (first + last) >>> 1;
+		partition(first, last, middle, axis);
+
+		build(first, middle, depth + 1);
+
+		nodes[node * NODE_STRIDE + NODE_INDEX] = build(middle, last, depth + 1);
+		nodes[node * NODE_STRIDE + NODE_COUNT] = 0;
+
+		return node;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Reorder a range of items so that the item whose centre is the
+ *	median along the given axis lies at index nth, with smaller centres
+ *	before it and larger after. */
+/*-------------------------------------------------------------------*/
+	private void partition(int first, int last, int nth, int axis)
+	{
+		int lo = first, hi = last - 1;
+
+		while(lo < hi)
+		{
+			float pivot = centre(items[(lo + hi) >>> 1], axis);
+			int i = lo, j = hi;
+
+			while(i <= j)
+			{
+				while(centre(items[i], axis) < pivot) i++;
+				while(centre(items[j], axis) > pivot) j--;
+
+				if(i <= j)
+				{
+					int swap = items[i];
+					items[i++] = items[j];
+					items[j--] = swap;
+				}
+			}
+
+			if(nth <= j)
+				hi = j;
+			else if(nth >= i)
+				lo = i;
+			else
+				break;
+		}
+	}
+
+	private float centre(int item, int axis)
+	{
+		return boxes[item * 6 + axis] + boxes[item * 6 + axis + 3];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of boxes in the tree.
+ *	@return the number of boxes */
+/*-------------------------------------------------------------------*/
+	public int getNumItems()
+	{
+		return items.length;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the boxes which contain a given point.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@param result an array, large enough to hold every box in the tree,
+ *	into which the indices of the matching boxes are written
+ *	@return the number of matching boxes */
+/*-------------------------------------------------------------------*/
+	public int findContaining(float x, float y, float z, int[] result)
+	{
+		return findOverlapping(x, y, z, x, y, z, result);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the boxes which overlap a given region.
+ *	@param minX the minimum x co-ordinate of the region
+ *	@param minY the minimum y co-ordinate of the region
+ *	@param minZ the minimum z co-ordinate of the region
+ *	@param maxX the maximum x co-ordinate of the region
+ *	@param maxY the maximum y co-ordinate of the region
+ *	@param maxZ the maximum z co-ordinate of the region
+ *	@param result an array, large enough to hold every box in the tree,
+ *	into which the indices of the matching boxes are written
+ *	@return the number of matching boxes */
+/*-------------------------------------------------------------------*/
+	public int findOverlapping(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] result)
+	{
+		if(items.length == 0)
+			return 0;
+
+		int[] stack = (int[])stacks.get();
+		int top = 0, found = 0;
+
+		stack[top++] = 0;
+
+		while(top > 0)
+		{
+			int node = stack[--top];
+
+			if(!overlaps(nodeBoxes, node, minX, minY, minZ, maxX, maxY, maxZ))
+				continue;
+
+			int count = nodes[node * NODE_STRIDE + NODE_COUNT];
+
+			if(count == 0)
+			{
+				stack[top++] = nodes[node * NODE_STRIDE + NODE_INDEX];
+				stack[top++] = node + 1;
+				continue;
+			}
+
+			for(int i = nodes[node * NODE_STRIDE + NODE_INDEX], end = i + count; i < end; i++)
+			{
+				if(overlaps(boxes, items[i], minX, minY, minZ, maxX, maxY, maxZ))
+					result[found++] = items[i];
+			}
+		}
+
+		return found;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the boxes which are crossed by a line segment.
+ *	@param startX the x co-ordinate of the start of the segment
+ *	@param startY the y co-ordinate of the start of the segment
+ *	@param startZ the z co-ordinate of the start of the segment
+ *	@param endX the x co-ordinate of the end of the segment
+ *	@param endY the y co-ordinate of the end of the segment
+ *	@param endZ the z co-ordinate of the end of the segment
+ *	@param result an array, large enough to hold every box in the tree,
+ *	into which the indices of the matching boxes are written; if null,
+ *	the search stops at the first match
+ *	@return the number of matching boxes */
+/*-------------------------------------------------------------------*/
+	public int findOnSegment(float startX, float startY, float startZ, float endX, float endY, float endZ, int[] result)
+	{
+		if(items.length == 0)
+			return 0;
+
+		float dirX = endX - startX, dirY = endY - startY, dirZ = endZ - startZ;
+
+		int[] stack = (int[])stacks.get();
+		int top = 0, found = 0;
+
+		stack[top++] = 0;
+
+		while(top > 0)
+		{
+			int node = stack[--top];
+
+			if(!crosses(nodeBoxes, node, startX, startY, startZ, dirX, dirY, dirZ))
+				continue;
+
+			int count = nodes[node * NODE_STRIDE + NODE_COUNT];
+
+			if(count == 0)
+			{
+				stack[top++] = nodes[node * NODE_STRIDE + NODE_INDEX];
+				stack[top++] = node + 1;
+				continue;
+			}
+
+			for(int i = nodes[node * NODE_STRIDE + NODE_INDEX], end = i + count; i < end; i++)
+			{
+				if(crosses(boxes, items[i], startX, startY, startZ, dirX, dirY, dirZ))
+				{
+					if(result == null)
+						return 1;
+
+					result[found++] = items[i];
+				}
+			}
+		}
+
+		return found;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the box nearest to a given point, within a maximum distance.
+ *	The distance to a box is measured to its nearest surface, and is 0
+ *	if the point lies inside it.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@param maxDistance the maximum distance at which to search
+ *	@return the index of the nearest box, or -1 if there is no box
+ *	within maxDistance of the point */
+/*-------------------------------------------------------------------*/
+	public int findNearest(float x, float y, float z, float maxDistance)
+	{
+		if(items.length == 0)
+			return -1;
+
+		int[] stack = (int[])stacks.get();
+		int top = 0, nearest = -1;
+		float bestDistance = maxDistance * maxDistance;
+
+		stack[top++] = 0;
+
+		while(top > 0)
+		{
+			int node = stack[--top];
+
+			if(distanceSquared(nodeBoxes, node, x, y, z) > bestDistance)
+				continue;
+
+			int count = nodes[node * NODE_STRIDE + NODE_COUNT];
+
+			if(count == 0)
+			{
+				int first = node + 1, second = nodes[node * NODE_STRIDE + NODE_INDEX];
+
+				// visit the nearer child first, so that it tightens the bound
+				if(distanceSquared(nodeBoxes, first, x, y, z) < distanceSquared(nodeBoxes, second, x, y, z))
+				{
+					stack[top++] = second;
+					stack[top++] = first;
+				}
+				else
+				{
+					stack[top++] = first;
+					stack[top++] = second;
+				}
+
+				continue;
+			}
+
+			for(int i = nodes[node * NODE_STRIDE + NODE_INDEX], end = i + count; i < end; i++)
+			{
+				float distance = distanceSquared(boxes, items[i], x, y, z);
+
+				if(distance <= bestDistance && (nearest == -1 || distance < bestDistance || items[i] < nearest))
+				{
+					bestDistance = distance;
+					nearest = items[i];
+				}
+			}
+		}
+
+		return nearest;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the distance from a point to the nearest surface of a box.
+ *	@param item the index of the box
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the distance, or 0 if the point lies inside the box */
+/*-------------------------------------------------------------------*/
+	public float getDistance(int item, float x, float y, float z)
+	{
+		return (float)Math.sqrt(distanceSquared(boxes, item, x, y, z));
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Test a box of the given array against a region. */
+/*-------------------------------------------------------------------*/
+	private static boolean overlaps(float[] b, int i, float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		i *= 6;
+		return b[i] <= maxX && b[i + 3] >= minX && b[i + 1] <= maxY && b[i + 4] >= minY && b[i + 2] <= maxZ && b[i + 5] >= minZ;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Slab test of a segment, given as a start point and the offset to
+ *	its end, against a box of the given array. */
+/*-------------------------------------------------------------------*/
+	private static boolean crosses(float[] b, int i, float startX, float startY, float startZ, float dirX, float dirY, float dirZ)
+	{
+		float enter = 0.0f, exit = 1.0f;
+
+		i *= 6;
+
+		for(int k = 0; k < 3; k++)
+		{
+			float start = (k == 0 ? startX : k == 1 ? startY : startZ);
+			float dir = (k == 0 ? dirX : k == 1 ? dirY : dirZ);
+
+			if(dir == 0)
+			{
+				if(start < b[i + k] || start > b[i + k + 3])
+					return false;
+			}
+			else
+			{
+				float near = (b[i + k] - start) / dir;
+				float far = (b[i + k + 3] - start) / dir;
+
+				if(near > far)
+				{
+					float swap = near;
+					near = far;
+					far = swap;
+				}
+
+				enter = Math.max(enter, near);
+				exit = Math.min(exit, far);
+
+				if(enter > exit)
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Squared distance from a point to a box of the given array. */
+/*-------------------------------------------------------------------*/
+	private static float distanceSquared(float[] b, int i, float x, float y, float z)
+	{
+		i *= 6;
+
+		float dx = Math.max(0, Math.max(b[i] - x, x - b[i + 3]));
+		float dy = Math.max(0, Math.max(b[i + 1] - y, y - b[i + 4]));
+		float dz = Math.max(0, Math.max(b[i + 2] - z, z - b[i + 5]));
+
+		return dx * dx + dy * dy + dz * dz;
+	}
+}
@@ -0,0 +1,395 @@
+//---------------------------------------------------------------------
+// Name:			BSPAreaGraph.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+import soc.qase.state.Angles;
+import soc.qase.state.Entity;
+import soc.qase.state.EntityList;
+import soc.qase.state.Origin;
+import soc.qase.state.World;
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	Tracks which areas of a map are currently connected to one another.
+ *	Areas are joined by area portals, which are opened and closed by
+ *	the doors that target them; when every door controlling a portal
+ *	is shut, the areas on either side of it are sealed off from one
+ *	another, and nothing in one can be seen or reached from the other.<p>
+ *
+ *	The state of each door is inferred from the live entity data in a
+ *	World - a door is closed only while its brush model is observed to
+ *	be at rest in its spawn position. Doors which are absent from the
+ *	current frame, and portals which are not controlled by any door, are
+ *	assumed to be open, so that the graph never reports two areas as
+ *	disconnected unless they truly are. Connectivity is held as a
+ *	union-find partition of the areas, which is rebuilt only when the
+ *	state of a portal changes; queries are therefore constant-time.<p>
+ *
+ *	Unlike the BSPMap from which it is built, an area graph holds the
+ *	door state seen by one particular agent, and so should not be
+ *	shared between agents. It may, however, be queried from several
+ *	threads while being updated.
+ *	@see BSPAreaLump
+ *	@see BSPAreaPortalLump */
+/*-------------------------------------------------------------------*/
+public class BSPAreaGraph
+{
+	private BSPMap map = null;
+
+	private int numAreas = 0;
+	private int[] portalAreas = null;	// the two areas joined by each portal
+	private int[][] portalDoors = null;	// the doors controlling each portal
+	private boolean[] portalOpen = null;
+
+	private int[] doorModels = null;	// model index of each door
+	private Vector3f[] doorOrigins = null;	// spawn position of each door
+	private boolean[] doorClosed = null;
+	private int[] modelDoors = null;	// door index of each model, or -1
+
+	private int[] areaGroups = null;
+	private int lastFrame = -1;
+
+	private EntityList entities = new EntityList();	// active entities of the current frame
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds the graph from the Area and AreaPortal lumps
+ *	of a map, and links each portal to the doors which control it. All
+ *	portals are initially open.
+ *	@param map the map whose areas are to be tracked */
+/*-------------------------------------------------------------------*/
+	public BSPAreaGraph(BSPMap map)
+	{
+		this.map = map;
+
+		buildPortals();
+		buildDoors();
+
+		portalOpen = new boolean[portalAreas.length / 2];
+
+		for(int i = 0; i < portalOpen.length; i++)
+			portalOpen[i] = true;
+
+		doorClosed = new boolean[doorModels.length];
+		areaGroups = new int[numAreas];
+
+		computeGroups();
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Record the pair of areas joined by each portal number. */
+/*-------------------------------------------------------------------*/
+	private void buildPortals()
+	{
+		BSPAreaLump areas = map.areaLump;
+		BSPAreaPortalLump portals = map.areaPortalLump;
+
+		int numPortals = 0;
+		numAreas = areas.numAreaPortals.length;
+
+		for(int i = 0; i < portals.portalNums.length; i++)
+			numPortals = Math.max(numPortals, portals.portalNums[i] + 1);
+
+		portalAreas = new int[numPortals * 2];
+
+		for(int area = 0; area < numAreas; area++)
+		{
+			for(int i = 0; i < areas.numAreaPortals[area]; i++)
+			{
+				int entry = areas.firstAreaPortal[area] + i;
+
+				if(entry < 0 || entry >= portals.portalNums.length || portals.portalNums[entry] < 0)
+					continue;
+
+				portalAreas[portals.portalNums[entry] * 2] = area;
+				portalAreas[portals.portalNums[entry] * 2 + 1] = portals.otherAreas[entry];
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Find the func_areaportal entity of each portal, and the doors which
+ *	target it. */
+/*-------------------------------------------------------------------*/
+	private void buildDoors()
+	{
+		BSPEntity[] entities = map.entitiesLump.entities;
+		BSPModel[] models = map.modelLump.models;
+
+		HashMap portalNames = new HashMap();	// targetname -> portal number
+		Vector[] doorLists = new Vector[portalAreas.length / 2];
+		Vector doors = new Vector();
+
+		for(int i = 0; i < entities.length; i++)
+		{
+			if("func_areaportal".equals(entities[i].className) && entities[i].targetName != null && entities[i].style >= 0 && entities[i].style < doorLists.length)
+				portalNames.put(entities[i].targetName, Integer.valueOf(entities[i].style));
+		}
+
+		modelDoors = new int[models.length];
+
+		for(int i = 0; i < modelDoors.length; i++)
+			modelDoors[i] = -1;
+
+		for(int i = 0; i < entities.length; i++)
+		{
+			BSPEntity door = entities[i];
+			Integer portal = (door.target == null ? null : (Integer)portalNames.get(door.target));
+
+			if(portal == null || door.model == null || door.className == null || !door.className.startsWith("func_door"))
+				continue;
+
+			int modelIndex = getModelIndex(models, door.model);
+
+			if(modelIndex < 0)
+				continue;
+
+			if(modelDoors[modelIndex] == -1)
+			{
+				modelDoors[modelIndex] = doors.size();
+				doors.add(door);
+			}
+
+			if(doorLists[portal.intValue()] == null)
+				doorLists[portal.intValue()] = new Vector();
+
+			doorLists[portal.intValue()].add(Integer.valueOf(modelDoors[modelIndex]));
+		}
+
+		doorModels = new int[doors.size()];
+		doorOrigins = new Vector3f[doors.size()];
+
+		for(int i = 0; i < modelDoors.length; i++)
+		{
+			if(modelDoors[i] != -1)
+			{
+				BSPEntity door = (BSPEntity)doors.get(modelDoors[i]);
+
+				doorModels[modelDoors[i]] = i;
+				doorOrigins[modelDoors[i]] = (door.origin == null ? new Vector3f(0, 0, 0) : door.origin.toVector3f());
+			}
+		}
+
+		portalDoors = new int[doorLists.length][];
+
+		for(int i = 0; i < doorLists.length; i++)
+		{
+			portalDoors[i] = new int[doorLists[i] == null ? 0 : doorLists[i].size()];
+
+			for(int j = 0; j < portalDoors[i].length; j++)
+				portalDoors[i][j] = ((Integer)doorLists[i].get(j)).intValue();
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Find the index of a model in the Model lump. */
+/*-------------------------------------------------------------------*/
+	private static int getModelIndex(BSPModel[] models, BSPModel model)
+	{
+		for(int i = 0; i < models.length; i++)
+		{
+			if(models[i] == model)
+				return i;
+		}
+
+		return -1;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Update the state of the map's doors from the entities of a World,
+ *	and recompute the connectivity of the areas if any portal has
+ *	opened or closed. Each server frame is processed at most once, so
+ *	this may be called freely before every query. Doors which are not
+ *	present in the World are treated as open, since the server stops
+ *	sending a door once it is out of the agent's view and its state is
+ *	then unknown. The World retains such a door as an inactive entity
+ *	holding the position at which it was last seen, so only the active
+ *	entities of the current frame are consulted.
+ *	@param world the gamestate from which to read the door positions */
+/*-------------------------------------------------------------------*/
+	public synchronized void update(World world)
+	{
+		if(world == null || doorModels.length == 0 || world.getFrame() == lastFrame)
+			return;
+
+		lastFrame = world.getFrame();
+
+		world.findEntities(null, null, null, true, entities);
+
+		for(int i = 0; i < doorClosed.length; i++)
+			doorClosed[i] = false;
+
+		for(int i = 0; i < entities.size(); i++)
+		{
+			Entity entity = entities.get(i);
+			int door = getDoor(entity.getType());
+
+			if(door != -1)
+				doorClosed[door] = isAtRest(entity, doorOrigins[door]);
+		}
+
+		boolean changed = false;
+
+		for(int portal = 0; portal < portalOpen.length; portal++)
+		{
+			boolean open = (portalDoors[portal].length == 0);
+
+			for(int i = 0; !open && i < portalDoors[portal].length; i++)
+				open = !doorClosed[portalDoors[portal][i]];
+
+			if(open != portalOpen[portal])
+			{
+				portalOpen[portal] = open;
+				changed = true;
+			}
+		}
+
+		if(changed)
+			computeGroups();
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Map an entity's model string of the form "*n" to a door index. */
+/*-------------------------------------------------------------------*/
+	private int getDoor(String modelString)
+	{
+		if(modelString == null || modelString.length() < 2 || modelString.charAt(0) != '*')
+			return -1;
+
+		try
+		{
+			int model = Integer.parseInt(modelString.substring(1));
+			return (model > 0 && model < modelDoors.length ? modelDoors[model] : -1);
+		}
+		catch(NumberFormatException nfe)
+		{
+			return -1;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether a door entity is shut in its spawn position. Doors
+ *	slide by moving their origin, and rotating doors by changing
+ *	their angles from zero. */
+/*-------------------------------------------------------------------*/
+	private static boolean isAtRest(Entity entity, Vector3f spawnOrigin)
+	{
+		Origin origin = entity.getOrigin();
+		Angles angles = entity.getAngles();
+
+		if(origin != null && (origin.getX() != (int)spawnOrigin.x || origin.getY() != (int)spawnOrigin.y || origin.getZ() != (int)spawnOrigin.z))
+			return false;
+
+		return angles == null || (angles.getPitch() == 0 && angles.getYaw() == 0 && angles.getRoll() == 0);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Partition the areas into connected groups using union-find over
+ *	the open portals, then flatten the result for constant-time lookup. */
+/*-------------------------------------------------------------------*/
+	private void computeGroups()
+	{
+		for(int i = 0; i < numAreas; i++)
+			areaGroups[i] = i;
+
+		for(int portal = 0; portal < portalOpen.length; portal++)
+		{
+			int areaA = portalAreas[portal * 2];
+			int areaB = portalAreas[portal * 2 + 1];
+
+			if(!portalOpen[portal] || areaA <= 0 || areaB <= 0 || areaA >= numAreas || areaB >= numAreas)
+				continue;
+
+			int rootA = findGroup(areaA), rootB = findGroup(areaB);
+
+			if(rootA != rootB)
+				areaGroups[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+		}
+
+		for(int i = 0; i < numAreas; i++)
+			areaGroups[i] = findGroup(i);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Find the root of an area's group, compressing the path to it. */
+/*-------------------------------------------------------------------*/
+	private int findGroup(int area)
+	{
+		int root = area;
+
+		while(areaGroups[root] != root)
+			root = areaGroups[root];
+
+		while(areaGroups[area] != root)
+		{
+			int next = areaGroups[area];
+			areaGroups[area] = root;
+			area = next;
+		}
+
+		return root;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether two areas are currently connected by open portals.
+ *	Invalid areas, including area 0 which denotes solid space, are
+ *	treated as connected to everything.
+ *	@param areaA the first area
+ *	@param areaB the second area
+ *	@return false if the areas are definitely sealed off from one
+ *	another, true otherwise */
+/*-------------------------------------------------------------------*/
+	public synchronized boolean isConnected(int areaA, int areaB)
+	{
+		if(areaA <= 0 || areaB <= 0 || areaA >= numAreas || areaB >= numAreas)
+			return true;
+
+		return areaGroups[areaA] == areaGroups[areaB];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the areas containing two points are currently
+ *	connected by open portals.
+ *	@param a the first point
+ *	@param b the second point
+ *	@return false if the points are definitely sealed off from one
+ *	another, true otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isConnected(Vector3f a, Vector3f b)
+	{
+		return isConnected(map.findArea(a), map.findArea(b));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of areas in the map, including area 0.
+ *	@return the number of areas */
+/*-------------------------------------------------------------------*/
+	public int getNumAreas()
+	{
+		return numAreas;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of area portals in the map.
+ *	@return the number of portals */
+/*-------------------------------------------------------------------*/
+	public int getNumPortals()
+	{
+		return portalOpen.length;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether a portal is currently believed to be open.
+ *	@param portal the portal number
+ *	@return true if the portal is open, or its state is unknown */
+/*-------------------------------------------------------------------*/
+	public synchronized boolean isPortalOpen(int portal)
+	{
+		return portalOpen[portal];
+	}
+}
@@ -0,0 +1,65 @@
+//---------------------------------------------------------------------
+// Name:			BSPAreaLump.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.nio.ByteBuffer;
+
+/*-------------------------------------------------------------------*/
+/** Represents the Area lump of the BSP file. The map is divided into
+ *	areas, which are regions of leaves separated from one another only
+ *	by area portals; each leaf records the area to which it belongs.
+ *	For each area, this lump stores the range of entries in the
+ *	AreaPortal lump which lead out of it. Area 0 is reserved for solid
+ *	space.
+ *	@see BSPAreaPortalLump
+ *	@see BSPAreaGraph */
+/*-------------------------------------------------------------------*/
+public class BSPAreaLump extends BSPLump
+{
+	public int[] numAreaPortals = null;
+	public int[] firstAreaPortal = null;
+
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Area lump data.
+ *	@param inData the BSP file data
+ *	@param off the offset of the Area lump in the byte array
+ *	@param len the length of the Area lump */
+/*-------------------------------------------------------------------*/
+	public BSPAreaLump(byte[] inData, int off, int len)
+	{
+		super(inData, off, len);
+		processLumpData();
+	}
+
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Area lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Area lump */
+/*-------------------------------------------------------------------*/
+	public BSPAreaLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
+/*-------------------------------------------------------------------*/
+/** Process Area lump data. Every 8 bytes corresponds to a different
+ *	area, consisting of the number of portals leading from the area
+ *	and the index of the first of them. */
+/*-------------------------------------------------------------------*/
+	protected void processLumpData()
+	{
+		numAreaPortals = new int[lumpData.limit() / 8];
+		firstAreaPortal = new int[lumpData.limit() / 8];
+
+		for(int i = 0; i < numAreaPortals.length; i++)
+		{
+			numAreaPortals[i] = lumpData.getInt(i * 8);
+			firstAreaPortal[i] = lumpData.getInt(i * 8 + 4);
+		}
+
+		lumpData = null;
+	}
+}
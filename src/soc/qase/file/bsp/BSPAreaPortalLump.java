@@ -0,0 +1,65 @@
+//---------------------------------------------------------------------
+// Name:			BSPAreaPortalLump.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.nio.ByteBuffer;
+
+/*-------------------------------------------------------------------*/
+/** Represents the AreaPortal lump of the BSP file. Each entry links an
+ *	area to a neighbouring area through a numbered portal; the portal
+ *	number matches the 'style' of the func_areaportal entity which
+ *	opens and closes it. Every portal appears twice, once in the list
+ *	of each area it joins.
+ *	@see BSPAreaLump
+ *	@see BSPAreaGraph */
+/*-------------------------------------------------------------------*/
+public class BSPAreaPortalLump extends BSPLump
+{
+	public int[] portalNums = null;
+	public int[] otherAreas = null;
+
+/*-------------------------------------------------------------------*/
+/** Constructor. Process AreaPortal lump data.
+ *	@param inData the BSP file data
+ *	@param off the offset of the AreaPortal lump in the byte array
+ *	@param len the length of the AreaPortal lump */
+/*-------------------------------------------------------------------*/
+	public BSPAreaPortalLump(byte[] inData, int off, int len)
+	{
+		super(inData, off, len);
+		processLumpData();
+	}
+
+/*-------------------------------------------------------------------*/
+/** Constructor. Process AreaPortal lump data from a buffer view of the
+ *	lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the AreaPortal lump */
+/*-------------------------------------------------------------------*/
+	public BSPAreaPortalLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
+/*-------------------------------------------------------------------*/
+/** Process AreaPortal lump data. Every 8 bytes corresponds to a
+ *	different entry, consisting of the portal number and the area on
+ *	the far side of the portal. */
+/*-------------------------------------------------------------------*/
+	protected void processLumpData()
+	{
+		portalNums = new int[lumpData.limit() / 8];
+		otherAreas = new int[lumpData.limit() / 8];
+
+		for(int i = 0; i < portalNums.length; i++)
+		{
+			portalNums[i] = lumpData.getInt(i * 8);
+			otherAreas[i] = lumpData.getInt(i * 8 + 4);
+		}
+
+		lumpData = null;
+	}
+}
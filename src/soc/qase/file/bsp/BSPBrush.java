@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
@@ -35,6 +37,19 @@ public class BSPBrush
 		contents = Utils.intValue(brushData, offset + 8);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPBrush from a little-endian buffer view
+ *	of the lump.
+ *	@param brushData buffer containing brush lump data
+ *	@param offset location of the brush data in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPBrush(ByteBuffer brushData, int offset)
+	{
+		firstSide = brushData.getInt(offset);
+		numSides = brushData.getInt(offset + 4);
+		contents = brushData.getInt(offset + 8);
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Checks whether the contents - that is, the type of in-game object
  *	which the brush represents, be it lava, water, solid, mist, etc - of
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the Brush Lump of the BSP file. The Brush Lump is the
  *	area of the file containing specifications of the various brushes
@@ -27,6 +29,16 @@ public class BSPBrushLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Brush lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Brush lump */
+/*-------------------------------------------------------------------*/
+	public BSPBrushLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Process the lump data. Each 12 bytes corresponds to a different
  *	brush. This method sequentially creates BSPBrush objects from the
@@ -34,9 +46,11 @@ public class BSPBrushLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		brushes = new BSPBrush[lumpData.length / 12];
+		brushes = new BSPBrush[lumpData.limit() / 12];
 
 		for(int i = 0; i < brushes.length; i++)
 			brushes[i] = new BSPBrush(lumpData, i * 12);
+
+		lumpData = null;
 	}
 }
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
@@ -27,4 +29,16 @@ public class BSPBrushSide
 		planeNum = Utils.unsignedShortValue(brushSideData, offset);
 		texInfo = Utils.shortValue(brushSideData, offset + 2);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPBrushSide from a little-endian buffer view
+ *	of the lump.
+ *	@param brushSideData buffer containing BrushSide lump data
+ *	@param offset location of the brushside in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPBrushSide(ByteBuffer brushSideData, int offset)
+	{
+		planeNum = brushSideData.getShort(offset) & 0xFFFF;
+		texInfo = brushSideData.getShort(offset + 2);
+	}
 }
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the BrushSide Lump of the BSP file. The BrushSide Lump
  *	is the area of the file containing details of each brush's bounding
@@ -27,6 +29,16 @@ public class BSPBrushSideLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process BrushSide lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the BrushSide lump */
+/*-------------------------------------------------------------------*/
+	public BSPBrushSideLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Process BrushSide lump data. Each 4 bytes corresponds to a different
  *	BrushSide. This method sequentially creates BSPBrushSide objects from
@@ -34,9 +46,11 @@ public class BSPBrushSideLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		brushSides = new BSPBrushSide[lumpData.length / 4];
+		brushSides = new BSPBrushSide[lumpData.limit() / 4];
 
 		for(int i = 0; i < brushSides.length; i++)
 			brushSides[i] = new BSPBrushSide(lumpData, i * 4);
+
+		lumpData = null;
 	}
 }
@@ -0,0 +1,323 @@
+//---------------------------------------------------------------------
+// Name:			BSPCacheFile.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/*-------------------------------------------------------------------*/
+/**	A persistent, on-disk cache of the structures which a BSPMap derives
+ *	from its lumps when it is loaded - the compiled BSPTree, the contents
+ *	and entity indices, and the fully decoded visibility rows. Each map
+ *	is cached in a file of its own, named by the SHA-1 hash of the BSP
+ *	data, so that a map which changes on disk is never matched against
+ *	a stale cache, and identical maps in different locations share one.<p>
+ *
+ *	A cache file consists of a header - a magic number, the format
+ *	version, the hash and length of the BSP data, and the length and
+ *	CRC32 checksum of the payload - followed by the payload itself. On
+ *	load, the file is memory-mapped and every field of the header is
+ *	validated before the payload is read; a missing, outdated, truncated
+ *	or corrupt file is simply rebuilt. Files are written to a temporary
+ *	name and then renamed, so that several agents starting at once can
+ *	never observe a partially written cache.<p>
+ *
+ *	Caching is disabled until a directory is set, either by calling
+ *	setCacheDirectory or through the QASE_MAP_CACHE system property.
+ *	@see BSPMap */
+/*-------------------------------------------------------------------*/
+public class BSPCacheFile
+{
+	private static final int MAGIC = 0x51434D50;	// "QCMP"
+
+/*-------------------------------------------------------------------*/
+/**	The version of the cache format. This must be incremented whenever
+ *	the layout of the payload, or the manner in which any of the cached
+ *	structures is built, changes. */
+/*-------------------------------------------------------------------*/
+	public static final int VERSION = 1;
+
+	private static final int HASH_LENGTH = 20;
+	private static final int HEADER_LENGTH = 4 + 4 + HASH_LENGTH + 8 + 4 + 4;
+	private static final String SUFFIX = ".qcm";
+
+	private static File cacheDir = (System.getProperty("QASE_MAP_CACHE") == null ? null : new File(System.getProperty("QASE_MAP_CACHE")));
+
+/*-------------------------------------------------------------------*/
+/*	Private constructor; all access is through the static methods. */
+/*-------------------------------------------------------------------*/
+	private BSPCacheFile()
+	{	}
+
+/*-------------------------------------------------------------------*/
+/**	Set the directory in which cache files are stored. The directory
+ *	is created when the first cache file is written, if necessary.
+ *	@param dir the cache directory, or null to disable caching */
+/*-------------------------------------------------------------------*/
+	public static synchronized void setCacheDirectory(File dir)
+	{
+		cacheDir = dir;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the directory in which cache files are stored.
+ *	@return the cache directory, or null if caching is disabled */
+/*-------------------------------------------------------------------*/
+	public static synchronized File getCacheDirectory()
+	{
+		return cacheDir;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Compute the hash by which the cache file of a map is identified.
+ *	@param bspData the full contents of the BSP file
+ *	@return the SHA-1 hash of the data, or null if caching is disabled */
+/*-------------------------------------------------------------------*/
+	public static byte[] getHash(ByteBuffer bspData)
+	{
+		if(getCacheDirectory() == null)
+			return null;
+
+		try
+		{
+			ByteBuffer data = bspData.duplicate();
+			data.clear();
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(data);
+			return digest.digest();
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Get the cache file for a hash, or null if caching is disabled. */
+/*-------------------------------------------------------------------*/
+	private static File getFile(byte[] hash)
+	{
+		File dir = getCacheDirectory();
+
+		if(dir == null || hash == null)
+			return null;
+
+		StringBuffer name = new StringBuffer();
+
+		for(int i = 0; i < hash.length; i++)
+			name.append(Integer.toHexString((hash[i] & 0xFF) | 0x100).substring(1));
+
+		return new File(dir, name.append(SUFFIX).toString());
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Open the cache file for a map, and validate it against the map's
+ *	hash and length.
+ *	@param hash the hash of the BSP data, as returned by getHash
+ *	@param bspLength the length of the BSP data
+ *	@return a big-endian buffer positioned at the start of the payload
+ *	and limited to its length, or null if there is no valid cache file */
+/*-------------------------------------------------------------------*/
+	public static ByteBuffer open(byte[] hash, long bspLength)
+	{
+		File file = getFile(hash);
+
+		if(file == null || !file.isFile() || file.length() < HEADER_LENGTH)
+			return null;
+
+		RandomAccessFile fileIn = null;
+		ByteBuffer data = null;
+
+		try
+		{
+			fileIn = new RandomAccessFile(file, "r");
+			data = fileIn.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileIn.length());
+		}
+		catch(IOException ioe)
+		{
+			data = null;
+		}
+
+		try { fileIn.close(); } catch(Exception e){}
+
+		if(data == null || data.getInt() != MAGIC || data.getInt() != VERSION)
+			return null;
+
+		for(int i = 0; i < HASH_LENGTH; i++)
+		{
+			if(data.get() != hash[i])
+				return null;
+		}
+
+		if(data.getLong() != bspLength)
+			return null;
+
+		int payloadLength = data.getInt();
+		int checksum = data.getInt();
+
+		if(payloadLength < 0 || payloadLength != data.remaining())
+			return null;
+
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+
+		return ((int)crc.getValue() == checksum ? data.slice() : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write the cache file for a map. Any failure to write the file is
+ *	ignored, since the cache is only an optimisation.
+ *	@param hash the hash of the BSP data, as returned by getHash
+ *	@param bspLength the length of the BSP data
+ *	@param payload the cached structures, as written by BSPMap */
+/*-------------------------------------------------------------------*/
+	public static void store(byte[] hash, long bspLength, byte[] payload)
+	{
+		File file = getFile(hash);
+		File tempFile = null;
+
+		if(file == null)
+			return;
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		DataOutputStream out = null;
+
+		try
+		{
+			file.getParentFile().mkdirs();
+			tempFile = File.createTempFile("map", ".tmp", file.getParentFile());
+
+			out = new DataOutputStream(new FileOutputStream(tempFile));
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(hash);
+			out.writeLong(bspLength);
+			out.writeInt(payload.length);
+			out.writeInt((int)crc.getValue());
+			out.write(payload);
+
+			out.close();
+			out = null;
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(Exception e)
+		{	}
+
+		try { out.close(); } catch(Exception e){}
+
+		if(tempFile != null && tempFile.exists())
+			tempFile.delete();
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check that a count read from the payload can be satisfied by the
+ *	bytes remaining in it. */
+/*-------------------------------------------------------------------*/
+	private static int readCount(ByteBuffer in, int elementSize)
+	{
+		int count = in.getInt();
+
+		if(count < 0 || (long)count * elementSize > in.remaining())
+			throw new BufferUnderflowException();
+
+		return count;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Read a length-prefixed array of integers from a payload.
+ *	@param in the payload buffer
+ *	@return the array */
+/*-------------------------------------------------------------------*/
+	static int[] readInts(ByteBuffer in)
+	{
+		int[] array = new int[readCount(in, 4)];
+
+		in.asIntBuffer().get(array);
+		in.position(in.position() + array.length * 4);
+
+		return array;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Read a length-prefixed array of floats from a payload.
+ *	@param in the payload buffer
+ *	@return the array */
+/*-------------------------------------------------------------------*/
+	static float[] readFloats(ByteBuffer in)
+	{
+		float[] array = new float[readCount(in, 4)];
+
+		in.asFloatBuffer().get(array);
+		in.position(in.position() + array.length * 4);
+
+		return array;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Read a length-prefixed array of bytes from a payload.
+ *	@param in the payload buffer
+ *	@return the array */
+/*-------------------------------------------------------------------*/
+	static byte[] readBytes(ByteBuffer in)
+	{
+		byte[] array = new byte[readCount(in, 1)];
+		in.get(array);
+
+		return array;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write a length-prefixed array of integers to a payload.
+ *	@param out the payload stream
+ *	@param array the array to write */
+/*-------------------------------------------------------------------*/
+	static void writeInts(DataOutputStream out, int[] array) throws IOException
+	{
+		out.writeInt(array.length);
+
+		for(int i = 0; i < array.length; i++)
+			out.writeInt(array[i]);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write a length-prefixed array of floats to a payload.
+ *	@param out the payload stream
+ *	@param array the array to write */
+/*-------------------------------------------------------------------*/
+	static void writeFloats(DataOutputStream out, float[] array) throws IOException
+	{
+		out.writeInt(array.length);
+
+		for(int i = 0; i < array.length; i++)
+			out.writeFloat(array[i]);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write a length-prefixed array of bytes to a payload.
+ *	@param out the payload stream
+ *	@param array the array to write */
+/*-------------------------------------------------------------------*/
+	static void writeBytes(DataOutputStream out, byte[] array) throws IOException
+	{
+		out.writeInt(array.length);
+		out.write(array);
+	}
+}
@@ -0,0 +1,346 @@
+//---------------------------------------------------------------------
+// Name:			BSPContentsIndex.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Vector;
+
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	An index of the leaves of a map by their contents - lava, slime,
+ *	water, mist and so forth - built once when the map is loaded. For
+ *	each of the visible CONTENTS types found in BSPBrush, the index
+ *	holds the set of leaves containing brushes of that type, along with
+ *	an AABBTree over their bounding boxes. This allows an agent to ask
+ *	which leaves of a given type lie near a point, within a region, or
+ *	across its path, without examining every leaf of the map.<p>
+ *
+ *	Each query accepts a bitwise OR of the CONTENTS constants, and
+ *	considers the leaves matching any of them. Leaf bounding boxes are
+ *	conservative; a leaf's box may extend beyond the feature itself.
+ *	A leaf's contents describe only the space it encloses, so a brush
+ *	which merely touches a leaf of other contents is not reflected in
+ *	them; segment queries therefore use a second set of trees, over
+ *	every leaf which touches a brush of each type.
+ *	@see BSPBrush
+ *	@see AABBTree */
+/*-------------------------------------------------------------------*/
+public class BSPContentsIndex
+{
+	private static final int NUM_CONTENTS = 7;	// CONTENTS_SOLID to LAST_VISIBLE_CONTENTS
+
+	private BSPMap map = null;
+	private BSPLeaf[] allLeaves = null;
+
+	private int[][] leafSets = new int[NUM_CONTENTS][];
+	private BSPLeaf[][] leafArrays = new BSPLeaf[NUM_CONTENTS][];
+	private AABBTree[] leafTrees = new AABBTree[NUM_CONTENTS];
+	private AABBTree[] brushTrees = new AABBTree[NUM_CONTENTS];
+
+	private static final float BRUSH_MARGIN = 1.0f;	// allows for rounding of leaf bounds
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Indexes the leaves of a map.
+ *	@param map the map whose leaves are to be indexed */
+/*-------------------------------------------------------------------*/
+	public BSPContentsIndex(BSPMap map)
+	{
+		this.map = map;
+		allLeaves = map.leafLump.leaves;
+
+		int[] touching = getTouchingContents(map);
+
+		for(int bit = 0; bit < NUM_CONTENTS; bit++)
+		{
+			int count = 0;
+
+			for(int i = 0; i < allLeaves.length; i++)
+			{
+				if((allLeaves[i].brushOr & (1 << bit)) != 0)
+					count++;
+			}
+
+			leafSets[bit] = new int[count];
+			leafArrays[bit] = new BSPLeaf[count];
+
+			float[] boxes = new float[count * 6];
+
+			for(int i = 0, j = 0; i < allLeaves.length; i++)
+			{
+				if((allLeaves[i].brushOr & (1 << bit)) == 0)
+					continue;
+
+				leafSets[bit][j] = i;
+				leafArrays[bit][j] = allLeaves[i];
+
+				boxes[j * 6] = allLeaves[i].bboxMin.x;
+				boxes[j * 6 + 1] = allLeaves[i].bboxMin.y;
+				boxes[j * 6 + 2] = allLeaves[i].bboxMin.z;
+				boxes[j * 6 + 3] = allLeaves[i].bboxMax.x;
+				boxes[j * 6 + 4] = allLeaves[i].bboxMax.y;
+				boxes[j * 6 + 5] = allLeaves[i].bboxMax.z;
+
+				j++;
+			}
+
+			leafTrees[bit] = new AABBTree(boxes);
+			brushTrees[bit] = new AABBTree(getLeafBoxes(touching, 1 << bit, BRUSH_MARGIN));
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Reads an index previously written by the write method.
+ *	@param map the map whose leaves were indexed
+ *	@param in a buffer positioned at the start of the index's data
+ *	@see BSPCacheFile */
+/*-------------------------------------------------------------------*/
+	BSPContentsIndex(BSPMap map, ByteBuffer in)
+	{
+		this.map = map;
+		allLeaves = map.leafLump.leaves;
+
+		for(int bit = 0; bit < NUM_CONTENTS; bit++)
+		{
+			leafSets[bit] = BSPCacheFile.readInts(in);
+			leafArrays[bit] = new BSPLeaf[leafSets[bit].length];
+
+			for(int i = 0; i < leafSets[bit].length; i++)
+				leafArrays[bit][i] = allLeaves[leafSets[bit][i]];
+
+			leafTrees[bit] = new AABBTree(in);
+			brushTrees[bit] = new AABBTree(in);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write the index, such that it can be read back by the ByteBuffer
+ *	constructor.
+ *	@param out the stream to which the index is written */
+/*-------------------------------------------------------------------*/
+	void write(DataOutputStream out) throws IOException
+	{
+		for(int bit = 0; bit < NUM_CONTENTS; bit++)
+		{
+			BSPCacheFile.writeInts(out, leafSets[bit]);
+			leafTrees[bit].write(out);
+			brushTrees[bit].write(out);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Combine the contents of the brushes listed in each leaf. */
+/*-------------------------------------------------------------------*/
+	private static int[] getTouchingContents(BSPMap map)
+	{
+		BSPLeaf[] leaves = map.leafLump.leaves;
+		BSPBrush[] brushes = map.brushLump.brushes;
+		int[] leafBrushTable = map.leafBrushLump.leafBrushTable;
+
+		int[] touching = new int[leaves.length];
+
+		for(int i = 0; i < leaves.length; i++)
+		{
+			for(int j = leaves[i].firstLeafBrush; j < leaves[i].firstLeafBrush + leaves[i].numLeafBrushes && j < leafBrushTable.length; j++)
+			{
+				if(leafBrushTable[j] < brushes.length)
+					touching[i] |= brushes[leafBrushTable[j]].contents;
+			}
+		}
+
+		return touching;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Collect the bounding boxes, expanded by a margin, of the leaves
+ *	whose combined brush contents include the given type. */
+/*-------------------------------------------------------------------*/
+	private float[] getLeafBoxes(int[] touching, int contents, float margin)
+	{
+		int count = 0;
+
+		for(int i = 0; i < touching.length; i++)
+		{
+			if((touching[i] & contents) != 0)
+				count++;
+		}
+
+		float[] boxes = new float[count * 6];
+
+		for(int i = 0, j = 0; i < touching.length; i++)
+		{
+			if((touching[i] & contents) == 0)
+				continue;
+
+			boxes[j * 6] = allLeaves[i].bboxMin.x - margin;
+			boxes[j * 6 + 1] = allLeaves[i].bboxMin.y - margin;
+			boxes[j * 6 + 2] = allLeaves[i].bboxMin.z - margin;
+			boxes[j * 6 + 3] = allLeaves[i].bboxMax.x + margin;
+			boxes[j * 6 + 4] = allLeaves[i].bboxMax.y + margin;
+			boxes[j * 6 + 5] = allLeaves[i].bboxMax.z + margin;
+
+			j++;
+		}
+
+		return boxes;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get every leaf which contains brushes of the given types, in the
+ *	order in which they appear in the Leaf lump. The returned array is
+ *	newly created, and may be modified by the caller.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@return the matching leaves */
+/*-------------------------------------------------------------------*/
+	public BSPLeaf[] getLeaves(int contents)
+	{
+		int bit = getSingleBit(contents);
+
+		if(bit >= 0)
+			return leafArrays[bit].clone();
+
+		Vector matches = new Vector();
+
+		for(int i = 0; i < allLeaves.length; i++)
+		{
+			if((allLeaves[i].brushOr & contents) != 0)
+				matches.add(allLeaves[i]);
+		}
+
+		return (BSPLeaf[])matches.toArray(new BSPLeaf[0]);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the given types nearest to a point, within some
+ *	maximum distance. Distance is measured to the leaf's bounding box,
+ *	and is 0 for a point inside the box.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param point the point from which to search
+ *	@param maxDistance the maximum distance at which to search
+ *	@return the nearest matching leaf, or null if there is none within
+ *	maxDistance of the point */
+/*-------------------------------------------------------------------*/
+	public BSPLeaf findNearest(int contents, Vector3f point, float maxDistance)
+	{
+		BSPLeaf nearest = null;
+		float bestDistance = maxDistance;
+
+		for(int bit = 0; bit < NUM_CONTENTS; bit++)
+		{
+			if((contents & (1 << bit)) == 0)
+				continue;
+
+			int item = leafTrees[bit].findNearest(point.x, point.y, point.z, bestDistance);
+
+			if(item != -1)
+			{
+				float distance = leafTrees[bit].getDistance(item, point.x, point.y, point.z);
+
+				if(nearest == null || distance < bestDistance)
+				{
+					nearest = leafArrays[bit][item];
+					bestDistance = distance;
+				}
+			}
+		}
+
+		return nearest;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find every leaf of the given types whose bounding box overlaps a
+ *	region. A leaf matching several of the types is added only once.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param mins the minimum corner of the region
+ *	@param maxs the maximum corner of the region
+ *	@param vect the Vector into which the matching leaves are added
+ *	@return a reference to vect, for convenience */
+/*-------------------------------------------------------------------*/
+	public Vector findInBox(int contents, Vector3f mins, Vector3f maxs, Vector vect)
+	{
+		int[] found = null;
+		BitSet added = (getSingleBit(contents) < 0 ? new BitSet(allLeaves.length) : null);
+
+		for(int bit = 0; bit < NUM_CONTENTS; bit++)
+		{
+			if((contents & (1 << bit)) == 0 || leafSets[bit].length == 0)
+				continue;
+
+			if(found == null || found.length < leafSets[bit].length)
+				found = new int[leafSets[bit].length];
+
+			int count = leafTrees[bit].findOverlapping(mins.x, mins.y, mins.z, maxs.x, maxs.y, maxs.z, found);
+
+			for(int i = 0; i < count; i++)
+			{
+				int leaf = leafSets[bit][found[i]];
+
+				if(added != null)
+				{
+					if(added.get(leaf))
+						continue;
+
+					added.set(leaf);
+				}
+
+				vect.add(leafArrays[bit][found[i]]);
+			}
+		}
+
+		return vect;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether a line segment passes through brushes of the given
+ *	types. The segment is first tested against the bounding boxes of
+ *	the leaves which touch such brushes; only if it crosses one of them
+ *	is it traced against the brushes themselves.
+ *	@param context the context in which to trace, if a trace is needed;
+ *	its brush type is preserved
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param start the start of the segment
+ *	@param end the end of the segment
+ *	@return true if the segment touches a brush of the given types */
+/*-------------------------------------------------------------------*/
+	public boolean crossesSegment(TraceContext context, int contents, Vector3f start, Vector3f end)
+	{
+		boolean candidate = false;
+
+		for(int bit = 0; bit < NUM_CONTENTS && !candidate; bit++)
+		{
+			if((contents & (1 << bit)) != 0)
+				candidate = brushTrees[bit].findOnSegment(start.x, start.y, start.z, end.x, end.y, end.z, null) > 0;
+		}
+
+		if(!candidate)
+			return false;
+
+		int brushType = context.brushType;
+		context.brushType = contents;
+
+		TraceResult result = map.traceLine(context, start, end, context.result);
+		context.brushType = brushType;
+
+		return result.isHit() || result.isStartSolid();
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Return the index of the only bit set in contents, or -1. */
+/*-------------------------------------------------------------------*/
+	private static int getSingleBit(int contents)
+	{
+		for(int bit = 0; bit < NUM_CONTENTS; bit++)
+		{
+			if(contents == (1 << bit))
+				return bit;
+		}
+
+		return -1;
+	}
+}
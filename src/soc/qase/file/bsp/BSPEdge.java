@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
@@ -25,4 +27,16 @@ public class BSPEdge
 		vertex1 = Utils.unsignedShortValue(edgeData, offset);
 		vertex2 = Utils.unsignedShortValue(edgeData, offset + 2);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPEdge from a little-endian buffer view
+ *	of the lump.
+ *	@param edgeData buffer containing edge lump data
+ *	@param offset location of the edge in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPEdge(ByteBuffer edgeData, int offset)
+	{
+		vertex1 = edgeData.getShort(offset) & 0xFFFF;
+		vertex2 = edgeData.getShort(offset + 2) & 0xFFFF;
+	}
 }
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the Edge lump of the BSP file. The Edge Lump is the
  *	area of the file containing details of geometric edges between
@@ -27,6 +29,16 @@ public class BSPEdgeLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Edge lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Edge lump */
+/*-------------------------------------------------------------------*/
+	public BSPEdgeLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Edge lump data. Every 4 bytes corresponds to a different
  *	edge. This method sequentially creates BSPEdge objects from raw
@@ -34,9 +46,11 @@ public class BSPEdgeLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		edges = new BSPEdge[lumpData.length / 4];
+		edges = new BSPEdge[lumpData.limit() / 4];
 
 		for(int i = 0; i < edges.length; i++)
 			edges[i] = new BSPEdge(lumpData, i * 4);
+
+		lumpData = null;
 	}
 }
@@ -120,6 +120,7 @@ public class BSPEntity
 							BSP_MISC_OBJECT = 16, BSP_MODEL = 17, BSP_WORLDSPAWN = 18;
 
 	private Hashtable hash = new Hashtable();
+	private BSPModel[] models = null;
 
 /*-------------------------------------------------------------------*/
 /**	Constructor. Builds a BSPEntity from raw byte data.
@@ -132,6 +133,8 @@ public class BSPEntity
 		String key = null, value = null;
 		StringTokenizer st = new StringTokenizer(entData, "\"");
 
+		models = bspModels;
+
 		while(st.hasMoreTokens())
 		{
 			try
@@ -146,146 +149,166 @@ public class BSPEntity
 				break;
 			}
 
-			if(key.equals("origin"))
+			setAttribute(key, value);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds an empty BSPEntity, whose attributes are then
+ *	supplied one at a time by the BSPEntityLump parser.
+ *	@param bspModels the array of BSP Model definitions, which is indexed
+ *	by certain Entities */
+/*-------------------------------------------------------------------*/
+	BSPEntity(BSPModel[] bspModels)
+	{
+		models = bspModels;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Record a single key/value pair, extracting the most important
+ *	attributes to class variables. */
+/*-------------------------------------------------------------------*/
+	void setAttribute(String key, String value)
+	{
+		if(key.equals("origin"))
+		{
+			StringTokenizer st2 = new StringTokenizer(value, " ");
+			origin = new Origin(Integer.parseInt(st2.nextToken()), Integer.parseInt(st2.nextToken()), Integer.parseInt(st2.nextToken()));
+		}
+		else if(key.equals("angle"))
+			angles = new Angles(0, Integer.parseInt(value), 0);
+		else if(key.equals("light"))
+			brightness = Integer.parseInt(value);
+		else if(key.equals("spawnflags"))
+			spawnflags = Integer.parseInt(value);
+		else if(key.equals("target"))
+			target = value;
+		else if(key.equals("targetname"))
+			targetName = value;
+		else if(key.equals("model"))
+		{
+			isModel = true;
+			model = models[Integer.parseInt(value.substring(1))];
+		}
+		else if(key.equals("speed"))
+			speed = Integer.parseInt(value);
+		else if(key.equals("wait"))
+			wait = Integer.parseInt(value);
+		else if(key.equals("lip"))
+			lip = Integer.parseInt(value);
+		else if(key.equals("style"))
+			style = Integer.parseInt(value);
+		else if(key.equals("dmg"))
+			dmg = Integer.parseInt(value);
+		else if(key.equals("height"))
+			height = Integer.parseInt(value);
+		else if(key.equals("accel"))
+			accel = Integer.parseInt(value);
+		else if(key.equals("sounds"))
+			sounds = Integer.parseInt(value);
+		else if(key.equals("delay"))
+			delay = Float.parseFloat(value);
+		else if(key.equals("classname"))
+		{	className = value = value.intern();
+
+			if(value.equals("worldspawn"))
 			{
-				StringTokenizer st2 = new StringTokenizer(value, " ");
-				origin = new Origin(Integer.parseInt(st2.nextToken()), Integer.parseInt(st2.nextToken()), Integer.parseInt(st2.nextToken()));
+				isWorldSpawn = true;
+				entityType = BSP_WORLDSPAWN;
 			}
-			else if(key.equals("angle"))
-				angles = new Angles(0, Integer.parseInt(value), 0);
-			else if(key.equals("light"))
-				brightness = Integer.parseInt(value);
-			else if(key.equals("spawnflags"))
-				spawnflags = Integer.parseInt(value);
-			else if(key.equals("target"))
-				target = value;
-			else if(key.equals("targetname"))
-				targetName = value;
-			else if(key.equals("model"))
+			else if(value.equals("info_player_start"))
 			{
-				isModel = true;
-				model = bspModels[Integer.parseInt(value.substring(1))];
+				isPlayerStart = true;
+				entityType = BSP_PLAYER_START;
 			}
-			else if(key.equals("speed"))
-				speed = Integer.parseInt(value);
-			else if(key.equals("wait"))
-				wait = Integer.parseInt(value);
-			else if(key.equals("lip"))
-				lip = Integer.parseInt(value);
-			else if(key.equals("style"))
-				style = Integer.parseInt(value);
-			else if(key.equals("dmg"))
-				dmg = Integer.parseInt(value);
-			else if(key.equals("height"))
-				height = Integer.parseInt(value);
-			else if(key.equals("accel"))
-				accel = Integer.parseInt(value);
-			else if(key.equals("sounds"))
-				sounds = Integer.parseInt(value);
-			else if(key.equals("delay"))
-				delay = Float.parseFloat(value);
-			else if(key.equals("classname"))
-			{	className = value;
+			else if(value.equals("info_player_deathmatch"))
+			{
+				isDMStart = true;
+				entityType = BSP_DM_START;
+			}
+			else if(value.indexOf("weapon_") >= 0)
+			{
+				isWeapon = true;
+				entityType = BSP_WEAPON;
+			}
+			else if(value.indexOf("monster_") >= 0)
+			{
+				isMonster = true;
+				entityType = BSP_MONSTER;
+			}
+			else if(value.indexOf("item_") >= 0)
+			{
+				isItem = true;
+				entityType = BSP_ITEM;
+			}
+			else if(value.indexOf("misc_") >= 0)
+			{
+				isMiscObject = true;
+				entityType = BSP_MISC_OBJECT;
+			}
+			else if(value.equals("info_teleport_destination"))
+			{
+				isTeleportDestination = true;
+				entityType = BSP_DESTINATION;
+			}
+			else if(value.equals("path_corner"))
+			{
+				isPathCorner = true;
+				entityType = BSP_CORNER;
+			}
+			else if(value.equals("trigger_teleport"))
+			{
+				isNormalTeleport = true;
+				entityType = BSP_NORMAL_TELEPORT;
+			}
+			else if(value.equals("trigger_multiple"))
+			{
+				isWalkoverButton = true;
+				entityType = BSP_WALKOVER;
+			}
+			else if(value.indexOf("func_") >= 0)
+			{
+				isModel = true;
 
-				if(value.equals("worldspawn"))
+				if(value.equals("func_door_secret"))
 				{
-					isWorldSpawn = true;
-					entityType = BSP_WORLDSPAWN;
+					isSecretDoor = true;
+					entityType = BSP_SECRET_DOOR;
 				}
-				else if(value.equals("info_player_start"))
+				else if(value.equals("func_door"))
 				{
-					isPlayerStart = true;
-					entityType = BSP_PLAYER_START;
+					isDoor = true;
+					entityType = BSP_DOOR;
 				}
-				else if(value.equals("info_player_deathmatch"))
+				else if(value.equals("func_button"))
 				{
-					isDMStart = true;
-					entityType = BSP_DM_START;
+					isButton = true;
+					entityType = BSP_BUTTON;
 				}
-				else if(value.indexOf("weapon_") >= 0)
+				else if(value.equals("func_plat"))
 				{
-					isWeapon = true;
-					entityType = BSP_WEAPON;
+					isLift = true;
+					entityType = BSP_LIFT;
 				}
-				else if(value.indexOf("monster_") >= 0)
+				else if(value.equals("func_train"))
 				{
-					isMonster = true;
-					entityType = BSP_MONSTER;
+					isConveyor = true;
+					entityType = BSP_CONVEYOR;
 				}
-				else if(value.indexOf("item_") >= 0)
+				else if(value.equals("func_dm_only"))
 				{
-					isItem = true;
-					entityType = BSP_ITEM;
+					isDMTeleport = true;
+					entityType = BSP_DM_TELEPORT;
 				}
-				else if(value.indexOf("misc_") >= 0)
+				else if(value.equals("func_illusionary"))
 				{
-					isMiscObject = true;
-					entityType = BSP_MISC_OBJECT;
-				}
-				else if(value.equals("info_teleport_destination"))
-				{
-					isTeleportDestination = true;
-					entityType = BSP_DESTINATION;
-				}
-				else if(value.equals("path_corner"))
-				{
-					isPathCorner = true;
-					entityType = BSP_CORNER;
-				}
-				else if(value.equals("trigger_teleport"))
-				{
-					isNormalTeleport = true;
-					entityType = BSP_NORMAL_TELEPORT;
-				}
-				else if(value.equals("trigger_multiple"))
-				{
-					isWalkoverButton = true;
-					entityType = BSP_WALKOVER;
-				}
-				else if(value.indexOf("func_") >= 0)
-				{
-					isModel = true;
-
-					if(value.equals("func_door_secret"))
-					{
-						isSecretDoor = true;
-						entityType = BSP_SECRET_DOOR;
-					}
-					else if(value.equals("func_door"))
-					{
-						isDoor = true;
-						entityType = BSP_DOOR;
-					}
-					else if(value.equals("func_button"))
-					{
-						isButton = true;
-						entityType = BSP_BUTTON;
-					}
-					else if(value.equals("func_plat"))
-					{
-						isLift = true;
-						entityType = BSP_LIFT;
-					}
-					else if(value.equals("func_train"))
-					{
-						isConveyor = true;
-						entityType = BSP_CONVEYOR;
-					}
-					else if(value.equals("func_dm_only"))
-					{
-						isDMTeleport = true;
-						entityType = BSP_DM_TELEPORT;
-					}
-					else if(value.equals("func_illusionary"))
-					{
-						isIllusion = true;
-						entityType = BSP_ILLUSION;
-					}
+					isIllusion = true;
+					entityType = BSP_ILLUSION;
 				}
 			}
-
-			hash.put(key, value);
 		}
+
+		hash.put(key, value);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -0,0 +1,326 @@
+//---------------------------------------------------------------------
+// Name:			BSPEntityIndex.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	An index of the entities of a map by type, built once when the map
+ *	is loaded. For each of the BSP_ constants in BSPEntity, the index
+ *	holds the entities of that type in the order in which they appear
+ *	in the Entities lump, along with an AABBTree over their bounds.
+ *	This allows an agent to ask whether it is standing on a lift, which
+ *	door lies nearest to it, or which teleporters lie within a region,
+ *	without examining every entity of the map.<p>
+ *
+ *	The bounds of an entity with a brush model - a door, lift, button
+ *	and so forth - are those of its model; the bounds of any other
+ *	entity are the single point at its origin. Entities with neither a
+ *	model nor an origin are listed by type, but are never found by the
+ *	spatial queries. As with BSPParser.getEntityType, the BSP_MODEL
+ *	type denotes every entity which possesses a model, and entities of
+ *	no recognised type are indexed under type -1. Where several
+ *	entities satisfy a query equally, the one appearing first in the
+ *	Entities lump is returned.
+ *	@see BSPEntity
+ *	@see AABBTree */
+/*-------------------------------------------------------------------*/
+public class BSPEntityIndex
+{
+	private static final int NUM_TYPES = BSPEntity.BSP_WORLDSPAWN + 2;	// including untyped entities
+
+	private int[][] typeIndices = new int[NUM_TYPES][];	// positions in the Entities lump
+	private int[][] boundedIndices = new int[NUM_TYPES][];
+
+	private BSPEntity[][] typeEntities = new BSPEntity[NUM_TYPES][];
+	private BSPEntity[][] boundedEntities = new BSPEntity[NUM_TYPES][];
+	private AABBTree[] typeTrees = new AABBTree[NUM_TYPES];
+
+	// the query results array of each querying thread, shared by every index
+	private static final ThreadLocal scratchArrays = new ThreadLocal();
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Indexes the entities of a map.
+ *	@param entities the entities of the map, as found in the Entities
+ *	lump */
+/*-------------------------------------------------------------------*/
+	public BSPEntityIndex(BSPEntity[] entities)
+	{
+		for(int slot = 0; slot < NUM_TYPES; slot++)
+		{
+			int type = slot - 1;
+			int numAll = 0, numBounded = 0;
+
+			typeIndices[slot] = new int[entities.length];
+			boundedIndices[slot] = new int[entities.length];
+
+			for(int i = 0; i < entities.length; i++)
+			{
+				if(!isOfType(entities[i], type))
+					continue;
+
+				typeIndices[slot][numAll++] = i;
+
+				if(hasBounds(entities[i]))
+					boundedIndices[slot][numBounded++] = i;
+			}
+
+			typeIndices[slot] = Arrays.copyOf(typeIndices[slot], numAll);
+			boundedIndices[slot] = Arrays.copyOf(boundedIndices[slot], numBounded);
+
+			typeEntities[slot] = getEntities(entities, typeIndices[slot]);
+			boundedEntities[slot] = getEntities(entities, boundedIndices[slot]);
+
+			float[] boxes = new float[boundedEntities[slot].length * 6];
+
+			for(int i = 0; i < boundedEntities[slot].length; i++)
+				getBounds(boundedEntities[slot][i], boxes, i * 6);
+
+			typeTrees[slot] = new AABBTree(boxes);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Reads an index previously written by the write method.
+ *	@param entities the entities of the map, as found in the Entities
+ *	lump
+ *	@param in a buffer positioned at the start of the index's data
+ *	@see BSPCacheFile */
+/*-------------------------------------------------------------------*/
+	BSPEntityIndex(BSPEntity[] entities, ByteBuffer in)
+	{
+		for(int slot = 0; slot < NUM_TYPES; slot++)
+		{
+			typeIndices[slot] = BSPCacheFile.readInts(in);
+			boundedIndices[slot] = BSPCacheFile.readInts(in);
+
+			typeEntities[slot] = getEntities(entities, typeIndices[slot]);
+			boundedEntities[slot] = getEntities(entities, boundedIndices[slot]);
+
+			typeTrees[slot] = new AABBTree(in);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write the index, such that it can be read back by the ByteBuffer
+ *	constructor.
+ *	@param out the stream to which the index is written */
+/*-------------------------------------------------------------------*/
+	void write(DataOutputStream out) throws IOException
+	{
+		for(int slot = 0; slot < NUM_TYPES; slot++)
+		{
+			BSPCacheFile.writeInts(out, typeIndices[slot]);
+			BSPCacheFile.writeInts(out, boundedIndices[slot]);
+			typeTrees[slot].write(out);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Look up the entities at the given positions in the lump. */
+/*-------------------------------------------------------------------*/
+	private static BSPEntity[] getEntities(BSPEntity[] entities, int[] indices)
+	{
+		BSPEntity[] selected = new BSPEntity[indices.length];
+
+		for(int i = 0; i < indices.length; i++)
+			selected[i] = entities[indices[i]];
+
+		return selected;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether an entity is of the given type. */
+/*-------------------------------------------------------------------*/
+	private static boolean isOfType(BSPEntity entity, int type)
+	{
+		return (type == BSPEntity.BSP_MODEL ? entity.isModel : entity.entityType == type);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether an entity has a model or an origin to be indexed. */
+/*-------------------------------------------------------------------*/
+	private static boolean hasBounds(BSPEntity entity)
+	{
+		return (entity.isModel && entity.model != null) || entity.origin != null;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Write the bounds of an entity into an array of boxes. */
+/*-------------------------------------------------------------------*/
+	private static void getBounds(BSPEntity entity, float[] boxes, int offset)
+	{
+		if(entity.isModel && entity.model != null)
+		{
+			boxes[offset] = entity.model.bboxMin.x;
+			boxes[offset + 1] = entity.model.bboxMin.y;
+			boxes[offset + 2] = entity.model.bboxMin.z;
+			boxes[offset + 3] = entity.model.bboxMax.x;
+			boxes[offset + 4] = entity.model.bboxMax.y;
+			boxes[offset + 5] = entity.model.bboxMax.z;
+		}
+		else
+		{
+			boxes[offset] = boxes[offset + 3] = entity.origin.getX();
+			boxes[offset + 1] = boxes[offset + 4] = entity.origin.getY();
+			boxes[offset + 2] = boxes[offset + 5] = entity.origin.getZ();
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Get the slot of a type in the index arrays, or -1 if the type is
+ *	neither one of the BSP_ constants nor -1. */
+/*-------------------------------------------------------------------*/
+	private static int getSlot(int type)
+	{
+		return (type >= -1 && type < NUM_TYPES - 1 ? type + 1 : -1);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Add every entity of the given type to a Vector, in the order in
+ *	which they appear in the Entities lump.
+ *	@param type one of the BSP_ constants in BSPEntity
+ *	@param vect the Vector into which the entities are added
+ *	@return a reference to vect, for convenience */
+/*-------------------------------------------------------------------*/
+	public Vector getEntities(int type, Vector vect)
+	{
+		int slot = getSlot(type);
+
+		if(slot != -1)
+			vect.addAll(Arrays.asList(typeEntities[slot]));
+
+		return vect;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of entities of the given type.
+ *	@param type one of the BSP_ constants in BSPEntity
+ *	@return the number of entities of that type */
+/*-------------------------------------------------------------------*/
+	public int getNumEntities(int type)
+	{
+		int slot = getSlot(type);
+		return (slot == -1 ? 0 : typeEntities[slot].length);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find an entity of the given type whose bounds contain a point.
+ *	@param type one of the BSP_ constants in BSPEntity
+ *	@param point the point to locate
+ *	@return the containing entity, or null if there is none */
+/*-------------------------------------------------------------------*/
+	public BSPEntity findContaining(int type, Vector3f point)
+	{
+		return findContaining(type, point.x, point.y, point.z, 0);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find an entity of the given type whose bounds contain a point, or
+ *	lie no more than a given height below it. This allows an agent to
+ *	determine which lift or platform it is standing on, since its
+ *	origin lies somewhat above the top of the model.
+ *	@param type one of the BSP_ constants in BSPEntity
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@param height the distance above an entity's bounds at which the
+ *	point is still considered to be within them
+ *	@return the containing entity, or null if there is none */
+/*-------------------------------------------------------------------*/
+	public BSPEntity findContaining(int type, float x, float y, float z, float height)
+	{
+		int slot = getSlot(type);
+
+		if(slot == -1 || boundedEntities[slot].length == 0)
+			return null;
+
+		int[] found = getScratchArray(boundedEntities[slot].length);
+		int count = typeTrees[slot].findOverlapping(x, y, z - height, x, y, z, found);
+
+		if(count == 0)
+			return null;
+
+		int first = found[0];
+
+		for(int i = 1; i < count; i++)
+			first = Math.min(first, found[i]);
+
+		return boundedEntities[slot][first];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find every entity of the given type whose bounds overlap a region.
+ *	The entities are added in the order in which they appear in the
+ *	Entities lump.
+ *	@param type one of the BSP_ constants in BSPEntity
+ *	@param mins the minimum corner of the region
+ *	@param maxs the maximum corner of the region
+ *	@param vect the Vector into which the matching entities are added
+ *	@return a reference to vect, for convenience */
+/*-------------------------------------------------------------------*/
+	public Vector findInBox(int type, Vector3f mins, Vector3f maxs, Vector vect)
+	{
+		int slot = getSlot(type);
+
+		if(slot == -1 || boundedEntities[slot].length == 0)
+			return vect;
+
+		int[] found = getScratchArray(boundedEntities[slot].length);
+		int count = typeTrees[slot].findOverlapping(mins.x, mins.y, mins.z, maxs.x, maxs.y, maxs.z, found);
+
+		Arrays.sort(found, 0, count);
+
+		for(int i = 0; i < count; i++)
+			vect.add(boundedEntities[slot][found[i]]);
+
+		return vect;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Get the calling thread's array for query results, enlarging it if
+ *	it cannot hold the given number of entities. */
+/*-------------------------------------------------------------------*/
+	private static int[] getScratchArray(int length)
+	{
+		int[] scratch = (int[])scratchArrays.get();
+
+		if(scratch == null || scratch.length < length)
+		{
+			scratch = new int[length];
+			scratchArrays.set(scratch);
+		}
+
+		return scratch;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the entity of the given type nearest to a point, within some
+ *	maximum distance. Distance is measured to the entity's bounds, and
+ *	is 0 for a point inside them.
+ *	@param type one of the BSP_ constants in BSPEntity
+ *	@param point the point from which to search
+ *	@param maxDistance the maximum distance at which to search
+ *	@return the nearest entity, or null if there is none within
+ *	maxDistance of the point */
+/*-------------------------------------------------------------------*/
+	public BSPEntity findNearest(int type, Vector3f point, float maxDistance)
+	{
+		int slot = getSlot(type);
+
+		if(slot == -1)
+			return null;
+
+		int item = typeTrees[slot].findNearest(point.x, point.y, point.z, maxDistance);
+		return (item == -1 ? null : boundedEntities[slot][item]);
+	}
+}
@@ -5,20 +5,34 @@
 
 package soc.qase.file.bsp;
 
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Vector;
 
 /*-------------------------------------------------------------------*/
 /** Represents the Entity lump of the BSP file. The entities lump stores
  *	game-related map information, including information about the map name,
  *	weapons, health, armor, triggers, spawn points, lights, and models to
- *	be placed in the map. */
+ *	be placed in the map.<p>
+ *
+ *	Entities refer to one another by name; an entity's target attribute
+ *	names the targetname of the entities it triggers or leads to, such
+ *	as a teleporter's destination, the door opened by a button, or the
+ *	next corner of a train's path. These links are indexed by name when
+ *	the lump is processed, and may be followed in either direction. */
 /*-------------------------------------------------------------------*/
 public class BSPEntityLump extends BSPLump
 {
-	private String entityData = null;
+	private ByteBuffer entityData = null;
 	private BSPModel[] models = null;
 
+	private HashMap targetNameIndex = new HashMap();	// targetname -> BSPEntity[]
+	private HashMap targetIndex = new HashMap();		// target -> BSPEntity[]
+
+	private static final BSPEntity[] NO_ENTITIES = new BSPEntity[0];
+
 	public BSPEntity[] entities = null;
 
 /*-------------------------------------------------------------------*/
@@ -32,30 +46,152 @@ public class BSPEntityLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	public BSPEntityLump(byte[] inData, int off, int len, BSPModel[] bspModels)
 	{
-		entityData = new String(inData, off, len);
+		entityData = ByteBuffer.wrap(inData, off, len).slice();
+		models = bspModels;
+		processLumpData();
+	}
+
+/*-------------------------------------------------------------------*/
+/** Constructor. Initialises the Entity lump attributes and process
+ *	lump data from a buffer view of the lump, which is scanned in place
+ *	rather than copied. The position of the buffer is not changed.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Entity lump
+ *	@param bspModels an array of BSP Model objects, with which some
+ *	entries in the Entities lump will be associated */
+/*-------------------------------------------------------------------*/
+	public BSPEntityLump(ByteBuffer lumpBuffer, BSPModel[] bspModels)
+	{
+		entityData = lumpBuffer.slice();
 		models = bspModels;
 		processLumpData();
 	}
 
 /*-------------------------------------------------------------------*/
 /** Process Entity lump data. The raw Entity lump data consists of a
- *	single long string. Individual Entity objects are extracted by
- *	tokenizing this string. */
+ *	single long string, in which each entity is a brace-enclosed list
+ *	of quoted keys and values. The data is scanned in a single pass,
+ *	and each key/value pair is passed to its entity as it is found. */
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
 		Vector eVector = new Vector();
-		StringTokenizer st = new StringTokenizer(entityData,"}");
 
-		while(st.hasMoreTokens())
-			eVector.addElement(new BSPEntity(st.nextToken(), models));
+		BSPEntity entity = null;
+		String key = null;
+
+		int dataEnd = entityData.limit();
+
+		for(int pos = 0; pos < dataEnd && entityData.get(pos) != 0; )
+		{
+			byte b = entityData.get(pos);
+
+			if(b == '"')
+			{
+				int close = pos + 1;
+
+				while(close < dataEnd && entityData.get(close) != '"')
+					close++;
+
+				if(entity != null)
+				{
+					if(key == null)
+						key = getString(pos + 1, close - pos - 1).intern();
+					else
+					{
+						entity.setAttribute(key, getString(pos + 1, close - pos - 1));
+						key = null;
+					}
+				}
+
+				pos = close + 1;
+			}
+			else
+			{
+				if(b == '{')
+				{
+					entity = new BSPEntity(models);
+					key = null;
+				}
+				else if(b == '}' && entity != null)
+				{
+					eVector.addElement(entity);
+					entity = null;
+				}
+
+				pos++;
+			}
+		}
 
 		entities = new BSPEntity[eVector.size()];
 		eVector.toArray(entities);
 
+		entityData = null;
+
+		indexTargets();
 		linkTeleports();
 	}
 
+/*-------------------------------------------------------------------*/
+/*	Read a key or value string from the entity data. Only the string's
+ *	own bytes are copied if the lump is not backed by an array. */
+/*-------------------------------------------------------------------*/
+	private String getString(int start, int length)
+	{
+		if(entityData.hasArray())
+			return new String(entityData.array(), entityData.arrayOffset() + start, length);
+
+		byte[] bytes = new byte[length];
+		ByteBuffer source = entityData.duplicate();
+
+		source.position(start);
+		source.get(bytes);
+
+		return new String(bytes);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Index the entities by their target and targetname attributes. */
+/*-------------------------------------------------------------------*/
+	private void indexTargets()
+	{
+		for(int i = 0; i < entities.length; i++)
+		{
+			addToIndex(targetNameIndex, entities[i].targetName, entities[i]);
+			addToIndex(targetIndex, entities[i].target, entities[i]);
+		}
+
+		toArrays(targetNameIndex);
+		toArrays(targetIndex);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Add an entity to the list held under a name, if it has one. */
+/*-------------------------------------------------------------------*/
+	private static void addToIndex(HashMap index, String name, BSPEntity entity)
+	{
+		if(name == null)
+			return;
+
+		Vector list = (Vector)index.get(name);
+
+		if(list == null)
+			index.put(name, list = new Vector());
+
+		list.add(entity);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Replace each list of an index with an array. */
+/*-------------------------------------------------------------------*/
+	private static void toArrays(HashMap index)
+	{
+		for(Iterator it = index.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry entry = (Map.Entry)it.next();
+			entry.setValue(((Vector)entry.getValue()).toArray(NO_ENTITIES));
+		}
+	}
+
 /*-------------------------------------------------------------------*/
 /** Links Teleport objects to their associated teleport destination,
  *	and vice-versa. */
@@ -66,15 +202,57 @@ public class BSPEntityLump extends BSPLump
 		{
 			if(entities[i].isNormalTeleport || entities[i].isDMTeleport)
 			{
-				for(int j = 0; j < entities.length; j++)
+				BSPEntity[] targets = getTargets(entities[i]);
+
+				for(int j = 0; j < targets.length; j++)
 				{
-					if(entities[j].isTeleportDestination && entities[j].targetName.equals(entities[i].target))
+					if(targets[j].isTeleportDestination)
 					{
-						entities[i].teleportEdge = entities[j];
-						entities[j].teleportEdge = entities[i];
+						entities[i].teleportEdge = targets[j];
+						targets[j].teleportEdge = entities[i];
 					}
 				}
 			}
 		}
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the entities with the given targetname, in the order in which
+ *	they appear in the lump. The returned array is shared, and must
+ *	not be modified.
+ *	@param targetName the name to look up
+ *	@return the matching entities; empty if there are none */
+/*-------------------------------------------------------------------*/
+	public BSPEntity[] getEntitiesByTargetName(String targetName)
+	{
+		BSPEntity[] named = (targetName == null ? null : (BSPEntity[])targetNameIndex.get(targetName));
+		return (named == null ? NO_ENTITIES : named);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the entities targeted by an entity - that is, those whose
+ *	targetname matches its target. For a teleporter this is its
+ *	destination; for a button, the door it opens; for a train or path
+ *	corner, the next corner of the path. The returned array is shared,
+ *	and must not be modified.
+ *	@param entity the entity whose targets are required
+ *	@return the targeted entities; empty if there are none */
+/*-------------------------------------------------------------------*/
+	public BSPEntity[] getTargets(BSPEntity entity)
+	{
+		return getEntitiesByTargetName(entity.target);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the entities which target an entity - that is, those whose
+ *	target matches its targetname. The returned array is shared, and
+ *	must not be modified.
+ *	@param entity the entity whose targeters are required
+ *	@return the targeting entities; empty if there are none */
+/*-------------------------------------------------------------------*/
+	public BSPEntity[] getTargeters(BSPEntity entity)
+	{
+		BSPEntity[] targeters = (entity.targetName == null ? null : (BSPEntity[])targetIndex.get(entity.targetName));
+		return (targeters == null ? NO_ENTITIES : targeters);
+	}
 }
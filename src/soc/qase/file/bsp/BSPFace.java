@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
@@ -41,4 +43,26 @@ public class BSPFace
 
 		lightMapOffset = Utils.unsignedIntValue(faceData, offset + 16);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPFace from a little-endian buffer view
+ *	of the lump.
+ *	@param faceData buffer containing face lump data
+ *	@param offset location of the face in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPFace(ByteBuffer faceData, int offset)
+	{
+		lightMapStyles = new byte[4];
+
+		plane = faceData.getShort(offset) & 0xFFFF;
+		planeSide = faceData.getShort(offset + 2) & 0xFFFF;
+		firstEdge = faceData.getInt(offset + 4);
+		numEdges = faceData.getShort(offset + 8) & 0xFFFF;
+		textureInfo = faceData.getShort(offset + 10) & 0xFFFF;
+
+		for(int i = 0; i < lightMapStyles.length; i++)
+			lightMapStyles[i] = faceData.get(offset + 12 + i);
+
+		lightMapOffset = faceData.getInt(offset + 16);
+	}
 }
@@ -5,7 +5,7 @@
 
 package soc.qase.file.bsp;
 
-import soc.qase.tools.Utils;
+import java.nio.ByteBuffer;
 
 /*-------------------------------------------------------------------*/
 /** Represents the FaceEdge lump of the BSP file. The FaceEdge Lump is
@@ -32,6 +32,16 @@ public class BSPFaceEdgeLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process FaceEdge lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the FaceEdge lump */
+/*-------------------------------------------------------------------*/
+	public BSPFaceEdgeLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process FaceEdge lump data. Every 4 bytes corresponds to a different
  *	entry in the face-edge table. This method populates the table from
@@ -39,9 +49,11 @@ public class BSPFaceEdgeLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		faceEdgeTable = new long[lumpData.length / 4];
+		faceEdgeTable = new long[lumpData.limit() / 4];
 
 		for(int i = 0; i < faceEdgeTable.length; i++)
-			faceEdgeTable[i] = Utils.unsignedIntValue(lumpData, i * 4);
+			faceEdgeTable[i] = lumpData.getInt(i * 4);
+
+		lumpData = null;
 	}
 }
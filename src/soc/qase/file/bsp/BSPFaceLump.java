@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the Face lump of the BSP file. The Face Lump is the
  *	area of the file containing details of the various faces (surfaces)
@@ -27,6 +29,16 @@ public class BSPFaceLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Face lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Face lump */
+/*-------------------------------------------------------------------*/
+	public BSPFaceLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Face lump data. Every 20 bytes corresponds to a different
  *	face. This method sequentially creates BSPFace objects from raw
@@ -34,9 +46,11 @@ public class BSPFaceLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		faces = new BSPFace[lumpData.length / 20];
+		faces = new BSPFace[lumpData.limit() / 20];
 
 		for(int i = 0; i < faces.length; i++)
 			faces[i] = new BSPFace(lumpData, i * 20);
+
+		lumpData = null;
 	}
 }
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 import soc.qase.tools.vecmath.Vector3f;
 
@@ -43,4 +45,23 @@ public class BSPLeaf
 		firstLeafBrush = Utils.unsignedShortValue(leafData, offset + 24);
 		numLeafBrushes = Utils.unsignedShortValue(leafData, offset + 26);		
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPLeaf from a little-endian buffer view
+ *	of the lump.
+ *	@param leafData buffer containing leaf lump data
+ *	@param offset location of the leaf in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPLeaf(ByteBuffer leafData, int offset)
+	{
+		brushOr = leafData.getInt(offset);
+		cluster = leafData.getShort(offset + 4) & 0xFFFF;
+		area = leafData.getShort(offset + 6) & 0xFFFF;
+		bboxMin = new Vector3f(leafData.getShort(offset + 8), leafData.getShort(offset + 10), leafData.getShort(offset + 12));
+		bboxMax = new Vector3f(leafData.getShort(offset + 14), leafData.getShort(offset + 16), leafData.getShort(offset + 18));
+		firstLeafFace = leafData.getShort(offset + 20) & 0xFFFF;
+		numLeafFaces = leafData.getShort(offset + 22) & 0xFFFF;
+		firstLeafBrush = leafData.getShort(offset + 24) & 0xFFFF;
+		numLeafBrushes = leafData.getShort(offset + 26) & 0xFFFF;
+	}
 }
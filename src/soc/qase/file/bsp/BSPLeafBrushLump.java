@@ -5,7 +5,7 @@
 
 package soc.qase.file.bsp;
 
-import soc.qase.tools.Utils;
+import java.nio.ByteBuffer;
 
 /*-------------------------------------------------------------------*/
 /** Represents the LeafBrush lump of the BSP file. This stores a lookup
@@ -29,6 +29,16 @@ public class BSPLeafBrushLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process LeafBrush lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the LeafBrush lump */
+/*-------------------------------------------------------------------*/
+	public BSPLeafBrushLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process LeafBrush lump data. Every 2 bytes corresponds to a different
  *	entry in the table. This method populates the LeafBrush table from raw
@@ -36,9 +46,11 @@ public class BSPLeafBrushLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		leafBrushTable = new int[lumpData.length / 2];
+		leafBrushTable = new int[lumpData.limit() / 2];
 
 		for(int i = 0; i < leafBrushTable.length; i++)
-			leafBrushTable[i] = Utils.unsignedShortValue(lumpData, i * 2);
+			leafBrushTable[i] = lumpData.getShort(i * 2) & 0xFFFF;
+
+		lumpData = null;
 	}
 }
@@ -5,7 +5,7 @@
 
 package soc.qase.file.bsp;
 
-import soc.qase.tools.Utils;
+import java.nio.ByteBuffer;
 
 /*-------------------------------------------------------------------*/
 /** Represents the LeafFace lump of the BSP file. This stores a lookup
@@ -29,6 +29,16 @@ public class BSPLeafFaceLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process LeafFace lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the LeafFace lump */
+/*-------------------------------------------------------------------*/
+	public BSPLeafFaceLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process LeafFace lump data. Every 2 bytes corresponds to a different
  *	entry in the table. This method populates the LeafFace table from raw
@@ -36,9 +46,11 @@ public class BSPLeafFaceLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		leafFaceTable = new int[lumpData.length / 2];
+		leafFaceTable = new int[lumpData.limit() / 2];
 
 		for(int i = 0; i < leafFaceTable.length; i++)
-			leafFaceTable[i] = Utils.unsignedShortValue(lumpData, i * 2);
+			leafFaceTable[i] = lumpData.getShort(i * 2) & 0xFFFF;
+
+		lumpData = null;
 	}
 }
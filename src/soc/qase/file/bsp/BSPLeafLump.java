@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the Leaf lump of the BSP file. The Leaf Lump is the
  *	area of the file containing details of the BSP tree's leaves, which
@@ -29,6 +31,16 @@ public class BSPLeafLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Leaf lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Leaf lump */
+/*-------------------------------------------------------------------*/
+	public BSPLeafLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Edge lump data. Every 28 bytes corresponds to a different
  *	leaf. This method sequentially creates BSPLeaf objects from raw
@@ -36,9 +48,11 @@ public class BSPLeafLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		leaves = new BSPLeaf[lumpData.length / 28];
+		leaves = new BSPLeaf[lumpData.limit() / 28];
 
 		for(int i = 0; i < leaves.length; i++)
 			leaves[i] = new BSPLeaf(lumpData, i * 28);
+
+		lumpData = null;
 	}
 }
@@ -5,6 +5,9 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /*-------------------------------------------------------------------*/
 /** An abstract class which acts as a generic wrapper for lump objects.
  *	A 'lump' within a BSP file is a section of the file which stores
@@ -13,7 +16,8 @@ package soc.qase.file.bsp;
 /*-------------------------------------------------------------------*/
 public abstract class BSPLump
 {
-	protected byte[] lumpData = null;
+	// little-endian view of the lump, released by processLumpData once decoded
+	protected ByteBuffer lumpData = null;
 
 /*-------------------------------------------------------------------*/
 /** Default constructor. */
@@ -22,21 +26,34 @@ public abstract class BSPLump
 	{	}
 
 /*-------------------------------------------------------------------*/
-/** Constructor. Process lump data.
+/** Constructor. Wraps the lump's region of the BSP file data, from
+ *	which the lump is decoded without first being copied.
  *	@param inData the BSP file data
  *	@param off the offset of the lump in the byte array
  *	@param len the length of the lump */
 /*-------------------------------------------------------------------*/
 	public BSPLump(byte[] inData, int off, int len)
 	{
-		lumpData = new byte[len];
+		lumpData = ByteBuffer.wrap(inData, off, len).slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
 
-		for(int i = 0; i < len; i++)
-			lumpData[i] = inData[off + i];
+/*-------------------------------------------------------------------*/
+/** Constructor. Takes a view of a buffer spanning the lump, such as
+ *	one obtained from a memory-mapped BSP file, from which the lump is
+ *	decoded in place. The view is read in little-endian byte order,
+ *	whatever the order of the buffer, and the position of the buffer
+ *	is not changed.
+ *	@param lumpBuffer a buffer whose remaining bytes are the lump data */
+/*-------------------------------------------------------------------*/
+	public BSPLump(ByteBuffer lumpBuffer)
+	{
+		lumpData = lumpBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
 	}
 
 /*-------------------------------------------------------------------*/
-/** Perform specialised processing on the lump data. */
+/** Perform specialised processing on the lump data. Implementations
+ *	should read the lumpData buffer by absolute index, and release it
+ *	once it has been decoded. */
 /*-------------------------------------------------------------------*/
 	protected abstract void processLumpData();
 }
@@ -0,0 +1,1081 @@
+//---------------------------------------------------------------------
+// Name:			BSPMap.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import soc.qase.file.pak.PAKParser;
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	The geometry and entities of a single BSP file, together with the
+ *	collision detection routines which operate upon them. A BSPMap is
+ *	never modified once it has been loaded; all state relating to an
+ *	individual trace is held in a TraceContext supplied by the caller.
+ *	A single BSPMap may therefore be shared by any number of threads
+ *	and BSPParsers, each tracing against it through its own context.
+ *	The lump objects are exposed for convenience, but must be treated
+ *	as read-only.<p>
+ *
+ *	The BSP file is memory-mapped rather than read onto the heap, and
+ *	the lumps are built from little-endian views of the mapping in
+ *	parallel. Lumps which QASE does not build into objects remain
+ *	available as buffer views through getLumpBuffer, so that they can
+ *	be decoded lazily as and when they are needed. The Visibility lump
+ *	is itself decoded lazily, one cluster at a time.<p>
+ *
+ *	The structures derived from the lumps - the compiled BSPTree, the
+ *	contents and entity indices, and the decoded visibility rows - may
+ *	be cached on disk between runs; see BSPCacheFile.<p>
+ *
+ *	Large numbers of rays, such as a range-finder sweep or an offline
+ *	visibility computation, can be traced in a single call using a
+ *	RayBatch, optionally spread across the common fork-join pool.<p>
+ *
+ *	A coarse voxel grid of the world geometry may also be built on
+ *	request. Once it exists, line traces which the grid shows to cross
+ *	only empty cells complete immediately, without descending the tree.
+ *	@see TraceContext
+ *	@see RayBatch
+ *	@see BSPCacheFile
+ *	@see BSPVoxelGrid
+ *	@see BSPParser */
+/*-------------------------------------------------------------------*/
+public class BSPMap
+{
+	private String fName = null;
+	private final int mapId = nextMapId.getAndIncrement();
+
+	private ByteBuffer bspData = null;
+	private BSPLump[] bspLumps = null;
+	private BSPHeader bspHeader = null;
+	private BSPTree bspTree = null;
+	private BSPContentsIndex contentsIndex = null;
+	private BSPEntityIndex entityIndex = null;
+	private volatile BSPVoxelGrid voxelGrid = null;
+
+	public BSPPlaneLump planeLump = null;
+	public BSPVertexLump vertexLump = null;
+	public BSPNodeLump nodeLump = null;
+	public BSPLeafLump leafLump = null;
+	public BSPLeafFaceLump leafFaceLump = null;
+	public BSPFaceEdgeLump faceEdgeLump = null;
+	public BSPEdgeLump edgeLump = null;
+	public BSPModelLump modelLump = null;
+	public BSPBrushLump brushLump = null;
+	public BSPBrushSideLump brushSideLump = null;
+	public BSPLeafBrushLump leafBrushLump = null;
+	public BSPVisibilityLump visibilityLump = null;
+	public BSPAreaLump areaLump = null;
+	public BSPAreaPortalLump areaPortalLump = null;
+
+	public BSPEntityLump entitiesLump = null;
+
+	private static final int HEADER_LENGTH = 4 * 40;	// 40 integer values
+	private static final float EPSILON = BSPParser.EPSILON;
+
+	private static final int RAY_TASK_SIZE = 64;	// rays traced by each parallel task
+
+	// identifies each map to the TraceContexts which cache lookups in it
+	private static final AtomicInteger nextMapId = new AtomicInteger(0);
+
+/*-------------------------------------------------------------------*/
+/*	Private constructor. BSPMaps are created using the load method. */
+/*-------------------------------------------------------------------*/
+	private BSPMap(String filename)
+	{
+		fName = filename;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Load the specified BSP file.
+ *	@param filename the filename of the BSP file from which to read.
+ *	If the file is within a PAK archive, it can be loaded by using the
+ *	hash character to combine the path to the PAK file and the path to
+ *	the BSP file within it, as in C:/archive1.pak#maps/mymap.bsp
+ *	@return the loaded map, or null if the file could not be read */
+/*-------------------------------------------------------------------*/
+	public static BSPMap load(String filename)
+	{
+		ByteBuffer bspData = null;
+
+		// # in filename means PAK archive
+		if(filename.indexOf('#') != -1)
+		{
+			StringTokenizer st = new StringTokenizer(filename, "#");
+			bspData = PAKParser.mapFileFromPAK(st.nextToken(), st.nextToken());
+		}
+		else
+			bspData = mapFile(new File(filename));
+
+		if(bspData == null || bspData.capacity() < HEADER_LENGTH)
+			return null;
+
+		BSPMap map = new BSPMap(filename);
+		return (map.readBSPData(bspData) ? map : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Memory-map the full contents of a file. */
+/*-------------------------------------------------------------------*/
+	private static ByteBuffer mapFile(File bspFile)
+	{
+		RandomAccessFile fileIn = null;
+		ByteBuffer bspData = null;
+
+		try
+		{
+			fileIn = new RandomAccessFile(bspFile, "r");
+			bspData = fileIn.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileIn.length()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		catch(IOException ioe)
+		{
+			bspData = null;
+		}
+
+		try { fileIn.close(); } catch(Exception e){}
+
+		return bspData;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Parse the header and build the lumps from the mapped BSP data. */
+/*-------------------------------------------------------------------*/
+	private boolean readBSPData(ByteBuffer data)
+	{
+		byte[] headerData = new byte[HEADER_LENGTH];
+		data.duplicate().get(headerData);
+
+		bspData = data;
+		bspHeader = new BSPHeader(headerData);
+
+		if(!bspHeader.validateBSP())
+			return false;
+
+		for(int i = 0; i < 19; i++)
+		{
+			if(bspHeader.getLength(i) < 0 || (bspHeader.getLength(i) > 0 && (bspHeader.getOffset(i) < 0 || HEADER_LENGTH + (long)bspHeader.getOffset(i) + bspHeader.getLength(i) > bspData.capacity())))
+				return false;	// lump lies outside the file
+		}
+
+		bspLumps = new BSPLump[19];
+
+		Vector lumpTasks = new Vector();
+
+		lumpTasks.add(new Callable() { public Object call() { return planeLump = new BSPPlaneLump(getLumpBuffer(BSPHeader.PLANES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return vertexLump = new BSPVertexLump(getLumpBuffer(BSPHeader.VERTICES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return nodeLump = new BSPNodeLump(getLumpBuffer(BSPHeader.NODES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return leafLump = new BSPLeafLump(getLumpBuffer(BSPHeader.LEAVES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return leafFaceLump = new BSPLeafFaceLump(getLumpBuffer(BSPHeader.LEAF_FACE_TABLE)); } });
+		lumpTasks.add(new Callable() { public Object call() { return faceEdgeLump = new BSPFaceEdgeLump(getLumpBuffer(BSPHeader.FACE_EDGE_TABLE)); } });
+		lumpTasks.add(new Callable() { public Object call() { return edgeLump = new BSPEdgeLump(getLumpBuffer(BSPHeader.EDGES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return brushLump = new BSPBrushLump(getLumpBuffer(BSPHeader.BRUSHES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return brushSideLump = new BSPBrushSideLump(getLumpBuffer(BSPHeader.BRUSH_SIDES)); } });
+		lumpTasks.add(new Callable() { public Object call() { return leafBrushLump = new BSPLeafBrushLump(getLumpBuffer(BSPHeader.LEAF_BRUSH_TABLE)); } });
+		lumpTasks.add(new Callable() { public Object call() { return visibilityLump = new BSPVisibilityLump(getLumpBuffer(BSPHeader.VISIBILITY)); } });
+		lumpTasks.add(new Callable() { public Object call() { return areaLump = new BSPAreaLump(getLumpBuffer(BSPHeader.AREAS)); } });
+		lumpTasks.add(new Callable() { public Object call() { return areaPortalLump = new BSPAreaPortalLump(getLumpBuffer(BSPHeader.AREA_PORTALS)); } });
+
+		// the entities refer to the models, so these are built in sequence
+		lumpTasks.add(new Callable()
+			{
+				public Object call()
+				{
+					modelLump = new BSPModelLump(getLumpBuffer(BSPHeader.MODELS));
+					return entitiesLump = new BSPEntityLump(getLumpBuffer(BSPHeader.ENTITIES), modelLump.models);
+				}
+			});
+
+		try
+		{
+			Vector results = new Vector(ForkJoinPool.commonPool().invokeAll(lumpTasks));
+
+			for(int i = 0; i < results.size(); i++)
+				((Future)results.get(i)).get();
+		}
+		catch(Exception e)
+		{
+			return false;	// malformed lump data
+		}
+
+		bspLumps[BSPHeader.PLANES] = planeLump;
+		bspLumps[BSPHeader.VERTICES] = vertexLump;
+		bspLumps[BSPHeader.NODES] = nodeLump;
+		bspLumps[BSPHeader.LEAVES] = leafLump;
+		bspLumps[BSPHeader.LEAF_FACE_TABLE] = leafFaceLump;
+		bspLumps[BSPHeader.FACE_EDGE_TABLE] = faceEdgeLump;
+		bspLumps[BSPHeader.EDGES] = edgeLump;
+		bspLumps[BSPHeader.MODELS] = modelLump;
+		bspLumps[BSPHeader.BRUSHES] = brushLump;
+		bspLumps[BSPHeader.BRUSH_SIDES] = brushSideLump;
+		bspLumps[BSPHeader.LEAF_BRUSH_TABLE] = leafBrushLump;
+		bspLumps[BSPHeader.VISIBILITY] = visibilityLump;
+		bspLumps[BSPHeader.AREAS] = areaLump;
+		bspLumps[BSPHeader.AREA_PORTALS] = areaPortalLump;
+		bspLumps[BSPHeader.ENTITIES] = entitiesLump;
+
+		byte[] hash = BSPCacheFile.getHash(bspData);
+
+		if(!readCache(BSPCacheFile.open(hash, bspData.capacity())))
+		{
+			bspTree = new BSPTree(this);
+			contentsIndex = new BSPContentsIndex(this);
+			entityIndex = new BSPEntityIndex(entitiesLump.entities);
+
+			if(hash != null)
+				BSPCacheFile.store(hash, bspData.capacity(), writeCache());
+		}
+
+		return true;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Read the derived structures from the payload of a cache file. If
+ *	the payload is absent or cannot be read, nothing is changed. */
+/*-------------------------------------------------------------------*/
+	private boolean readCache(ByteBuffer payload)
+	{
+		if(payload == null)
+			return false;
+
+		try
+		{
+			BSPTree tree = new BSPTree(payload);
+			BSPContentsIndex contents = new BSPContentsIndex(this, payload);
+			BSPEntityIndex entities = new BSPEntityIndex(entitiesLump.entities, payload);
+
+			visibilityLump.readRows(payload);
+
+			bspTree = tree;
+			contentsIndex = contents;
+			entityIndex = entities;
+
+			return true;
+		}
+		catch(RuntimeException re)
+		{
+			return false;	// malformed cache; rebuild it
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Write the derived structures to the payload of a cache file. */
+/*-------------------------------------------------------------------*/
+	private byte[] writeCache()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try
+		{
+			bspTree.write(out);
+			contentsIndex.write(out);
+			entityIndex.write(out);
+			visibilityLump.writeRows(out);
+
+			out.flush();
+		}
+		catch(IOException ioe)
+		{	}
+
+		return bytes.toByteArray();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get a view of the raw data of a specified lump. The view is a
+ *	read-only, little-endian buffer positioned at the start of the
+ *	lump and limited to its length; it is independent of any other
+ *	view, and may be used by one thread at a time.
+ *	@param lumpNum the index of the lump (using constants in BSPHeader)
+ *	@return a buffer spanning the lump's data */
+/*-------------------------------------------------------------------*/
+	public ByteBuffer getLumpBuffer(int lumpNum)
+	{
+		ByteBuffer lumpBuffer = bspData.duplicate();
+		int lumpStart = (bspHeader.getLength(lumpNum) == 0 ? 0 : HEADER_LENGTH + bspHeader.getOffset(lumpNum));
+
+		lumpBuffer.limit(lumpStart + bspHeader.getLength(lumpNum));
+		lumpBuffer.position(lumpStart);
+
+		return lumpBuffer.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Returns the path and name of the .bsp file from which the map was
+ *	loaded.
+ *	@return the name of the .bsp file */
+/*-------------------------------------------------------------------*/
+	public String getFileName()
+	{
+		return fName;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Return a specified lump object.
+ *	@param lumpNum the index of the lump (using constants in BSPHeader)
+ *	@return the BSPLump object at that index */
+/*-------------------------------------------------------------------*/
+	public BSPLump getLump(int lumpNum)
+	{
+		return bspLumps[lumpNum];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the compiled form of the map's BSP tree, which is walked by the
+ *	trace routines.
+ *	@return the compiled tree */
+/*-------------------------------------------------------------------*/
+	public BSPTree getTree()
+	{
+		return bspTree;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the index of the map's leaves by their contents, which answers
+ *	queries about the location of lava, slime, water and so forth.
+ *	@return the contents index */
+/*-------------------------------------------------------------------*/
+	public BSPContentsIndex getContentsIndex()
+	{
+		return contentsIndex;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the index of the map's entities by type, which answers queries
+ *	about the location of doors, lifts, teleporters and so forth.
+ *	@return the entity index */
+/*-------------------------------------------------------------------*/
+	public BSPEntityIndex getEntityIndex()
+	{
+		return entityIndex;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Build a voxel grid of the map's world geometry, and use it from
+ *	then on to skip the exact tracing of line traces which it shows to
+ *	be clear. Since the grid is conservative, the outcome of every
+ *	trace is unchanged. Any grid previously built is replaced; traces
+ *	already in progress on other threads are unaffected.
+ *	@param cellSize the edge length of each cubic cell, in world units;
+ *	smaller cells skip more traces, at the cost of memory and time
+ *	@return the new grid
+ *	@see BSPVoxelGrid */
+/*-------------------------------------------------------------------*/
+	public BSPVoxelGrid buildVoxelGrid(float cellSize)
+	{
+		BSPVoxelGrid grid = new BSPVoxelGrid(this, cellSize);
+		voxelGrid = grid;
+
+		return grid;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the voxel grid of the map's world geometry.
+ *	@return the grid, or null if buildVoxelGrid has not been called */
+/*-------------------------------------------------------------------*/
+	public BSPVoxelGrid getVoxelGrid()
+	{
+		return voxelGrid;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the BSP tree which contains a given point.
+ *	@param point the point to locate
+ *	@return the index of the leaf in the Leaf lump */
+/*-------------------------------------------------------------------*/
+	public int findLeaf(Vector3f point)
+	{
+		return bspTree.findLeaf(point.x, point.y, point.z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the BSP tree which contains a given point. No
+ *	objects are allocated.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the index of the leaf in the Leaf lump */
+/*-------------------------------------------------------------------*/
+	public int findLeaf(float x, float y, float z)
+	{
+		return bspTree.findLeaf(x, y, z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the BSP tree which contains a given point, reusing
+ *	the result of the context's previous lookup if the point has not
+ *	moved.
+ *	@param context the context of the caller
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the index of the leaf in the Leaf lump */
+/*-------------------------------------------------------------------*/
+	public int findLeaf(TraceContext context, float x, float y, float z)
+	{
+		if(context.pointMapId != mapId || context.pointX != x || context.pointY != y || context.pointZ != z)
+		{
+			context.pointMapId = mapId;
+			context.pointX = x;
+			context.pointY = y;
+			context.pointZ = z;
+			context.pointLeaf = bspTree.findLeaf(x, y, z);
+			context.pointContentsKnown = false;
+		}
+
+		return context.pointLeaf;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the contents of the space at a given point - whether it
+ *	lies in solid, water, lava, slime and so forth. No objects are
+ *	allocated.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the bitwise OR of the contents of every brush containing
+ *	the point, using the CONTENTS constants found in BSPBrush
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public int pointContents(float x, float y, float z)
+	{
+		return bspTree.pointContents(x, y, z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the contents of the space at a given point, reusing the
+ *	result of the context's previous query if the point has not moved.
+ *	@param context the context of the caller
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the bitwise OR of the contents of every brush containing
+ *	the point, using the CONTENTS constants found in BSPBrush
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public int pointContents(TraceContext context, float x, float y, float z)
+	{
+		int leaf = findLeaf(context, x, y, z);
+
+		if(!context.pointContentsKnown)
+		{
+			context.pointContents = bspTree.pointContents(leaf, x, y, z);
+			context.pointContentsKnown = true;
+		}
+
+		return context.pointContents;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the visibility cluster which contains a given point.
+ *	@param point the point to locate
+ *	@return the index of the cluster, or -1 if the point is in solid */
+/*-------------------------------------------------------------------*/
+	public int findCluster(Vector3f point)
+	{
+		return bspTree.getLeafCluster(bspTree.findLeaf(point.x, point.y, point.z));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the area which contains a given point.
+ *	@param point the point to locate
+ *	@return the index of the area, or 0 if the point is in solid
+ *	@see BSPAreaGraph */
+/*-------------------------------------------------------------------*/
+	public int findArea(Vector3f point)
+	{
+		return bspTree.getLeafArea(bspTree.findLeaf(point.x, point.y, point.z));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check the map's potentially visible sets to determine whether one
+ *	point could possibly be seen from another. This is far cheaper than
+ *	a trace, but conservative; a return value of true does not mean
+ *	that the points are visible, only that they may be. Points which
+ *	lie in solid space, or maps without visibility information, are
+ *	always reported as potentially visible.
+ *	@param from the point from which to look
+ *	@param to the point to check
+ *	@return false if the points are definitely not visible from one
+ *	another, true otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isPotentiallyVisible(Vector3f from, Vector3f to)
+	{
+		return visibilityLump.isClusterVisible(findCluster(from), findCluster(to));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check the map's potentially hearable sets to determine whether a
+ *	sound at one point could possibly be heard at another. As with
+ *	isPotentiallyVisible, the check is conservative.
+ *	@param from the point at which to listen
+ *	@param to the point at which the sound originates
+ *	@return false if the sound is definitely inaudible, true otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isPotentiallyAudible(Vector3f from, Vector3f to)
+	{
+		return visibilityLump.isClusterAudible(findCluster(from), findCluster(to));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Perform a line trace from one point to another to determine if the
+ *	endpoint is visible from the start point. Where the trace checks
+ *	against solid brushes, points in clusters which cannot see one
+ *	another are rejected using the PVS without tracing.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@return true if nothing obscures the view, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isVisible(TraceContext context, Vector3f start, Vector3f end)
+	{
+		// a trace which is blocked by solid brushes can never pass
+		// between clusters which the PVS says cannot see one another
+		if((context.brushType & BSPBrush.CONTENTS_SOLID) != 0 && !isPotentiallyVisible(start, end))
+			return false;
+
+		return traceLine(context, start, end, context.result).endPos.equals(end);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace a line between two points, and return the point at which a
+ *	collision first occurs.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@return a Vector3f indicating the location at which the first
+ *	collision occurred */
+/*-------------------------------------------------------------------*/
+	public Vector3f traceLine(TraceContext context, Vector3f start, Vector3f end)
+	{
+		return new Vector3f(traceLine(context, start, end, context.result).endPos);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace a sphere between two points, and return the point at which a
+ *	collision first occurs.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param radius the radius of the sphere to sweep
+ *	@return a Vector3f indicating the location at which the first
+ *	collision occurred */
+/*-------------------------------------------------------------------*/
+	public Vector3f traceSphere(TraceContext context, Vector3f start, Vector3f end, float radius)
+	{
+		return new Vector3f(traceSphere(context, start, end, radius, context.result).endPos);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace a bounding box between two points, and return the point at
+ *	which a collision first occurs.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param mins the lower reference point of the bounding box
+ *	@param maxs the upper reference point of the bounding box
+ *	@return a Vector3f indicating the location at which the first
+ *	collision occurred */
+/*-------------------------------------------------------------------*/
+	public Vector3f traceBox(TraceContext context, Vector3f start, Vector3f end, Vector3f mins, Vector3f maxs)
+	{
+		return new Vector3f(traceBox(context, start, end, mins, maxs, context.result).endPos);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace a line between two points, writing the outcome into a
+ *	caller-supplied result. No objects are allocated. If a voxel grid
+ *	has been built and shows the line to be clear, the tree is not
+ *	traversed.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param result the object into which the outcome is written
+ *	@return the result object, for convenience */
+/*-------------------------------------------------------------------*/
+	public TraceResult traceLine(TraceContext context, Vector3f start, Vector3f end, TraceResult result)
+	{
+		context.traceType = BSPParser.TRACE_LINE;
+
+		BSPVoxelGrid grid = voxelGrid;
+
+		if(grid != null && grid.march(context.brushType, start.x, start.y, start.z, end.x, end.y, end.z) >= 1.0f)
+		{	// nothing of the given type lies anywhere near the line
+			result.reset();
+			result.endPos.set(end.x, end.y, end.z);
+
+			return result;
+		}
+
+		return trace(context, start.x, start.y, start.z, end.x, end.y, end.z, result);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace a sphere between two points, writing the outcome into a
+ *	caller-supplied result. No objects are allocated.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param radius the radius of the sphere to sweep
+ *	@param result the object into which the outcome is written
+ *	@return the result object, for convenience */
+/*-------------------------------------------------------------------*/
+	public TraceResult traceSphere(TraceContext context, Vector3f start, Vector3f end, float radius, TraceResult result)
+	{
+		context.traceRadius = radius;
+		context.traceType = BSPParser.TRACE_SPHERE;
+		return trace(context, start.x, start.y, start.z, end.x, end.y, end.z, result);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace a bounding box between two points, writing the outcome into
+ *	a caller-supplied result. No objects are allocated.
+ *	@param context the context in which to perform the trace
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param mins the lower reference point of the bounding box
+ *	@param maxs the upper reference point of the bounding box
+ *	@param result the object into which the outcome is written
+ *	@return the result object, for convenience */
+/*-------------------------------------------------------------------*/
+	public TraceResult traceBox(TraceContext context, Vector3f start, Vector3f end, Vector3f mins, Vector3f maxs, TraceResult result)
+	{
+		if(mins.length() == 0 && maxs.length() == 0)
+			return traceLine(context, start, end, result);
+
+		setBox(context, mins, maxs);
+		return trace(context, start.x, start.y, start.z, end.x, end.y, end.z, result);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace every ray in a batch on the calling thread, writing the
+ *	fraction and endpoint of each into the batch. Rays are traced in
+ *	order, so that rays which are adjacent in the batch - such as the
+ *	successive angles of a sweep - follow one another through the same
+ *	parts of the tree. No objects are allocated beyond a single
+ *	TraceContext per call.
+ *	@param batch the rays to trace */
+/*-------------------------------------------------------------------*/
+	public void traceRays(RayBatch batch)
+	{
+		traceRays(new TraceContext(batch.brushType), batch, 0, batch.numRays);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Trace every ray in a batch, optionally splitting the batch into
+ *	contiguous runs of rays which are traced concurrently on the common
+ *	fork-join pool. Small batches are always traced on the calling
+ *	thread, since the cost of distributing them outweighs the gain.
+ *	@param batch the rays to trace
+ *	@param parallel true to spread large batches across the pool */
+/*-------------------------------------------------------------------*/
+	public void traceRays(RayBatch batch, boolean parallel)
+	{
+		if(!parallel || batch.numRays <= RAY_TASK_SIZE)
+			traceRays(batch);
+		else
+			ForkJoinPool.commonPool().invoke(new RayTask(batch, 0, batch.numRays));
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Trace a contiguous run of the rays in a batch within one context. */
+/*-------------------------------------------------------------------*/
+	private void traceRays(TraceContext context, RayBatch batch, int first, int last)
+	{
+		TraceResult result = context.result;
+
+		float[] origins = batch.origins;
+		float[] directions = batch.directions;
+		float[] maxDistances = batch.maxDistances;
+		float[] fractions = batch.fractions;
+		float[] ends = batch.ends;
+
+		context.brushType = batch.brushType;
+		context.traceType = batch.traceType;
+		context.traceRadius = batch.radius;
+
+		if(batch.traceType == BSPParser.TRACE_BOX)
+		{
+			if(batch.mins.length() == 0 && batch.maxs.length() == 0)
+				context.traceType = BSPParser.TRACE_LINE;
+			else
+				setBox(context, batch.mins, batch.maxs);
+		}
+
+		for(int i = first; i < last; i++)
+		{
+			int v = i * 3;
+
+			float dirX = directions[v], dirY = directions[v + 1], dirZ = directions[v + 2];
+			float scale = 1.0f / (float)Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+			float maxDist = maxDistances[i];
+
+			trace(context, origins[v], origins[v + 1], origins[v + 2],
+				dirX * scale * maxDist + origins[v], dirY * scale * maxDist + origins[v + 1], dirZ * scale * maxDist + origins[v + 2], result);
+
+			fractions[i] = result.fraction;
+
+			ends[v] = result.endPos.x;
+			ends[v + 1] = result.endPos.y;
+			ends[v + 2] = result.endPos.z;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	A contiguous run of rays traced as a single fork-join task, which
+ *	splits itself in two until each half is small enough to trace. */
+/*-------------------------------------------------------------------*/
+	private class RayTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private RayBatch batch = null;
+		private int first = 0, last = 0;
+
+		private RayTask(RayBatch batch, int first, int last)
+		{
+			this.batch = batch;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute()
+		{
+			if(last - first <= RAY_TASK_SIZE)
+				traceRays(new TraceContext(batch.brushType), batch, first, last);
+			else
+			{
+				int middle = (first + last) >>> 1;
+				invokeAll(new RayTask(batch, first, middle), new RayTask(batch, middle, last));
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Prime a context with the dimensions of the box being swept. */
+/*-------------------------------------------------------------------*/
+	private void setBox(TraceContext context, Vector3f mins, Vector3f maxs)
+	{
+		context.traceType = BSPParser.TRACE_BOX;
+
+		context.minX = mins.x; context.minY = mins.y; context.minZ = mins.z;
+		context.maxX = maxs.x; context.maxY = maxs.y; context.maxZ = maxs.z;
+
+		context.extentX = Math.max(-mins.x, maxs.x);
+		context.extentY = Math.max(-mins.y, maxs.y);
+		context.extentZ = Math.max(-mins.z, maxs.z);
+	}
+
+	private TraceResult trace(TraceContext context, float startX, float startY, float startZ, float endX, float endY, float endZ, TraceResult result)
+	{
+		float fraction = 0;
+
+		result.reset();
+
+		context.output = result;
+
+		context.startX = startX; context.startY = startY; context.startZ = startZ;
+		context.endX = endX; context.endY = endY; context.endZ = endZ;
+
+		// traverse the BSP tree
+		checkNode(context, 0, 0.0f, 1.0f, startX, startY, startZ, endX, endY, endZ);
+
+		if ((fraction = result.fraction) == 1.0f)
+		{	// nothing blocked the trace
+			result.endPos.set(endX, endY, endZ);
+		}
+		else
+		{	// collided with something
+			result.endPos.set(startX + fraction * (endX - startX), startY + fraction * (endY - startY), startZ + fraction * (endZ - startZ));
+		}
+
+		if (result.planeNum != -1)
+		{
+			int plane = result.planeNum * BSPTree.PLANE_STRIDE;
+
+			result.planeNormal.set(bspTree.planes[plane], bspTree.planes[plane + 1], bspTree.planes[plane + 2]);
+			result.planeDistance = bspTree.planes[plane + 3];
+		}
+
+		return result;
+	}
+
+	private void checkNode(TraceContext context, int nodeIndex, float startFraction, float endFraction, float startX, float startY, float startZ, float endX, float endY, float endZ)
+	{
+		BSPTree tree = bspTree;
+
+		if (nodeIndex < 0)
+		{	// this is a leaf
+			int leaf = -(nodeIndex + 1) * BSPTree.LEAF_STRIDE;
+			int firstLeafBrush = tree.leaves[leaf + BSPTree.LEAF_FIRST_BRUSH];
+			int lastLeafBrush = firstLeafBrush + tree.leaves[leaf + BSPTree.LEAF_NUM_BRUSHES];
+
+			for (int i = firstLeafBrush; i < lastLeafBrush; i++)
+			{
+				int brush = tree.leafBrushes[i] * BSPTree.BRUSH_STRIDE;
+
+				if (tree.brushes[brush + BSPTree.BRUSH_NUM_SIDES] > 0 && (tree.brushes[brush + BSPTree.BRUSH_CONTENTS] & context.brushType) != 0)
+					checkBrush(context, brush);
+			}
+
+			// don't have to do anything else for leaves
+			return;
+		}
+
+		// this is a node
+
+		int node = nodeIndex * BSPTree.NODE_STRIDE;
+		int planeNum = tree.nodes[node + BSPTree.NODE_PLANE];
+		int plane = planeNum * BSPTree.PLANE_STRIDE;
+		int planeType = tree.planeTypes[planeNum];
+		float[] planes = tree.planes;
+
+		float offset = 0;
+		float startDistance, endDistance;
+
+		if(planeType == BSPTree.PLANE_X)
+		{
+			startDistance = startX - planes[plane + 3];
+			endDistance = endX - planes[plane + 3];
+		}
+		else if(planeType == BSPTree.PLANE_Y)
+		{
+			startDistance = startY - planes[plane + 3];
+			endDistance = endY - planes[plane + 3];
+		}
+		else if(planeType == BSPTree.PLANE_Z)
+		{
+			startDistance = startZ - planes[plane + 3];
+			endDistance = endZ - planes[plane + 3];
+		}
+		else
+		{
+			startDistance = startX * planes[plane] + startY * planes[plane + 1] + startZ * planes[plane + 2] - planes[plane + 3];
+			endDistance = endX * planes[plane] + endY * planes[plane + 1] + endZ * planes[plane + 2] - planes[plane + 3];
+		}
+
+		if(context.traceType == BSPParser.TRACE_LINE)
+			offset = 0;
+		else if(context.traceType == BSPParser.TRACE_SPHERE)
+			offset = context.traceRadius;
+		else if(context.traceType == BSPParser.TRACE_BOX)
+		{
+			offset += Math.abs(context.extentX * planes[plane]);
+			offset += Math.abs(context.extentY * planes[plane + 1]);
+			offset += Math.abs(context.extentZ * planes[plane + 2]);
+		}
+
+		if (startDistance >= offset && endDistance >= offset)
+		{	// both points are in front of the plane
+			// so check the front child
+			checkNode(context, tree.nodes[node + BSPTree.NODE_FRONT], startFraction, endFraction, startX, startY, startZ, endX, endY, endZ);
+		}
+		else if (startDistance < -offset && endDistance < -offset)
+		{	// both points are behind the plane
+			// so check the back child
+			checkNode(context, tree.nodes[node + BSPTree.NODE_BACK], startFraction, endFraction, startX, startY, startZ, endX, endY, endZ);
+		}
+		else
+		{	// the line spans the splitting plane
+			int side;
+			float fraction1, fraction2, middleFraction;
+
+			// split the segment into two
+			if (startDistance < endDistance)
+			{
+				side = 1; // back
+				float inverseDistance = 1.0f / (startDistance - endDistance);
+				fraction1 = (startDistance - offset + EPSILON) * inverseDistance;
+				fraction2 = (startDistance + offset + EPSILON) * inverseDistance;
+			}
+			else if (endDistance < startDistance)
+			{
+				side = 0; // front
+				float inverseDistance = 1.0f / (startDistance - endDistance);
+				fraction1 = (startDistance + offset + EPSILON) * inverseDistance;
+				fraction2 = (startDistance - offset - EPSILON) * inverseDistance;
+			}
+			else
+			{
+				side = 0; // front
+				fraction1 = 1.0f;
+				fraction2 = 0.0f;
+			}
+
+			// make sure the numbers are valid
+			if (fraction1 < 0.0f) fraction1 = 0.0f;
+			else if (fraction1 > 1.0f) fraction1 = 1.0f;
+			if (fraction2 < 0.0f) fraction2 = 0.0f;
+			else if (fraction2 > 1.0f) fraction2 = 1.0f;
+
+			// calculate the middle point for the first side, and check it
+			middleFraction = startFraction + (endFraction - startFraction) * fraction1;
+
+			checkNode(context, tree.nodes[node + BSPTree.NODE_FRONT + side], startFraction, middleFraction, startX, startY, startZ,
+				startX + fraction1 * (endX - startX), startY + fraction1 * (endY - startY), startZ + fraction1 * (endZ - startZ));
+
+			// calculate the middle point for the second side, and check it
+			middleFraction = startFraction + (endFraction - startFraction) * fraction2;
+
+			checkNode(context, tree.nodes[node + BSPTree.NODE_FRONT + (side + 1) % 2], middleFraction, endFraction,
+				startX + fraction2 * (endX - startX), startY + fraction2 * (endY - startY), startZ + fraction2 * (endZ - startZ), endX, endY, endZ);
+		}
+	}
+
+	private void checkBrush(TraceContext context, int brush)
+	{
+		float startFraction = -1.0f;
+		float endFraction = 1.0f;
+		boolean startsOut = false;
+		boolean endsOut = false;
+		int clipPlane = -1;
+
+		BSPTree tree = bspTree;
+		float[] planes = tree.planes;
+		TraceResult output = context.output;
+
+		int firstSide = tree.brushes[brush + BSPTree.BRUSH_FIRST_SIDE];
+		int lastSide = firstSide + tree.brushes[brush + BSPTree.BRUSH_NUM_SIDES];
+
+		for (int i = firstSide; i < lastSide; i++)
+		{
+			int planeNum = tree.brushSidePlanes[i];
+			int plane = planeNum * BSPTree.PLANE_STRIDE;
+			int planeType = tree.planeTypes[planeNum];
+
+			float startDistance = 0, endDistance = 0;
+
+			if(context.traceType == BSPParser.TRACE_BOX)
+			{
+				if(planeType == BSPTree.PLANE_X)
+				{
+					startDistance = context.startX + context.minX;
+					endDistance = context.endX + context.minX;
+				}
+				else if(planeType == BSPTree.PLANE_Y)
+				{
+					startDistance = context.startY + context.minY;
+					endDistance = context.endY + context.minY;
+				}
+				else if(planeType == BSPTree.PLANE_Z)
+				{
+					startDistance = context.startZ + context.minZ;
+					endDistance = context.endZ + context.minZ;
+				}
+				else
+				{
+					float normalX = planes[plane], normalY = planes[plane + 1], normalZ = planes[plane + 2];
+
+					startDistance += (context.startX + (normalX < 0 ? context.maxX : context.minX)) * normalX;
+					endDistance += (context.endX + (normalX < 0 ? context.maxX : context.minX)) * normalX;
+					startDistance += (context.startY + (normalY < 0 ? context.maxY : context.minY)) * normalY;
+					endDistance += (context.endY + (normalY < 0 ? context.maxY : context.minY)) * normalY;
+					startDistance += (context.startZ + (normalZ < 0 ? context.maxZ : context.minZ)) * normalZ;
+					endDistance += (context.endZ + (normalZ < 0 ? context.maxZ : context.minZ)) * normalZ;
+				}
+
+				startDistance -= planes[plane + 3];
+				endDistance -= planes[plane + 3];
+			}
+			else
+			{
+				float distance = planes[plane + 3];
+
+				if(context.traceType == BSPParser.TRACE_SPHERE)
+					distance += context.traceRadius;
+
+				if(planeType == BSPTree.PLANE_X)
+				{
+					startDistance = context.startX - distance;
+					endDistance = context.endX - distance;
+				}
+				else if(planeType == BSPTree.PLANE_Y)
+				{
+					startDistance = context.startY - distance;
+					endDistance = context.endY - distance;
+				}
+				else if(planeType == BSPTree.PLANE_Z)
+				{
+					startDistance = context.startZ - distance;
+					endDistance = context.endZ - distance;
+				}
+				else
+				{
+					startDistance = context.startX * planes[plane] + context.startY * planes[plane + 1] + context.startZ * planes[plane + 2] - distance;
+					endDistance = context.endX * planes[plane] + context.endY * planes[plane + 1] + context.endZ * planes[plane + 2] - distance;
+				}
+			}
+
+			if (startDistance > 0)
+				startsOut = true;
+			if (endDistance > 0)
+				endsOut = true;
+
+			// make sure the trace isn't completely on one side of the brush
+			if (startDistance > 0 && endDistance > 0)
+			{   // both are in front of the plane, its outside of this brush
+				return;
+			}
+
+			if (startDistance <= 0 && endDistance <= 0)
+			{   // both are behind this plane, it will get clipped by another one
+				continue;
+			}
+
+			if (startDistance > endDistance)
+			{   // line is entering into the brush
+				float fraction = (startDistance - EPSILON) / (startDistance - endDistance);
+				if (fraction > startFraction)
+				{
+					startFraction = fraction;
+					clipPlane = planeNum;
+				}
+			}
+			else
+			{   // line is leaving the brush
+				float fraction = (startDistance + EPSILON) / (startDistance - endDistance);
+				if (fraction < endFraction)
+					endFraction = fraction;
+			}
+		}
+
+		if (!startsOut)
+		{
+			output.startSolid = true;
+
+			if(!endsOut)
+				output.allSolid = true;
+
+			return;
+		}
+
+		if (startFraction < endFraction)
+		{
+			if (startFraction > -1 && startFraction < output.fraction)
+			{
+				if (startFraction < 0)
+					startFraction = 0;
+				output.fraction = startFraction;
+				output.planeNum = clipPlane;
+				output.contents = tree.brushes[brush + BSPTree.BRUSH_CONTENTS];
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+//---------------------------------------------------------------------
+// Name:			BSPMapCache.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/*-------------------------------------------------------------------*/
+/**	A process-wide cache of loaded BSPMaps. Since a BSPMap is never
+ *	modified after it is loaded, every BSPParser in the JVM which loads
+ *	the same file can share a single copy of it; where several agents
+ *	are connected to the same server, only the first to load the map
+ *	needs to read and parse it. Maps are reference-counted, and are
+ *	evicted from the cache once every BSPParser which acquired them has
+ *	released them.<p>
+ *
+ *	Files are identified by their canonical path together with their
+ *	size and modification time, so that a map which is rebuilt on disk
+ *	is reloaded rather than served from the cache. Maps within PAK files
+ *	are identified by the PAK file and the path of the BSP within it.
+ *	@see BSPParser#load(String) */
+/*-------------------------------------------------------------------*/
+public class BSPMapCache
+{
+	private static HashMap entries = new HashMap();	// key -> CacheEntry
+	private static HashMap mapKeys = new HashMap();	// BSPMap -> key
+
+/*-------------------------------------------------------------------*/
+/*	A single cached map, together with the number of outstanding
+ *	references to it. */
+/*-------------------------------------------------------------------*/
+	private static class CacheEntry
+	{
+		private BSPMap map = null;
+		private boolean loaded = false;
+		private int refCount = 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Private constructor; all access is through the static methods. */
+/*-------------------------------------------------------------------*/
+	private BSPMapCache()
+	{	}
+
+/*-------------------------------------------------------------------*/
+/**	Obtain a reference to the map stored in the given file, loading it
+ *	if it is not already cached. Every successful call must be matched
+ *	by a call to release once the map is no longer needed. If several
+ *	threads request the same uncached map simultaneously, only one
+ *	loads it while the others wait.
+ *	@param filename the filename of the BSP file, in the form accepted
+ *	by BSPMap.load
+ *	@return the shared map, or null if the file could not be loaded
+ *	@see BSPMap#load(String) */
+/*-------------------------------------------------------------------*/
+	public static BSPMap acquire(String filename)
+	{
+		String key = getKey(filename);
+		CacheEntry entry = null;
+
+		if(key == null)
+			return null;
+
+		synchronized(BSPMapCache.class)
+		{
+			if((entry = (CacheEntry)entries.get(key)) == null)
+				entries.put(key, entry = new CacheEntry());
+
+			entry.refCount++;
+		}
+
+		synchronized(entry)
+		{
+			if(!entry.loaded)
+			{
+				entry.map = BSPMap.load(filename);
+				entry.loaded = true;
+
+				if(entry.map != null)
+				{
+					synchronized(BSPMapCache.class)
+					{
+						mapKeys.put(entry.map, key);
+					}
+				}
+			}
+		}
+
+		if(entry.map == null)
+			releaseEntry(key, entry);
+
+		return entry.map;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Release a reference to a map previously obtained from acquire. When
+ *	the last reference to a map is released, it is evicted from the
+ *	cache. Maps which did not originate from the cache are ignored.
+ *	@param map the map to release */
+/*-------------------------------------------------------------------*/
+	public static synchronized void release(BSPMap map)
+	{
+		String key = (String)mapKeys.get(map);
+
+		if(key != null)
+			releaseEntry(key, (CacheEntry)entries.get(key));
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Decrement an entry's reference count, evicting it when unused. */
+/*-------------------------------------------------------------------*/
+	private static synchronized void releaseEntry(String key, CacheEntry entry)
+	{
+		if(entry == null || --entry.refCount > 0)
+			return;
+
+		if(entries.get(key) == entry)
+			entries.remove(key);
+
+		if(entry.map != null && key.equals(mapKeys.get(entry.map)))
+			mapKeys.remove(entry.map);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of maps currently held in the cache.
+ *	@return the number of cached maps */
+/*-------------------------------------------------------------------*/
+	public static synchronized int getCachedMapCount()
+	{
+		return mapKeys.size();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of outstanding references to a cached map.
+ *	@param map the map to check
+ *	@return the number of BSPParsers currently sharing the map, or 0 if
+ *	the map is not held in the cache */
+/*-------------------------------------------------------------------*/
+	public static synchronized int getReferenceCount(BSPMap map)
+	{
+		String key = (String)mapKeys.get(map);
+		return (key == null ? 0 : ((CacheEntry)entries.get(key)).refCount);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Resolve the cache key of a filename, of the form
+ *	path|length|modified or pakpath|length|modified#entry. */
+/*-------------------------------------------------------------------*/
+	private static String getKey(String filename)
+	{
+		int hashIndex = filename.indexOf('#');
+		File file = new File(hashIndex == -1 ? filename : filename.substring(0, hashIndex));
+
+		if(!file.isFile())
+			return null;
+
+		String path = null;
+
+		try
+		{
+			path = file.getCanonicalPath();
+		}
+		catch(IOException ioe)
+		{
+			path = file.getAbsolutePath();
+		}
+
+		String key = path + "|" + file.length() + "|" + file.lastModified();
+
+		if(hashIndex != -1)
+			key += "#" + filename.substring(hashIndex + 1).replace('\\', '/').toLowerCase();
+
+		return key;
+	}
+}
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 import soc.qase.tools.vecmath.Vector3f;
 
@@ -38,4 +40,20 @@ public class BSPModel
 		firstFace = Utils.unsignedIntValue(modelData, offset + 40);
 		numFaces = Utils.unsignedIntValue(modelData, offset + 44);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPModel from a little-endian buffer view
+ *	of the lump.
+ *	@param modelData buffer containing model lump data
+ *	@param offset location of the model in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPModel(ByteBuffer modelData, int offset)
+	{
+		bboxMin = new Vector3f(modelData.getFloat(offset), modelData.getFloat(offset + 4), modelData.getFloat(offset + 8));
+		bboxMax = new Vector3f(modelData.getFloat(offset + 12), modelData.getFloat(offset + 16), modelData.getFloat(offset + 20));
+		origin = new Vector3f(modelData.getFloat(offset + 24), modelData.getFloat(offset + 28), modelData.getFloat(offset + 32));
+		headNode = modelData.getInt(offset + 36);
+		firstFace = modelData.getInt(offset + 40);
+		numFaces = modelData.getInt(offset + 44);
+	}
 }
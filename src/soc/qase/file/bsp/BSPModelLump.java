@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Wrapper class for the Model lump in the BSP file. The first model
  *	correponds to the base portion of the map while the remaining models
@@ -31,6 +33,16 @@ public class BSPModelLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Model lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Model lump */
+/*-------------------------------------------------------------------*/
+	public BSPModelLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Model lump data. Every 48 bytes corresponds to a different
  *	model. This method sequentially creates BSPModel objects from raw
@@ -38,9 +50,11 @@ public class BSPModelLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		models = new BSPModel[lumpData.length / 48];
+		models = new BSPModel[lumpData.limit() / 48];
 
 		for(int i = 0; i < models.length; i++)
 			models[i] = new BSPModel(lumpData, i * 48);
+
+		lumpData = null;
 	}
 }
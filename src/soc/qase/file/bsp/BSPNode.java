@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 import soc.qase.tools.vecmath.Vector3f;
 
@@ -39,4 +41,23 @@ public class BSPNode
 		firstFace = Utils.unsignedShortValue(nodeData, offset + 24);
 		numFaces = Utils.unsignedShortValue(nodeData, offset + 26);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPNode from a little-endian buffer view
+ *	of the lump.
+ *	@param nodeData buffer containing node lump data
+ *	@param offset location of the node in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPNode(ByteBuffer nodeData, int offset)
+	{
+		children = new int[2];
+
+		plane = nodeData.getInt(offset);
+		children[0] = frontChild = nodeData.getInt(offset + 4);
+		children[1] = backChild = nodeData.getInt(offset + 8);
+		bboxMin = new Vector3f(nodeData.getShort(offset + 12), nodeData.getShort(offset + 14), nodeData.getShort(offset + 16));
+		bboxMax = new Vector3f(nodeData.getShort(offset + 18), nodeData.getShort(offset + 20), nodeData.getShort(offset + 22));
+		firstFace = nodeData.getShort(offset + 24) & 0xFFFF;
+		numFaces = nodeData.getShort(offset + 26) & 0xFFFF;
+	}
 }
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the Node lump of the BSP file. The node lump stores all
  *	of the nodes in the map's BSP tree. The BSP tree is used primarily
@@ -29,6 +31,16 @@ public class BSPNodeLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Node lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Node lump */
+/*-------------------------------------------------------------------*/
+	public BSPNodeLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Node lump data. Every 28 bytes corresponds to a different
  *	node. This method sequentially creates BSPNode objects from raw
@@ -36,9 +48,11 @@ public class BSPNodeLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		nodes = new BSPNode[lumpData.length / 28];
+		nodes = new BSPNode[lumpData.limit() / 28];
 
 		for(int i = 0; i < nodes.length; i++)
 			nodes[i] = new BSPNode(lumpData, i * 28);
+
+		lumpData = null;
 	}
 }
@@ -5,16 +5,12 @@
 
 package soc.qase.file.bsp;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.StringTokenizer;
 import java.util.Vector;
 
-import soc.qase.file.pak.PAKParser;
+import soc.qase.state.World;
 import soc.qase.tools.Utils;
 import soc.qase.tools.vecmath.Vector3f;
 
@@ -24,26 +20,28 @@ import soc.qase.tools.vecmath.Vector3f;
  *	an internal representation of the geometry from this data, the
  *	BSPParser can perform collision detection on the environment,	
  *	detecting and reporting the location of or distance to the nearest
- *	solid obstacle in a given direction from a specified starting point. */
+ *	solid obstacle in a given direction from a specified starting point.
+ *	The geometry itself is held in a BSPMap, which may be shared between
+ *	BSPParsers; each thread tracing through a BSPParser does so using a
+ *	TraceContext of its own.
+ *	@see BSPMap */
 /*-------------------------------------------------------------------*/
 public class BSPParser
 {
-	private byte[] lumpData = null;
-	private byte[] headerData = null;
-	private byte[] pakBSPFileData = null;
-
-	private String fName = null;
-	private File bspFile = null;
-
-	private BufferedInputStream bufIn = null;
-	private ByteArrayInputStream byteIn = null;
-
+	private BSPMap bspMap = null;
 	private boolean mapRead = false;
-	private boolean fileOpen = false;
-	private boolean inPAKFile = false;
+	private boolean mapCached = false;
+	private BSPAreaGraph areaGraph = null;
 
-	private BSPLump[] bspLumps = null;
-	private BSPHeader bspHeader = null;
+	private int brushType = BSPBrush.CONTENTS_SOLID;
+
+	private ThreadLocal traceContexts = new ThreadLocal()
+	{
+		protected Object initialValue()
+		{
+			return new TraceContext();
+		}
+	};
 
 	public BSPPlaneLump planeLump = null;
 	public BSPVertexLump vertexLump = null;
@@ -56,6 +54,7 @@ public class BSPParser
 	public BSPBrushLump brushLump = null;
 	public BSPBrushSideLump brushSideLump = null;
 	public BSPLeafBrushLump leafBrushLump = null;
+	public BSPVisibilityLump visibilityLump = null;
 
 	public BSPEntityLump entitiesLump = null;
 
@@ -77,144 +76,89 @@ public class BSPParser
 		load(filename);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Constructor. Allows an already-loaded map to be specified. The map
+ *	may be shared with any number of other BSPParsers.
+ *	@param map the map to use */
+/*-------------------------------------------------------------------*/
+	public BSPParser(BSPMap map)
+	{
+		setMap(map);
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Load the specified BSP file.
  *	@param filename the filename of the BSP file from which to read.
  *	If the file is within a PAK archive, it can be loaded by using the
  *	hash character to combine the path to the PAK file and the path to
- *	the BSP file within it, as in C:/archive1.pak#maps/mymap.bsp
- *	@return true if the load was successful, false otherwise */
+ *	the BSP file within it, as in C:/archive1.pak#maps/mymap.bsp<p>
+ *
+ *	The map is obtained from the BSPMapCache, and is therefore shared
+ *	with any other BSPParser which has loaded the same file; it is
+ *	released back to the cache when the BSPParser is reset.
+ *	@return true if the load was successful, false otherwise
+ *	@see BSPMapCache */
 /*-------------------------------------------------------------------*/
 	public boolean load(String filename)
 	{
-		if(mapRead) // if the BSPParser already contains BSP data, reset it and load new data
-			reset();
-
-		// # in filename means PAK archive
-		if(filename.indexOf('#') != -1)
-		{
-			StringTokenizer st = new StringTokenizer(filename, "#");
-			pakBSPFileData = PAKParser.getFileFromPAK(st.nextToken(), st.nextToken());
-
-			if(pakBSPFileData != null)
-			{
-				byteIn = new ByteArrayInputStream(pakBSPFileData);
-				bufIn = new BufferedInputStream(byteIn);
-
-				fName = filename;
-				fileOpen = inPAKFile = true;
-			}			
-		}
-		else
-		{
-			try
-			{
-				bspFile = new File(filename);
-				bufIn = new BufferedInputStream(new FileInputStream(bspFile));
-
-				fName = filename;
-				fileOpen = true;
-			}
-			catch(IOException ioe)
-			{	}
-		}
-
-		// parse the data and build BSP structures
-		mapRead = (fileOpen && readBSPData());
+		// acquire the new map before releasing the old, so that reloading
+		// the same file does not evict it from the cache
+		BSPMap map = BSPMapCache.acquire(filename);
 
-		// close file handles and reset internal variables
-		try { bufIn.close(); byteIn.close(); } catch(Exception ioe){}
-
-		bufIn = null;
-		byteIn = null;
-		bspFile = null;
-
-		fileOpen = inPAKFile = false;
-		headerData = lumpData = pakBSPFileData = null;
-
-		if(!mapRead) // if map reading was unsuccessful, reset all class variables
+		if(mapRead) // if the BSPParser already contains BSP data, reset it and load new data
 			reset();
 
-		return mapRead;
+		return (mapCached = setMap(map));
 	}
 
 /*-------------------------------------------------------------------*/
-/**	Check whether the specified BSP file has been loaded.
- *	@return true if the map is loaded, false otherwise */
+/*	Use the given map, exposing its lumps through the public fields. */
 /*-------------------------------------------------------------------*/
-	public boolean isMapLoaded()
+	private boolean setMap(BSPMap map)
 	{
-		return mapRead;
-	}
+		if(map == null)
+			return false;
 
-/*-------------------------------------------------------------------*/
-/**	Read the BSP data from the open file.
- *	@return true if the data was successfully parsed, false otherwise*/
-/*-------------------------------------------------------------------*/
-	private boolean readBSPData()
-	{
-		return readBSPHeader() && readBSPLumps();
+		bspMap = map;
+		areaGraph = new BSPAreaGraph(map);
+
+		planeLump = map.planeLump;
+		vertexLump = map.vertexLump;
+		nodeLump = map.nodeLump;
+		leafLump = map.leafLump;
+		leafFaceLump = map.leafFaceLump;
+		faceEdgeLump = map.faceEdgeLump;
+		edgeLump = map.edgeLump;
+		modelLump = map.modelLump;
+		brushLump = map.brushLump;
+		brushSideLump = map.brushSideLump;
+		leafBrushLump = map.leafBrushLump;
+		visibilityLump = map.visibilityLump;
+
+		entitiesLump = map.entitiesLump;
+
+		return (mapRead = true);
 	}
 
 /*-------------------------------------------------------------------*/
-/**	Load the specified BSP file's header, which contains the full
- *	directory listing of all lumps.
- *	@return true if the header is read successfully, false otherwise */
+/**	Check whether the specified BSP file has been loaded.
+ *	@return true if the map is loaded, false otherwise */
 /*-------------------------------------------------------------------*/
-	private boolean readBSPHeader()
+	public boolean isMapLoaded()
 	{
-		headerData = new byte[4 * 40];	// 40 integer values
-		
-		try
-		{
-			bufIn.read(headerData);
-			bspHeader = new BSPHeader(headerData);
-		}
-		catch(IOException ioe)
-		{
-			return false;
-		}
-
-		return bspHeader.validateBSP();
+		return mapRead;
 	}
 
 /*-------------------------------------------------------------------*/
-/**	Read and store the various lumps from the BSP file.
- *	@return true if the lumps are read correctly, false otherwise */
+/**	Get the map currently used by the BSPParser. The map may be passed
+ *	to other BSPParsers, or traced against directly from any number of
+ *	threads using a separate TraceContext for each.
+ *	@return the current map, or null if no map is loaded
+ *	@see TraceContext */
 /*-------------------------------------------------------------------*/
-	private boolean readBSPLumps()
+	public BSPMap getMap()
 	{
-		if(inPAKFile)
-			lumpData = new byte[pakBSPFileData.length - headerData.length];
-		else
-			lumpData = new byte[(int)bspFile.length() - headerData.length];
-
-		try
-		{
-			bufIn.read(lumpData);
-		}
-		catch(IOException ioe)
-		{
-			return false;
-		}
-
-		bspLumps = new BSPLump[19];
-
-		bspLumps[BSPHeader.PLANES] = planeLump = new BSPPlaneLump(lumpData, bspHeader.getOffset(BSPHeader.PLANES), bspHeader.getLength(BSPHeader.PLANES));
-		bspLumps[BSPHeader.VERTICES] = vertexLump = new BSPVertexLump(lumpData, bspHeader.getOffset(BSPHeader.VERTICES), bspHeader.getLength(BSPHeader.VERTICES));
-		bspLumps[BSPHeader.NODES] = nodeLump = new BSPNodeLump(lumpData, bspHeader.getOffset(BSPHeader.NODES), bspHeader.getLength(BSPHeader.NODES));
-		bspLumps[BSPHeader.LEAVES] = leafLump = new BSPLeafLump(lumpData, bspHeader.getOffset(BSPHeader.LEAVES), bspHeader.getLength(BSPHeader.LEAVES));
-		bspLumps[BSPHeader.LEAF_FACE_TABLE] = leafFaceLump = new BSPLeafFaceLump(lumpData, bspHeader.getOffset(BSPHeader.LEAF_FACE_TABLE), bspHeader.getLength(BSPHeader.LEAF_FACE_TABLE));
-		bspLumps[BSPHeader.FACE_EDGE_TABLE] = faceEdgeLump = new BSPFaceEdgeLump(lumpData, bspHeader.getOffset(BSPHeader.FACE_EDGE_TABLE), bspHeader.getLength(BSPHeader.FACE_EDGE_TABLE));
-		bspLumps[BSPHeader.EDGES] = edgeLump = new BSPEdgeLump(lumpData, bspHeader.getOffset(BSPHeader.EDGES), bspHeader.getLength(BSPHeader.EDGES));
-		bspLumps[BSPHeader.MODELS] = modelLump = new BSPModelLump(lumpData, bspHeader.getOffset(BSPHeader.MODELS), bspHeader.getLength(BSPHeader.MODELS));
-		bspLumps[BSPHeader.BRUSHES] = brushLump = new BSPBrushLump(lumpData, bspHeader.getOffset(BSPHeader.BRUSHES), bspHeader.getLength(BSPHeader.BRUSHES));
-		bspLumps[BSPHeader.BRUSH_SIDES] = brushSideLump = new BSPBrushSideLump(lumpData, bspHeader.getOffset(BSPHeader.BRUSH_SIDES), bspHeader.getLength(BSPHeader.BRUSH_SIDES));
-		bspLumps[BSPHeader.LEAF_BRUSH_TABLE] = leafBrushLump = new BSPLeafBrushLump(lumpData, bspHeader.getOffset(BSPHeader.LEAF_BRUSH_TABLE), bspHeader.getLength(BSPHeader.LEAF_BRUSH_TABLE));
-
-		bspLumps[BSPHeader.ENTITIES] = entitiesLump = new BSPEntityLump(lumpData, bspHeader.getOffset(BSPHeader.ENTITIES), bspHeader.getLength(BSPHeader.ENTITIES), modelLump.models);
-
-		return true;
+		return bspMap;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -291,7 +235,7 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public String getFileName()
 	{
-		return fName;
+		return (bspMap == null ? null : bspMap.getFileName());
 	}
 
 /*-------------------------------------------------------------------*/
@@ -301,7 +245,7 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public BSPLump getLump(int lumpNum)
 	{
-		return bspLumps[lumpNum];
+		return bspMap.getLump(lumpNum);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -470,27 +414,305 @@ public class BSPParser
  *	@param vect the Vector into which the entities will be added
  *	@param entID the type of entity to find and return; should be one
  *	of the integer constants from BSPEntity
- *	@return a reference to the newly-populated vect for convenience */
+ *	@return a reference to the newly-populated vect for convenience
+ *	@see BSPEntityIndex */
 /*-------------------------------------------------------------------*/
 	public Vector getEntityType(Vector vect, int entID)
 	{
-		for(int i = 0; i < entitiesLump.entities.length; i++)
-		{
-			if((entID == BSPEntity.BSP_MODEL ? entitiesLump.entities[i].isModel : entitiesLump.entities[i].entityType == entID))
-				vect.add(entitiesLump.entities[i]);
-		}
+		return (mapRead ? bspMap.getEntityIndex().getEntities(entID, vect) : vect);
+	}
 
-		return vect;
+/*-------------------------------------------------------------------*/
+/**	Returns the entities targeted by an entity - a teleporter's
+ *	destination, the door opened by a button, and so forth.
+ *	@param entity the entity whose targets are required
+ *	@return the targeted entities, or null if no map is loaded
+ *	@see BSPEntityLump#getTargets(BSPEntity) */
+/*-------------------------------------------------------------------*/
+	public BSPEntity[] getTargets(BSPEntity entity)
+	{
+		return (mapRead ? entitiesLump.getTargets(entity) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Returns the entities which target an entity - the buttons which
+ *	open a door, the teleporters which lead to a destination, and so
+ *	forth.
+ *	@param entity the entity whose targeters are required
+ *	@return the targeting entities, or null if no map is loaded
+ *	@see BSPEntityLump#getTargeters(BSPEntity) */
+/*-------------------------------------------------------------------*/
+	public BSPEntity[] getTargeters(BSPEntity entity)
+	{
+		return (mapRead ? entitiesLump.getTargeters(entity) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find an entity of the specified type whose bounds contain a point,
+ *	or lie no more than a given height below it.
+ *	@param entID the type of entity to find; should be one of the
+ *	integer constants from BSPEntity
+ *	@param point the point to locate
+ *	@param height the distance above an entity's bounds at which the
+ *	point is still considered to be within them
+ *	@return the containing entity, or null if there is none
+ *	@see BSPEntityIndex#findContaining(int, float, float, float, float) */
+/*-------------------------------------------------------------------*/
+	public BSPEntity findEntityAt(int entID, Vector3f point, float height)
+	{
+		return (mapRead ? bspMap.getEntityIndex().findContaining(entID, point.x, point.y, point.z, height) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find every entity of the specified type whose bounds overlap a
+ *	region.
+ *	@param entID the type of entity to find; should be one of the
+ *	integer constants from BSPEntity
+ *	@param mins the minimum corner of the region
+ *	@param maxs the maximum corner of the region
+ *	@param vect the Vector into which the matching entities are added
+ *	@return a reference to vect, for convenience */
+/*-------------------------------------------------------------------*/
+	public Vector findEntitiesInBox(int entID, Vector3f mins, Vector3f maxs, Vector vect)
+	{
+		return (mapRead ? bspMap.getEntityIndex().findInBox(entID, mins, maxs, vect) : vect);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the entity of the specified type nearest to a point, within
+ *	some maximum distance.
+ *	@param entID the type of entity to find; should be one of the
+ *	integer constants from BSPEntity
+ *	@param point the point from which to search
+ *	@param maxDistance the maximum distance at which to search
+ *	@return the nearest entity, or null if there is none
+ *	@see BSPEntityIndex#findNearest(int, Vector3f, float) */
+/*-------------------------------------------------------------------*/
+	public BSPEntity findNearestEntity(int entID, Vector3f point, float maxDistance)
+	{
+		return (mapRead ? bspMap.getEntityIndex().findNearest(entID, point, maxDistance) : null);
 	}
 
 /*-------------------------------------------------------------------*/
 /**	Perform a line trace from one point to another to determine if the
- *	endpoint is visible from the start point.
+ *	endpoint is visible from the start point. Points which the PVS shows
+ *	cannot see one another, or which lie in areas sealed off from one
+ *	another by closed doors, are rejected without tracing.
  *	@return true if nothing obscures the view, false otherwise */
 /*-------------------------------------------------------------------*/
 	public boolean isVisible(Vector3f start, Vector3f end)
 	{
-		return (traceLine(start, end)).equals(end);
+		if(!mapRead)
+			return false;
+
+		// nothing can be seen through a closed door between two areas
+		if((brushType & BSPBrush.CONTENTS_SOLID) != 0 && !areaGraph.isConnected(start, end))
+			return false;
+
+		return bspMap.isVisible(getTraceContext(), start, end);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Update the state of the map's area portals from the positions of
+ *	the doors in the given gamestate. Cheap to call repeatedly, since
+ *	each server frame is processed only once.
+ *	@param world the gamestate from which to read the door positions
+ *	@see BSPAreaGraph#update(World) */
+/*-------------------------------------------------------------------*/
+	public void updateAreaPortals(World world)
+	{
+		if(mapRead)
+			areaGraph.update(world);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the areas containing two points are connected through
+ *	open area portals, as of the last call to updateAreaPortals. This
+ *	is a constant-time test, and provides a coarse rejection for both
+ *	visibility and path queries.
+ *	@param a the first point
+ *	@param b the second point
+ *	@return false if the points are definitely sealed off from one
+ *	another, true otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isConnected(Vector3f a, Vector3f b)
+	{
+		return !mapRead || areaGraph.isConnected(a, b);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the graph which tracks the connectivity of the map's areas.
+ *	@return the area graph, or null if no map is loaded */
+/*-------------------------------------------------------------------*/
+	public BSPAreaGraph getAreaGraph()
+	{
+		return areaGraph;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the BSP tree which contains a given point.
+ *	@param point the point to locate
+ *	@return the index of the leaf in the Leaf lump, or -1 if no map
+ *	is loaded */
+/*-------------------------------------------------------------------*/
+	public int findLeaf(Vector3f point)
+	{
+		return findLeaf(point.x, point.y, point.z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the BSP tree which contains a given point. The
+ *	result of the calling thread's previous lookup is reused if the
+ *	point has not moved. No objects are allocated.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the index of the leaf in the Leaf lump, or -1 if no map
+ *	is loaded */
+/*-------------------------------------------------------------------*/
+	public int findLeaf(float x, float y, float z)
+	{
+		return (mapRead ? bspMap.findLeaf((TraceContext)traceContexts.get(), x, y, z) : -1);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the contents of the space at a given point - whether it
+ *	lies in solid, water, lava, slime and so forth.
+ *	@param point the point to check
+ *	@return the bitwise OR of the contents of every brush containing
+ *	the point, using the CONTENTS constants found in BSPBrush; 0 if no
+ *	map is loaded
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public int pointContents(Vector3f point)
+	{
+		return pointContents(point.x, point.y, point.z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the contents of the space at a given point. The result of
+ *	the calling thread's previous query is reused if the point has not
+ *	moved. No objects are allocated, making this suitable for checking
+ *	each candidate movement for hazards such as lava and slime.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the bitwise OR of the contents of every brush containing
+ *	the point, using the CONTENTS constants found in BSPBrush; 0 if no
+ *	map is loaded
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public int pointContents(float x, float y, float z)
+	{
+		return (mapRead ? bspMap.pointContents((TraceContext)traceContexts.get(), x, y, z) : 0);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Returns every leaf which contains brushes of the given types. The
+ *	leaves are indexed by contents when the map is loaded, so no scan
+ *	of the Leaf lump is needed.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@return the matching leaves, or null if no map is loaded
+ *	@see BSPContentsIndex */
+/*-------------------------------------------------------------------*/
+	public BSPLeaf[] getContentsLeaves(int contents)
+	{
+		return (mapRead ? bspMap.getContentsIndex().getLeaves(contents) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf containing brushes of the given types which lies
+ *	nearest to a point, within some maximum distance.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param point the point from which to search
+ *	@param maxDistance the maximum distance at which to search
+ *	@return the nearest matching leaf, or null if there is none
+ *	@see BSPContentsIndex#findNearest(int, Vector3f, float) */
+/*-------------------------------------------------------------------*/
+	public BSPLeaf findNearestContents(int contents, Vector3f point, float maxDistance)
+	{
+		return (mapRead ? bspMap.getContentsIndex().findNearest(contents, point, maxDistance) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find every leaf containing brushes of the given types whose bounding
+ *	box overlaps a region.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param mins the minimum corner of the region
+ *	@param maxs the maximum corner of the region
+ *	@param vect the Vector into which the matching leaves are added
+ *	@return a reference to vect, for convenience */
+/*-------------------------------------------------------------------*/
+	public Vector findContentsInBox(int contents, Vector3f mins, Vector3f maxs, Vector vect)
+	{
+		return (mapRead ? bspMap.getContentsIndex().findInBox(contents, mins, maxs, vect) : vect);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether a line segment passes through brushes of the given
+ *	types - for instance, whether a move would cross lava or slime.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param start the start of the segment
+ *	@param end the end of the segment
+ *	@return true if the segment touches a brush of the given types
+ *	@see BSPContentsIndex#crossesSegment(TraceContext, int, Vector3f, Vector3f) */
+/*-------------------------------------------------------------------*/
+	public boolean crossesContents(int contents, Vector3f start, Vector3f end)
+	{
+		return mapRead && bspMap.getContentsIndex().crossesSegment((TraceContext)traceContexts.get(), contents, start, end);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Build a voxel grid of the map's world geometry. Thereafter, line
+ *	traces and visibility checks which the grid shows to be clear are
+ *	answered without tracing, for every BSPParser sharing the map.
+ *	@param cellSize the edge length of each cubic cell, in world units
+ *	@return the new grid, or null if no map is loaded
+ *	@see BSPMap#buildVoxelGrid(float) */
+/*-------------------------------------------------------------------*/
+	public BSPVoxelGrid buildVoxelGrid(float cellSize)
+	{
+		return (mapRead ? bspMap.buildVoxelGrid(cellSize) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the voxel grid of the map's world geometry, which answers
+ *	approximate line-of-sight and occupancy queries.
+ *	@return the grid, or null if no map is loaded or no grid has been
+ *	built */
+/*-------------------------------------------------------------------*/
+	public BSPVoxelGrid getVoxelGrid()
+	{
+		return (mapRead ? bspMap.getVoxelGrid() : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check the map's potentially visible sets to determine whether one
+ *	point could possibly be seen from another, without performing a
+ *	trace. The check is conservative; see BSPMap.isPotentiallyVisible.
+ *	@param from the point from which to look
+ *	@param to the point to check
+ *	@return false if the points are definitely not visible from one
+ *	another, true otherwise
+ *	@see BSPMap#isPotentiallyVisible(Vector3f, Vector3f) */
+/*-------------------------------------------------------------------*/
+	public boolean isPotentiallyVisible(Vector3f from, Vector3f to)
+	{
+		return !mapRead || bspMap.isPotentiallyVisible(from, to);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check the map's potentially hearable sets to determine whether a
+ *	sound at one point could possibly be heard at another. The check
+ *	is conservative; see BSPMap.isPotentiallyAudible.
+ *	@param from the point at which to listen
+ *	@param to the point at which the sound originates
+ *	@return false if the sound is definitely inaudible, true otherwise
+ *	@see BSPMap#isPotentiallyAudible(Vector3f, Vector3f) */
+/*-------------------------------------------------------------------*/
+	public boolean isPotentiallyAudible(Vector3f from, Vector3f to)
+	{
+		return !mapRead || bspMap.isPotentiallyAudible(from, to);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -504,7 +726,11 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public Vector3f getObstacleLocation(Vector3f start, Vector3f dir, float maxDist)
 	{
-		return traceLine(start, getEndpoint(start, dir, maxDist));
+		if(!mapRead)
+			return null;
+
+		TraceContext context = getTraceContext();
+		return new Vector3f(bspMap.traceLine(context, start, getEndpoint(context, start, dir, maxDist), context.result).endPos);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -519,7 +745,11 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public Vector3f getObstacleLocation(Vector3f start, Vector3f dir, float sphereRadius, float maxDist)
 	{
-		return traceSphere(start, getEndpoint(start, dir, maxDist), sphereRadius);
+		if(!mapRead)
+			return null;
+
+		TraceContext context = getTraceContext();
+		return new Vector3f(bspMap.traceSphere(context, start, getEndpoint(context, start, dir, maxDist), sphereRadius, context.result).endPos);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -535,7 +765,11 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public Vector3f getObstacleLocation(Vector3f start, Vector3f dir, Vector3f boundingBoxMins, Vector3f boundingBoxMaxs, float maxDist)
 	{
-		return traceBox(start, getEndpoint(start, dir, maxDist), boundingBoxMins, boundingBoxMaxs);
+		if(!mapRead)
+			return null;
+
+		TraceContext context = getTraceContext();
+		return new Vector3f(bspMap.traceBox(context, start, getEndpoint(context, start, dir, maxDist), boundingBoxMins, boundingBoxMaxs, context.result).endPos);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -552,10 +786,8 @@ public class BSPParser
 		if(!mapRead)
 			return Float.NaN;
 
-		Vector3f end = getObstacleLocation(start, dir, maxDist);
-
-		end.sub(start);
-		return end.length();
+		TraceContext context = getTraceContext();
+		return getDistance(start, bspMap.traceLine(context, start, getEndpoint(context, start, dir, maxDist), context.result));
 	}
 
 /*-------------------------------------------------------------------*/
@@ -573,10 +805,8 @@ public class BSPParser
 		if(!mapRead)
 			return Float.NaN;
 
-		Vector3f end = getObstacleLocation(start, dir, sphereRadius, maxDist);
-
-		end.sub(start);
-		return end.length();
+		TraceContext context = getTraceContext();
+		return getDistance(start, bspMap.traceSphere(context, start, getEndpoint(context, start, dir, maxDist), sphereRadius, context.result));
 	}
 
 /*-------------------------------------------------------------------*/
@@ -595,18 +825,18 @@ public class BSPParser
 		if(!mapRead)
 			return Float.NaN;
 
-		Vector3f end = getObstacleLocation(start, dir, boundingBoxMins, boundingBoxMaxs, maxDist);
-
-		end.sub(start);
-		return end.length();
+		TraceContext context = getTraceContext();
+		return getDistance(start, bspMap.traceBox(context, start, getEndpoint(context, start, dir, maxDist), boundingBoxMins, boundingBoxMaxs, context.result));
 	}
 
 /*-------------------------------------------------------------------*/
+/*	Compute the endpoint of a sweep into the context's scratch vector. */
 /*-------------------------------------------------------------------*/
-	private Vector3f getEndpoint(Vector3f start, Vector3f dir, float maxDist)
+	private Vector3f getEndpoint(TraceContext context, Vector3f start, Vector3f dir, float maxDist)
 	{
-		Vector3f end = new Vector3f(dir);
+		Vector3f end = context.endpoint;
 
+		end.set(dir);
 		end.normalize();
 		end.scale(maxDist);
 		end.add(start);
@@ -614,22 +844,17 @@ public class BSPParser
 		return end;
 	}
 
-	private int TRACE_TYPE;
-	private int BRUSH_BITS = BSPBrush.CONTENTS_SOLID;
-
-	private float traceRadius;
-	private float outputFraction;
-
-	private boolean outputAllSolid;
-	private boolean outputStartsOut;
-
-	private Vector3f outputEnd = new Vector3f(0, 0, 0);
-	private Vector3f inputStart = new Vector3f(0, 0, 0);
-	private Vector3f inputEnd = new Vector3f(0, 0, 0);
+/*-------------------------------------------------------------------*/
+/*	Distance from the start point to the end of a completed trace. */
+/*-------------------------------------------------------------------*/
+	private float getDistance(Vector3f start, TraceResult result)
+	{
+		float x = result.endPos.x - start.x;
+		float y = result.endPos.y - start.y;
+		float z = result.endPos.z - start.z;
 
-	private Vector3f traceMins = null;
-	private Vector3f traceMaxs = null;
-	private Vector3f traceExtents = new Vector3f(0, 0, 0);
+		return (float)Math.sqrt(x * x + y * y + z * z);
+	}
 
 /*-------------------------------------------------------------------*/
 /**	Set the type of brush to check for when sweeping, specified by
@@ -640,7 +865,19 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public void setBrushType(int brushType)
 	{
-		BRUSH_BITS = brushType;
+		this.brushType = brushType;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Get the calling thread's trace context, primed with the current
+ *	brush type. */
+/*-------------------------------------------------------------------*/
+	private TraceContext getTraceContext()
+	{
+		TraceContext context = (TraceContext)traceContexts.get();
+		context.setBrushType(brushType);
+
+		return context;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -653,8 +890,10 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public Vector3f traceLine(Vector3f start, Vector3f end)
 	{
-		TRACE_TYPE = TRACE_LINE;
-		return trace(start, end);
+		if(!mapRead)
+			return null;
+
+		return bspMap.traceLine(getTraceContext(), start, end);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -668,9 +907,10 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public Vector3f traceSphere(Vector3f start, Vector3f end, float radius)
 	{
-		traceRadius = radius;
-		TRACE_TYPE = TRACE_SPHERE;
-		return trace(start, end);
+		if(!mapRead)
+			return null;
+
+		return bspMap.traceSphere(getTraceContext(), start, end, radius);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -685,270 +925,113 @@ public class BSPParser
 /*-------------------------------------------------------------------*/
 	public Vector3f traceBox(Vector3f start, Vector3f end, Vector3f mins, Vector3f maxs)
 	{
-		if(mins.length() == 0 && maxs.length() == 0)
-			return traceLine(start, end);
-
-		TRACE_TYPE = TRACE_BOX;
-
-		traceMins = new Vector3f(mins);
-		traceMaxs = new Vector3f(maxs);
-
-		for(int i = 0; i < 3; i++)
-			traceExtents.set(i, Math.max(-traceMins.get(i), traceMaxs.get(i)));	
+		if(!mapRead)
+			return null;
 
-		return trace(start, end);
+		return bspMap.traceBox(getTraceContext(), start, end, mins, maxs);
 	}
 
-	private Vector3f trace(Vector3f start, Vector3f end)
+/*-------------------------------------------------------------------*/
+/**	Trace a line between two points, writing the outcome into a
+ *	caller-supplied TraceResult rather than allocating a new vector.
+ *	Suitable for agents which perform many traces per frame.
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param result the object into which the outcome is written
+ *	@return the result object, or null if no map is loaded
+ *	@see TraceResult */
+/*-------------------------------------------------------------------*/
+	public TraceResult traceLine(Vector3f start, Vector3f end, TraceResult result)
 	{
 		if(!mapRead)
 			return null;
 
-		outputStartsOut = true;
-		outputAllSolid = false;
-		outputFraction = 1.0f;
-
-		inputEnd.set(end);
-		inputStart.set(start);
-
-		// traverse the BSP tree
-		checkNode( 0, 0.0f, 1.0f, inputStart, inputEnd );
-	
-		if (outputFraction == 1.0f)
-		{	// nothing blocked the trace
-			outputEnd = inputEnd;
-		}
-		else
-		{	// collided with something 
-			for (int i = 0; i < 3; i++)
-			{
-				outputEnd.set(i, inputStart.get(i) + outputFraction * (inputEnd.get(i) - inputStart.get(i)));
-			}
-		}
-
-		return new Vector3f(outputEnd);
+		return bspMap.traceLine(getTraceContext(), start, end, result);
 	}
 
-	private void checkNode( int nodeIndex, float startFraction, float endFraction, Vector3f start, Vector3f end )
+/*-------------------------------------------------------------------*/
+/**	Trace a sphere between two points, writing the outcome into a
+ *	caller-supplied TraceResult rather than allocating a new vector.
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param radius the radius of the sphere to sweep
+ *	@param result the object into which the outcome is written
+ *	@return the result object, or null if no map is loaded
+ *	@see TraceResult */
+/*-------------------------------------------------------------------*/
+	public TraceResult traceSphere(Vector3f start, Vector3f end, float radius, TraceResult result)
 	{
-		if (nodeIndex < 0)
-		{	// this is a leaf
-			BSPLeaf leaf = leafLump.leaves[-(nodeIndex + 1)];
-
-			for (int i = 0; i < leaf.numLeafBrushes; i++)
-			{
-				BSPBrush brush = brushLump.brushes[leafBrushLump.leafBrushTable[leaf.firstLeafBrush + i]];
-
-				if (brush.numSides > 0 && brush.checkContents(BRUSH_BITS))
-					checkBrush(brush);
-			}
-
-			// don't have to do anything else for leaves
-			return;
-		}
-	
-		// this is a node
-
-		BSPNode node = nodeLump.nodes[nodeIndex];
-		BSPPlane plane = planeLump.planes[(int)node.plane];
-
-		float offset = 0;
-		float startDistance = start.dot(plane.normal) - plane.distance;
-		float endDistance = end.dot(plane.normal) - plane.distance;
-
-		if(TRACE_TYPE == TRACE_LINE)
-			offset = 0;
-		else if(TRACE_TYPE == TRACE_SPHERE)
-			offset = traceRadius;
-		else if(TRACE_TYPE == TRACE_BOX)
-		{
-			for(int i = 0; i < 3; i++)
-				offset += Math.abs(traceExtents.get(i) * plane.normal.get(i));
-		}
+		if(!mapRead)
+			return null;
 
-		if (startDistance >= offset && endDistance >= offset)
-		{	// both points are in front of the plane
-			// so check the front child
-			checkNode(node.frontChild, startFraction, endFraction, start, end );
-		}
-		else if (startDistance < -offset && endDistance < -offset)
-		{	// both points are behind the plane
-			// so check the back child
-			checkNode(node.backChild, startFraction, endFraction, start, end );
-		}
-		else
-		{	// the line spans the splitting plane
-			int side;
-			float fraction1, fraction2, middleFraction;
-			Vector3f middle = new Vector3f(0, 0, 0);
-
-			// split the segment into two
-			if (startDistance < endDistance)
-			{
-				side = 1; // back
-				float inverseDistance = 1.0f / (startDistance - endDistance);
-				fraction1 = (startDistance - offset + EPSILON) * inverseDistance;
-				fraction2 = (startDistance + offset + EPSILON) * inverseDistance;
-			}
-			else if (endDistance < startDistance)
-			{
-				side = 0; // front
-				float inverseDistance = 1.0f / (startDistance - endDistance);
-				fraction1 = (startDistance + offset + EPSILON) * inverseDistance;
-				fraction2 = (startDistance - offset - EPSILON) * inverseDistance;
-			}
-			else
-			{
-				side = 0; // front
-				fraction1 = 1.0f;
-				fraction2 = 0.0f;
-			}
-	
-			// make sure the numbers are valid
-			if (fraction1 < 0.0f) fraction1 = 0.0f;
-			else if (fraction1 > 1.0f) fraction1 = 1.0f;
-			if (fraction2 < 0.0f) fraction2 = 0.0f;
-			else if (fraction2 > 1.0f) fraction2 = 1.0f;
-	
-			// calculate the middle point for the first side
-			middleFraction = startFraction + (endFraction - startFraction) * fraction1;
-
-			for (int i = 0; i < 3; i++)
-				middle.set(i, start.get(i) + fraction1 * (end.get(i) - start.get(i)));
-
-			// check the first side
-			checkNode(node.children[side], startFraction, middleFraction, start, middle );
-	
-			// calculate the middle point for the second side
-			middleFraction = startFraction + (endFraction - startFraction) * fraction2;
-
-			for (int i = 0; i < 3; i++)
-				middle.set(i, start.get(i) + fraction2 * (end.get(i) - start.get(i)));
-
-			// check the second side
-			checkNode(node.children[(side + 1) % 2], middleFraction, endFraction, middle, end );
-		}
+		return bspMap.traceSphere(getTraceContext(), start, end, radius, result);
 	}
 
-	private void checkBrush(BSPBrush brush)
+/*-------------------------------------------------------------------*/
+/**	Trace a bounding box between two points, writing the outcome into
+ *	a caller-supplied TraceResult rather than allocating a new vector.
+ *	@param start the start point of the trace
+ *	@param end the endpoint of the trace
+ *	@param mins the lower reference point of the bounding box
+ *	@param maxs the upper reference point of the bounding box
+ *	@param result the object into which the outcome is written
+ *	@return the result object, or null if no map is loaded
+ *	@see TraceResult */
+/*-------------------------------------------------------------------*/
+	public TraceResult traceBox(Vector3f start, Vector3f end, Vector3f mins, Vector3f maxs, TraceResult result)
 	{
-		float startFraction = -1.0f;
-		float endFraction = 1.0f;
-		boolean startsOut = false;
-		boolean endsOut = false;
-	
-		for (int i = 0; i < brush.numSides; i++)
-		{
-			BSPBrushSide brushSide = brushSideLump.brushSides[(int)brush.firstSide + i];
-			BSPPlane plane = planeLump.planes[brushSide.planeNum];
-
-			float startDistance = 0, endDistance = 0;
-
-			if(TRACE_TYPE == TRACE_LINE)
-			{
-				startDistance = inputStart.dot(plane.normal) - plane.distance;
-				endDistance = inputEnd.dot(plane.normal) - plane.distance;
-			}
-			if(TRACE_TYPE == TRACE_SPHERE)
-			{
-				startDistance = inputStart.dot(plane.normal) - (plane.distance + traceRadius);
-				endDistance = inputEnd.dot(plane.normal) - (plane.distance + traceRadius);
-			}
-			else if(TRACE_TYPE == TRACE_BOX)
-			{
-				for(int j = 0; j < 3; j++)
-				{
-					if(plane.normal.get(j) < 0)
-					{
-						startDistance += ((inputStart.get(j) + traceMaxs.get(j)) * plane.normal.get(j));	
-						endDistance += ((inputEnd.get(j) + traceMaxs.get(j)) * plane.normal.get(j));	
-					}
-					else
-					{
-						startDistance += ((inputStart.get(j) + traceMins.get(j)) * plane.normal.get(j));	
-						endDistance += ((inputEnd.get(j) + traceMins.get(j)) * plane.normal.get(j));	
-					}
-				}
-
-				startDistance -= plane.distance;
-				endDistance -= plane.distance;
-			}
+		if(!mapRead)
+			return null;
 
-			if (startDistance > 0)
-				startsOut = true;
-			if (endDistance > 0)
-				endsOut = true;
-	
-			// make sure the trace isn't completely on one side of the brush
-			if (startDistance > 0 && endDistance > 0)
-			{   // both are in front of the plane, its outside of this brush
-				return;
-			}
+		return bspMap.traceBox(getTraceContext(), start, end, mins, maxs, result);
+	}
 
-			if (startDistance <= 0 && endDistance <= 0)
-			{   // both are behind this plane, it will get clipped by another one
-				continue;
-			}
-	
-			if (startDistance > endDistance)
-			{   // line is entering into the brush
-				float fraction = (startDistance - EPSILON) / (startDistance - endDistance);
-				if (fraction > startFraction)
-					startFraction = fraction;
-			}
-			else
-			{   // line is leaving the brush
-				float fraction = (startDistance + EPSILON) / (startDistance - endDistance);
-				if (fraction < endFraction)
-					endFraction = fraction;
-			}
-		}
-	
-		if (!startsOut)
-		{
-			outputStartsOut = false;
+/*-------------------------------------------------------------------*/
+/**	Trace every ray in a batch on the calling thread. The batch's own
+ *	brush type is used, rather than that set on the BSPParser.
+ *	@param batch the rays to trace
+ *	@return true if the batch was traced, false if no map is loaded
+ *	@see RayBatch */
+/*-------------------------------------------------------------------*/
+	public boolean traceRays(RayBatch batch)
+	{
+		return traceRays(batch, false);
+	}
 
-			if(!endsOut)
-				outputAllSolid = true;
+/*-------------------------------------------------------------------*/
+/**	Trace every ray in a batch, optionally spreading large batches
+ *	across the common fork-join pool. The batch's own brush type is
+ *	used, rather than that set on the BSPParser.
+ *	@param batch the rays to trace
+ *	@param parallel true to trace large batches concurrently
+ *	@return true if the batch was traced, false if no map is loaded
+ *	@see RayBatch */
+/*-------------------------------------------------------------------*/
+	public boolean traceRays(RayBatch batch, boolean parallel)
+	{
+		if(!mapRead)
+			return false;
 
-			return;
-		}
-	
-		if (startFraction < endFraction)
-		{
-			if (startFraction > -1 && startFraction < outputFraction)
-			{
-				if (startFraction < 0)
-					startFraction = 0;
-				outputFraction = startFraction;
-			}
-		}
+		bspMap.traceRays(batch, parallel);
+		return true;
 	}
 
 /*-------------------------------------------------------------------*/
 /**	Resets all contents of the BSPParser object. Called if a new BSP
  *	file is loaded while a previous file is active, or by the user
- *	for any arbitraty purpose. */
+ *	for any arbitraty purpose. If the map was obtained from the
+ *	BSPMapCache, it is released. */
 /*-------------------------------------------------------------------*/
 	public void reset()
 	{
 		// reset BSP structures
-		lumpData = null;
-		headerData = null;
-		pakBSPFileData = null;
-
-		fName = null;
-		bspFile = null;
-
-		bufIn = null;
-		byteIn = null;
+		if(mapCached)
+			BSPMapCache.release(bspMap);
 
+		bspMap = null;
+		areaGraph = null;
 		mapRead = false;
-		fileOpen = false;
-		inPAKFile = false;
-
-		bspLumps = null;
-		bspHeader = null;
+		mapCached = false;
 
 		planeLump = null;
 		vertexLump = null;
@@ -961,25 +1044,11 @@ public class BSPParser
 		brushLump = null;
 		brushSideLump = null;
 		leafBrushLump = null;
+		visibilityLump = null;
 
 		entitiesLump = null;
 
-		// reset private trace variables
-		TRACE_TYPE = 0;
-		BRUSH_BITS = BSPBrush.CONTENTS_SOLID;
-
-		traceRadius = 0.0f;
-		outputFraction = 0.0f;
-
-		outputAllSolid = false;
-		outputStartsOut = false;
-
-		outputEnd = new Vector3f(0, 0, 0);
-		inputStart = new Vector3f(0, 0, 0);
-		inputEnd = new Vector3f(0, 0, 0);
-
-		traceMins = null;
-		traceMaxs = null;
-		traceExtents = new Vector3f(0, 0, 0);
+		// reset trace settings
+		brushType = BSPBrush.CONTENTS_SOLID;
 	}
 }
@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.Utils;
 import soc.qase.tools.vecmath.Vector3f;
 
@@ -33,5 +35,18 @@ public class BSPPlane
 		distance = Utils.floatValue(planeData, offset + 12);
 		type = Utils.unsignedIntValue(planeData, offset + 16);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Builds a BSPPlane from a little-endian buffer view
+ *	of the lump.
+ *	@param planeData buffer containing plane lump data
+ *	@param offset location of the plane in the buffer */
+/*-------------------------------------------------------------------*/
+	public BSPPlane(ByteBuffer planeData, int offset)
+	{
+		normal = new Vector3f(planeData.getFloat(offset), planeData.getFloat(offset + 4), planeData.getFloat(offset + 8));
+		distance = planeData.getFloat(offset + 12);
+		type = planeData.getInt(offset + 16);
+	}
 }
 
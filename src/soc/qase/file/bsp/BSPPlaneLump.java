@@ -5,6 +5,8 @@
 
 package soc.qase.file.bsp;
 
+import java.nio.ByteBuffer;
+
 /*-------------------------------------------------------------------*/
 /** Represents the Plane lump of the BSP file. The Plane Lump is the
  *	area of the file containing details of the splitting planes which
@@ -27,6 +29,16 @@ public class BSPPlaneLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Plane lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Plane lump */
+/*-------------------------------------------------------------------*/
+	public BSPPlaneLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Plane lump data. Every 20 bytes corresponds to a different
  *	plane. This method sequentially creates BSPPlane objects from raw
@@ -34,9 +46,11 @@ public class BSPPlaneLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		planes = new BSPPlane[lumpData.length / 20];
+		planes = new BSPPlane[lumpData.limit() / 20];
 
 		for(int i = 0; i < planes.length; i++)
 			planes[i] = new BSPPlane(lumpData, i * 20);
+
+		lumpData = null;
 	}
 }
@@ -0,0 +1,338 @@
+//---------------------------------------------------------------------
+// Name:			BSPTree.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*-------------------------------------------------------------------*/
+/**	A compiled form of the parts of a BSP file used for collision
+ *	detection - the splitting planes, the nodes and leaves of the BSP
+ *	tree, the leaf-brush table, and the brushes and their sides - laid
+ *	out as packed primitive arrays. Walking the tree then touches a
+ *	handful of contiguous arrays rather than chasing references through
+ *	the BSPNode, BSPPlane, BSPLeaf, BSPBrush and BSPBrushSide objects
+ *	of the various lumps. Each BSPMap compiles its tree once, when it is
+ *	loaded; the tree is never modified thereafter.<p>
+ *
+ *	Planes whose normal lies along the X, Y or Z axis are flagged as
+ *	axial, allowing the distance of a point from the plane to be found
+ *	without a dot product.
+ *	@see BSPMap */
+/*-------------------------------------------------------------------*/
+public class BSPTree
+{
+	public static final int PLANE_X = 0, PLANE_Y = 1, PLANE_Z = 2, PLANE_NON_AXIAL = 3;
+
+	// plane layout: normal x, y, z, distance
+	static final int PLANE_STRIDE = 4;
+
+	// node layout: plane, front child, back child
+	static final int NODE_PLANE = 0, NODE_FRONT = 1, NODE_BACK = 2, NODE_STRIDE = 3;
+
+	// leaf layout: first leaf-brush, number of leaf-brushes, contents, cluster, area
+	static final int LEAF_FIRST_BRUSH = 0, LEAF_NUM_BRUSHES = 1, LEAF_CONTENTS = 2, LEAF_CLUSTER = 3, LEAF_AREA = 4, LEAF_STRIDE = 5;
+
+	// brush layout: first side, number of sides, contents
+	static final int BRUSH_FIRST_SIDE = 0, BRUSH_NUM_SIDES = 1, BRUSH_CONTENTS = 2, BRUSH_STRIDE = 3;
+
+	final float[] planes;
+	final int[] planeTypes;
+	final int[] nodes;
+	final int[] leaves;
+	final int[] leafBrushes;
+	final int[] brushes;
+	final int[] brushSidePlanes;
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Compiles the tree from the lumps of a loaded map.
+ *	@param map the map whose tree is to be compiled */
+/*-------------------------------------------------------------------*/
+	public BSPTree(BSPMap map)
+	{
+		BSPPlane[] bspPlanes = map.planeLump.planes;
+		BSPNode[] bspNodes = map.nodeLump.nodes;
+		BSPLeaf[] bspLeaves = map.leafLump.leaves;
+		BSPBrush[] bspBrushes = map.brushLump.brushes;
+		BSPBrushSide[] bspBrushSides = map.brushSideLump.brushSides;
+
+		planes = new float[bspPlanes.length * PLANE_STRIDE];
+		planeTypes = new int[bspPlanes.length];
+
+		for(int i = 0; i < bspPlanes.length; i++)
+		{
+			planes[i * PLANE_STRIDE] = bspPlanes[i].normal.x;
+			planes[i * PLANE_STRIDE + 1] = bspPlanes[i].normal.y;
+			planes[i * PLANE_STRIDE + 2] = bspPlanes[i].normal.z;
+			planes[i * PLANE_STRIDE + 3] = bspPlanes[i].distance;
+			planeTypes[i] = classifyPlane(planes, i * PLANE_STRIDE);
+		}
+
+		nodes = new int[bspNodes.length * NODE_STRIDE];
+
+		for(int i = 0; i < bspNodes.length; i++)
+		{
+			nodes[i * NODE_STRIDE + NODE_PLANE] = (int)bspNodes[i].plane;
+			nodes[i * NODE_STRIDE + NODE_FRONT] = bspNodes[i].frontChild;
+			nodes[i * NODE_STRIDE + NODE_BACK] = bspNodes[i].backChild;
+		}
+
+		leaves = new int[bspLeaves.length * LEAF_STRIDE];
+
+		for(int i = 0; i < bspLeaves.length; i++)
+		{
+			leaves[i * LEAF_STRIDE + LEAF_FIRST_BRUSH] = bspLeaves[i].firstLeafBrush;
+			leaves[i * LEAF_STRIDE + LEAF_NUM_BRUSHES] = bspLeaves[i].numLeafBrushes;
+			leaves[i * LEAF_STRIDE + LEAF_CONTENTS] = (int)bspLeaves[i].brushOr;
+			leaves[i * LEAF_STRIDE + LEAF_CLUSTER] = (short)bspLeaves[i].cluster;	// -1 for solid leaves
+			leaves[i * LEAF_STRIDE + LEAF_AREA] = bspLeaves[i].area;
+		}
+
+		leafBrushes = map.leafBrushLump.leafBrushTable.clone();
+
+		brushes = new int[bspBrushes.length * BRUSH_STRIDE];
+
+		for(int i = 0; i < bspBrushes.length; i++)
+		{
+			brushes[i * BRUSH_STRIDE + BRUSH_FIRST_SIDE] = (int)bspBrushes[i].firstSide;
+			brushes[i * BRUSH_STRIDE + BRUSH_NUM_SIDES] = (int)bspBrushes[i].numSides;
+			brushes[i * BRUSH_STRIDE + BRUSH_CONTENTS] = bspBrushes[i].contents;
+		}
+
+		brushSidePlanes = new int[bspBrushSides.length];
+
+		for(int i = 0; i < bspBrushSides.length; i++)
+			brushSidePlanes[i] = bspBrushSides[i].planeNum;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Reads a tree previously written by the write method.
+ *	@param in a buffer positioned at the start of the tree's data
+ *	@see BSPCacheFile */
+/*-------------------------------------------------------------------*/
+	BSPTree(ByteBuffer in)
+	{
+		planes = BSPCacheFile.readFloats(in);
+		planeTypes = BSPCacheFile.readInts(in);
+		nodes = BSPCacheFile.readInts(in);
+		leaves = BSPCacheFile.readInts(in);
+		leafBrushes = BSPCacheFile.readInts(in);
+		brushes = BSPCacheFile.readInts(in);
+		brushSidePlanes = BSPCacheFile.readInts(in);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write the tree, such that it can be read back by the ByteBuffer
+ *	constructor.
+ *	@param out the stream to which the tree is written */
+/*-------------------------------------------------------------------*/
+	void write(DataOutputStream out) throws IOException
+	{
+		BSPCacheFile.writeFloats(out, planes);
+		BSPCacheFile.writeInts(out, planeTypes);
+		BSPCacheFile.writeInts(out, nodes);
+		BSPCacheFile.writeInts(out, leaves);
+		BSPCacheFile.writeInts(out, leafBrushes);
+		BSPCacheFile.writeInts(out, brushes);
+		BSPCacheFile.writeInts(out, brushSidePlanes);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Determine whether a plane's normal is a positive unit axis. */
+/*-------------------------------------------------------------------*/
+	private static int classifyPlane(float[] planes, int offset)
+	{
+		for(int axis = PLANE_X; axis <= PLANE_Z; axis++)
+		{
+			if(planes[offset + axis] == 1.0f && planes[offset + (axis + 1) % 3] == 0.0f && planes[offset + (axis + 2) % 3] == 0.0f)
+				return axis;
+		}
+
+		return PLANE_NON_AXIAL;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of planes in the tree.
+ *	@return the number of planes */
+/*-------------------------------------------------------------------*/
+	public int getNumPlanes()
+	{
+		return planeTypes.length;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of nodes in the tree.
+ *	@return the number of nodes */
+/*-------------------------------------------------------------------*/
+	public int getNumNodes()
+	{
+		return nodes.length / NODE_STRIDE;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of leaves in the tree.
+ *	@return the number of leaves */
+/*-------------------------------------------------------------------*/
+	public int getNumLeaves()
+	{
+		return leaves.length / LEAF_STRIDE;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of brushes in the tree.
+ *	@return the number of brushes */
+/*-------------------------------------------------------------------*/
+	public int getNumBrushes()
+	{
+		return brushes.length / BRUSH_STRIDE;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the leaf of the tree which contains a given point.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the index of the leaf containing the point */
+/*-------------------------------------------------------------------*/
+	public int findLeaf(float x, float y, float z)
+	{
+		int nodeIndex = 0;
+
+		if(nodes.length == 0)
+			return 0;
+
+		while(nodeIndex >= 0)
+		{
+			int node = nodeIndex * NODE_STRIDE;
+			int planeNum = nodes[node + NODE_PLANE];
+			int plane = planeNum * PLANE_STRIDE;
+			float distance;
+
+			if(planeTypes[planeNum] == PLANE_X)
+				distance = x - planes[plane + 3];
+			else if(planeTypes[planeNum] == PLANE_Y)
+				distance = y - planes[plane + 3];
+			else if(planeTypes[planeNum] == PLANE_Z)
+				distance = z - planes[plane + 3];
+			else
+				distance = x * planes[plane] + y * planes[plane + 1] + z * planes[plane + 2] - planes[plane + 3];
+
+			nodeIndex = nodes[node + (distance >= 0 ? NODE_FRONT : NODE_BACK)];
+		}
+
+		return -(nodeIndex + 1);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the contents of the space at a given point, by finding
+ *	the leaf which contains it and testing the point against each of
+ *	the leaf's brushes.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the bitwise OR of the contents of every brush containing
+ *	the point, using the CONTENTS constants found in BSPBrush; 0 if
+ *	the point is in empty space
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public int pointContents(float x, float y, float z)
+	{
+		return pointContents(findLeaf(x, y, z), x, y, z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Determine the contents of the space at a given point, which is
+ *	already known to lie within the specified leaf.
+ *	@param leaf the index of the leaf containing the point
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return the bitwise OR of the contents of every brush containing
+ *	the point */
+/*-------------------------------------------------------------------*/
+	public int pointContents(int leaf, float x, float y, float z)
+	{
+		int contents = 0;
+
+		int firstLeafBrush = leaves[leaf * LEAF_STRIDE + LEAF_FIRST_BRUSH];
+		int lastLeafBrush = firstLeafBrush + leaves[leaf * LEAF_STRIDE + LEAF_NUM_BRUSHES];
+
+		for(int i = firstLeafBrush; i < lastLeafBrush; i++)
+		{
+			int brush = leafBrushes[i] * BRUSH_STRIDE;
+
+			if((contents | brushes[brush + BRUSH_CONTENTS]) != contents && isInsideBrush(brush, x, y, z))
+				contents |= brushes[brush + BRUSH_CONTENTS];
+		}
+
+		return contents;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether a point lies behind every side of a brush. */
+/*-------------------------------------------------------------------*/
+	private boolean isInsideBrush(int brush, float x, float y, float z)
+	{
+		int firstSide = brushes[brush + BRUSH_FIRST_SIDE];
+		int lastSide = firstSide + brushes[brush + BRUSH_NUM_SIDES];
+
+		if(firstSide == lastSide)
+			return false;
+
+		for(int i = firstSide; i < lastSide; i++)
+		{
+			int planeNum = brushSidePlanes[i];
+			int plane = planeNum * PLANE_STRIDE;
+			float distance;
+
+			if(planeTypes[planeNum] == PLANE_X)
+				distance = x - planes[plane + 3];
+			else if(planeTypes[planeNum] == PLANE_Y)
+				distance = y - planes[plane + 3];
+			else if(planeTypes[planeNum] == PLANE_Z)
+				distance = z - planes[plane + 3];
+			else
+				distance = x * planes[plane] + y * planes[plane + 1] + z * planes[plane + 2] - planes[plane + 3];
+
+			if(distance > 0)
+				return false;
+		}
+
+		return true;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the visibility cluster to which a leaf belongs.
+ *	@param leaf the index of the leaf
+ *	@return the cluster index, or -1 if the leaf is solid */
+/*-------------------------------------------------------------------*/
+	public int getLeafCluster(int leaf)
+	{
+		return leaves[leaf * LEAF_STRIDE + LEAF_CLUSTER];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the area to which a leaf belongs.
+ *	@param leaf the index of the leaf
+ *	@return the area index, or 0 if the leaf is solid */
+/*-------------------------------------------------------------------*/
+	public int getLeafArea(int leaf)
+	{
+		return leaves[leaf * LEAF_STRIDE + LEAF_AREA];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the axial type of a plane.
+ *	@param plane the index of the plane
+ *	@return PLANE_X, PLANE_Y or PLANE_Z if the plane's normal is the
+ *	corresponding unit axis, or PLANE_NON_AXIAL otherwise */
+/*-------------------------------------------------------------------*/
+	public int getPlaneType(int plane)
+	{
+		return planeTypes[plane];
+	}
+}
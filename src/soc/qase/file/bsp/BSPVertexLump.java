@@ -5,7 +5,8 @@
 
 package soc.qase.file.bsp;
 
-import soc.qase.tools.Utils;
+import java.nio.ByteBuffer;
+
 import soc.qase.tools.vecmath.Vector3f;
 
 /*-------------------------------------------------------------------*/
@@ -30,6 +31,16 @@ public class BSPVertexLump extends BSPLump
 		processLumpData();
 	}
 
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Vertex lump data from a buffer view of the lump.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Vertex lump */
+/*-------------------------------------------------------------------*/
+	public BSPVertexLump(ByteBuffer lumpBuffer)
+	{
+		super(lumpBuffer);
+		processLumpData();
+	}
+
 /*-------------------------------------------------------------------*/
 /** Process Vertex lump data. Every 12 bytes corresponds to a different
  *	vertex. This method constructs an array of Vector3fs, representing
@@ -37,9 +48,11 @@ public class BSPVertexLump extends BSPLump
 /*-------------------------------------------------------------------*/
 	protected void processLumpData()
 	{
-		vertices = new Vector3f[lumpData.length / 12];
+		vertices = new Vector3f[lumpData.limit() / 12];
 
 		for(int i = 0; i < vertices.length; i++)
-			vertices[i] = new Vector3f(Utils.floatValue(lumpData, i * 12), Utils.floatValue(lumpData, i * 12 + 4), Utils.floatValue(lumpData, i * 12 + 8));
+			vertices[i] = new Vector3f(lumpData.getFloat(i * 12), lumpData.getFloat(i * 12 + 4), lumpData.getFloat(i * 12 + 8));
+
+		lumpData = null;
 	}
 }
@@ -0,0 +1,269 @@
+//---------------------------------------------------------------------
+// Name:			BSPVisibilityLump.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*-------------------------------------------------------------------*/
+/** Represents the Visibility lump of the BSP file. The Visibility lump
+ *	holds, for every cluster of leaves in the map, a run-length encoded
+ *	bit vector of the clusters which are potentially visible from it
+ *	(the PVS) and of those which are potentially audible from it (the
+ *	PHS). Both sets are conservative; if one cluster is not in another's
+ *	PVS, then no point in the first can be seen from any point in the
+ *	second.<p>
+ *
+ *	Unlike the other lumps, the Visibility lump is not decoded when the
+ *	map is loaded. Each cluster's row is decompressed from the lump the
+ *	first time it is queried, and cached for subsequent queries. Rows
+ *	may be decompressed and queried by any number of threads at once.
+ *	Where a map is loaded from a BSPCacheFile, every row is instead read
+ *	from the cache already decompressed.
+ *	@see BSPLeaf */
+/*-------------------------------------------------------------------*/
+public class BSPVisibilityLump extends BSPLump
+{
+	private ByteBuffer visData = null;
+
+	private int numClusters = 0;
+	private int rowLength = 0;
+	private int[] pvsOffsets = null, phsOffsets = null;
+
+	private AtomicReferenceArray pvsRows = null, phsRows = null;
+
+/*-------------------------------------------------------------------*/
+/** Constructor. Process Visibility lump data from a buffer view of the
+ *	lump. The buffer is retained, and rows are decompressed from it on
+ *	demand; it must not be modified thereafter.
+ *	@param lumpBuffer a buffer whose remaining bytes are the Visibility
+ *	lump, in little-endian byte order */
+/*-------------------------------------------------------------------*/
+	public BSPVisibilityLump(ByteBuffer lumpBuffer)
+	{
+		visData = lumpBuffer.slice().order(lumpBuffer.order());
+		processLumpData();
+	}
+
+/*-------------------------------------------------------------------*/
+/** Process Visibility lump data. The lump begins with the number of
+ *	clusters, followed by a pair of integers for each cluster giving
+ *	the offsets of its compressed PVS and PHS rows within the lump. A
+ *	lump containing negative offsets is rejected. */
+/*-------------------------------------------------------------------*/
+	protected void processLumpData()
+	{
+		if(visData.limit() < 4)
+			return;
+
+		numClusters = visData.getInt(0);
+
+		if(numClusters < 0 || 4 + numClusters * 8L > visData.limit())
+			throw new IllegalArgumentException("malformed visibility lump");
+
+		rowLength = (numClusters + 7) >> 3;
+
+		pvsOffsets = new int[numClusters];
+		phsOffsets = new int[numClusters];
+
+		for(int i = 0; i < numClusters; i++)
+		{
+			pvsOffsets[i] = visData.getInt(4 + i * 8);
+			phsOffsets[i] = visData.getInt(8 + i * 8);
+
+			if(pvsOffsets[i] < 0 || phsOffsets[i] < 0)
+				throw new IllegalArgumentException("malformed visibility lump");
+		}
+
+		pvsRows = new AtomicReferenceArray(numClusters);
+		phsRows = new AtomicReferenceArray(numClusters);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of clusters described by the lump.
+ *	@return the number of clusters, or 0 if the map has no visibility
+ *	information */
+/*-------------------------------------------------------------------*/
+	public int getNumClusters()
+	{
+		return numClusters;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the lump contains any visibility information.
+ *	@return true if the map was compiled with visibility information */
+/*-------------------------------------------------------------------*/
+	public boolean hasVisibility()
+	{
+		return numClusters > 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether one cluster is in the potentially visible set of
+ *	another. Where either cluster is invalid, as is the case for solid
+ *	leaves, or the map has no visibility information, the clusters are
+ *	assumed to be mutually visible.
+ *	@param fromCluster the cluster from which to look
+ *	@param toCluster the cluster to check
+ *	@return false if toCluster is definitely not visible from
+ *	fromCluster, true otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isClusterVisible(int fromCluster, int toCluster)
+	{
+		return testRow(pvsRows, pvsOffsets, fromCluster, toCluster);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether one cluster is in the potentially hearable set of
+ *	another. Where either cluster is invalid, or the map has no
+ *	visibility information, the clusters are assumed to be mutually
+ *	audible.
+ *	@param fromCluster the cluster from which to listen
+ *	@param toCluster the cluster to check
+ *	@return false if sounds in toCluster are definitely not audible in
+ *	fromCluster, true otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isClusterAudible(int fromCluster, int toCluster)
+	{
+		return testRow(phsRows, phsOffsets, fromCluster, toCluster);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the decompressed PVS row of a cluster, as a bit vector with one
+ *	bit per cluster. The returned array is shared, and must not be
+ *	modified.
+ *	@param cluster the cluster whose row is required
+ *	@return the row, or null if the cluster is invalid */
+/*-------------------------------------------------------------------*/
+	public byte[] getPVSRow(int cluster)
+	{
+		return (isValidCluster(cluster) ? getRow(pvsRows, pvsOffsets, cluster) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the decompressed PHS row of a cluster, as a bit vector with one
+ *	bit per cluster. The returned array is shared, and must not be
+ *	modified.
+ *	@param cluster the cluster whose row is required
+ *	@return the row, or null if the cluster is invalid */
+/*-------------------------------------------------------------------*/
+	public byte[] getPHSRow(int cluster)
+	{
+		return (isValidCluster(cluster) ? getRow(phsRows, phsOffsets, cluster) : null);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Write the decompressed PVS and PHS rows of every cluster, such that
+ *	they can be read back by the readRows method.
+ *	@param out the stream to which the rows are written */
+/*-------------------------------------------------------------------*/
+	void writeRows(DataOutputStream out) throws IOException
+	{
+		out.writeInt(numClusters);
+
+		for(int i = 0; i < numClusters; i++)
+		{
+			BSPCacheFile.writeBytes(out, getRow(pvsRows, pvsOffsets, i));
+			BSPCacheFile.writeBytes(out, getRow(phsRows, phsOffsets, i));
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Read the decompressed rows previously written by writeRows, so that
+ *	no row need be decompressed from the lump itself.
+ *	@param in a buffer positioned at the start of the rows */
+/*-------------------------------------------------------------------*/
+	void readRows(ByteBuffer in)
+	{
+		if(in.getInt() != numClusters)
+			throw new IllegalArgumentException("cached visibility does not match lump");
+
+		byte[][] rows = new byte[numClusters * 2][];
+
+		for(int i = 0; i < rows.length; i++)
+		{
+			if((rows[i] = BSPCacheFile.readBytes(in)).length != rowLength)
+				throw new IllegalArgumentException("cached visibility does not match lump");
+		}
+
+		for(int i = 0; i < numClusters; i++)
+		{
+			pvsRows.set(i, rows[i * 2]);
+			phsRows.set(i, rows[i * 2 + 1]);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether a cluster index refers to a cluster in the lump. */
+/*-------------------------------------------------------------------*/
+	private boolean isValidCluster(int cluster)
+	{
+		return cluster >= 0 && cluster < numClusters;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Test a single bit of a cluster's PVS or PHS row. */
+/*-------------------------------------------------------------------*/
+	private boolean testRow(AtomicReferenceArray rows, int[] offsets, int fromCluster, int toCluster)
+	{
+		if(!isValidCluster(fromCluster) || !isValidCluster(toCluster))
+			return true;
+
+		return (getRow(rows, offsets, fromCluster)[toCluster >> 3] & (1 << (toCluster & 7))) != 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Fetch a row from the cache, decompressing it if necessary. Two
+ *	threads may occasionally decompress the same row; both produce
+ *	identical results, and whichever is cached first is kept. */
+/*-------------------------------------------------------------------*/
+	private byte[] getRow(AtomicReferenceArray rows, int[] offsets, int cluster)
+	{
+		byte[] row = (byte[])rows.get(cluster);
+
+		if(row == null)
+		{
+			rows.compareAndSet(cluster, null, decompressRow(offsets[cluster]));
+			row = (byte[])rows.get(cluster);
+		}
+
+		return row;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Expand a run-length encoded row. A zero byte is followed by a count
+ *	of zero bytes to emit; any other byte is copied as it stands. If the
+ *	row lies beyond the end of the lump or is cut short by it, every
+ *	cluster is marked visible, so that a damaged lump can never cause
+ *	a visible point to be culled. */
+/*-------------------------------------------------------------------*/
+	private byte[] decompressRow(int offset)
+	{
+		byte[] row = new byte[rowLength];
+		int limit = visData.limit();
+		int i = 0;
+
+		while(i < rowLength && offset < limit)
+		{
+			byte b = visData.get(offset++);
+
+			if(b != 0)
+				row[i++] = b;
+			else if(offset < limit)
+				i += (visData.get(offset++) & 0xFF);	// row is zero-filled already
+			else
+				break;
+		}
+
+		if(i < rowLength)
+			Arrays.fill(row, (byte)0xFF);
+
+		return row;
+	}
+}
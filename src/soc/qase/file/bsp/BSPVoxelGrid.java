@@ -0,0 +1,503 @@
+//---------------------------------------------------------------------
+// Name:			BSPVoxelGrid.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	A coarse voxelisation of the world geometry of a map, which allows
+ *	approximate line-of-sight and occupancy questions to be answered
+ *	without descending the BSP tree. The bounds of the world model are
+ *	divided into cubic cells of a fixed size, and for each CONTENTS bit
+ *	carried by the world brushes - solid, window, water, lava, slime
+ *	and so forth - the grid holds a packed bitset recording which cells
+ *	may contain a brush of that type. A segment is tested against the
+ *	grid by stepping through the cells it crosses in order, using a 3D
+ *	digital differential analyser.<p>
+ *
+ *	The grid is conservative: a cell is marked if the bounding box of
+ *	any brush, expanded by a small margin, overlaps it, so that a cell
+ *	may be marked while lying entirely in open space, but a cell which
+ *	is not marked is certain to be empty. A segment which the grid
+ *	reports as clear therefore cannot be blocked by a brush of the given
+ *	types, and need not be traced; a segment which is not clear must
+ *	still be traced exactly to discover whether, and where, it collides.
+ *	Space outside the grid is treated as occupied. Only the world model
+ *	is voxelised; the brush models of doors, lifts and so forth are not
+ *	part of the world tree, and are ignored by traces in any case.<p>
+ *
+ *	The grid is built in parallel on the common fork-join pool, each
+ *	task filling a slab of horizontal layers, and is never modified
+ *	thereafter; it may be shared freely between threads.
+ *	@see BSPMap#buildVoxelGrid(float) */
+/*-------------------------------------------------------------------*/
+public class BSPVoxelGrid
+{
+	private float cellSize = 0.0f, invCellSize = 0.0f;
+	private float minX = 0.0f, minY = 0.0f, minZ = 0.0f;
+	private float maxX = 0.0f, maxY = 0.0f, maxZ = 0.0f;
+	private int sizeX = 0, sizeY = 0, sizeZ = 0, rowWords = 0;
+
+	private long[][] layers = new long[32][];	// one bitset per CONTENTS bit, or null
+	private int allContents = 0;				// the bits for which layers exist
+
+	private float[] brushBoxes = null;			// used only while building
+	private int[] brushContents = null;
+
+	private static final float BRUSH_MARGIN = 1.0f;	// allows for rounding in traces and in the DDA
+	private static final int SLAB_TASK_LAYERS = 4;	// layers filled by each parallel task
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Voxelises the world brushes of a map.
+ *	@param map the map to voxelise
+ *	@param cellSize the edge length of each cubic cell, in world units */
+/*-------------------------------------------------------------------*/
+	public BSPVoxelGrid(BSPMap map, float cellSize)
+	{
+		if(!(cellSize > 0.0f))
+			throw new IllegalArgumentException("cell size must be positive");
+
+		BSPModel world = map.modelLump.models[0];
+
+		this.cellSize = cellSize;
+		invCellSize = 1.0f / cellSize;
+
+		minX = world.bboxMin.x - BRUSH_MARGIN;
+		minY = world.bboxMin.y - BRUSH_MARGIN;
+		minZ = world.bboxMin.z - BRUSH_MARGIN;
+
+		sizeX = Math.max(1, (int)Math.ceil((world.bboxMax.x + BRUSH_MARGIN - minX) * invCellSize));
+		sizeY = Math.max(1, (int)Math.ceil((world.bboxMax.y + BRUSH_MARGIN - minY) * invCellSize));
+		sizeZ = Math.max(1, (int)Math.ceil((world.bboxMax.z + BRUSH_MARGIN - minZ) * invCellSize));
+		rowWords = (sizeX + 63) >> 6;
+
+		if((long)sizeZ * sizeY * rowWords > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("cell size too small for map");
+
+		maxX = minX + sizeX * cellSize;
+		maxY = minY + sizeY * cellSize;
+		maxZ = minZ + sizeZ * cellSize;
+
+		getBrushBounds(map.getTree());
+
+		for(int i = 0; i < brushContents.length; i++)
+			allContents |= brushContents[i];
+
+		for(int bit = 0; bit < layers.length; bit++)
+		{
+			if((allContents & (1 << bit)) != 0)
+				layers[bit] = new long[sizeZ * sizeY * rowWords];
+		}
+
+		ForkJoinPool.commonPool().invoke(new SlabTask(0, sizeZ));
+
+		brushBoxes = null;
+		brushContents = null;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Collect the padded bounding boxes and contents of every brush in
+ *	the leaves of the world tree. Compiled brushes carry a bevel plane
+ *	on each axis, from which their bounds are read directly; a brush
+ *	lacking one is taken to extend to the edge of the grid. */
+/*-------------------------------------------------------------------*/
+	private void getBrushBounds(BSPTree tree)
+	{
+		int numBrushes = tree.getNumBrushes();
+		boolean[] inWorld = new boolean[numBrushes];
+
+		int[] stack = new int[tree.getNumNodes() + 1];
+		int depth = 0, count = 0;
+
+		if(tree.getNumNodes() > 0)
+			stack[depth++] = 0;
+
+		while(depth > 0)
+		{
+			int nodeIndex = stack[--depth];
+
+			if(nodeIndex < 0)
+			{
+				int leaf = -(nodeIndex + 1) * BSPTree.LEAF_STRIDE;
+				int firstLeafBrush = tree.leaves[leaf + BSPTree.LEAF_FIRST_BRUSH];
+				int lastLeafBrush = firstLeafBrush + tree.leaves[leaf + BSPTree.LEAF_NUM_BRUSHES];
+
+				for(int i = firstLeafBrush; i < lastLeafBrush && i < tree.leafBrushes.length; i++)
+				{
+					int brush = tree.leafBrushes[i];
+
+					if(brush < numBrushes && !inWorld[brush] && tree.brushes[brush * BSPTree.BRUSH_STRIDE + BSPTree.BRUSH_NUM_SIDES] > 0)
+					{
+						inWorld[brush] = true;
+						count++;
+					}
+				}
+			}
+			else
+			{
+				stack[depth++] = tree.nodes[nodeIndex * BSPTree.NODE_STRIDE + BSPTree.NODE_FRONT];
+				stack[depth++] = tree.nodes[nodeIndex * BSPTree.NODE_STRIDE + BSPTree.NODE_BACK];
+			}
+		}
+
+		brushBoxes = new float[count * 6];
+		brushContents = new int[count];
+
+		for(int brush = 0, j = 0; brush < numBrushes; brush++)
+		{
+			if(!inWorld[brush])
+				continue;
+
+			int firstSide = tree.brushes[brush * BSPTree.BRUSH_STRIDE + BSPTree.BRUSH_FIRST_SIDE];
+			int lastSide = firstSide + tree.brushes[brush * BSPTree.BRUSH_STRIDE + BSPTree.BRUSH_NUM_SIDES];
+
+			float[] box = brushBoxes;
+			int b = j * 6;
+
+			box[b] = minX; box[b + 1] = minY; box[b + 2] = minZ;
+			box[b + 3] = maxX; box[b + 4] = maxY; box[b + 5] = maxZ;
+
+			for(int i = firstSide; i < lastSide; i++)
+			{
+				int plane = tree.brushSidePlanes[i] * BSPTree.PLANE_STRIDE;
+
+				for(int axis = 0; axis < 3; axis++)
+				{
+					if(tree.planes[plane + (axis + 1) % 3] != 0.0f || tree.planes[plane + (axis + 2) % 3] != 0.0f)
+						continue;
+
+					if(tree.planes[plane + axis] == 1.0f)
+						box[b + 3 + axis] = Math.min(box[b + 3 + axis], tree.planes[plane + 3] + BRUSH_MARGIN);
+					else if(tree.planes[plane + axis] == -1.0f)
+						box[b + axis] = Math.max(box[b + axis], -tree.planes[plane + 3] - BRUSH_MARGIN);
+				}
+			}
+
+			brushContents[j++] = tree.brushes[brush * BSPTree.BRUSH_STRIDE + BSPTree.BRUSH_CONTENTS];
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Mark every cell overlapped by a brush within the given range of
+ *	layers. Each layer occupies whole words of the bitsets, so slabs
+ *	of layers may be filled concurrently. */
+/*-------------------------------------------------------------------*/
+	private void fillLayers(int firstZ, int lastZ)
+	{
+		for(int j = 0; j < brushContents.length; j++)
+		{
+			int b = j * 6;
+
+			int z0 = Math.max(firstZ, cellZ(brushBoxes[b + 2]));
+			int z1 = Math.min(lastZ - 1, cellZ(brushBoxes[b + 5]));
+
+			if(z0 > z1 || brushBoxes[b] > brushBoxes[b + 3] || brushBoxes[b + 1] > brushBoxes[b + 4])
+				continue;
+
+			int x0 = cellX(brushBoxes[b]), x1 = cellX(brushBoxes[b + 3]);
+			int y0 = cellY(brushBoxes[b + 1]), y1 = cellY(brushBoxes[b + 4]);
+
+			for(int bit = 0; bit < layers.length; bit++)
+			{
+				if((brushContents[j] & (1 << bit)) == 0)
+					continue;
+
+				long[] layer = layers[bit];
+
+				for(int z = z0; z <= z1; z++)
+				{
+					for(int y = y0; y <= y1; y++)
+					{
+						int row = (z * sizeY + y) * rowWords;
+
+						for(int x = x0; x <= x1; x++)
+							layer[row + (x >> 6)] |= (1L << x);
+					}
+				}
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	A slab of layers filled as a single fork-join task, which splits
+ *	itself in two until each half is small enough to fill. */
+/*-------------------------------------------------------------------*/
+	private class SlabTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int first = 0, last = 0;
+
+		private SlabTask(int first, int last)
+		{
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute()
+		{
+			if(last - first <= SLAB_TASK_LAYERS)
+				fillLayers(first, last);
+			else
+			{
+				int middle = (first + last) >>> 1;
+				invokeAll(new SlabTask(first, middle), new SlabTask(middle, last));
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Convert co-ordinates to cell indices, clamped to the grid. */
+/*-------------------------------------------------------------------*/
+	private int cellX(float x)
+	{
+		return Math.max(0, Math.min(sizeX - 1, (int)Math.floor((x - minX) * invCellSize)));
+	}
+
+	private int cellY(float y)
+	{
+		return Math.max(0, Math.min(sizeY - 1, (int)Math.floor((y - minY) * invCellSize)));
+	}
+
+	private int cellZ(float z)
+	{
+		return Math.max(0, Math.min(sizeZ - 1, (int)Math.floor((z - minZ) * invCellSize)));
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether a point lies within the bounds of the grid. */
+/*-------------------------------------------------------------------*/
+	private boolean inBounds(float x, float y, float z)
+	{
+		return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether a cell may contain any of the given contents, which
+ *	must be restricted to those for which layers exist. */
+/*-------------------------------------------------------------------*/
+	private boolean isOccupied(int contents, int x, int y, int z)
+	{
+		int word = (z * sizeY + y) * rowWords + (x >> 6);
+		long mask = 1L << x;
+
+		for(int bit = 0; contents != 0; bit++, contents >>>= 1)
+		{
+			if((contents & 1) != 0 && (layers[bit][word] & mask) != 0)
+				return true;
+		}
+
+		return false;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the edge length of the grid's cells.
+ *	@return the cell size, in world units */
+/*-------------------------------------------------------------------*/
+	public float getCellSize()
+	{
+		return cellSize;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the minimum corner of the region covered by the grid.
+ *	@return the minimum corner */
+/*-------------------------------------------------------------------*/
+	public Vector3f getMins()
+	{
+		return new Vector3f(minX, minY, minZ);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the maximum corner of the region covered by the grid.
+ *	@return the maximum corner */
+/*-------------------------------------------------------------------*/
+	public Vector3f getMaxs()
+	{
+		return new Vector3f(maxX, maxY, maxZ);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the contents which the cell enclosing a point may contain.
+ *	@param x the x co-ordinate of the point
+ *	@param y the y co-ordinate of the point
+ *	@param z the z co-ordinate of the point
+ *	@return a bitwise OR of the CONTENTS constants in BSPBrush; for a
+ *	point outside the grid, every contents found in the map */
+/*-------------------------------------------------------------------*/
+	public int getContents(float x, float y, float z)
+	{
+		if(!inBounds(x, y, z))
+			return allContents;
+
+		int cx = cellX(x), cy = cellY(y), cz = cellZ(z);
+		int contents = 0;
+
+		for(int bit = 0; bit < layers.length; bit++)
+		{
+			if(layers[bit] != null && isOccupied(1 << bit, cx, cy, cz))
+				contents |= (1 << bit);
+		}
+
+		return contents;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether any of the cells overlapping a box may contain
+ *	brushes of the given types. A box which extends beyond the grid is
+ *	always considered to be occupied.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param mins the minimum corner of the box
+ *	@param maxs the maximum corner of the box
+ *	@return false if the box is certainly free of such brushes, true
+ *	otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isBoxOccupied(int contents, Vector3f mins, Vector3f maxs)
+	{
+		contents &= allContents;
+
+		if(contents == 0)
+			return false;
+
+		if(!inBounds(mins.x, mins.y, mins.z) || !inBounds(maxs.x, maxs.y, maxs.z))
+			return true;
+
+		int x0 = cellX(mins.x), x1 = cellX(maxs.x);
+		int y0 = cellY(mins.y), y1 = cellY(maxs.y);
+		int z0 = cellZ(mins.z), z1 = cellZ(maxs.z);
+
+		for(int z = z0; z <= z1; z++)
+		{
+			for(int y = y0; y <= y1; y++)
+			{
+				for(int x = x0; x <= x1; x++)
+				{
+					if(isOccupied(contents, x, y, z))
+						return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether a segment crosses only cells which are free of
+ *	brushes of the given types. If so, a trace along the segment
+ *	against those brushes cannot collide with anything.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param start the start of the segment
+ *	@param end the end of the segment
+ *	@return true if the segment is certainly clear, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isClear(int contents, Vector3f start, Vector3f end)
+	{
+		return march(contents, start.x, start.y, start.z, end.x, end.y, end.z) >= 1.0f;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	March along a segment through the cells of the grid, and find the
+ *	fraction of the segment at which it first enters a cell which may
+ *	contain brushes of the given types. Since the grid is conservative,
+ *	this is never greater than the fraction at which an exact trace
+ *	against those brushes would collide, and serves as an approximate
+ *	measure of the distance to the nearest obstacle.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param start the start of the segment
+ *	@param end the end of the segment
+ *	@return a value between 0 and 1, where 1 indicates that the segment
+ *	is certainly clear; 0 if either end lies outside the grid */
+/*-------------------------------------------------------------------*/
+	public float march(int contents, Vector3f start, Vector3f end)
+	{
+		return march(contents, start.x, start.y, start.z, end.x, end.y, end.z);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	March along a segment through the cells of the grid. Identical to
+ *	march(int, Vector3f, Vector3f), but accepts the co-ordinates of the
+ *	segment directly so that no vectors need be supplied.
+ *	@param contents a bitwise OR of the CONTENTS constants in BSPBrush
+ *	@param startX the x co-ordinate of the start of the segment
+ *	@param startY the y co-ordinate of the start of the segment
+ *	@param startZ the z co-ordinate of the start of the segment
+ *	@param endX the x co-ordinate of the end of the segment
+ *	@param endY the y co-ordinate of the end of the segment
+ *	@param endZ the z co-ordinate of the end of the segment
+ *	@return a value between 0 and 1, where 1 indicates that the segment
+ *	is certainly clear; 0 if either end lies outside the grid */
+/*-------------------------------------------------------------------*/
+	public float march(int contents, float startX, float startY, float startZ, float endX, float endY, float endZ)
+	{
+		contents &= allContents;
+
+		if(contents == 0)
+			return 1.0f;
+
+		if(!inBounds(startX, startY, startZ) || !inBounds(endX, endY, endZ))
+			return 0.0f;
+
+		int x = cellX(startX), y = cellY(startY), z = cellZ(startZ);
+		int lastX = cellX(endX), lastY = cellY(endY), lastZ = cellZ(endZ);
+
+		float dirX = endX - startX, dirY = endY - startY, dirZ = endZ - startZ;
+		int stepX = (dirX > 0 ? 1 : (dirX < 0 ? -1 : 0));
+		int stepY = (dirY > 0 ? 1 : (dirY < 0 ? -1 : 0));
+		int stepZ = (dirZ > 0 ? 1 : (dirZ < 0 ? -1 : 0));
+
+		// fraction of the segment spanned by one cell along each axis,
+		// and the fraction at which the next cell boundary is crossed
+		float deltaX = (stepX == 0 ? Float.POSITIVE_INFINITY : cellSize / Math.abs(dirX));
+		float deltaY = (stepY == 0 ? Float.POSITIVE_INFINITY : cellSize / Math.abs(dirY));
+		float deltaZ = (stepZ == 0 ? Float.POSITIVE_INFINITY : cellSize / Math.abs(dirZ));
+
+		float nextX = (stepX == 0 ? Float.POSITIVE_INFINITY : (minX + (x + (stepX > 0 ? 1 : 0)) * cellSize - startX) / dirX);
+		float nextY = (stepY == 0 ? Float.POSITIVE_INFINITY : (minY + (y + (stepY > 0 ? 1 : 0)) * cellSize - startY) / dirY);
+		float nextZ = (stepZ == 0 ? Float.POSITIVE_INFINITY : (minZ + (z + (stepZ > 0 ? 1 : 0)) * cellSize - startZ) / dirZ);
+
+		float fraction = 0.0f;
+
+		for(int steps = sizeX + sizeY + sizeZ; steps >= 0; steps--)
+		{
+			if(isOccupied(contents, x, y, z))
+				return fraction;
+
+			if(x == lastX && y == lastY && z == lastZ)
+				return 1.0f;
+
+			if(nextX <= nextY && nextX <= nextZ)
+			{
+				fraction = nextX;
+				x += stepX;
+				nextX += deltaX;
+			}
+			else if(nextY <= nextZ)
+			{
+				fraction = nextY;
+				y += stepY;
+				nextY += deltaY;
+			}
+			else
+			{
+				fraction = nextZ;
+				z += stepZ;
+				nextZ += deltaZ;
+			}
+
+			if(fraction > 1.0f)
+				return 1.0f;
+
+			// rounding has carried the march off the grid
+			if(x < 0 || x >= sizeX || y < 0 || y >= sizeY || z < 0 || z >= sizeZ)
+				return fraction;
+		}
+
+		return fraction;
+	}
+}
@@ -0,0 +1,283 @@
+//---------------------------------------------------------------------
+// Name:			RayBatch.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	A set of rays to be traced through a BSPMap in a single call, along
+ *	with the results of doing so. Every ray in a batch is swept using
+ *	the same trace type and brush type; each has its own origin,
+ *	direction and maximum distance. The inputs and outputs are held in
+ *	flat float arrays - three elements per ray for origins, directions
+ *	and endpoints, one for distances and fractions - which may be
+ *	filled and read directly by the caller, or through the per-ray
+ *	accessors.<p>
+ *
+ *	A batch may be reused from one frame to the next; only the rays
+ *	themselves need be updated. This allows an agent to perform a full
+ *	range-finder sweep every frame without allocating any objects.
+ *	@see BSPMap#traceRays(RayBatch)
+ *	@see BSPMap#traceRays(RayBatch, boolean) */
+/*-------------------------------------------------------------------*/
+public class RayBatch
+{
+	int traceType = BSPParser.TRACE_LINE;
+	int brushType = BSPBrush.CONTENTS_SOLID;
+
+	float radius = 0.0f;
+	Vector3f mins = new Vector3f(0, 0, 0);
+	Vector3f maxs = new Vector3f(0, 0, 0);
+
+	int numRays = 0;
+
+	float[] origins = null;
+	float[] directions = null;
+	float[] maxDistances = null;
+
+	float[] fractions = null;
+	float[] ends = null;
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Creates a batch of line traces against solid brushes.
+ *	@param capacity the maximum number of rays the batch can hold */
+/*-------------------------------------------------------------------*/
+	public RayBatch(int capacity)
+	{
+		origins = new float[capacity * 3];
+		directions = new float[capacity * 3];
+		maxDistances = new float[capacity];
+
+		fractions = new float[capacity];
+		ends = new float[capacity * 3];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Sweep a line along each ray. */
+/*-------------------------------------------------------------------*/
+	public void setLineTrace()
+	{
+		traceType = BSPParser.TRACE_LINE;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Sweep a sphere along each ray.
+ *	@param radius the radius of the sphere */
+/*-------------------------------------------------------------------*/
+	public void setSphereTrace(float radius)
+	{
+		this.radius = radius;
+		traceType = BSPParser.TRACE_SPHERE;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Sweep a bounding box along each ray.
+ *	@param mins the lower reference point of the bounding box
+ *	@param maxs the upper reference point of the bounding box */
+/*-------------------------------------------------------------------*/
+	public void setBoxTrace(Vector3f mins, Vector3f maxs)
+	{
+		this.mins.set(mins);
+		this.maxs.set(maxs);
+		traceType = BSPParser.TRACE_BOX;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the type of trace performed for each ray.
+ *	@return one of the TRACE constants found in BSPParser */
+/*-------------------------------------------------------------------*/
+	public int getTraceType()
+	{
+		return traceType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Set the type of brush to check for when sweeping, specified by
+ *	the constants found in BSPBrush.
+ *	@param brushType the type of brush to check against
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public void setBrushType(int brushType)
+	{
+		this.brushType = brushType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the type of brush against which rays are checked.
+ *	@return the brush type, as a combination of the BSPBrush constants */
+/*-------------------------------------------------------------------*/
+	public int getBrushType()
+	{
+		return brushType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the maximum number of rays the batch can hold.
+ *	@return the capacity of the batch */
+/*-------------------------------------------------------------------*/
+	public int getCapacity()
+	{
+		return maxDistances.length;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of rays currently in the batch.
+ *	@return the number of rays */
+/*-------------------------------------------------------------------*/
+	public int getNumRays()
+	{
+		return numRays;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Set the number of rays in the batch. Used when the ray arrays have
+ *	been filled directly rather than through addRay.
+ *	@param numRays the number of rays, no greater than the capacity */
+/*-------------------------------------------------------------------*/
+	public void setNumRays(int numRays)
+	{
+		if(numRays < 0 || numRays > getCapacity())
+			throw new IllegalArgumentException("ray count " + numRays + " exceeds capacity " + getCapacity());
+
+		this.numRays = numRays;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Remove all rays from the batch. */
+/*-------------------------------------------------------------------*/
+	public void clear()
+	{
+		numRays = 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Add a ray to the batch.
+ *	@param origin the start point of the ray
+ *	@param dir the direction of the ray; need not be normalised
+ *	@param maxDist the maximum distance across which to sweep
+ *	@return the index of the new ray */
+/*-------------------------------------------------------------------*/
+	public int addRay(Vector3f origin, Vector3f dir, float maxDist)
+	{
+		setRay(numRays, origin, dir, maxDist);
+		return numRays++;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Replace the ray at the given index.
+ *	@param index the index of the ray
+ *	@param origin the start point of the ray
+ *	@param dir the direction of the ray; need not be normalised
+ *	@param maxDist the maximum distance across which to sweep */
+/*-------------------------------------------------------------------*/
+	public void setRay(int index, Vector3f origin, Vector3f dir, float maxDist)
+	{
+		origins[index * 3] = origin.x;
+		origins[index * 3 + 1] = origin.y;
+		origins[index * 3 + 2] = origin.z;
+
+		directions[index * 3] = dir.x;
+		directions[index * 3 + 1] = dir.y;
+		directions[index * 3 + 2] = dir.z;
+
+		maxDistances[index] = maxDist;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the array of ray origins, three elements per ray.
+ *	@return the origin array */
+/*-------------------------------------------------------------------*/
+	public float[] getOrigins()
+	{
+		return origins;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the array of ray directions, three elements per ray.
+ *	@return the direction array */
+/*-------------------------------------------------------------------*/
+	public float[] getDirections()
+	{
+		return directions;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the array of maximum sweep distances, one element per ray.
+ *	@return the distance array */
+/*-------------------------------------------------------------------*/
+	public float[] getMaxDistances()
+	{
+		return maxDistances;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the array of trace fractions, one element per ray, filled in
+ *	when the batch is traced. A fraction of 1 indicates that nothing
+ *	blocked the ray.
+ *	@return the fraction array */
+/*-------------------------------------------------------------------*/
+	public float[] getFractions()
+	{
+		return fractions;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the array of trace endpoints, three elements per ray, filled in
+ *	when the batch is traced.
+ *	@return the endpoint array */
+/*-------------------------------------------------------------------*/
+	public float[] getEnds()
+	{
+		return ends;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the fraction of a ray which was swept before a collision.
+ *	@param index the index of the ray
+ *	@return a value between 0 and 1, where 1 indicates that nothing
+ *	blocked the ray */
+/*-------------------------------------------------------------------*/
+	public float getFraction(int index)
+	{
+		return fractions[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether a ray was blocked before reaching its maximum distance.
+ *	@param index the index of the ray
+ *	@return true if the ray collided with a matching brush */
+/*-------------------------------------------------------------------*/
+	public boolean isHit(int index)
+	{
+		return fractions[index] < 1.0f;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Copy the point at which a ray ended into the given vector.
+ *	@param index the index of the ray
+ *	@param end the vector into which the endpoint is written
+ *	@return the end vector, for convenience */
+/*-------------------------------------------------------------------*/
+	public Vector3f getEnd(int index, Vector3f end)
+	{
+		end.set(ends[index * 3], ends[index * 3 + 1], ends[index * 3 + 2]);
+		return end;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the distance from a ray's origin to the point at which it ended.
+ *	@param index the index of the ray
+ *	@return the distance to the first collision */
+/*-------------------------------------------------------------------*/
+	public float getDistance(int index)
+	{
+		float x = ends[index * 3] - origins[index * 3];
+		float y = ends[index * 3 + 1] - origins[index * 3 + 1];
+		float z = ends[index * 3 + 2] - origins[index * 3 + 2];
+
+		return (float)Math.sqrt(x * x + y * y + z * z);
+	}
+}
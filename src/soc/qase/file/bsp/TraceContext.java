@@ -0,0 +1,156 @@
+//---------------------------------------------------------------------
+// Name:			TraceContext.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	Holds the working state of a single trace through a BSPMap - the
+ *	type and dimensions of the shape being swept, the type of brush
+ *	against which it is tested, and the outcome of the trace. Because
+ *	the map itself is never modified by a trace, any number of threads
+ *	may trace against the same BSPMap concurrently, provided each uses
+ *	its own TraceContext. A context may be reused for any number of
+ *	successive traces, but must not be shared between threads.<p>
+ *
+ *	Each context carries a TraceResult of its own, into which traces
+ *	are written unless the caller supplies a different result object.
+ *	It also remembers the last point located in the tree, so that an
+ *	agent which repeatedly queries its own position - as it does many
+ *	times a frame, and for as long as it stands still - need only
+ *	descend the tree once.
+ *	@see BSPMap
+ *	@see TraceResult */
+/*-------------------------------------------------------------------*/
+public class TraceContext
+{
+	int traceType = BSPParser.TRACE_LINE;
+	int brushType = BSPBrush.CONTENTS_SOLID;
+
+	float traceRadius = 0.0f;
+
+	// start and end of the current trace
+	float startX, startY, startZ;
+	float endX, endY, endZ;
+
+	// bounding box of the current box trace
+	float minX, minY, minZ;
+	float maxX, maxY, maxZ;
+	float extentX, extentY, extentZ;
+
+	TraceResult output = null;
+	TraceResult result = new TraceResult();
+
+	Vector3f endpoint = new Vector3f(0, 0, 0);
+
+	// the most recent point located in the tree, and its leaf; the map
+	// is recorded by id so that the context does not keep it reachable
+	int pointMapId = -1;
+	float pointX, pointY, pointZ;
+	int pointLeaf = -1;
+	int pointContents = 0;
+	boolean pointContentsKnown = false;
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. Traces will check against solid brushes. */
+/*-------------------------------------------------------------------*/
+	public TraceContext()
+	{
+		output = result;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Allows the type of brush to check against to be
+ *	specified.
+ *	@param brushType the type of brush to check against, specified
+ *	by the constants found in BSPBrush
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public TraceContext(int brushType)
+	{
+		this();
+		this.brushType = brushType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Set the type of brush to check for when sweeping, specified by
+ *	the constants found in BSPBrush.
+ *	@param brushType the type of brush to check against
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public void setBrushType(int brushType)
+	{
+		this.brushType = brushType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the type of brush against which traces are checked.
+ *	@return the brush type, as a combination of the BSPBrush constants */
+/*-------------------------------------------------------------------*/
+	public int getBrushType()
+	{
+		return brushType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the type of the most recent trace.
+ *	@return one of the TRACE constants found in BSPParser */
+/*-------------------------------------------------------------------*/
+	public int getTraceType()
+	{
+		return traceType;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the context's own TraceResult, into which traces are written
+ *	when the caller does not supply a result of its own.
+ *	@return the context's result object */
+/*-------------------------------------------------------------------*/
+	public TraceResult getResult()
+	{
+		return result;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the fraction of the most recent trace which was completed
+ *	before a collision occurred.
+ *	@return a value between 0 and 1, where 1 indicates that nothing
+ *	blocked the trace */
+/*-------------------------------------------------------------------*/
+	public float getFraction()
+	{
+		return output.fraction;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the most recent trace began inside a matching brush.
+ *	@return true if the trace started in solid, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isStartSolid()
+	{
+		return output.startSolid;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the most recent trace lay entirely within a matching
+ *	brush.
+ *	@return true if the trace was entirely in solid, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isAllSolid()
+	{
+		return output.allSolid;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the point at which the most recent trace ended. The returned
+ *	object is owned by the context, and is overwritten by the next trace.
+ *	@return the endpoint of the trace */
+/*-------------------------------------------------------------------*/
+	public Vector3f getEnd()
+	{
+		return output.endPos;
+	}
+}
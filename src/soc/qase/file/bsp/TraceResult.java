@@ -0,0 +1,146 @@
+//---------------------------------------------------------------------
+// Name:			TraceResult.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.file.bsp;
+
+import soc.qase.tools.vecmath.Vector3f;
+
+/*-------------------------------------------------------------------*/
+/**	The outcome of a trace through a BSPMap - the fraction of the trace
+ *	completed before a collision, the point at which it ended, the plane
+ *	and contents of the brush which stopped it, and whether it started
+ *	or lay entirely within solid space. A TraceResult is supplied by
+ *	the caller and overwritten by each trace into which it is passed,
+ *	so that repeated traces need not allocate any objects. The vectors
+ *	returned by its accessors are owned by the result, and are likewise
+ *	overwritten by the next trace.
+ *	@see BSPMap#traceLine(TraceContext, Vector3f, Vector3f, TraceResult) */
+/*-------------------------------------------------------------------*/
+public class TraceResult
+{
+	float fraction = 1.0f;
+
+	boolean startSolid = false;
+	boolean allSolid = false;
+
+	int contents = 0;
+	int planeNum = -1;
+	float planeDistance = 0.0f;
+
+	Vector3f endPos = new Vector3f(0, 0, 0);
+	Vector3f planeNormal = new Vector3f(0, 0, 0);
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. */
+/*-------------------------------------------------------------------*/
+	public TraceResult()
+	{	}
+
+/*-------------------------------------------------------------------*/
+/*	Clear the result before a new trace begins. */
+/*-------------------------------------------------------------------*/
+	void reset()
+	{
+		fraction = 1.0f;
+
+		startSolid = false;
+		allSolid = false;
+
+		contents = 0;
+		planeNum = -1;
+		planeDistance = 0.0f;
+
+		planeNormal.set(0, 0, 0);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the fraction of the trace which was completed before a
+ *	collision occurred.
+ *	@return a value between 0 and 1, where 1 indicates that nothing
+ *	blocked the trace */
+/*-------------------------------------------------------------------*/
+	public float getFraction()
+	{
+		return fraction;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the trace was blocked before reaching its endpoint.
+ *	@return true if the trace collided with a matching brush, false
+ *	otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isHit()
+	{
+		return fraction < 1.0f;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the point at which the trace ended; this is the requested
+ *	endpoint if nothing blocked the trace.
+ *	@return the endpoint of the trace */
+/*-------------------------------------------------------------------*/
+	public Vector3f getEnd()
+	{
+		return endPos;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the normal of the brush plane with which the trace collided.
+ *	@return the plane normal, or a zero vector if nothing was hit */
+/*-------------------------------------------------------------------*/
+	public Vector3f getPlaneNormal()
+	{
+		return planeNormal;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the distance from the origin of the brush plane with which the
+ *	trace collided.
+ *	@return the plane distance, or 0 if nothing was hit */
+/*-------------------------------------------------------------------*/
+	public float getPlaneDistance()
+	{
+		return planeDistance;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the index of the brush plane with which the trace collided.
+ *	@return the index of the plane in the map's Plane lump, or -1 if
+ *	nothing was hit */
+/*-------------------------------------------------------------------*/
+	public int getPlaneNumber()
+	{
+		return planeNum;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the contents of the brush with which the trace collided.
+ *	@return the brush contents, as a combination of the BSPBrush
+ *	CONTENTS constants, or 0 if nothing was hit
+ *	@see BSPBrush */
+/*-------------------------------------------------------------------*/
+	public int getContents()
+	{
+		return contents;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the trace began inside a matching brush.
+ *	@return true if the trace started in solid, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isStartSolid()
+	{
+		return startSolid;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the trace lay entirely within a matching brush.
+ *	@return true if the trace was entirely in solid, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isAllSolid()
+	{
+		return allSolid;
+	}
+}
@@ -13,7 +13,6 @@ import java.util.Vector;
 import soc.qase.com.message.ServerData;
 import soc.qase.com.message.ServerMessageHandler;
 import soc.qase.com.message.ServerReconnect;
-import soc.qase.com.packet.ServerPacket;
 import soc.qase.state.World;
 import soc.qase.tools.Utils;
 
@@ -55,7 +54,7 @@ public class DM2Parser extends ServerMessageHandler
 /*-------------------------------------------------------------------*/
 	public DM2Parser()
 	{
-		world = new World(true);
+		world = createWorld(true);
 		blockLength = new byte[4];		
 	}
 
@@ -64,7 +63,7 @@ public class DM2Parser extends ServerMessageHandler
 /*-------------------------------------------------------------------*/
 	public DM2Parser(String filename)
 	{
-		world = new World(true);
+		world = createWorld(true);
 		blockLength = new byte[4];
 
 		if(filename != null)
@@ -123,7 +122,7 @@ public class DM2Parser extends ServerMessageHandler
 		server = null;
 		mapNumber = -1;
 		worldNumber = -1;
-		world = new World(true);
+		world = createWorld(true);
 
 		try
 		{	bufIn.seek(0);	}
@@ -146,18 +145,17 @@ public class DM2Parser extends ServerMessageHandler
 				return false;
 			}
 	
-			incomingData = new byte[Utils.intValue(blockLength, 0)];
-			bufIn.read(incomingData);
+			int length = Utils.intValue(blockLength, 0);
 
-			int dataIndex = 0;
+			if(incomingData == null || incomingData.length < length)
+				incomingData = new byte[Math.max(length, 2048)];
 
-			while(dataIndex != incomingData.length)
-			{
-				ServerPacket packet = new ServerPacket(incomingData, dataIndex);
-				processServerPacket(packet);
+			bufIn.read(incomingData, 0, length);
 
-				dataIndex += packet.getLength();
-			}
+			int dataIndex = 0;
+
+			while(dataIndex < length)
+				dataIndex += processServerMessage(incomingData, dataIndex, length);
 		}
 		catch(IOException ioe)
 		{
@@ -368,7 +366,7 @@ public class DM2Parser extends ServerMessageHandler
 			System.out.println("Processing: ServerReconnect");
 
 		server = null;
-		world = new World(true);
+		world = createWorld(true);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -12,12 +12,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
-import soc.qase.com.message.Message;
-import soc.qase.com.message.ServerData;
-import soc.qase.com.message.ServerDownload;
-import soc.qase.com.message.ServerReconnect;
-import soc.qase.com.message.ServerStuffText;
-import soc.qase.com.packet.ServerPacket;
+import soc.qase.com.message.ServerMessageRegistry;
 import soc.qase.tools.Utils;
 
 /*-------------------------------------------------------------------*/
@@ -41,9 +36,14 @@ public class DM2Recorder
 
 	protected ByteArrayOutputStream store = null;
 	protected ByteArrayOutputStream storeHeader = null;
+	protected ByteArrayOutputStream filtered = null;
 
 	protected boolean recording = false;
 
+	private byte[] serverDataPatch = new byte[5];
+
+	private static final byte[] PRECACHE = new byte[]{11, 'p', 'r', 'e', 'c', 'a', 'c', 'h', 'e', '\n', '\0'};
+
 /*-------------------------------------------------------------------*/
 /**	Default constructor. Prepares the DM2Recorder to start saving the
  *	session. */
@@ -69,6 +69,7 @@ public class DM2Recorder
 		blockLength = new byte[4];
 		store = new ByteArrayOutputStream(500 * 1024);
 		storeHeader = new ByteArrayOutputStream(500 * 1024);
+		filtered = new ByteArrayOutputStream(2048);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -99,23 +100,27 @@ public class DM2Recorder
  *	block of normal in-game data, as distinct from header data.
  *	@param block the block of data to be added
  *	@see #addHeader(byte[])
- *	@see soc.qase.com.Proxy#processIncomingDataPacket(byte[]) */
+ *	@see soc.qase.com.Proxy#processIncomingDataPacket(byte[], int, int) */
 /*-------------------------------------------------------------------*/
 	public synchronized void addData(byte[] block)
+	{
+		addData(block, 0, block.length);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Add a block of data to the recording, reading it directly from a
+ *	region of a larger array such as a pooled receive buffer.
+ *	@param block array containing the block of data to be added
+ *	@param offset position of the block within the array
+ *	@param length length of the block
+ *	@see #addData(byte[]) */
+/*-------------------------------------------------------------------*/
+	public synchronized void addData(byte[] block, int offset, int length)
 	{
 		if(!recording)
 			return;
 
-		block = filterData(block);
-		Utils.intToByteArray(block.length, blockLength, 0);
-
-		try
-		{
-			store.write(blockLength);
-			store.write(block);
-		}
-		catch(IOException ioe)
-		{	}
+		writeBlock(store, block, offset, length);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -124,67 +129,98 @@ public class DM2Recorder
  *	from normal in-game data.
  *	@param block the block of header data to be added
  *	@see #addData(byte[])
- *	@see soc.qase.com.Proxy#processIncomingDataPacket(byte[]) */
+ *	@see soc.qase.com.Proxy#processIncomingDataPacket(byte[], int, int) */
 /*-------------------------------------------------------------------*/
 	public synchronized void addHeader(byte[] block)
 	{
-		block = filterData(block);
-		Utils.intToByteArray(block.length, blockLength, 0);
+		addHeader(block, 0, block.length);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Add a block of header data to the recording, reading it directly
+ *	from a region of a larger array such as a pooled receive buffer.
+ *	@param block array containing the block of header data to be added
+ *	@param offset position of the block within the array
+ *	@param length length of the block
+ *	@see #addHeader(byte[]) */
+/*-------------------------------------------------------------------*/
+	public synchronized void addHeader(byte[] block, int offset, int length)
+	{
+		writeBlock(storeHeader, block, offset, length);
+	}
+
+	private void writeBlock(ByteArrayOutputStream out, byte[] block, int offset, int length)
+	{
+		filterData(block, offset, length);
+		Utils.intToByteArray(filtered.size(), blockLength, 0);
 
 		try
 		{
-			storeHeader.write(blockLength);
-			storeHeader.write(block);
+			out.write(blockLength);
+			filtered.writeTo(out);
 		}
 		catch(IOException ioe)
 		{	}
 	}
 
-	private byte[] filterData(byte[] incomingData)
+	private void filterData(byte[] incomingData, int offset, int length)
 	{
-		byte[] temp = new byte[0];
-		byte[] result = new byte[0];
-		byte[] curData = new byte[0];
+		int end = offset + length;
+		int dataIndex = offset + 8;
+
+		filtered.reset();
 
-		if(incomingData != null)
+		while(dataIndex < end)
 		{
-			int dataIndex = 8;
+			int type = ServerMessageRegistry.getType(incomingData, dataIndex);
+			int fullLength = ServerMessageRegistry.getMessageLength(incomingData, dataIndex, end);
+			int msgLength = Math.min(fullLength, end - dataIndex);
 
-			while(dataIndex != incomingData.length)
+			if(type == ServerMessageRegistry.SERVER_STUFF_TEXT)
 			{
-				ServerPacket sPacket = new ServerPacket(incomingData, dataIndex);
-				Message msg = sPacket.getMessage();
-
-				if(msg instanceof ServerStuffText)
-				{
-					String text = Utils.stringValue(incomingData, dataIndex + 1, Utils.stringLength(incomingData, dataIndex + 1));
-
-					if(text.indexOf("precache") != -1)
-						curData = new byte[]{11, 'p', 'r', 'e', 'c', 'a', 'c', 'h', 'e', '\n', '\0'};
-					else if(text.indexOf("cmd configstring") != -1 || text.indexOf("cmd baseline") != -1 || text.indexOf("record") != -1)
-						curData = null;
-					else
-						curData = Utils.extractBytes(incomingData, dataIndex, sPacket.getLength());
-				}
-				else if(msg instanceof ServerData)
-				{
-					curData = Utils.extractBytes(incomingData, dataIndex, sPacket.getLength());
-					Utils.intToByteArray(65578, curData, 5);
-					curData[9] = 1;
-				}
-				else if(msg instanceof ServerReconnect || msg instanceof ServerDownload)
-					curData = null;
-				else
-					curData = Utils.extractBytes(incomingData, dataIndex, sPacket.getLength());
-
-				if(curData != null)
-					result = Utils.concatBytes(result, curData);
-
-				dataIndex += sPacket.getLength();
+				int textEnd = dataIndex + msgLength;
+
+				if(contains(incomingData, dataIndex + 1, textEnd, "precache"))
+					filtered.write(PRECACHE, 0, PRECACHE.length);
+				else if(!contains(incomingData, dataIndex + 1, textEnd, "cmd configstring") && !contains(incomingData, dataIndex + 1, textEnd, "cmd baseline") && !contains(incomingData, dataIndex + 1, textEnd, "record"))
+					filtered.write(incomingData, dataIndex, msgLength);
+			}
+			else if(type == ServerMessageRegistry.SERVER_DATA && msgLength >= 10)
+			{	// rewrite the protocol version and mark the stream as a demo
+				Utils.intToByteArray(65578, serverDataPatch, 0);
+				serverDataPatch[4] = 1;
+
+				filtered.write(incomingData, dataIndex, 5);
+				filtered.write(serverDataPatch, 0, 5);
+				filtered.write(incomingData, dataIndex + 10, msgLength - 10);
 			}
+			else if(type != ServerMessageRegistry.SERVER_RECONNECT && type != ServerMessageRegistry.SERVER_DOWNLOAD)
+				filtered.write(incomingData, dataIndex, msgLength);
+
+			dataIndex += fullLength;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Check whether a region of the data contains the given ASCII text,
+ *	without building a String from it. */
+/*-------------------------------------------------------------------*/
+	private static boolean contains(byte[] data, int start, int end, String text)
+	{
+		int last = end - text.length();
+
+		for(int i = start; i <= last; i++)
+		{
+			int j = 0;
+
+			while(j < text.length() && data[i + j] == text.charAt(j))
+				j++;
+
+			if(j == text.length())
+				return true;
 		}
 
-		return result;
+		return false;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -8,6 +8,9 @@ package soc.qase.file.pak;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Vector;
 
 import soc.qase.tools.Utils;
@@ -148,6 +151,37 @@ public class PAKParser
 		return fileData;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Memory-map the region of the PAK archive which holds a specific
+ *	file, rather than copying its contents onto the heap. The mapping
+ *	remains valid after the PAKParser is closed.
+ *	@param pathAndFilename the path and name of the file to map
+ *	@return a read-only, little-endian buffer spanning the file data,
+ *	or null if the file could not be found or mapped */
+/*-------------------------------------------------------------------*/
+	public ByteBuffer mapFile(String pathAndFilename)
+	{
+		if(!fileOpen)
+			return null;
+
+		if(pathAndFilename.charAt(0) == '/' || pathAndFilename.charAt(0) == '\\')
+			pathAndFilename = pathAndFilename.substring(1);
+
+		int[] fileLocation = pakDirectory.getFileLocation(pathAndFilename);
+
+		if(fileLocation == null || fileLocation[0] < 0 || fileLocation[1] < 0)
+			return null;
+
+		try
+		{
+			return bufIn.getChannel().map(FileChannel.MapMode.READ_ONLY, fileLocation[0], fileLocation[1]).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		catch(IOException ioe)
+		{
+			return null;
+		}
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Find the full path of a file in the archive based on the name.
  *	@param fileName the name of the file to find
@@ -241,6 +275,26 @@ public class PAKParser
 			return null;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Convenience method which instantiates an anonymous PAKParser and
+ *	memory-maps the region of the archive holding a known file.
+ *	@param pakPathAndName the fully-qualified filename of the PAK archive
+ *	@param filePathAndName the path and name of the file within the PAK
+ *	@return a read-only, little-endian buffer spanning the file data,
+ *	or null if the file could not be found or mapped */
+/*-------------------------------------------------------------------*/
+	public static ByteBuffer mapFileFromPAK(String pakPathAndName, String filePathAndName)
+	{
+		ByteBuffer fileData = null;
+		PAKParser pakParser = new PAKParser();
+
+		if(pakParser.load(pakPathAndName))
+			fileData = pakParser.mapFile(filePathAndName);
+
+		pakParser.close();
+		return fileData;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Convenience method which instantiates an anonymous PAKParser and
  *	searches for a file whose name is known, but not its path in the archive.
@@ -6,6 +6,9 @@
 
 package soc.qase.info;
 
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
 /*-------------------------------------------------------------------*/
 /**	Wrapper class for game configuration strings. */
 /*-------------------------------------------------------------------*/
@@ -14,6 +17,17 @@ public class Config
 	private int configSize = 2048;
 	private String[] configStrings = null;
 
+	// classification of the model and player skin strings, by config index
+	private String[] modelCategories = null;
+	private String[] modelTypes = null;
+	private String[] modelSubTypes = null;
+	private String[] modelPlayerNames = null;
+	private String[] modelPlayerSkins = null;
+	private boolean[] modelPaths = null;
+	private int[] modelInventoryIndices = null;
+	private int maxClients = Integer.MIN_VALUE;
+	private int modificationCount = 0;
+
 	// indices of subsections within the Config table
 	public static final int	SECTION_STATUSBAR = 5, SECTION_MAX_CLIENTS = 30, SECTION_MODELS = 32,
 							SECTION_WEAPON_SKINS = 34, SECTION_SOUNDS = 288, SECTION_IMAGES = 544,
@@ -46,6 +60,16 @@ public class Config
 
 		for(int i = 0; i < configSize; i++)
 			configStrings[i] = null;
+
+		modelCategories = new String[configSize];
+		modelTypes = new String[configSize];
+		modelSubTypes = new String[configSize];
+		modelPlayerNames = new String[configSize];
+		modelPlayerSkins = new String[configSize];
+		modelPaths = new boolean[configSize];
+		modelInventoryIndices = new int[configSize];
+
+		Arrays.fill(modelInventoryIndices, -1);
 	}
 
 /*-------------------------------------------------------------------*/
@@ -85,12 +109,15 @@ public class Config
 
 /*-------------------------------------------------------------------*/
 /**	Set config string at specified index. Records the index at which
- *	the config strings of certain important items were stored.
+ *	the config strings of certain important items were stored, and
+ *	reclassifies the entities which use the string as their model.
  *	@param index config string index.
  *	@param configString source. */
 /*-------------------------------------------------------------------*/
 	public void setConfigString(int index, String configString) 
 	{
+		modificationCount++;
+
 		if(configString == null || configString.equals(""))
 			configStrings[index] = null;
 		else
@@ -103,6 +130,146 @@ public class Config
 					itemsIndex[i] = index;
 			}
 		}
+
+		if(index == SECTION_MAX_CLIENTS)
+			maxClients = Integer.MIN_VALUE;
+		else
+			classifyModel(index);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Parse the model string at the given index into the category, type
+ *	and subtype of the entities which use it, as Entity.confirmFamily
+ *	would, and resolve its inventory index. */
+/*-------------------------------------------------------------------*/
+	private void classifyModel(int index)
+	{
+		String modelString = configStrings[index];
+
+		modelCategories[index] = modelTypes[index] = modelSubTypes[index] = null;
+		modelPlayerNames[index] = modelPlayerSkins[index] = null;
+		modelPaths[index] = false;
+		modelInventoryIndices[index] = modelStringToInventoryIndex(modelString);
+
+		if(modelString == null)
+			return;
+
+		StringTokenizer st = new StringTokenizer(modelString, "/");
+		String currentString = (st.hasMoreTokens() ? st.nextToken() : "");
+
+		if(!currentString.equals("models"))
+		{
+			st = new StringTokenizer(modelString, "\\");
+
+			modelPlayerNames[index] = (st.hasMoreTokens() ? st.nextToken() : null);
+			modelPlayerSkins[index] = (st.hasMoreTokens() ? st.nextToken() : null);
+			return;
+		}
+
+		modelPaths[index] = true;
+		currentString = (st.hasMoreTokens() ? st.nextToken() : "");
+
+		if((currentString.equals("items") || currentString.equals("weapons") || currentString.equals("objects")) && st.hasMoreTokens())
+		{
+			modelCategories[index] = currentString;
+			modelTypes[index] = st.nextToken();
+
+			if(st.hasMoreTokens())
+			{
+				currentString = st.nextToken();
+
+				if(!currentString.equals("tris.md2"))
+					modelSubTypes[index] = currentString;
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the config string at the specified index is the path
+ *	of a model file (ie of the form models/category/type/...), rather
+ *	than a player skin or sprite. Called by Entity.
+ *	@param index config string index
+ *	@return true if the string is a model path, false otherwise
+ *	@see soc.qase.state.Entity#confirmFamily() */
+/*-------------------------------------------------------------------*/
+	public boolean isModelPath(int index)
+	{
+		return modelPaths[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the category of the entities whose model is given by the config
+ *	string at the specified index. Called by Entity.
+ *	@param index config string index
+ *	@return the category, or null if the string is not the path of an
+ *	item, weapon or object model
+ *	@see soc.qase.state.Entity#getCategory() */
+/*-------------------------------------------------------------------*/
+	public String getModelCategory(int index)
+	{
+		return modelCategories[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the type of the entities whose model is given by the config
+ *	string at the specified index. Called by Entity.
+ *	@param index config string index
+ *	@return the type, or null if the string is not the path of an
+ *	item, weapon or object model
+ *	@see soc.qase.state.Entity#getType() */
+/*-------------------------------------------------------------------*/
+	public String getModelType(int index)
+	{
+		return modelTypes[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the subtype of the entities whose model is given by the config
+ *	string at the specified index. Called by Entity.
+ *	@param index config string index
+ *	@return the subtype, or null if the model has no subtype
+ *	@see soc.qase.state.Entity#getSubType() */
+/*-------------------------------------------------------------------*/
+	public String getModelSubType(int index)
+	{
+		return modelSubTypes[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the name of the player whose skin is given by the config string
+ *	at the specified index. Called by Entity.
+ *	@param index config string index
+ *	@return the player name, or null if the string is a model path
+ *	@see soc.qase.state.Entity#getName() */
+/*-------------------------------------------------------------------*/
+	public String getModelPlayerName(int index)
+	{
+		return modelPlayerNames[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the skin of the player whose skin is given by the config string
+ *	at the specified index. Called by Entity.
+ *	@param index config string index
+ *	@return the player skin, or null if none is specified
+ *	@see soc.qase.state.Entity#getSkin() */
+/*-------------------------------------------------------------------*/
+	public String getModelPlayerSkin(int index)
+	{
+		return modelPlayerSkins[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the inventory index of the item whose model is given by the
+ *	config string at the specified index; equivalent to calling
+ *	modelStringToInventoryIndex on that string. Called by Entity.
+ *	@param index config string index
+ *	@return the associated inventory index, or -1 if not found
+ *	@see soc.qase.state.Entity#getInventoryIndex() */
+/*-------------------------------------------------------------------*/
+	public int getModelInventoryIndex(int index)
+	{
+		return modelInventoryIndices[index];
 	}
 
 /*-------------------------------------------------------------------*/
@@ -210,13 +377,28 @@ public class Config
 		return getConfigString(SECTION_STATUSBAR, index);
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Get the number of times the table has been modified since it was
+ *	created. Used by World to determine whether the Config held by its
+ *	previous snapshot is still current.
+ *	@return the number of calls made to setConfigString
+ *	@see soc.qase.state.World#createSnapshot() */
+/*-------------------------------------------------------------------*/
+	public int getModificationCount()
+	{
+		return modificationCount;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Get the maximum number of clients allowed in the current match.
  *	@return maximum number of clients allowed to connect to the server. */
 /*-------------------------------------------------------------------*/
 	public int getMaxClients()
 	{
-		return Integer.parseInt(getConfigString(SECTION_MAX_CLIENTS));
+		if(maxClients == Integer.MIN_VALUE)
+			maxClients = Integer.parseInt(getConfigString(SECTION_MAX_CLIENTS));
+
+		return maxClients;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -48,6 +48,7 @@ public class Entity
 	private boolean respawned = false;
 	public boolean playerDied = false;
 	public boolean playerJumped = false;
+	private boolean hasBaseModel = false;
 
 	public static final String	ANY = null;
 	public static final String	CAT_ITEMS = "items", CAT_WEAPONS = "weapons", CAT_PLAYERS = "players", CAT_OBJECTS = "objects", CAT_MISC = "misc",
@@ -100,17 +101,60 @@ public class Entity
 	}
 
 /*-------------------------------------------------------------------*/
-/**	Calculate entity family. */
+/**	Calculate entity family. The classification of each model string
+ *	is precomputed by the Config when the string is received, and so
+ *	is simply looked up; the string is only parsed here if the entity's
+ *	model string did not originate from the current Config.
+ *	@see soc.qase.info.Config#getModelCategory(int) */
 /*-------------------------------------------------------------------*/
 	public void confirmFamily()
+	{
+		if(modelString == null)
+			modelString = getModelString();
+
+		if(modelString == null)
+			return;
+
+		int index = getModelConfigIndex();
+
+		if(config.getConfigString(index) != modelString)
+			parseFamily();
+		else if(config.isModelPath(index))
+		{
+			if(config.getModelCategory(index) != null)
+			{
+				category = config.getModelCategory(index);
+				type = config.getModelType(index);
+
+				if(config.getModelSubType(index) != null)
+					subType = config.getModelSubType(index);
+			}
+		}
+		else if(entityNumber <= config.getMaxClients())
+		{
+			category = CAT_PLAYERS;
+			name = config.getModelPlayerName(index);
+
+			if(config.getModelPlayerSkin(index) != null)
+				skin = config.getModelPlayerSkin(index);
+		}
+		else
+		{
+			category = CAT_MISC;
+			type = modelString;
+			subType = modelString;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Calculate entity family by parsing the model string. */
+/*-------------------------------------------------------------------*/
+	private void parseFamily()
 	{
 		StringTokenizer st = null;
 		String currentString = null;
 		int players = 0;
 
-		if(modelString == null)
-			modelString = getModelString();
-
 		if(modelString != null)
 		{
 			st = new StringTokenizer(modelString, "/");
@@ -161,23 +205,28 @@ public class Entity
  *	@return model string. */
 /*-------------------------------------------------------------------*/
 	private String getModelString()
+	{
+		modelString = config.getConfigString(getModelConfigIndex());
+		return modelString;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Get the index of the config string describing the entity's model;
+ *	for players, this is the player's skin string. */
+/*-------------------------------------------------------------------*/
+	private int getModelConfigIndex()
 	{
 		int index = 0;
-		int players = 0;
 
 		index = model.getIndex(0);
 		if(index == 0) index = model.getIndex(1);
 		if(index == 0) index = model.getIndex(2);
 		if(index == 0) index = model.getIndex(3);
 
-		players = Integer.parseInt(config.getConfigString(30));
-
-		if(entityNumber > players)
-			modelString = config.getConfigString(Config.SECTION_MODELS + index);
+		if(entityNumber > config.getMaxClients())
+			return Config.SECTION_MODELS + index;
 		else
-			modelString = config.getConfigString(Config.SECTION_PLAYER_SKINS + entityNumber - 1);
-
-		return modelString;
+			return Config.SECTION_PLAYER_SKINS + entityNumber - 1;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -311,14 +360,19 @@ public class Entity
 /**	Get inventory number corresponding to the current entity type. Uses
  *	Config.
  *	@return entity number
- *	@see soc.qase.info.Config#modelStringToInventoryIndex(java.lang.String) */
+ *	@see soc.qase.info.Config#getModelInventoryIndex(int) */
 /*-------------------------------------------------------------------*/
 	public int getInventoryIndex()
 	{
 		if(getType().equals("healing"))
 			return 41;
 		else if(inventoryIndex == -1)
-			inventoryIndex = Config.modelStringToInventoryIndex(getModelString());
+		{
+			int index = getModelConfigIndex();
+
+			modelString = config.getConfigString(index);
+			inventoryIndex = config.getModelInventoryIndex(index);
+		}
 
 		return inventoryIndex;
 	}
@@ -621,6 +675,166 @@ public class Entity
 		}
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Copy the state of an existing Entity into the current Entity,
+ *	reusing the current Entity's Model, Effects, Origin, Angles, Sound,
+ *	Events and Solid objects rather than allocating new ones. Used by
+ *	the World to maintain pooled entities when packet entities are
+ *	decoded in place.
+ *	@param entity source Entity whose attributes should be copied, or
+ *	null to reset the current Entity to its default state
+ *	@see soc.qase.state.World#beginEntityUpdate(int) */
+/*-------------------------------------------------------------------*/
+	public void copy(Entity entity)
+	{
+		if(model == null) model = new Model();
+		if(effects == null) effects = new Effects();
+		if(origin == null) origin = new Origin();
+		if(angles == null) angles = new Angles();
+		if(oldOrigin == null) oldOrigin = new Origin();
+		if(sound == null) sound = new Sound();
+		if(events == null) events = new Events();
+		if(solid == null) solid = new Solid();
+
+		Model srcModel = (entity == null ? null : entity.model);
+
+		for(int i = 0; i < 4; i++)
+			model.setIndex(i, (srcModel == null ? -1 : srcModel.getIndex(i)));
+
+		model.setFrame(srcModel == null ? -1 : srcModel.getFrame());
+		model.setSkin(srcModel == null ? -1 : srcModel.getFullSkin());
+
+		effects.setEffects(entity == null || entity.effects == null ? -1 : entity.effects.getEffects());
+		effects.setRenderEffects(entity == null || entity.effects == null ? -1 : entity.effects.getRenderEffects());
+
+		copyOrigin(origin, (entity == null ? null : entity.origin));
+		copyOrigin(oldOrigin, (entity == null ? null : entity.oldOrigin));
+
+		angles.setPitch(entity == null || entity.angles == null ? -1 : entity.angles.getPitch());
+		angles.setYaw(entity == null || entity.angles == null ? -1 : entity.angles.getYaw());
+		angles.setRoll(entity == null || entity.angles == null ? -1 : entity.angles.getRoll());
+
+		Sound srcSound = (entity == null ? null : entity.sound);
+
+		sound.setIndex(srcSound == null ? -1 : srcSound.getIndex());
+		sound.setVolume(srcSound == null ? -1 : srcSound.getVolume());
+		sound.setAttenuation(srcSound == null ? -1 : srcSound.getAttenuation());
+		sound.setTimeOffset(srcSound == null ? -1 : srcSound.getTimeOffset());
+		sound.setEntityNumber(srcSound == null ? -1 : srcSound.getEntityNumber());
+		sound.setSoundChannel(srcSound == null ? -1 : srcSound.getSoundChannel());
+		sound.setOrigin(srcSound == null ? null : srcSound.getOrigin());
+		sound.setLoop(srcSound == null ? -1 : srcSound.getLoop());
+
+		events.setEvents(entity == null || entity.events == null ? 0 : entity.events.getEvents());
+		solid.setSolid(entity == null || entity.solid == null ? -1 : entity.solid.getSolid());
+
+		if(entity == null)
+		{
+			entityNumber = 0;
+			active = false;
+			config = null;
+			category = modelString = type = subType = name = skin = null;
+			inventoryIndex = -1;
+			respawned = playerDied = playerJumped = false;
+		}
+		else
+		{
+			entityNumber = entity.entityNumber;
+			active = entity.active;
+			config = entity.config;
+			category = entity.category;
+			modelString = entity.modelString;
+			type = entity.type;
+			subType = entity.subType;
+			name = entity.name;
+			skin = entity.skin;
+			inventoryIndex = entity.inventoryIndex;
+			respawned = entity.respawned;
+			playerDied = entity.playerDied;
+			playerJumped = entity.playerJumped;
+		}
+	}
+
+	private static void copyOrigin(Origin dest, Origin src)
+	{
+		dest.setX(src == null ? -1 : src.getX());
+		dest.setY(src == null ? -1 : src.getY());
+		dest.setZ(src == null ? -1 : src.getZ());
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Prepare a pooled Entity to receive an in-place delta update. The
+ *	per-frame flags are cleared, as they would be for a newly-decoded
+ *	Entity. */
+/*-------------------------------------------------------------------*/
+	void beginUpdate(int number, boolean baseModel)
+	{
+		hasBaseModel = baseModel;
+		entityNumber = number;
+		inventoryIndex = -1;
+		respawned = playerDied = playerJumped = false;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Apply a model index received in an in-place delta update. As with
+ *	merge, the index is taken from the update only if the entity had
+ *	no Model on the frame against which the update was compressed.
+ *	@param modelIndex model index (0-3)
+ *	@param modelValue model value
+ *	@see soc.qase.state.World#beginEntityUpdate(int) */
+/*-------------------------------------------------------------------*/
+	public void updateModelIndex(int modelIndex, int modelValue)
+	{
+		if(!hasBaseModel)
+			model.setIndex(modelIndex, modelValue);
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Complete an in-place delta update, resolving the model string
+ *	as merge would. */
+/*-------------------------------------------------------------------*/
+	void endUpdate(boolean respawnedItem)
+	{
+		respawned = respawnedItem;
+
+		try
+		{
+			if(modelString == null)
+				modelString = getModelString();
+		}
+		catch(Exception e)
+		{	}	// resolved on demand once the config is complete
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Transfer the descriptive strings of the entity, which are carried
+ *	from frame to frame by merge, to and from an EntityStore row. */
+/*-------------------------------------------------------------------*/
+	int exportFamily(String[] family, int off)
+	{
+		family[off] = modelString;
+		family[off + 1] = category;
+		family[off + 2] = type;
+		family[off + 3] = subType;
+		family[off + 4] = name;
+		family[off + 5] = skin;
+
+		return inventoryIndex;
+	}
+
+	void importFamily(String[] family, int off, int invIndex, boolean respawnedItem)
+	{
+		modelString = family[off];
+		category = family[off + 1];
+		type = family[off + 2];
+		subType = family[off + 3];
+		name = family[off + 4];
+		skin = family[off + 5];
+
+		inventoryIndex = invIndex;
+		respawned = respawnedItem;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Creates a duplicate of the object by cloning each of its fields.
  *	@return a deep copy of the current object */
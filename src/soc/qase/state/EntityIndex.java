@@ -0,0 +1,382 @@
+//---------------------------------------------------------------------
+// Name:			EntityIndex.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.state;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*-------------------------------------------------------------------*/
+/**	An index of the entities held in each frame slot of the World by
+ *	family, ie by category, type and subtype. Each distinct family is
+ *	interned once and assigned an integer id; each slot then holds a
+ *	bitset of the entity numbers belonging to every family, alongside
+ *	bitsets of the entities which are present and active. The index is
+ *	updated as entities are merged into the gamestate, and carried from
+ *	frame to frame in the same way as the entities themselves, so that
+ *	a query need only visit those entities which match it.<p>
+ *
+ *	The family of an updated entity cannot be resolved until its model
+ *	is looked up in the config strings, so an update first files the
+ *	entity as UNCLASSIFIED; the World classifies such entities when the
+ *	index is next queried.
+ *	@see World#findEntities(String, String, String, boolean, EntityList) */
+/*-------------------------------------------------------------------*/
+public class EntityIndex
+{
+	public static final int UNCLASSIFIED = 0;
+	public static final int MAX_ENTITIES = 1024;
+
+	private static final int NUM_WORDS = MAX_ENTITIES >> 6;
+
+	private int numSlots = 0;
+	private int version = 0;
+
+	// interned families; id 0 is reserved for unclassified entities
+	private int familyCount = 1;
+	private String[] categories = null;
+	private String[] types = null;
+	private String[] subTypes = null;
+	private HashMap familyIds = new HashMap();
+
+	private int[][] familyOf = null;
+	private long[][] present = null;
+	private long[][] active = null;
+	private long[][][] members = null;
+
+	private HashMap queries = new HashMap();
+	private int queryFamilyCount = 0;
+	private long[] selection = new long[NUM_WORDS];
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Creates an empty index with the given number of frame
+ *	slots.
+ *	@param slots the number of frame slots to index */
+/*-------------------------------------------------------------------*/
+	public EntityIndex(int slots)
+	{
+		numSlots = slots;
+
+		categories = new String[16];
+		types = new String[16];
+		subTypes = new String[16];
+
+		familyOf = new int[numSlots][MAX_ENTITIES];
+		present = new long[numSlots][NUM_WORDS];
+		active = new long[numSlots][NUM_WORDS];
+		members = new long[numSlots][16][];
+
+		for(int s = 0; s < numSlots; s++)
+			members[s][UNCLASSIFIED] = new long[NUM_WORDS];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Creates a single-slot copy of one slot of an existing
+ *	index, sharing none of its state. Used by World.createSnapshot.
+ *	@param index the index to copy
+ *	@param slot the slot of the existing index to copy into slot 0 */
+/*-------------------------------------------------------------------*/
+	public EntityIndex(EntityIndex index, int slot)
+	{
+		numSlots = 1;
+		familyCount = index.familyCount;
+
+		categories = index.categories.clone();
+		types = index.types.clone();
+		subTypes = index.subTypes.clone();
+		familyIds = new HashMap(index.familyIds);
+
+		familyOf = new int[][]{ index.familyOf[slot].clone() };
+		present = new long[][]{ index.present[slot].clone() };
+		active = new long[][]{ index.active[slot].clone() };
+		members = new long[1][index.members[slot].length][];
+
+		for(int f = 0; f < familyCount; f++)
+		{
+			if(index.members[slot][f] != null)
+				members[0][f] = index.members[slot][f].clone();
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Advance to a new frame. The families and active status of every
+ *	entity present in the source slot are copied into the target slot;
+ *	entities which are absent from the source slot retain their existing
+ *	state in the target, consistent with the World's entity tables.
+ *	@param target the slot of the new frame
+ *	@param source the slot of the frame against which it is merged */
+/*-------------------------------------------------------------------*/
+	public void beginFrame(int target, int source)
+	{
+		version++;
+
+		if(target == source)
+			return;
+
+		long mask = 0;
+		long[] src = null, dest = null;
+
+		for(int w = 0; w < NUM_WORDS; w++)
+		{
+			if((mask = present[source][w]) == 0)
+				continue;
+
+			present[target][w] |= mask;
+			active[target][w] = (active[target][w] & ~mask) | active[source][w];
+
+			for(int f = 0; f < familyCount; f++)
+			{
+				src = members[source][f];
+				dest = members[target][f];
+
+				if(dest == null)
+				{
+					if(src == null || src[w] == 0)
+						continue;
+
+					dest = members[target][f] = new long[NUM_WORDS];
+				}
+
+				dest[w] = (dest[w] & ~mask) | (src == null ? 0 : src[w]);
+			}
+
+			for(long bits = mask; bits != 0; bits &= bits - 1)
+			{
+				int number = (w << 6) + Long.numberOfTrailingZeros(bits);
+				familyOf[target][number] = familyOf[source][number];
+			}
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Record that an entity has been updated in the given slot. The
+ *	entity is filed as UNCLASSIFIED until classify is called.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@param isActive true if the entity is active following the update */
+/*-------------------------------------------------------------------*/
+	public void update(int slot, int number, boolean isActive)
+	{
+		version++;
+		setFamily(slot, number, UNCLASSIFIED);
+
+		if(isActive)
+			active[slot][number >> 6] |= (1L << number);
+		else
+			active[slot][number >> 6] &= ~(1L << number);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	File an entity present in the given slot under its family, interning
+ *	the family if it has not been seen before.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@param category the entity's category string
+ *	@param type the entity's type string
+ *	@param subType the entity's subtype string */
+/*-------------------------------------------------------------------*/
+	public void classify(int slot, int number, String category, String type, String subType)
+	{
+		setFamily(slot, number, intern(category, type, subType));
+	}
+
+	private void setFamily(int slot, int number, int family)
+	{
+		int word = number >> 6;
+		long bit = 1L << number;
+
+		if((present[slot][word] & bit) != 0)
+			members[slot][familyOf[slot][number]][word] &= ~bit;
+
+		if(members[slot][family] == null)
+			members[slot][family] = new long[NUM_WORDS];
+
+		members[slot][family][word] |= bit;
+		present[slot][word] |= bit;
+		familyOf[slot][number] = family;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Resolve the id of a family, assigning a new id if necessary. */
+/*-------------------------------------------------------------------*/
+	private int intern(String category, String type, String subType)
+	{
+		String key = category + "/" + type + "/" + subType;
+		Integer id = (Integer)familyIds.get(key);
+
+		if(id != null)
+			return id.intValue();
+
+		if(familyCount == categories.length)
+		{
+			categories = Arrays.copyOf(categories, familyCount * 2);
+			types = Arrays.copyOf(types, familyCount * 2);
+			subTypes = Arrays.copyOf(subTypes, familyCount * 2);
+
+			for(int s = 0; s < numSlots; s++)
+				members[s] = Arrays.copyOf(members[s], familyCount * 2);
+		}
+
+		categories[familyCount] = category;
+		types[familyCount] = type;
+		subTypes[familyCount] = subType;
+		familyIds.put(key, Integer.valueOf(familyCount));
+
+		return familyCount++;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the modification count of the index, which changes whenever a
+ *	frame begins or an entity is updated. Used by the World to determine
+ *	whether structures derived from the entities are up to date.
+ *	@return the current modification count */
+/*-------------------------------------------------------------------*/
+	public int getVersion()
+	{
+		return version;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the bitset of the entity numbers present in the given slot. The
+ *	array must not be modified.
+ *	@param slot the frame slot
+ *	@return the present entity numbers */
+/*-------------------------------------------------------------------*/
+	public long[] getPresent(int slot)
+	{
+		return present[slot];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of families interned by the index, including the
+ *	reserved UNCLASSIFIED family.
+ *	@return the number of families */
+/*-------------------------------------------------------------------*/
+	public int getFamilyCount()
+	{
+		return familyCount;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the family under which an entity is filed in the given slot.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@return the family id, or -1 if the entity is not present */
+/*-------------------------------------------------------------------*/
+	public int getFamily(int slot, int number)
+	{
+		return ((present[slot][number >> 6] & (1L << number)) == 0 ? -1 : familyOf[slot][number]);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the ids of all interned families which match the given category,
+ *	type and subtype, ignoring case. The result is cached until a new
+ *	family is interned, and must not be modified.
+ *	@param category the category to match, or null to match any
+ *	@param type the type to match, or null to match any
+ *	@param subType the subtype to match, or null to match any
+ *	@return the matching family ids */
+/*-------------------------------------------------------------------*/
+	public int[] getFamilies(String category, String type, String subType)
+	{
+		if(queryFamilyCount != familyCount)
+		{
+			queries.clear();
+			queryFamilyCount = familyCount;
+		}
+
+		String key = (category == null ? "\0" : category.toLowerCase()) + "/" + (type == null ? "\0" : type.toLowerCase()) + "/" + (subType == null ? "\0" : subType.toLowerCase());
+		int[] families = (int[])queries.get(key);
+
+		if(families != null)
+			return families;
+
+		int count = 0;
+		int[] matches = new int[familyCount];
+
+		for(int f = UNCLASSIFIED + 1; f < familyCount; f++)
+		{
+			if((category == null || categories[f].equalsIgnoreCase(category))
+			&& (type == null || types[f].equalsIgnoreCase(type))
+			&& (subType == null || subTypes[f].equalsIgnoreCase(subType)))
+			{
+				matches[count++] = f;
+			}
+		}
+
+		families = Arrays.copyOf(matches, count);
+		queries.put(key, families);
+
+		return families;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Select the entities of the given slot which belong to any of the
+ *	specified families. The result is a bitset of entity numbers which
+ *	is reused by the next call, and which may be traversed using
+ *	nextEntity.
+ *	@param slot the frame slot
+ *	@param families the family ids, as returned by getFamilies
+ *	@param onlyActive true to select only active entities
+ *	@return the selected entity numbers, as a bitset */
+/*-------------------------------------------------------------------*/
+	public long[] select(int slot, int[] families, boolean onlyActive)
+	{
+		long[] bits = null;
+
+		Arrays.fill(selection, 0);
+
+		for(int i = 0; i < families.length; i++)
+		{
+			if((bits = members[slot][families[i]]) == null)
+				continue;
+
+			for(int w = 0; w < NUM_WORDS; w++)
+				selection[w] |= bits[w];
+		}
+
+		for(int w = 0; onlyActive && w < NUM_WORDS; w++)
+			selection[w] &= active[slot][w];
+
+		return selection;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the next entity filed under the given family in a slot.
+ *	@param slot the frame slot
+ *	@param family the family id
+ *	@param from the entity number from which to begin searching
+ *	@return the next such entity number, or -1 if there is none */
+/*-------------------------------------------------------------------*/
+	public int nextEntity(int slot, int family, int from)
+	{
+		return (members[slot][family] == null ? -1 : nextEntity(members[slot][family], from));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the next entity number set in a bitset of entity numbers.
+ *	@param bits the bitset, as returned by select
+ *	@param from the entity number from which to begin searching
+ *	@return the next entity number in the set, or -1 if there is none */
+/*-------------------------------------------------------------------*/
+	public static int nextEntity(long[] bits, int from)
+	{
+		if(from >= MAX_ENTITIES)
+			return -1;
+
+		int w = from >> 6;
+		long word = bits[w] & (-1L << from);
+
+		while(word == 0)
+		{
+			if(++w == NUM_WORDS)
+				return -1;
+
+			word = bits[w];
+		}
+
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+}
@@ -0,0 +1,102 @@
+//---------------------------------------------------------------------
+// Name:			EntityList.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.state;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/*-------------------------------------------------------------------*/
+/**	A reusable list of entities, filled by the World's findEntities
+ *	queries. Unlike the Vectors returned by the getEntities methods, an
+ *	EntityList may be passed to successive queries without allocating
+ *	a new collection each time; its contents are replaced by each query
+ *	into which it is passed. Entities are listed in ascending order of
+ *	entity number.
+ *	@see World#findEntities(String, String, String, boolean, EntityList) */
+/*-------------------------------------------------------------------*/
+public class EntityList
+{
+	private Entity[] entities = null;
+	private int size = 0;
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. */
+/*-------------------------------------------------------------------*/
+	public EntityList()
+	{
+		entities = new Entity[32];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of entities in the list.
+ *	@return the size of the list */
+/*-------------------------------------------------------------------*/
+	public int size()
+	{
+		return size;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the list is empty.
+ *	@return true if the list contains no entities, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the entity at the given position in the list.
+ *	@param index the position in the list
+ *	@return the entity at that position */
+/*-------------------------------------------------------------------*/
+	public Entity get(int index)
+	{
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+		return entities[index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Remove all entities from the list. */
+/*-------------------------------------------------------------------*/
+	public void clear()
+	{
+		Arrays.fill(entities, 0, size, null);
+		size = 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Append an entity to the list.
+ *	@param entity the entity to add */
+/*-------------------------------------------------------------------*/
+	public void add(Entity entity)
+	{
+		if(size == entities.length)
+		{
+			Entity[] newEntities = new Entity[entities.length * 2];
+			System.arraycopy(entities, 0, newEntities, 0, size);
+			entities = newEntities;
+		}
+
+		entities[size++] = entity;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Copy the contents of the list into a new Vector.
+ *	@return a Vector containing the entities in the list */
+/*-------------------------------------------------------------------*/
+	public Vector toVector()
+	{
+		Vector result = new Vector(Math.max(size, 1));
+
+		for(int i = 0; i < size; i++)
+			result.addElement(entities[i]);
+
+		return result;
+	}
+}
@@ -0,0 +1,478 @@
+//---------------------------------------------------------------------
+// Name:			EntityStore.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.state;
+
+import java.util.Arrays;
+
+/*-------------------------------------------------------------------*/
+/**	A compact alternative to the Entity[17][1024] object graph used by
+ *	the World to hold the entity state of each frame in its update
+ *	window. Entity attributes are stored as rows in a single primitive
+ *	array, and each of the 17 frame slots simply maps entity numbers
+ *	onto rows. Rows are shared between slots until an entity changes,
+ *	at which point it is given a row of its own (copy-on-write), so
+ *	that advancing to a new frame copies only the row references of
+ *	the entities present in the source frame, and entity data is only
+ *	copied for those entities which are actually updated. The tables
+ *	grow with the highest entity number seen, rather than being sized
+ *	for the maximum of 1024 entities.<p>
+ *
+ *	Entities are read and written through ordinary Entity objects; the
+ *	World maintains one reusable Entity per entity number as a view of
+ *	the current frame.
+ *	@see World#setCompactEntityStore(boolean) */
+/*-------------------------------------------------------------------*/
+public class EntityStore
+{
+	// row layout
+	private static final int FLAGS = 0, MODEL = 1, MODEL_FRAME = 5, SKIN_LO = 6, SKIN_HI = 7,
+		EFFECTS = 8, RENDER_EFFECTS = 9, ORIGIN = 10, ANGLES = 13, OLD_ORIGIN = 16,
+		SOUND_INDEX = 19, SOUND_VOLUME = 20, SOUND_ATTENUATION = 21, SOUND_TIME_OFFSET = 22,
+		SOUND_ENTITY = 23, SOUND_CHANNEL = 24, SOUND_LOOP = 25, SOUND_ORIGIN = 26,
+		EVENTS = 29, SOLID = 30, INVENTORY_INDEX = 31, STRIDE = 32;
+
+	private static final int ACTIVE = 0x1, RESPAWNED = 0x2, HAS_MODEL = 0x4, HAS_SOUND_ORIGIN = 0x8;
+
+	// strings describing the entity, carried between frames as in Entity.merge
+	private static final int FAMILY_FIELDS = 6;
+
+	public static final int NUM_SLOTS = 17;
+
+	private int[] rows = null;
+	private String[] families = null;
+	private int[] refCounts = null;
+	private int[] freeRows = null;
+	private int freeCount = 0;
+	private int rowCount = 0;
+
+	private int capacity = 0;
+	private int[][] rowOf = new int[NUM_SLOTS][];
+	private int[][] present = new int[NUM_SLOTS][];
+	private int[] presentCount = new int[NUM_SLOTS];
+	private int[][] dirty = new int[NUM_SLOTS][];
+	private int[] dirtyCount = new int[NUM_SLOTS];
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. */
+/*-------------------------------------------------------------------*/
+	public EntityStore()
+	{
+		rows = new int[64 * STRIDE];
+		families = new String[64 * FAMILY_FIELDS];
+		refCounts = new int[64];
+		freeRows = new int[64];
+
+		ensureCapacity(64);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Advance to a new frame. The row references of every entity present
+ *	in the source slot are copied into the target slot; entities which
+ *	are absent from the source slot retain their existing state in the
+ *	target, consistent with the object-based World. The dirty list of
+ *	the target slot is cleared.
+ *	@param target the slot of the new frame
+ *	@param source the slot of the frame against which it is merged */
+/*-------------------------------------------------------------------*/
+	public void beginFrame(int target, int source)
+	{
+		dirtyCount[target] = 0;
+
+		if(target == source)
+			return;
+
+		int[] srcPresent = present[source];
+		int[] srcRows = rowOf[source];
+
+		for(int i = 0; i < presentCount[source]; i++)
+			setRow(target, srcPresent[i], srcRows[srcPresent[i]]);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether an entity is present in the given slot.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@return true if the entity is present, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean contains(int slot, int number)
+	{
+		return number >= 0 && number < capacity && rowOf[slot][number] != -1;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether an entity present in the given slot is active.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@return true if the entity is present and active */
+/*-------------------------------------------------------------------*/
+	public boolean isActive(int slot, int number)
+	{
+		return contains(slot, number) && (rows[rowOf[slot][number] * STRIDE + FLAGS] & ACTIVE) != 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether an entity present in the given slot has a Model; an
+ *	update merged against such an entity does not change its model
+ *	indices (see Model.merge).
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@return true if the entity is present and has a Model */
+/*-------------------------------------------------------------------*/
+	public boolean hasModel(int slot, int number)
+	{
+		return contains(slot, number) && (rows[rowOf[slot][number] * STRIDE + FLAGS] & HAS_MODEL) != 0;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the origin of an entity without loading it into an Entity.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@param axis 0, 1 or 2 for the x, y or z coordinate
+ *	@return the coordinate, or -1 if the entity is not present */
+/*-------------------------------------------------------------------*/
+	public int getOrigin(int slot, int number, int axis)
+	{
+		return (contains(slot, number) ? rows[rowOf[slot][number] * STRIDE + ORIGIN + axis] : -1);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of entities present in the given slot.
+ *	@param slot the frame slot
+ *	@return the number of entities present */
+/*-------------------------------------------------------------------*/
+	public int getPresentCount(int slot)
+	{
+		return presentCount[slot];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of the entity at the given position in the list of
+ *	entities present in a slot. The list is not ordered.
+ *	@param slot the frame slot
+ *	@param index position in the list, from 0 to getPresentCount - 1
+ *	@return the entity number */
+/*-------------------------------------------------------------------*/
+	public int getPresent(int slot, int index)
+	{
+		return present[slot][index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of entities written to the given slot since it
+ *	last began a frame.
+ *	@param slot the frame slot
+ *	@return the number of entities updated on the slot's frame */
+/*-------------------------------------------------------------------*/
+	public int getDirtyCount(int slot)
+	{
+		return dirtyCount[slot];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of an entity updated on the given slot's frame.
+ *	@param slot the frame slot
+ *	@param index position in the dirty list, from 0 to getDirtyCount - 1
+ *	@return the entity number */
+/*-------------------------------------------------------------------*/
+	public int getDirty(int slot, int index)
+	{
+		return dirty[slot][index];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the highest entity number the store can currently hold, plus
+ *	one. Entity numbers at or above this value are not present.
+ *	@return the current capacity of the store */
+/*-------------------------------------------------------------------*/
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of distinct rows currently in use. Since rows are
+ *	shared between frames until an entity changes, this is normally
+ *	far smaller than the number of slots multiplied by the number of
+ *	entities.
+ *	@return the number of rows in use */
+/*-------------------------------------------------------------------*/
+	public int getRowCount()
+	{
+		return rowCount - freeCount;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Load the state of an entity into an existing Entity object. The
+ *	Entity's component objects are reused; no objects are allocated
+ *	once they exist. The Entity's per-frame flags (hasDied, isJumping)
+ *	are left untouched.
+ *	@param slot the frame slot
+ *	@param number the entity number
+ *	@param entity the Entity into which to load the state
+ *	@return true if the entity is present and was loaded, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean load(int slot, int number, Entity entity)
+	{
+		if(!contains(slot, number))
+			return false;
+
+		int row = rowOf[slot][number];
+		int base = row * STRIDE;
+
+		boolean died = entity.playerDied, jumped = entity.playerJumped;
+		entity.copy(null);
+		entity.playerDied = died;
+		entity.playerJumped = jumped;
+
+		entity.setNumber(number);
+		entity.setActive((rows[base + FLAGS] & ACTIVE) != 0);
+
+		Model model = entity.getModel();
+
+		for(int i = 0; i < 4; i++)
+			model.setIndex(i, rows[base + MODEL + i]);
+
+		model.setFrame(rows[base + MODEL_FRAME]);
+		model.setSkin(((long)rows[base + SKIN_HI] << 32) | (rows[base + SKIN_LO] & 0xFFFFFFFFL));
+
+		entity.getEffects().setEffects(rows[base + EFFECTS]);
+		entity.getEffects().setRenderEffects(rows[base + RENDER_EFFECTS]);
+
+		loadOrigin(entity.getOrigin(), base + ORIGIN);
+		loadOrigin(entity.getOldOrigin(), base + OLD_ORIGIN);
+
+		entity.getAngles().setPitch(Float.intBitsToFloat(rows[base + ANGLES]));
+		entity.getAngles().setYaw(Float.intBitsToFloat(rows[base + ANGLES + 1]));
+		entity.getAngles().setRoll(Float.intBitsToFloat(rows[base + ANGLES + 2]));
+
+		Sound sound = entity.getSound();
+
+		sound.setIndex(rows[base + SOUND_INDEX]);
+		sound.setVolume(Float.intBitsToFloat(rows[base + SOUND_VOLUME]));
+		sound.setAttenuation(rows[base + SOUND_ATTENUATION]);
+		sound.setTimeOffset(Float.intBitsToFloat(rows[base + SOUND_TIME_OFFSET]));
+		sound.setEntityNumber(rows[base + SOUND_ENTITY]);
+		sound.setSoundChannel(rows[base + SOUND_CHANNEL]);
+		sound.setLoop(rows[base + SOUND_LOOP]);
+
+		if((rows[base + FLAGS] & HAS_SOUND_ORIGIN) != 0)
+			sound.setOrigin(new Origin(rows[base + SOUND_ORIGIN], rows[base + SOUND_ORIGIN + 1], rows[base + SOUND_ORIGIN + 2]));
+
+		entity.getEvents().setEvents(rows[base + EVENTS]);
+		entity.getSolid().setSolid(rows[base + SOLID]);
+
+		entity.importFamily(families, row * FAMILY_FIELDS, rows[base + INVENTORY_INDEX], (rows[base + FLAGS] & RESPAWNED) != 0);
+		return true;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Store the state of an Entity in the given slot. If the entity's
+ *	current row is shared with another slot, a new row is allocated
+ *	for it; the row is otherwise overwritten in place. The entity is
+ *	added to the slot's dirty list.
+ *	@param slot the frame slot
+ *	@param entity the Entity whose state should be stored */
+/*-------------------------------------------------------------------*/
+	public void store(int slot, Entity entity)
+	{
+		int number = entity.getNumber();
+		ensureCapacity(number + 1);
+
+		int row = rowOf[slot][number];
+
+		if(row == -1 || refCounts[row] > 1)
+		{
+			int newRow = allocateRow();
+			setRow(slot, number, newRow);
+			releaseRow(newRow);		// setRow added a reference
+			row = newRow;
+		}
+
+		int base = row * STRIDE;
+		int flags = (entity.getActive() ? ACTIVE : 0) | (entity.isRespawned() ? RESPAWNED : 0);
+
+		Model model = entity.getModel();
+
+		if(model != null)
+			flags |= HAS_MODEL;
+
+		for(int i = 0; i < 4; i++)
+			rows[base + MODEL + i] = (model == null ? -1 : model.getIndex(i));
+
+		long skin = (model == null ? -1 : model.getFullSkin());
+
+		rows[base + MODEL_FRAME] = (model == null ? -1 : model.getFrame());
+		rows[base + SKIN_LO] = (int)skin;
+		rows[base + SKIN_HI] = (int)(skin >> 32);
+
+		Effects effects = entity.getEffects();
+
+		rows[base + EFFECTS] = (effects == null ? -1 : effects.getEffects());
+		rows[base + RENDER_EFFECTS] = (effects == null ? -1 : effects.getRenderEffects());
+
+		storeOrigin(entity.getOrigin(), base + ORIGIN);
+		storeOrigin(entity.getOldOrigin(), base + OLD_ORIGIN);
+
+		Angles angles = entity.getAngles();
+
+		rows[base + ANGLES] = Float.floatToIntBits(angles == null ? -1 : angles.getPitch());
+		rows[base + ANGLES + 1] = Float.floatToIntBits(angles == null ? -1 : angles.getYaw());
+		rows[base + ANGLES + 2] = Float.floatToIntBits(angles == null ? -1 : angles.getRoll());
+
+		Sound sound = entity.getSound();
+
+		rows[base + SOUND_INDEX] = (sound == null ? -1 : sound.getIndex());
+		rows[base + SOUND_VOLUME] = Float.floatToIntBits(sound == null ? -1 : sound.getVolume());
+		rows[base + SOUND_ATTENUATION] = (sound == null ? -1 : sound.getAttenuation());
+		rows[base + SOUND_TIME_OFFSET] = Float.floatToIntBits(sound == null ? -1 : sound.getTimeOffset());
+		rows[base + SOUND_ENTITY] = (sound == null ? -1 : sound.getEntityNumber());
+		rows[base + SOUND_CHANNEL] = (sound == null ? -1 : sound.getSoundChannel());
+		rows[base + SOUND_LOOP] = (sound == null ? -1 : sound.getLoop());
+
+		if(sound != null && sound.getOrigin() != null)
+		{
+			flags |= HAS_SOUND_ORIGIN;
+			storeOrigin(sound.getOrigin(), base + SOUND_ORIGIN);
+		}
+
+		rows[base + EVENTS] = (entity.getEvents() == null ? 0 : entity.getEvents().getEvents());
+		rows[base + SOLID] = (entity.getSolid() == null ? -1 : entity.getSolid().getSolid());
+		rows[base + FLAGS] = flags;
+
+		rows[base + INVENTORY_INDEX] = entity.exportFamily(families, row * FAMILY_FIELDS);
+
+		if(dirtyCount[slot] == dirty[slot].length)
+			dirty[slot] = grow(dirty[slot], dirty[slot].length * 2);
+
+		dirty[slot][dirtyCount[slot]++] = number;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Remove all entities from every slot, releasing all rows. */
+/*-------------------------------------------------------------------*/
+	public void clear()
+	{
+		for(int s = 0; s < NUM_SLOTS; s++)
+		{
+			for(int i = 0; i < presentCount[s]; i++)
+				rowOf[s][present[s][i]] = -1;
+
+			presentCount[s] = dirtyCount[s] = 0;
+		}
+
+		freeCount = rowCount = 0;
+		Arrays.fill(families, null);
+	}
+
+/*-------------------------------------------------------------------*/
+/*-------------------------------------------------------------------*/
+	private void loadOrigin(Origin origin, int index)
+	{
+		origin.setX(rows[index]);
+		origin.setY(rows[index + 1]);
+		origin.setZ(rows[index + 2]);
+	}
+
+	private void storeOrigin(Origin origin, int index)
+	{
+		rows[index] = (origin == null ? -1 : origin.getX());
+		rows[index + 1] = (origin == null ? -1 : origin.getY());
+		rows[index + 2] = (origin == null ? -1 : origin.getZ());
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Point an entity number in a slot at the given row, maintaining the
+ *	reference counts and the slot's list of present entities. */
+/*-------------------------------------------------------------------*/
+	private void setRow(int slot, int number, int row)
+	{
+		int old = rowOf[slot][number];
+
+		if(old == row)
+			return;
+
+		refCounts[row]++;
+		rowOf[slot][number] = row;
+
+		if(old != -1)
+			releaseRow(old);
+		else
+		{
+			if(presentCount[slot] == present[slot].length)
+				present[slot] = grow(present[slot], present[slot].length * 2);
+
+			present[slot][presentCount[slot]++] = number;
+		}
+	}
+
+	private int allocateRow()
+	{
+		int row = (freeCount > 0 ? freeRows[--freeCount] : rowCount++);
+
+		if(row >= refCounts.length)
+		{
+			int newSize = refCounts.length * 2;
+
+			rows = grow(rows, newSize * STRIDE);
+			refCounts = grow(refCounts, newSize);
+			freeRows = grow(freeRows, newSize);
+
+			String[] newFamilies = new String[newSize * FAMILY_FIELDS];
+			System.arraycopy(families, 0, newFamilies, 0, families.length);
+			families = newFamilies;
+		}
+
+		refCounts[row] = 1;
+		return row;
+	}
+
+	private void releaseRow(int row)
+	{
+		if(--refCounts[row] == 0)
+		{
+			for(int i = 0; i < FAMILY_FIELDS; i++)
+				families[row * FAMILY_FIELDS + i] = null;
+
+			freeRows[freeCount++] = row;
+		}
+	}
+
+	private void ensureCapacity(int required)
+	{
+		if(required <= capacity)
+			return;
+
+		int newCapacity = Math.max(capacity, 64);
+
+		while(newCapacity < required)
+			newCapacity *= 2;
+
+		for(int s = 0; s < NUM_SLOTS; s++)
+		{
+			int[] newRows = new int[newCapacity];
+			Arrays.fill(newRows, -1);
+
+			if(rowOf[s] != null)
+				System.arraycopy(rowOf[s], 0, newRows, 0, capacity);
+			else
+			{
+				present[s] = new int[16];
+				dirty[s] = new int[16];
+			}
+
+			rowOf[s] = newRows;
+		}
+
+		capacity = newCapacity;
+	}
+
+	private static int[] grow(int[] array, int size)
+	{
+		int[] newArray = new int[size];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+}
@@ -484,6 +484,25 @@ public class Player
 		return playerIsDrowning;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Copy the state of an existing Player into the current Player. The
+ *	PlayerMove, PlayerGun, PlayerView and PlayerStatus objects are
+ *	duplicated, since the World merges later frames into the objects
+ *	which it already holds.
+ *	@param player source Player whose attributes should be copied
+ *	@see soc.qase.state.World#createSnapshot() */
+/*-------------------------------------------------------------------*/
+	void copy(Player player)
+	{
+		playerMove = (player.playerMove == null ? null : player.playerMove.deepCopy());
+		playerGun = (player.playerGun == null ? null : player.playerGun.deepCopy());
+		playerView = (player.playerView == null ? null : player.playerView.deepCopy());
+		playerStatus = (player.playerStatus == null ? null : player.playerStatus.deepCopy());
+
+		drownTTL = player.drownTTL;
+		playerIsDrowning = player.playerIsDrowning;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Merge player properties from an existing Player object into the
  *	current Player object. Used when assimilating cumulative updates
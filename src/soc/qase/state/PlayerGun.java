@@ -328,4 +328,23 @@ public class PlayerGun
 			gunCD = WEAPON_CDS[getInventoryIndex() - 7];
 		}
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Creates a duplicate of the object by cloning each of its fields.
+ *	@return a deep copy of the current object */
+/*-------------------------------------------------------------------*/
+	public PlayerGun deepCopy()
+	{
+		PlayerGun pg = new PlayerGun();
+
+		pg.gunCD = gunCD;
+		pg.frame = frame;
+		pg.modelIndex = modelIndex;
+		pg.isFiring = isFiring;
+
+		pg.offset = (offset == null ? null : offset.deepCopy());
+		pg.angles = (angles == null ? null : angles.deepCopy());
+
+		return pg;
+	}
 }
@@ -282,4 +282,26 @@ public class PlayerMove
 		velMagnitude = getDirectionalVelocity().length();
 		walkState = (velMagnitude > (underWater ? 100 : 250) ? WALK_RUN : (velMagnitude > 0 ? WALK_NORMAL : WALK_STOPPED));
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Creates a duplicate of the object by cloning each of its fields.
+ *	@return a deep copy of the current object */
+/*-------------------------------------------------------------------*/
+	public PlayerMove deepCopy()
+	{
+		PlayerMove pm = new PlayerMove();
+
+		pm.type = type;
+		pm.time = time;
+		pm.flags = flags;
+		pm.gravity = gravity;
+		pm.walkState = walkState;
+		pm.velMagnitude = velMagnitude;
+
+		pm.origin = (origin == null ? null : origin.deepCopy());
+		pm.velocity = (velocity == null ? null : new Velocity(velocity));
+		pm.deltaAngles = (deltaAngles == null ? null : deltaAngles.deepCopy());
+
+		return pm;
+	}
 }
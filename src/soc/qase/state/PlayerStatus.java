@@ -169,4 +169,20 @@ public class PlayerStatus
 				stats[i] = playerStatus.getStatus(i);
 		}
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Creates a duplicate of the object by cloning each of its fields.
+ *	The duplicate refers to the same Config as the original.
+ *	@return a deep copy of the current object */
+/*-------------------------------------------------------------------*/
+	public PlayerStatus deepCopy()
+	{
+		PlayerStatus ps = new PlayerStatus();
+
+		ps.config = config;
+		ps.updated = updated;
+		System.arraycopy(stats, 0, ps.stats, 0, stats.length);
+
+		return ps;
+	}
 }
@@ -195,4 +195,23 @@ public class PlayerView
 		if(viewAngles == null) viewAngles = playerView.viewAngles; else viewAngles.merge(playerView.viewAngles);
 		if(kickAngles == null) kickAngles = playerView.kickAngles; else kickAngles.merge(playerView.kickAngles);
 	}
+
+/*-------------------------------------------------------------------*/
+/**	Creates a duplicate of the object by cloning each of its fields.
+ *	@return a deep copy of the current object */
+/*-------------------------------------------------------------------*/
+	public PlayerView deepCopy()
+	{
+		PlayerView pv = new PlayerView();
+
+		pv.fov = fov;
+		pv.render = render;
+		pv.blend = (blend == null ? null : blend.clone());
+
+		pv.viewOffset = (viewOffset == null ? null : viewOffset.deepCopy());
+		pv.viewAngles = (viewAngles == null ? null : viewAngles.deepCopy());
+		pv.kickAngles = (kickAngles == null ? null : kickAngles.deepCopy());
+
+		return pv;
+	}
 }
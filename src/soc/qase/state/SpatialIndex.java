@@ -0,0 +1,459 @@
+//---------------------------------------------------------------------
+// Name:			SpatialIndex.java
+// Author:			Bernard.Gorman@computing.dcu.ie
+//---------------------------------------------------------------------
+
+package soc.qase.state;
+
+import java.util.Arrays;
+
+/*-------------------------------------------------------------------*/
+/**	A uniform grid over the positions of the entities in a frame, used
+ *	by the World to answer nearest-entity, k-nearest and radius queries
+ *	without measuring the distance to every candidate. The grid is
+ *	sparse; cells are hashed into a fixed table of buckets, each holding
+ *	a doubly-linked list of the entities within it, so that an entity
+ *	which moves to another cell is relinked in constant time and one
+ *	which stays within its cell costs nothing.<p>
+ *
+ *	Each query accepts an optional filter, a bitset of the entity
+ *	numbers which may be returned, as produced by EntityIndex.select.
+ *	Queries search outwards from the cell containing the query point;
+ *	where the filter admits fewer candidates than there are cells to
+ *	search, the candidates are simply examined in turn.
+ *	@see World#findNearestEntity(Origin, String, String, String, boolean)
+ *	@see EntityIndex */
+/*-------------------------------------------------------------------*/
+public class SpatialIndex
+{
+	public static final int DEFAULT_CELL_SIZE = 256;
+
+	private static final int NUM_BUCKETS = 1024;
+	private static final int MAX_ENTITIES = EntityIndex.MAX_ENTITIES;
+	private static final int NUM_WORDS = MAX_ENTITIES >> 6;
+
+	private int cellSize = 0;
+	private int size = 0;
+
+	private int[] head = new int[NUM_BUCKETS];
+	private int[] next = new int[MAX_ENTITIES];
+	private int[] prev = new int[MAX_ENTITIES];
+	private int[] bucketOf = new int[MAX_ENTITIES];
+	private long[] members = new long[NUM_WORDS];
+
+	private int[] posX = new int[MAX_ENTITIES];
+	private int[] posY = new int[MAX_ENTITIES];
+	private int[] posZ = new int[MAX_ENTITIES];
+	private int[] cellX = new int[MAX_ENTITIES];
+	private int[] cellY = new int[MAX_ENTITIES];
+	private int[] cellZ = new int[MAX_ENTITIES];
+
+	// bounds of the occupied cells; never shrink until the index is cleared
+	private int minCX = 0, minCY = 0, minCZ = 0, maxCX = -1, maxCY = -1, maxCZ = -1;
+
+	// state of the current k-nearest query
+	private int[] knnNumbers = null;
+	private long[] knnDists = null;
+	private int knnCount = 0;
+
+/*-------------------------------------------------------------------*/
+/**	Default constructor. Creates an empty index with the default cell
+ *	size. */
+/*-------------------------------------------------------------------*/
+	public SpatialIndex()
+	{
+		this(DEFAULT_CELL_SIZE);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Constructor. Creates an empty index with the given cell size.
+ *	@param cellSize the length of each side of a grid cell */
+/*-------------------------------------------------------------------*/
+	public SpatialIndex(int cellSize)
+	{
+		this.cellSize = Math.max(1, cellSize);
+		clear();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Remove all entities from the index. */
+/*-------------------------------------------------------------------*/
+	public void clear()
+	{
+		Arrays.fill(head, -1);
+		Arrays.fill(bucketOf, -1);
+		Arrays.fill(members, 0);
+
+		size = 0;
+		minCX = minCY = minCZ = 0;
+		maxCX = maxCY = maxCZ = -1;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the number of entities in the index.
+ *	@return the number of entities indexed */
+/*-------------------------------------------------------------------*/
+	public int size()
+	{
+		return size;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether an entity is in the index.
+ *	@param number the entity number
+ *	@return true if the entity is indexed, false otherwise */
+/*-------------------------------------------------------------------*/
+	public boolean contains(int number)
+	{
+		return bucketOf[number] != -1;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Get the bitset of the entity numbers in the index. The array must
+ *	not be modified.
+ *	@return the indexed entity numbers */
+/*-------------------------------------------------------------------*/
+	public long[] getMembers()
+	{
+		return members;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Add an entity to the index, or record its new position if it is
+ *	already present.
+ *	@param number the entity number
+ *	@param x the entity's x coordinate
+ *	@param y the entity's y coordinate
+ *	@param z the entity's z coordinate */
+/*-------------------------------------------------------------------*/
+	public void update(int number, int x, int y, int z)
+	{
+		int cx = cell(x), cy = cell(y), cz = cell(z);
+
+		posX[number] = x;
+		posY[number] = y;
+		posZ[number] = z;
+
+		if(bucketOf[number] != -1)
+		{
+			if(cellX[number] == cx && cellY[number] == cy && cellZ[number] == cz)
+				return;
+
+			unlink(number);
+		}
+		else
+		{
+			size++;
+			members[number >> 6] |= (1L << number);
+		}
+
+		cellX[number] = cx;
+		cellY[number] = cy;
+		cellZ[number] = cz;
+
+		int bucket = bucket(cx, cy, cz);
+
+		bucketOf[number] = bucket;
+		prev[number] = -1;
+		next[number] = head[bucket];
+
+		if(head[bucket] != -1)
+			prev[head[bucket]] = number;
+
+		head[bucket] = number;
+
+		if(maxCX < minCX)
+		{
+			minCX = maxCX = cx;
+			minCY = maxCY = cy;
+			minCZ = maxCZ = cz;
+		}
+		else
+		{
+			minCX = Math.min(minCX, cx); maxCX = Math.max(maxCX, cx);
+			minCY = Math.min(minCY, cy); maxCY = Math.max(maxCY, cy);
+			minCZ = Math.min(minCZ, cz); maxCZ = Math.max(maxCZ, cz);
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Remove an entity from the index.
+ *	@param number the entity number */
+/*-------------------------------------------------------------------*/
+	public void remove(int number)
+	{
+		if(bucketOf[number] == -1)
+			return;
+
+		unlink(number);
+
+		bucketOf[number] = -1;
+		members[number >> 6] &= ~(1L << number);
+		size--;
+	}
+
+	private void unlink(int number)
+	{
+		if(prev[number] != -1)
+			next[prev[number]] = next[number];
+		else
+			head[bucketOf[number]] = next[number];
+
+		if(next[number] != -1)
+			prev[next[number]] = prev[number];
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the entity nearest to a given point.
+ *	@param x the x coordinate of the point
+ *	@param y the y coordinate of the point
+ *	@param z the z coordinate of the point
+ *	@param filter bitset of the entity numbers which may be returned,
+ *	or null to consider all entities
+ *	@param skipCoincident if true, entities lying exactly at the given
+ *	point are ignored
+ *	@return the number of the nearest entity, or -1 if there is none;
+ *	ties are resolved in favour of the lower entity number */
+/*-------------------------------------------------------------------*/
+	public int findNearest(int x, int y, int z, long[] filter, boolean skipCoincident)
+	{
+		knnNumbers = (knnNumbers == null || knnNumbers.length < 1 ? new int[1] : knnNumbers);
+		knnDists = (knnDists == null || knnDists.length < 1 ? new long[1] : knnDists);
+
+		return (search(x, y, z, 1, filter, skipCoincident) == 0 ? -1 : knnNumbers[0]);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the k entities nearest to a given point, in ascending order of
+ *	distance.
+ *	@param x the x coordinate of the point
+ *	@param y the y coordinate of the point
+ *	@param z the z coordinate of the point
+ *	@param k the maximum number of entities to find
+ *	@param filter bitset of the entity numbers which may be returned,
+ *	or null to consider all entities
+ *	@param skipCoincident if true, entities lying exactly at the given
+ *	point are ignored
+ *	@param result array into which the entity numbers are placed; must
+ *	hold at least k elements
+ *	@return the number of entities found */
+/*-------------------------------------------------------------------*/
+	public int findNearest(int x, int y, int z, int k, long[] filter, boolean skipCoincident, int[] result)
+	{
+		if(k <= 0)
+			return 0;
+
+		if(knnNumbers == null || knnNumbers.length < k)
+		{
+			knnNumbers = new int[k];
+			knnDists = new long[k];
+		}
+
+		int count = search(x, y, z, k, filter, skipCoincident);
+		System.arraycopy(knnNumbers, 0, result, 0, count);
+
+		return count;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the entities lying within a given distance of a point, in
+ *	ascending order of entity number.
+ *	@param x the x coordinate of the point
+ *	@param y the y coordinate of the point
+ *	@param z the z coordinate of the point
+ *	@param radius the maximum distance from the point
+ *	@param filter bitset of the entity numbers which may be returned,
+ *	or null to consider all entities
+ *	@param result bitset into which the entity numbers found are placed;
+ *	its existing contents are discarded
+ *	@return the number of entities found */
+/*-------------------------------------------------------------------*/
+	public int findWithinRadius(int x, int y, int z, float radius, long[] filter, long[] result)
+	{
+		Arrays.fill(result, 0);
+
+		if(size == 0 || radius < 0)
+			return 0;
+
+		int count = 0;
+		long radiusSq = (long)Math.floor((double)radius * radius);
+
+		int loX = Math.max(cell((int)Math.floor(x - radius)), minCX), hiX = Math.min(cell((int)Math.ceil(x + radius)), maxCX);
+		int loY = Math.max(cell((int)Math.floor(y - radius)), minCY), hiY = Math.min(cell((int)Math.ceil(y + radius)), maxCY);
+		int loZ = Math.max(cell((int)Math.floor(z - radius)), minCZ), hiZ = Math.min(cell((int)Math.ceil(z + radius)), maxCZ);
+
+		long numCells = (long)Math.max(0, hiX - loX + 1) * Math.max(0, hiY - loY + 1) * Math.max(0, hiZ - loZ + 1);
+
+		if(numCells > countCandidates(filter))
+		{
+			for(int n = nextCandidate(filter, 0); n >= 0; n = nextCandidate(filter, n + 1))
+			{
+				if(distanceSq(n, x, y, z) <= radiusSq)
+				{
+					result[n >> 6] |= (1L << n);
+					count++;
+				}
+			}
+
+			return count;
+		}
+
+		for(int cx = loX; cx <= hiX; cx++)
+		{
+			for(int cy = loY; cy <= hiY; cy++)
+			{
+				for(int cz = loZ; cz <= hiZ; cz++)
+				{
+					for(int n = head[bucket(cx, cy, cz)]; n != -1; n = next[n])
+					{
+						if(cellX[n] == cx && cellY[n] == cy && cellZ[n] == cz && admits(filter, n) && distanceSq(n, x, y, z) <= radiusSq)
+						{
+							result[n >> 6] |= (1L << n);
+							count++;
+						}
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Find the k nearest candidates, searching outwards from the cell
+ *	containing the query point in cubic shells of cells until no
+ *	unsearched cell can hold a nearer candidate. If the shells would
+ *	visit more cells than there are candidates, the remaining
+ *	candidates are examined directly instead. */
+/*-------------------------------------------------------------------*/
+	private int search(int x, int y, int z, int k, long[] filter, boolean skipCoincident)
+	{
+		knnCount = 0;
+
+		if(size == 0)
+			return 0;
+
+		int cx = cell(x), cy = cell(y), cz = cell(z);
+		int maxRing = Math.max(Math.max(Math.max(cx - minCX, maxCX - cx), Math.max(cy - minCY, maxCY - cy)), Math.max(cz - minCZ, maxCZ - cz));
+
+		int candidates = countCandidates(filter);
+		long cellsVisited = 0;
+
+		for(int ring = 0; ring <= maxRing; ring++)
+		{
+			if(knnCount == k && ring > 0)
+			{
+				long reach = (long)(ring - 1) * cellSize;
+
+				if(reach * reach > knnDists[k - 1])
+					return knnCount;
+			}
+
+			cellsVisited += (ring == 0 ? 1 : (long)24 * ring * ring + 2);
+
+			if(cellsVisited > candidates)
+			{
+				// cheaper to examine every candidate than to keep searching
+				knnCount = 0;
+
+				for(int n = nextCandidate(filter, 0); n >= 0; n = nextCandidate(filter, n + 1))
+					consider(n, x, y, z, k, skipCoincident);
+
+				return knnCount;
+			}
+
+			for(int dx = -ring; dx <= ring; dx++)
+			{
+				for(int dy = -ring; dy <= ring; dy++)
+				{
+					boolean edge = (dx == -ring || dx == ring || dy == -ring || dy == ring);
+
+					for(int dz = -ring; dz <= ring; dz += (edge || ring == 0 ? 1 : 2 * ring))
+					{
+						int tx = cx + dx, ty = cy + dy, tz = cz + dz;
+
+						if(tx < minCX || tx > maxCX || ty < minCY || ty > maxCY || tz < minCZ || tz > maxCZ)
+							continue;
+
+						for(int n = head[bucket(tx, ty, tz)]; n != -1; n = next[n])
+						{
+							if(cellX[n] == tx && cellY[n] == ty && cellZ[n] == tz && admits(filter, n))
+								consider(n, x, y, z, k, skipCoincident);
+						}
+					}
+				}
+			}
+		}
+
+		return knnCount;
+	}
+
+	private void consider(int n, int x, int y, int z, int k, boolean skipCoincident)
+	{
+		long dist = distanceSq(n, x, y, z);
+
+		if(dist == 0 && skipCoincident)
+			return;
+
+		int pos = knnCount;
+
+		while(pos > 0 && (knnDists[pos - 1] > dist || (knnDists[pos - 1] == dist && knnNumbers[pos - 1] > n)))
+			pos--;
+
+		if(pos >= k)
+			return;
+
+		int last = Math.min(knnCount, k - 1);
+
+		System.arraycopy(knnNumbers, pos, knnNumbers, pos + 1, last - pos);
+		System.arraycopy(knnDists, pos, knnDists, pos + 1, last - pos);
+
+		knnNumbers[pos] = n;
+		knnDists[pos] = dist;
+
+		if(knnCount < k)
+			knnCount++;
+	}
+
+	private int countCandidates(long[] filter)
+	{
+		int count = 0;
+
+		for(int w = 0; w < NUM_WORDS; w++)
+			count += Long.bitCount(filter == null ? members[w] : members[w] & filter[w]);
+
+		return count;
+	}
+
+	private int nextCandidate(long[] filter, int from)
+	{
+		for(int n = EntityIndex.nextEntity(members, from); n >= 0; n = EntityIndex.nextEntity(members, n + 1))
+		{
+			if(admits(filter, n))
+				return n;
+		}
+
+		return -1;
+	}
+
+	private static boolean admits(long[] filter, int n)
+	{
+		return filter == null || (filter[n >> 6] & (1L << n)) != 0;
+	}
+
+	private long distanceSq(int n, int x, int y, int z)
+	{
+		long dx = posX[n] - x, dy = posY[n] - y, dz = posZ[n] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private int cell(int coord)
+	{
+		return Math.floorDiv(coord, cellSize);
+	}
+
+	private static int bucket(int cx, int cy, int cz)
+	{
+		return ((cx * 73856093) ^ (cy * 19349663) ^ (cz * 83492791)) & (NUM_BUCKETS - 1);
+	}
+}
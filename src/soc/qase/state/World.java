@@ -38,6 +38,30 @@ public class World
 
 	private Player players[] = null;
 	private Entity entities[][] = null;
+	private Entity entityPool[][] = null;
+	private boolean updateBaseActive = false;
+
+	private EntityStore entityStore = null;
+	private Entity entityViews[] = null;
+	private int viewStamps[] = null;
+	private int viewVersion = 0;
+	private Entity storeEntity = null;
+
+	private EntityIndex entityIndex = null;
+	private EntityList queryList = new EntityList();
+	private EntityList resultList = new EntityList();
+
+	private SpatialIndex spatialIndex = null;
+	private int spatialVersion = 0;
+	private int[] nearestNumbers = null;
+	private long[] radiusNumbers = null;
+
+	private World source = null;
+	private Entity snapshotEntities[] = null;
+	private Entity snapshotSources[] = null;
+	private Config snapshotConfig = null;
+	private Config snapshotConfigSource = null;
+	private int snapshotConfigCount = -1;
 
 	private Vector messages = null;
 	private Vector tempEntities = new Vector();
@@ -76,10 +100,20 @@ public class World
 		trackInventory = trackInv;
 	}
 
+/*-------------------------------------------------------------------*/
+/*	Constructor used by createSnapshot. No structures are allocated;
+ *	the snapshot's state is filled in by the source World. */
+/*-------------------------------------------------------------------*/
+	private World(World source)
+	{
+		this.source = source;
+	}
+
 	private void commonSetup()
 	{
 		config = new Config();
 		entities = new Entity[17][1024];
+		entityIndex = new EntityIndex(17);
 
 		respawnTimes = new int[1024];
 		respawnedEntities = new boolean[1024];
@@ -116,6 +150,9 @@ public class World
 /*-------------------------------------------------------------------*/
 	public synchronized Vector getMessages()
 	{
+		if(source != null)
+			return source.getMessages();
+
 		Vector result = messages;
 		messages = null;
 		return result;
@@ -160,10 +197,23 @@ public class World
 		else if((currentFrame - previousFrame) <= 12)
 			mergeState = (currentState + currentDeltaFrame - currentFrame + 16) % 16;
 
-		for(int i = 0; i < 1024; i++)
+		entityIndex.beginFrame(currentState, mergeState);
+
+		if(entityStore != null)
+		{
+			entityStore.beginFrame(currentState, mergeState);
+			viewVersion++;
+		}
+
+		for(int i = 0; entityStore == null && i < 1024; i++)
 		{
 			if(entities[mergeState][i] != null)
-				entities[currentState][i] = entities[mergeState][i];
+			{
+				if(entityPool == null)
+					entities[currentState][i] = entities[mergeState][i];
+				else
+					entities[currentState][i] = copyToPool(currentState, i, entities[mergeState][i]);
+			}
 		}
 
 		pickupEntityNum = -1;
@@ -246,6 +296,89 @@ public class World
 		for(int i = 0; i < entities.size(); i++)
 			setEntity((Entity)entities.elementAt(i), false);
 
+		endEntityUpdates();
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Obtain the pooled Entity into which a delta update for the given
+ *	entity number should be decoded. The pooled Entity is owned by the
+ *	current frame's slot in the gamestate, and is first brought up to
+ *	date with the state of the entity on the frame against which the
+ *	update is delta-compressed. The caller writes the fields present
+ *	in the update directly into the Entity's existing components, and
+ *	then calls endEntityUpdate. No objects are allocated once the pool
+ *	has been populated.<p>
+ *	Once the pool is in use, the World copies entity state between
+ *	frames by value rather than by reference; each Entity object is
+ *	therefore reused every 16 frames, and agents which need to retain
+ *	an Entity across frames should take a deepCopy of it.
+ *	@param number the entity number
+ *	@return the pooled Entity for the current frame
+ *	@see soc.qase.com.message.ServerPacketEntities#decode(byte[], int, int, World) */
+/*-------------------------------------------------------------------*/
+	public synchronized Entity beginEntityUpdate(int number)
+	{
+		if(entityStore != null)
+		{
+			if(storeEntity == null)
+				storeEntity = new Entity();
+
+			if(!entityStore.load(mergeState, number, storeEntity))
+				storeEntity.copy(null);
+
+			updateBaseActive = entityStore.isActive(mergeState, number);
+
+			storeEntity.beginUpdate(number, entityStore.hasModel(mergeState, number));
+			storeEntity.setConfig(config);
+
+			return storeEntity;
+		}
+
+		Entity base = entities[mergeState][number];
+		Entity entity = copyToPool(currentState, number, base);
+
+		updateBaseActive = (base != null && base.getActive());
+
+		entity.beginUpdate(number, base != null && base.getModel() != null);
+		entity.setConfig(config);
+
+		return entity;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Complete a delta update begun by beginEntityUpdate, storing the
+ *	updated Entity in the current frame and recording whether it has
+ *	respawned or been deactivated.
+ *	@param entity the Entity returned by beginEntityUpdate
+ *	@param respawned true if the update carried an item respawn event */
+/*-------------------------------------------------------------------*/
+	public synchronized void endEntityUpdate(Entity entity, boolean respawned)
+	{
+		int number = entity.getNumber();
+
+		entity.endUpdate(respawned);
+
+		respawnedEntities[number] = respawned;
+		deactivatedEntities[number] = (updateBaseActive && !entity.getActive());
+
+		if(respawned)
+			respawnTimes[number] = 0;
+
+		if(entityStore == null)
+		{
+			entities[currentState][number] = entity;
+			entityIndex.update(currentState, number, entity.getActive());
+		}
+		else
+			storeEntity(currentState, entity);
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Signal that all entity updates for the current frame have been
+ *	applied, and advance the respawn timers of collected items. */
+/*-------------------------------------------------------------------*/
+	public synchronized void endEntityUpdates()
+	{
 		for(int i = 0; i < respawnTimes.length; i++)
 		{
 			if(respawnTimes[i] > 0 && respawnTimes[i] != Integer.MAX_VALUE)
@@ -256,6 +389,26 @@ public class World
 		}
 	}
 
+/*-------------------------------------------------------------------*/
+/*	Copy the state of an entity into the pooled Entity of the given
+ *	frame slot, creating the pool and the Entity on first use. */
+/*-------------------------------------------------------------------*/
+	private Entity copyToPool(int state, int number, Entity source)
+	{
+		if(entityPool == null)
+			entityPool = new Entity[17][1024];
+
+		Entity pooled = entityPool[state][number];
+
+		if(pooled == null)
+			pooled = entityPool[state][number] = new Entity();
+
+		if(pooled != source)
+			pooled.copy(source);
+
+		return pooled;
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Set entity information, merging updated data into the current
  *	gamestate representation.
@@ -265,8 +418,13 @@ public class World
 /*-------------------------------------------------------------------*/
 	public synchronized void setEntity(Entity entity, boolean baseline)
 	{
-		if(baseline)
+		if(entityStore != null)
+			setStoreEntity(entity, baseline);
+		else if(baseline)
+		{
 			entities[mergeState][entity.getNumber()] = entity;
+			entityIndex.update(mergeState, entity.getNumber(), entity.getActive());
+		}
 		else
 		{
 			respawnedEntities[entity.getNumber()] = entity.isRespawned();
@@ -278,7 +436,294 @@ public class World
 			entity.setConfig(config);
 			entities[currentState][entity.getNumber()] = entity;
 			entities[currentState][entity.getNumber()].merge(entities[mergeState][entity.getNumber()]);
+			entityIndex.update(currentState, entity.getNumber(), entity.getActive());
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Specify whether the World should hold its entities in a compact
+ *	EntityStore rather than as an Entity[17][1024] object graph. The
+ *	store lays out entity attributes in primitive arrays and shares
+ *	unchanged entities between frames, so that each World occupies
+ *	far less memory and advancing a frame touches only the entities
+ *	present in it. Existing entity state is converted in either
+ *	direction.<p>
+ *	While the store is in use, getEntity and the getEntities methods
+ *	return a reusable Entity per entity number, reloaded from the store
+ *	as the gamestate advances. Agents which need to retain an Entity
+ *	across frames should take a deepCopy of it.
+ *	@param compact true to use the compact store, false to use Entity
+ *	objects
+ *	@see EntityStore */
+/*-------------------------------------------------------------------*/
+	public synchronized void setCompactEntityStore(boolean compact)
+	{
+		if(compact == (entityStore != null))
+			return;
+
+		if(compact)
+		{
+			entityStore = new EntityStore();
+
+			for(int s = 0; s < entities.length; s++)
+			{
+				for(int i = 0; i < entities[s].length; i++)
+				{
+					if(entities[s][i] != null)
+						entityStore.store(s, entities[s][i]);
+				}
+			}
+
+			entities = null;
+			entityPool = null;
+			entityViews = new Entity[entityStore.getCapacity()];
+			viewStamps = new int[entityStore.getCapacity()];
+			viewVersion++;
 		}
+		else
+		{
+			entities = new Entity[17][1024];
+
+			for(int s = 0; s < entities.length; s++)
+			{
+				for(int i = 0; i < entityStore.getPresentCount(s); i++)
+				{
+					int number = entityStore.getPresent(s, i);
+
+					entities[s][number] = new Entity();
+					entityStore.load(s, number, entities[s][number]);
+				}
+			}
+
+			entityStore = null;
+			entityViews = null;
+			viewStamps = null;
+			storeEntity = null;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether the World holds its entities in a compact store.
+ *	@return true if the compact EntityStore is in use, false otherwise
+ *	@see #setCompactEntityStore(boolean) */
+/*-------------------------------------------------------------------*/
+	public synchronized boolean isCompactEntityStore()
+	{
+		return entityStore != null;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Create an immutable snapshot of the current frame. The snapshot is a
+ *	separate World holding its own copies of the current player, entity,
+ *	inventory and respawn state, and so remains consistent while this
+ *	World continues to receive updates; an AI thread may therefore read
+ *	it without locking. Entities which have not changed since the
+ *	previous snapshot are shared with it rather than copied again. The
+ *	snapshot holds its own copy of the Config, since config strings are
+ *	set in place as the server sends them; the copy is itself shared by
+ *	successive snapshots until the Config next changes. The Layout is
+ *	immutable, and is shared with this World.<p>
+ *	A snapshot must not itself be updated. Calls to its getMessages
+ *	method drain the mailbox of the World from which it was taken.
+ *	@return a snapshot of the current gamestate
+ *	@see soc.qase.com.Proxy#getWorldSnapshot() */
+/*-------------------------------------------------------------------*/
+	public synchronized World createSnapshot()
+	{
+		World snapshot = new World(source == null ? this : source);
+
+		snapshot.currentFrame = currentFrame;
+		snapshot.previousFrame = previousFrame;
+		snapshot.currentDeltaFrame = currentDeltaFrame;
+		snapshot.currentState = snapshot.mergeState = 0;
+
+		if(config != snapshotConfigSource || config.getModificationCount() != snapshotConfigCount)
+		{
+			snapshotConfig = config.deepCopy();
+			snapshotConfigSource = config;
+			snapshotConfigCount = config.getModificationCount();
+			snapshotEntities = snapshotSources = null;
+		}
+
+		snapshot.layout = layout;
+		snapshot.config = snapshotConfig;
+		snapshot.pickupEntityNum = pickupEntityNum;
+		snapshot.playerEntityNum = playerEntityNum;
+		snapshot.trackInventory = trackInventory;
+		snapshot.inventoryUpdated = inventoryUpdated;
+
+		snapshot.players = new Player[1];
+
+		if(players[currentState] != null)
+		{
+			snapshot.players[0] = new Player();
+			snapshot.players[0].copy(players[currentState]);
+			snapshot.players[0].getPlayerStatus().setConfig(snapshotConfig);
+		}
+
+		if(inventory != null)
+		{
+			int[] count = inventory.getInventoryArrayReference();
+
+			snapshot.inventory = new Inventory(snapshotConfig);
+			System.arraycopy(count, 0, snapshot.inventory.getInventoryArrayReference(), 0, count.length);
+		}
+
+		snapshot.tempEntities = new Vector(tempEntities);
+		snapshot.respawnTimes = respawnTimes.clone();
+		snapshot.respawnedEntities = respawnedEntities.clone();
+		snapshot.deactivatedEntities = deactivatedEntities.clone();
+
+		classifyEntities();
+
+		snapshot.entities = new Entity[1][1024];
+		snapshot.entityIndex = new EntityIndex(entityIndex, currentState);
+
+		if(entityStore != null)
+		{
+			for(int i = 0; i < entityStore.getPresentCount(currentState); i++)
+			{
+				int number = entityStore.getPresent(currentState, i);
+
+				snapshot.entities[0][number] = new Entity();
+				snapshot.entities[0][number].copy(getStoreEntity(number));
+				snapshot.entities[0][number].setConfig(snapshotConfig);
+			}
+
+			snapshotEntities = snapshotSources = null;
+			return snapshot;
+		}
+
+		if(snapshotEntities == null)
+		{
+			snapshotEntities = new Entity[1024];
+			snapshotSources = new Entity[1024];
+		}
+
+		Entity entity = null, copy = null;
+
+		for(int i = 0; i < 1024; i++)
+		{
+			entity = getEntity(i);
+			copy = snapshotEntities[i];
+
+			if(entity == null)
+				copy = null;
+			else if(entityPool != null || copy == null || snapshotSources[i] != entity || copy.playerDied != entity.playerDied || copy.playerJumped != entity.playerJumped)
+			{
+				copy = new Entity();
+				copy.copy(entity);
+				copy.setConfig(snapshotConfig);
+			}
+
+			snapshot.entities[0][i] = snapshotEntities[i] = copy;
+			snapshotSources[i] = entity;
+		}
+
+		return snapshot;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Check whether this World is a snapshot of another World's state.
+ *	@return true if this World was created by createSnapshot, false
+ *	otherwise
+ *	@see #createSnapshot() */
+/*-------------------------------------------------------------------*/
+	public boolean isSnapshot()
+	{
+		return source != null;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Merge an entity into the compact store, following the same rules
+ *	as the object-based setEntity. */
+/*-------------------------------------------------------------------*/
+	private void setStoreEntity(Entity entity, boolean baseline)
+	{
+		if(baseline)
+		{
+			storeEntity(mergeState, entity);
+			return;
+		}
+
+		int number = entity.getNumber();
+		Entity base = null;
+
+		if(entityStore.contains(mergeState, number))
+		{
+			base = new Entity();
+			entityStore.load(mergeState, number, base);
+			base.setConfig(config);
+		}
+
+		respawnedEntities[number] = entity.isRespawned();
+		deactivatedEntities[number] = (entityStore.isActive(mergeState, number) && !entity.getActive());
+
+		if(entity.isRespawned())
+			respawnTimes[number] = 0;
+
+		entity.setConfig(config);
+		entity.merge(base);
+
+		storeEntity(currentState, entity);
+	}
+
+	private void storeEntity(int state, Entity entity)
+	{
+		int number = entity.getNumber();
+
+		entityStore.store(state, entity);
+		entityIndex.update(state, number, entity.getActive());
+
+		// as when an update replaces an Entity object, the per-frame flags are reset
+		if(number < viewStamps.length && entityViews[number] != null)
+		{
+			viewStamps[number] = viewVersion - 1;
+			entityViews[number].playerDied = entityViews[number].playerJumped = false;
+		}
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Obtain the view of an entity in the current frame, reloading it
+ *	from the compact store if the entity has changed since it was last
+ *	requested. */
+/*-------------------------------------------------------------------*/
+	private synchronized Entity getStoreEntity(int entityNum)
+	{
+		if(!entityStore.contains(currentState, entityNum))
+			return null;
+
+		if(entityNum >= entityViews.length)
+		{
+			Entity[] newViews = new Entity[entityStore.getCapacity()];
+			int[] newStamps = new int[entityStore.getCapacity()];
+
+			System.arraycopy(entityViews, 0, newViews, 0, entityViews.length);
+			System.arraycopy(viewStamps, 0, newStamps, 0, viewStamps.length);
+
+			for(int i = viewStamps.length; i < newStamps.length; i++)
+				newStamps[i] = viewVersion - 1;
+
+			entityViews = newViews;
+			viewStamps = newStamps;
+		}
+
+		Entity view = entityViews[entityNum];
+
+		if(view == null)
+		{
+			view = entityViews[entityNum] = new Entity();
+			viewStamps[entityNum] = viewVersion - 1;
+		}
+
+		if(viewStamps[entityNum] != viewVersion)
+		{
+			entityStore.load(currentState, entityNum, view);
+			viewStamps[entityNum] = viewVersion;
+		}
+
+		view.setConfig(config);
+		return view;
 	}
 
 /*-------------------------------------------------------------------*/
@@ -558,6 +1003,9 @@ public class World
 /*-------------------------------------------------------------------*/
 	public synchronized Inventory getInventory()
 	{
+		if(source != null)
+			source.inventoryUpdated = false;
+
 		inventoryUpdated = false;
 		return inventory;
 	}
@@ -568,6 +1016,9 @@ public class World
 /*-------------------------------------------------------------------*/
 	public Entity getEntity(int entityNum)
 	{
+		if(entityStore != null)
+			return getStoreEntity(entityNum);
+
 		if(entityNum < 0)
 			return null;
 		else if(entities[currentState][entityNum] != null)
@@ -598,32 +1049,248 @@ public class World
 /*-------------------------------------------------------------------*/
 	public synchronized Vector getEntities(String cat, String type, String subType, boolean onlyActive)
 	{
-		Vector result = null;
-		Entity currentEntity = null;
+		return findEntities(cat, type, subType, onlyActive, -1, queryList).toVector();
+	}
 
-		result = new Vector();
+/*-------------------------------------------------------------------*/
+/**	Find the entities of the specified category, type and subtype,
+ *	without allocating a new collection. Designed to be used with the
+ *	Entity.CONSTANT values. Rather than examining every entity, the
+ *	World consults an index of entity families which it maintains as
+ *	updates are merged, so that only the matching entities are visited.
+ *	The result is placed in an EntityList owned by the World, which is
+ *	overwritten by the next call to this method.
+ *	@param cat the category to match, or null to match any
+ *	@param type the type to match, or null to match any
+ *	@param subType the subtype to match, or null to match any
+ *	@param onlyActive if true, returns only active entities
+ *	@return a reusable list of the matching entities
+ *	@see EntityIndex */
+/*-------------------------------------------------------------------*/
+	public synchronized EntityList findEntities(String cat, String type, String subType, boolean onlyActive)
+	{
+		return findEntities(cat, type, subType, onlyActive, -1, resultList);
+	}
 
-		for(int i = 0; i < 1024; i++)
-		{
-			currentEntity = entities[currentState][i];
+/*-------------------------------------------------------------------*/
+/**	Find the entities of the specified category, type and subtype,
+ *	placing them in a list supplied by the caller. Designed to be used
+ *	with the Entity.CONSTANT values.
+ *	@param cat the category to match, or null to match any
+ *	@param type the type to match, or null to match any
+ *	@param subType the subtype to match, or null to match any
+ *	@param onlyActive if true, returns only active entities
+ *	@param result the list into which the matching entities are placed;
+ *	its existing contents are discarded
+ *	@return the result list */
+/*-------------------------------------------------------------------*/
+	public synchronized EntityList findEntities(String cat, String type, String subType, boolean onlyActive, EntityList result)
+	{
+		return findEntities(cat, type, subType, onlyActive, -1, result);
+	}
 
-			if(currentEntity != null)
-			{
-				currentEntity.setConfig(config);
+/*-------------------------------------------------------------------*/
+/**	Find the opposing players, placing them in a list supplied by the
+ *	caller. The entity corresponding to the local player is excluded.
+ *	@param onlyActive if true, returns only active entities
+ *	@param result the list into which the opponents are placed; its
+ *	existing contents are discarded
+ *	@return the result list */
+/*-------------------------------------------------------------------*/
+	public synchronized EntityList findOpponents(boolean onlyActive, EntityList result)
+	{
+		return findEntities(Entity.CAT_PLAYERS, null, null, onlyActive, playerEntityNum + 1, result);
+	}
 
-				if((cat == null || currentEntity.getCategory().equalsIgnoreCase(cat))
-				&& (type == null || currentEntity.getType().equalsIgnoreCase(type))
-				&& (subType == null || currentEntity.getSubType().equalsIgnoreCase(subType))
-				&& (currentEntity.getActive() || !onlyActive))
-				{
-					result.addElement(currentEntity);
-				}
-			}
+	private EntityList findEntities(String cat, String type, String subType, boolean onlyActive, int exclude, EntityList result)
+	{
+		classifyEntities();
+		result.clear();
+
+		long[] selection = entityIndex.select(currentState, entityIndex.getFamilies(cat, type, subType), onlyActive);
+
+		for(int i = EntityIndex.nextEntity(selection, 0); i >= 0; i = EntityIndex.nextEntity(selection, i + 1))
+		{
+			if(i != exclude)
+				result.add(getEntity(i));
 		}
 
 		return result;
 	}
 
+/*-------------------------------------------------------------------*/
+/**	Find the entity of the specified category, type and subtype which
+ *	lies nearest to a given position. Rather than measuring the distance
+ *	to every candidate, the World searches outwards from the position
+ *	through a spatial index of the current frame's entities, which is
+ *	brought up to date with their movements as required. Entities lying
+ *	exactly at the given position, such as the agent's own entity if
+ *	the agent's position is given, are ignored.
+ *	@param position the position from which to search
+ *	@param cat the category to match, or null to match any
+ *	@param type the type to match, or null to match any
+ *	@param subType the subtype to match, or null to match any
+ *	@param onlyActive if true, considers only active entities
+ *	@return the nearest matching entity, or null if there is none
+ *	@see SpatialIndex */
+/*-------------------------------------------------------------------*/
+	public synchronized Entity findNearestEntity(Origin position, String cat, String type, String subType, boolean onlyActive)
+	{
+		long[] filter = selectEntities(cat, type, subType, onlyActive, -1);
+		int number = spatialIndex.findNearest(position.getX(), position.getY(), position.getZ(), filter, true);
+
+		return (number == -1 ? null : getEntity(number));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the opposing player nearest to a given position. The entity
+ *	corresponding to the local player is excluded.
+ *	@param position the position from which to search
+ *	@param onlyActive if true, considers only active entities
+ *	@return the nearest opponent, or null if there is none */
+/*-------------------------------------------------------------------*/
+	public synchronized Entity findNearestOpponent(Origin position, boolean onlyActive)
+	{
+		long[] filter = selectEntities(Entity.CAT_PLAYERS, null, null, onlyActive, playerEntityNum + 1);
+		int number = spatialIndex.findNearest(position.getX(), position.getY(), position.getZ(), filter, true);
+
+		return (number == -1 ? null : getEntity(number));
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the k entities of the specified category, type and subtype
+ *	which lie nearest to a given position, in ascending order of
+ *	distance. Entities lying exactly at the given position are ignored.
+ *	@param position the position from which to search
+ *	@param k the maximum number of entities to find
+ *	@param cat the category to match, or null to match any
+ *	@param type the type to match, or null to match any
+ *	@param subType the subtype to match, or null to match any
+ *	@param onlyActive if true, considers only active entities
+ *	@param result the list into which the entities found are placed;
+ *	its existing contents are discarded
+ *	@return the result list */
+/*-------------------------------------------------------------------*/
+	public synchronized EntityList findNearestEntities(Origin position, int k, String cat, String type, String subType, boolean onlyActive, EntityList result)
+	{
+		long[] filter = selectEntities(cat, type, subType, onlyActive, -1);
+
+		if(nearestNumbers == null || nearestNumbers.length < k)
+			nearestNumbers = new int[Math.max(k, 16)];
+
+		int count = spatialIndex.findNearest(position.getX(), position.getY(), position.getZ(), k, filter, true, nearestNumbers);
+
+		result.clear();
+
+		for(int i = 0; i < count; i++)
+			result.add(getEntity(nearestNumbers[i]));
+
+		return result;
+	}
+
+/*-------------------------------------------------------------------*/
+/**	Find the entities of the specified category, type and subtype which
+ *	lie within a given distance of a position, in ascending order of
+ *	entity number.
+ *	@param position the position from which to search
+ *	@param radius the maximum distance from the position
+ *	@param cat the category to match, or null to match any
+ *	@param type the type to match, or null to match any
+ *	@param subType the subtype to match, or null to match any
+ *	@param onlyActive if true, considers only active entities
+ *	@param result the list into which the entities found are placed;
+ *	its existing contents are discarded
+ *	@return the result list */
+/*-------------------------------------------------------------------*/
+	public synchronized EntityList findEntitiesWithinRadius(Origin position, float radius, String cat, String type, String subType, boolean onlyActive, EntityList result)
+	{
+		long[] filter = selectEntities(cat, type, subType, onlyActive, -1);
+
+		if(radiusNumbers == null)
+			radiusNumbers = new long[filter.length];
+
+		spatialIndex.findWithinRadius(position.getX(), position.getY(), position.getZ(), radius, filter, radiusNumbers);
+
+		result.clear();
+
+		for(int i = EntityIndex.nextEntity(radiusNumbers, 0); i >= 0; i = EntityIndex.nextEntity(radiusNumbers, i + 1))
+			result.add(getEntity(i));
+
+		return result;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Select the entities matching a spatial query, bringing the spatial
+ *	index up to date with the current frame. */
+/*-------------------------------------------------------------------*/
+	private long[] selectEntities(String cat, String type, String subType, boolean onlyActive, int exclude)
+	{
+		classifyEntities();
+		updateSpatialIndex();
+
+		long[] selection = entityIndex.select(currentState, entityIndex.getFamilies(cat, type, subType), onlyActive);
+
+		if(exclude >= 0 && exclude < EntityIndex.MAX_ENTITIES)
+			selection[exclude >> 6] &= ~(1L << exclude);
+
+		return selection;
+	}
+
+/*-------------------------------------------------------------------*/
+/*	Record the positions of the current frame's entities in the spatial
+ *	index. Entities which have not moved to another cell cost nothing. */
+/*-------------------------------------------------------------------*/
+	private void updateSpatialIndex()
+	{
+		if(spatialIndex == null)
+		{
+			spatialIndex = new SpatialIndex();
+			spatialVersion = entityIndex.getVersion() - 1;
+		}
+
+		if(spatialVersion == entityIndex.getVersion())
+			return;
+
+		long[] present = entityIndex.getPresent(currentState);
+		long[] indexed = spatialIndex.getMembers();
+
+		for(int w = 0; w < present.length; w++)
+		{
+			for(long stale = indexed[w] & ~present[w]; stale != 0; stale &= stale - 1)
+				spatialIndex.remove((w << 6) + Long.numberOfTrailingZeros(stale));
+		}
+
+		Entity entity = null;
+		Origin origin = null;
+
+		for(int i = EntityIndex.nextEntity(present, 0); i >= 0; i = EntityIndex.nextEntity(present, i + 1))
+		{
+			if(entityStore != null)
+				spatialIndex.update(i, entityStore.getOrigin(currentState, i, 0), entityStore.getOrigin(currentState, i, 1), entityStore.getOrigin(currentState, i, 2));
+			else if((entity = entities[currentState][i]) != null && (origin = entity.getOrigin()) != null)
+				spatialIndex.update(i, origin.getX(), origin.getY(), origin.getZ());
+			else
+				spatialIndex.remove(i);
+		}
+
+		spatialVersion = entityIndex.getVersion();
+	}
+
+/*-------------------------------------------------------------------*/
+/*	File each entity updated since the last query under its family in
+ *	the entity index. */
+/*-------------------------------------------------------------------*/
+	private void classifyEntities()
+	{
+		Entity entity = null;
+
+		for(int i = entityIndex.nextEntity(currentState, EntityIndex.UNCLASSIFIED, 0); i >= 0; i = entityIndex.nextEntity(currentState, EntityIndex.UNCLASSIFIED, i + 1))
+		{
+			if((entity = getEntity(i)) != null)
+				entityIndex.classify(currentState, i, entity.getCategory(), entity.getType(), entity.getSubType());
+		}
+	}
+
 /*-------------------------------------------------------------------*/
 /**	Get entity information.
  *	@param onlyActive if true, returns only those entities which are
@@ -655,18 +1322,7 @@ public class World
 /*-------------------------------------------------------------------*/
 	public synchronized Vector getOpponents(boolean onlyActive)
 	{
-		Vector playerEnts = getEntities(Entity.CAT_PLAYERS, null, null, onlyActive);
-
-		for(int i = 0; i < playerEnts.size(); i++)
-		{
-			if(((Entity)playerEnts.elementAt(i)).getNumber() == playerEntityNum + 1)
-			{
-				playerEnts.removeElementAt(i);
-				break;
-			}
-		}
-
-		return playerEnts;
+		return findOpponents(onlyActive, queryList).toVector();
 	}
 
 /*-------------------------------------------------------------------*/